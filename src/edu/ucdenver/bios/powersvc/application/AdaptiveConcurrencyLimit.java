@@ -0,0 +1,181 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.application;
+
+/**
+ * Limit on the number of calculations run at once, adjusted by
+ * additive increase, multiplicative decrease (AIMD) so that it tracks
+ * the concurrency beyond which the calculations slow each other down.
+ * The GLMM calculations are CPU bound, and past the number of cores
+ * they contend for cache and garbage collection rather than
+ * finishing sooner.
+ * <p>
+ * Each completed calculation reports its elapsed time and estimated
+ * cost.  Time per unit of cost does not depend on the mix of designs,
+ * so it is compared with a baseline, the time per unit observed when
+ * the server is least loaded:
+ * <ul>
+ * <li>if the recent time per unit is more than twice the baseline,
+ * or a calculation times out, the limit is cut by a fifth, at most
+ * once per limit's worth of completions</li>
+ * <li>otherwise, if requests are waiting for a slot, the limit grows
+ * by one per limit's worth of completions</li>
+ * </ul>
+ * The baseline drifts slowly upward, so that it follows changes
+ * in the machine, but falls as soon as faster times are seen.
+ *
+ * @author Sarah Kreidler
+ */
+public final class AdaptiveConcurrencyLimit {
+    private static final AdaptiveConcurrencyLimit INSTANCE = new AdaptiveConcurrencyLimit(
+            1, Runtime.getRuntime().availableProcessors(), 4 * Runtime.getRuntime().availableProcessors());
+
+    /** Recent time per unit, relative to the baseline, which indicates overload. */
+    private static final double TOLERANCE = 2.0;
+
+    /** Factor by which the limit is cut on overload. */
+    private static final double BACKOFF = 0.8;
+
+    /** Weight of each sample in the recent time per unit. */
+    private static final double RECENT_WEIGHT = 0.2;
+
+    /** Weight of each slower sample in the baseline. */
+    private static final double DRIFT_WEIGHT = 0.001;
+
+    private int minLimit;
+    private int maxLimit;
+    private double limit;
+
+    /** Time per unit when least loaded, in nanoseconds; NaN until the first sample. */
+    private double baseline = Double.NaN;
+
+    /** Recent time per unit, in nanoseconds; NaN until the first sample. */
+    private double recent = Double.NaN;
+
+    /** Completions to wait after a cut before cutting again. */
+    private double cooldown = 0;
+
+    /** True if requests were waiting for a slot when last dispatched. */
+    private volatile boolean saturated = false;
+
+    /**
+     * @return the process-wide limit
+     */
+    public static AdaptiveConcurrencyLimit getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Create a limit.
+     *
+     * @param minLimit smallest limit
+     * @param initialLimit starting limit
+     * @param maxLimit largest limit
+     */
+    private AdaptiveConcurrencyLimit(int minLimit, int initialLimit, int maxLimit) {
+        setBounds(minLimit, maxLimit);
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        PowerMetrics.getInstance().gauge("compute_concurrency_limit", new PowerMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return getLimit();
+            }
+        });
+    }
+
+    /**
+     * Set the range of the limit.
+     *
+     * @param minLimit smallest limit
+     * @param maxLimit largest limit
+     */
+    public synchronized void setBounds(int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid concurrency limits: " + minLimit + " to " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        limit = Math.max(minLimit, Math.min(maxLimit, limit));
+    }
+
+    /**
+     * @return number of calculations which may run at once
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Note whether requests are waiting for a slot.  The limit only
+     * grows while it is holding requests back.
+     *
+     * @param saturated true if every slot is taken and requests which
+     *        could otherwise start are waiting
+     */
+    public void setSaturated(boolean saturated) {
+        this.saturated = saturated;
+    }
+
+    /**
+     * Record a completed calculation.
+     *
+     * @param cost estimated cost of the calculation
+     * @param elapsedNanos time taken, in nanoseconds
+     */
+    public synchronized void record(long cost, long elapsedNanos) {
+        double perUnit = (double) elapsedNanos / Math.max(cost, 1);
+        if (Double.isNaN(baseline)) {
+            baseline = perUnit;
+            recent = perUnit;
+        } else {
+            recent += RECENT_WEIGHT * (perUnit - recent);
+            baseline += (perUnit < baseline ? 0.5 : DRIFT_WEIGHT) * (perUnit - baseline);
+        }
+
+        if (cooldown > 0) {
+            cooldown--;
+        }
+        if (recent > TOLERANCE * baseline) {
+            decrease();
+        } else if (saturated) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    /**
+     * Record a calculation which timed out, a sign of overload.
+     */
+    public synchronized void recordTimeout() {
+        decrease();
+    }
+
+    /**
+     * Cut the limit, unless it was cut recently.  Called with the lock held.
+     */
+    private void decrease() {
+        if (cooldown <= 0) {
+            limit = Math.max(minLimit, limit * BACKOFF);
+            cooldown = limit;
+        }
+    }
+}
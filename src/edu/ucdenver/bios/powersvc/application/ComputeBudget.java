@@ -0,0 +1,276 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.application;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide budget for the estimated cost of the calculations in
+ * progress.  A request is admitted when its cost fits in what remains
+ * of the budget; otherwise it waits for running requests to finish,
+ * for up to a specified time.  A request whose cost exceeds the whole
+ * budget is admitted only when nothing else is running.
+ * <p>
+ * Costs are in the units of the study design cost estimate: roughly,
+ * the work of calculating conditional power for one case of a small
+ * design.
+ * <p>
+ * The budget also holds the estimated heap footprint of the requests
+ * in progress, which must fit in the heap budget in the same way.
+ * While the heap monitor reports pressure, requests with a footprint
+ * over the large design size wait, whatever the budget.
+ *
+ * @author Sarah Kreidler
+ */
+public final class ComputeBudget {
+    /** Default budget, in cost units. */
+    public static final long DEFAULT_CAPACITY = 4000;
+
+    /** Default footprint above which a design is held back under heap pressure. */
+    public static final long DEFAULT_LARGE_DESIGN_BYTES = 16L * 1024 * 1024;
+
+    /** Longest wait between checks of the heap pressure, in milliseconds. */
+    private static final long PRESSURE_CHECK_MILLIS = 1000;
+
+    private static final ComputeBudget INSTANCE = new ComputeBudget(DEFAULT_CAPACITY);
+
+    private long capacity;
+    private long inFlight;
+    private long heapCapacity = Runtime.getRuntime().maxMemory() / 2;
+    private long heapInFlight;
+    private long largeDesignBytes = DEFAULT_LARGE_DESIGN_BYTES;
+
+    private final AtomicLong admitted = PowerMetrics.getInstance().counter("compute_budget_admitted");
+    private final AtomicLong queued = PowerMetrics.getInstance().counter("compute_budget_queued");
+    private final AtomicLong refused = PowerMetrics.getInstance().counter("compute_budget_refused");
+
+    /**
+     * @return the process-wide budget
+     */
+    public static ComputeBudget getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Create a budget.
+     *
+     * @param capacity budget, in cost units
+     */
+    private ComputeBudget(long capacity) {
+        setCapacity(capacity);
+        PowerMetrics.getInstance().gauge("compute_budget_capacity", new PowerMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return getCapacity();
+            }
+        });
+        PowerMetrics.getInstance().gauge("compute_budget_in_flight", new PowerMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return getInFlight();
+            }
+        });
+        PowerMetrics.getInstance().gauge("compute_budget_heap_capacity_bytes", new PowerMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return getHeapCapacity();
+            }
+        });
+        PowerMetrics.getInstance().gauge("compute_budget_heap_in_flight_bytes", new PowerMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return getHeapInFlight();
+            }
+        });
+    }
+
+    /**
+     * Set the budget.  Requests already admitted are unaffected.
+     *
+     * @param capacity budget, in cost units
+     */
+    public synchronized void setCapacity(long capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid compute budget: " + capacity);
+        }
+        this.capacity = capacity;
+        notifyAll();
+    }
+
+    /**
+     * @return budget, in cost units
+     */
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Set the heap budget.  Requests already admitted are unaffected.
+     *
+     * @param bytes heap budget, in bytes
+     * @param largeDesignBytes footprint above which a design is held
+     *        back while the heap is under pressure
+     */
+    public synchronized void setHeapCapacity(long bytes, long largeDesignBytes) {
+        if (bytes < 1 || largeDesignBytes < 0) {
+            throw new IllegalArgumentException("Invalid heap budget: " + bytes + ", " + largeDesignBytes);
+        }
+        this.heapCapacity = bytes;
+        this.largeDesignBytes = largeDesignBytes;
+        notifyAll();
+    }
+
+    /**
+     * @return heap budget, in bytes
+     */
+    public synchronized long getHeapCapacity() {
+        return heapCapacity;
+    }
+
+    /**
+     * @return total estimated footprint of the requests in progress, in bytes
+     */
+    public synchronized long getHeapInFlight() {
+        return heapInFlight;
+    }
+
+    /**
+     * @return total cost of the requests in progress
+     */
+    public synchronized long getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Admit a request with no heap footprint to speak of, waiting if
+     * necessary for running requests to finish.
+     *
+     * @param cost estimated cost of the request
+     * @param timeoutMillis maximum time to wait, in milliseconds
+     * @return lease to release when the request finishes,
+     *         or null if the request could not be admitted in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Lease acquire(long cost, long timeoutMillis)
+            throws InterruptedException {
+        return acquire(cost, 0, timeoutMillis);
+    }
+
+    /**
+     * Admit a request, waiting if necessary for running requests
+     * to finish or for heap pressure to pass.
+     *
+     * @param cost estimated cost of the request
+     * @param bytes estimated heap footprint of the request
+     * @param timeoutMillis maximum time to wait, in milliseconds
+     * @return lease to release when the request finishes,
+     *         or null if the request could not be admitted in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized Lease acquire(long cost, long bytes, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean waited = false;
+        while (!fits(cost, bytes)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                refused.incrementAndGet();
+                return null;
+            }
+            if (!waited) {
+                waited = true;
+                queued.incrementAndGet();
+            }
+            // nothing announces the end of heap pressure, so check it now and then
+            wait(Math.min(remaining, PRESSURE_CHECK_MILLIS));
+        }
+        long charged = Math.min(Math.max(cost, 0), capacity);
+        long chargedBytes = Math.min(Math.max(bytes, 0), heapCapacity);
+        inFlight += charged;
+        heapInFlight += chargedBytes;
+        admitted.incrementAndGet();
+        return new Lease(charged, chargedBytes);
+    }
+
+    /**
+     * @param cost estimated cost of a request
+     * @param bytes estimated heap footprint of a request
+     * @return true if the request can be admitted now
+     */
+    private boolean fits(long cost, long bytes) {
+        if (bytes > largeDesignBytes && HeapPressureMonitor.getInstance().isUnderPressure()) {
+            return false;
+        }
+        return (inFlight == 0 || inFlight + cost <= capacity)
+                && (heapInFlight == 0 || heapInFlight + bytes <= heapCapacity);
+    }
+
+    /**
+     * @param cost cost to return to the budget
+     * @param bytes footprint to return to the heap budget
+     */
+    private synchronized void release(long cost, long bytes) {
+        inFlight -= cost;
+        heapInFlight -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Share of the budget held by an admitted request.
+     */
+    public final class Lease {
+        private final long cost;
+        private final long bytes;
+        private boolean released;
+
+        /**
+         * @param cost cost charged to the budget
+         * @param bytes footprint charged to the heap budget
+         */
+        private Lease(long cost, long bytes) {
+            this.cost = cost;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return cost charged to the budget
+         */
+        public long getCost() {
+            return cost;
+        }
+
+        /**
+         * Return the cost and footprint of the request to the budget.  Releasing
+         * a lease more than once has no further effect.
+         */
+        public void release() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            ComputeBudget.this.release(cost, bytes);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.application;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared pool of worker threads for the independent pieces of a
+ * calculation, e.g. the points of a power curve.  The pool has one
+ * thread per processor, so that a request with many pieces cannot
+ * oversubscribe the machine, and pieces from concurrent requests
+ * are run in the order submitted.
+ * <p>
+ * Work submitted here must not itself wait on other work submitted
+ * here; the requests which divide up a calculation wait on their own
+ * threads.  A task which calls invokeAll, e.g. a hypothesis whose
+ * sample size search divides up its probes, runs the nested tasks
+ * one after another on its own worker thread.
+ *
+ * @author Sarah Kreidler
+ */
+public final class ComputeScheduler {
+    private static final ComputeScheduler INSTANCE =
+            new ComputeScheduler(Runtime.getRuntime().availableProcessors());
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final ThreadPoolExecutor workers;
+
+    /**
+     * @return the shared scheduler
+     */
+    public static ComputeScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Create a scheduler.
+     *
+     * @param nThreads number of worker threads
+     */
+    private ComputeScheduler(int nThreads) {
+        workers = new ThreadPoolExecutor(nThreads, nThreads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new WorkerThread(runnable, "power-worker-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run a set of tasks, and wait for them to finish or for the
+     * deadline to pass.  Tasks which have not finished by the
+     * deadline are cancelled.  When called from a worker thread,
+     * the tasks are run on that thread, and those not started by
+     * the deadline are cancelled.
+     *
+     * @param tasks tasks to run
+     * @param deadline time by which the tasks must finish,
+     *        in milliseconds since the epoch
+     * @param <T> result type
+     * @return futures for the tasks, in the same order
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long deadline)
+            throws InterruptedException {
+        if (Thread.currentThread() instanceof WorkerThread) {
+            List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+            for (Callable<T> task: tasks) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                FutureTask<T> future = new FutureTask<T>(task);
+                if (System.currentTimeMillis() < deadline) {
+                    future.run();
+                } else {
+                    future.cancel(false);
+                }
+                futures.add(future);
+            }
+            return futures;
+        }
+        long timeout = Math.max(0, deadline - System.currentTimeMillis());
+        return workers.invokeAll(tasks, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run a task on a worker thread when one is free.  For work which
+     * the caller shares with the task, e.g. blocks claimed from a common
+     * counter, so that the caller never waits for the task to start.
+     *
+     * @param task task to run
+     */
+    public void execute(Runnable task) {
+        workers.execute(task);
+    }
+
+    /**
+     * Create a completion service on the worker threads, for callers
+     * which handle results as they finish.
+     *
+     * @param <T> result type
+     * @return completion service
+     */
+    public <T> CompletionService<T> newCompletionService() {
+        return new ExecutorCompletionService<T>(workers);
+    }
+
+    /**
+     * @return number of worker threads
+     */
+    public int getParallelism() {
+        return workers.getMaximumPoolSize();
+    }
+
+    /**
+     * Thread of the worker pool, so that nested work can be recognized.
+     */
+    private static final class WorkerThread extends Thread {
+        /**
+         * @param runnable work to run
+         * @param name thread name
+         */
+        private WorkerThread(Runnable runnable, String name) {
+            super(runnable, name);
+        }
+    }
+}
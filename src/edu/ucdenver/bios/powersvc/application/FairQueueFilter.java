@@ -0,0 +1,412 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.application;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.restlet.Context;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.data.Form;
+import org.restlet.data.Method;
+import org.restlet.data.Status;
+import org.restlet.routing.Filter;
+
+/**
+ * Filter which schedules calculation requests (POSTs) from each client
+ * with weighted fair queuing, so that one client posting designs in
+ * a tight loop cannot take every calculation slot from everyone else.
+ * <p>
+ * A client is identified by its API key (the X-API-Key header), or,
+ * without one, by its remote address.  The number of calculations
+ * run at once is set by the adaptive concurrency limit.  Waiting requests are ordered by a
+ * virtual finish time which advances by 1/weight for each request
+ * a client makes, so that clients share the slots in proportion to
+ * their weights however many requests each has waiting.
+ * <p>
+ * Interactive clients, listed by API key or address in the
+ * "interactiveClients" parameter (e.g. the GLIMMPSE web server), have
+ * a greater weight.  Since they serve many users, they are not
+ * limited further.  Every other client may run at most
+ * "clientConcurrency" calculations at once, and is rate limited by
+ * a token bucket: requests beyond the rate are refused with
+ * 429 (Too Many Requests), and requests which wait too long for
+ * a slot are refused with 503 (Service Unavailable).
+ *
+ * @author Sarah Kreidler
+ */
+public class FairQueueFilter extends Filter {
+    /** Request header holding the client's API key. */
+    public static final String API_KEY_HEADER = "X-API-Key";
+
+    /** Weight of an interactive client. */
+    static final double INTERACTIVE_WEIGHT = 8;
+
+    /** Weight of any other client. */
+    static final double BATCH_WEIGHT = 1;
+
+    /** Status for a client which exceeds its rate limit. */
+    private static final Status TOO_MANY_REQUESTS = Status.valueOf(429);
+
+    /** Request attribute holding the HTTP headers. */
+    private static final String HEADERS_ATTRIBUTE = "org.restlet.http.headers";
+
+    /** Number of idle clients kept before their state is discarded. */
+    private static final int MAX_IDLE_CLIENTS = 1024;
+
+    private final AdaptiveConcurrencyLimit limit;
+    private final int clientConcurrency;
+    private final double clientRate;
+    private final int clientBurst;
+    private final long queueTimeoutMillis;
+    private final Set<String> interactiveClients;
+
+    /** Clients with state, by key. */
+    private final Map<String, Client> clients = new HashMap<String, Client>();
+
+    /** Waiting requests, in order of virtual finish time. */
+    private final TreeSet<Ticket> waiting = new TreeSet<Ticket>();
+
+    /** Number of calculations running. */
+    private int running = 0;
+
+    /** Virtual time: the finish time of the request most recently started. */
+    private double virtualTime = 0;
+
+    /** Sequence number of the next request, to order equal finish times. */
+    private long sequence = 0;
+
+    private final AtomicLong rateLimited = PowerMetrics.getInstance().counter("fair_queue_rate_limited");
+    private final AtomicLong timedOut = PowerMetrics.getInstance().counter("fair_queue_timed_out");
+
+    /**
+     * Create a new fair queue filter.
+     *
+     * @param context application context
+     * @param limit limit on the number of calculations at once
+     * @param clientConcurrency maximum number of calculations at once
+     *        for a client which is not interactive
+     * @param clientRate requests per second allowed for a client
+     *        which is not interactive
+     * @param clientBurst requests allowed at once, above the rate,
+     *        for a client which is not interactive
+     * @param queueTimeoutMillis maximum time a request waits to start,
+     *        in milliseconds
+     * @param interactiveClients API keys and addresses of interactive clients
+     */
+    public FairQueueFilter(final Context context, final AdaptiveConcurrencyLimit limit,
+            final int clientConcurrency, final double clientRate, final int clientBurst,
+            final long queueTimeoutMillis, final Set<String> interactiveClients) {
+        super(context);
+        if (clientConcurrency < 1) {
+            throw new IllegalArgumentException("Invalid client concurrency: " + clientConcurrency);
+        }
+        this.limit = limit;
+        this.clientConcurrency = clientConcurrency;
+        this.clientRate = clientRate;
+        this.clientBurst = clientBurst;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.interactiveClients = new HashSet<String>(interactiveClients);
+        // fail now rather than on the first request
+        new TokenBucket(clientRate, clientBurst);
+
+        PowerMetrics.getInstance().gauge("fair_queue_running", new PowerMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return getRunning();
+            }
+        });
+        PowerMetrics.getInstance().gauge("fair_queue_waiting", new PowerMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return getWaiting();
+            }
+        });
+    }
+
+    /**
+     * Wait for the request's turn to run, unless it is over its
+     * client's rate limit.  Only POSTs are scheduled.
+     */
+    @Override
+    protected int beforeHandle(final Request request, final Response response) {
+        if (!Method.POST.equals(request.getMethod())) {
+            return CONTINUE;
+        }
+
+        String key = getClientKey(request);
+        Client client;
+        synchronized (this) {
+            client = clients.get(key);
+            if (client == null) {
+                client = new Client(interactiveClients.contains(key));
+                clients.put(key, client);
+            }
+            client.pending++;
+        }
+
+        if (client.bucket != null && !client.bucket.tryAcquire()) {
+            synchronized (this) {
+                client.pending--;
+            }
+            rateLimited.incrementAndGet();
+            response.setStatus(TOO_MANY_REQUESTS,
+                    "Too many requests. Please slow down, and try again shortly.");
+            return STOP;
+        }
+
+        Ticket ticket;
+        synchronized (this) {
+            client.finishTime = Math.max(virtualTime, client.finishTime) + 1 / client.weight;
+            ticket = new Ticket(client, client.finishTime, sequence++);
+            waiting.add(ticket);
+            dispatch();
+
+            long deadline = System.currentTimeMillis() + queueTimeoutMillis;
+            try {
+                while (!ticket.started) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!ticket.started) {
+                waiting.remove(ticket);
+                client.pending--;
+                dispatch();
+            }
+        }
+        if (!ticket.started) {
+            timedOut.incrementAndGet();
+            response.setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE,
+                    "The server is busy with other calculations. Please try again in a few minutes.");
+            return STOP;
+        }
+        request.getAttributes().put(Ticket.class.getName(), ticket);
+        return CONTINUE;
+    }
+
+    /**
+     * Pass the request on.  Its slot is freed once the response is
+     * finished (see ResponseCompletion), since a streamed response,
+     * e.g. /difference/stream, is calculated as it is written, or, if
+     * there is nothing to write, on return, even if the next Restlet
+     * fails.
+     */
+    @Override
+    protected int doHandle(final Request request, final Response response) {
+        final Ticket ticket = (Ticket) request.getAttributes().remove(Ticket.class.getName());
+        try {
+            return super.doHandle(request, response);
+        } finally {
+            if (ticket != null) {
+                new ResponseCompletion() {
+                    @Override
+                    protected void finished() {
+                        release(ticket);
+                    }
+                }.attach(request, response);
+            }
+        }
+    }
+
+    /**
+     * Free the slot of a request which has finished, and start the next.
+     *
+     * @param ticket ticket of the request
+     */
+    private synchronized void release(final Ticket ticket) {
+        running--;
+        ticket.client.running--;
+        ticket.client.pending--;
+        dispatch();
+    }
+
+    /**
+     * @return number of calculations running
+     */
+    public final synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * @return number of requests waiting to start
+     */
+    public final synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    /**
+     * Start waiting requests, in order of virtual finish time, while
+     * there are free slots, skipping clients already at their limit.
+     * Called with the lock held.
+     */
+    private void dispatch() {
+        boolean started = false;
+        int slots = limit.getLimit();
+        Iterator<Ticket> tickets = waiting.iterator();
+        while (running < slots && tickets.hasNext()) {
+            Ticket ticket = tickets.next();
+            Client client = ticket.client;
+            if (atClientLimit(client)) {
+                continue;
+            }
+            tickets.remove();
+            ticket.started = true;
+            virtualTime = Math.max(virtualTime, ticket.finishTime);
+            running++;
+            client.running++;
+            started = true;
+        }
+        if (started) {
+            notifyAll();
+        }
+        limit.setSaturated(running >= slots && hasStartableTicket());
+        if (clients.size() > MAX_IDLE_CLIENTS) {
+            removeIdleClients();
+        }
+    }
+
+    /**
+     * Determine if a waiting request could start if there were a free
+     * slot, i.e. is waiting for the concurrency limit rather than for
+     * its own client's limit.  Called with the lock held.
+     *
+     * @return true if a waiting request's client is below its limit
+     */
+    private boolean hasStartableTicket() {
+        for (Ticket ticket: waiting) {
+            if (!atClientLimit(ticket.client)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param client client
+     * @return true if the client may not start another calculation
+     */
+    private boolean atClientLimit(final Client client) {
+        return client.bucket != null && client.running >= clientConcurrency;
+    }
+
+    /**
+     * Discard the state of clients with no requests and a full bucket,
+     * which would be recreated the same.  Called with the lock held.
+     */
+    private void removeIdleClients() {
+        Iterator<Client> iterator = clients.values().iterator();
+        while (iterator.hasNext()) {
+            Client client = iterator.next();
+            if (client.pending == 0 && (client.bucket == null || client.bucket.isFull())
+                    && client.finishTime <= virtualTime) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Identify the client making a request.
+     *
+     * @param request request
+     * @return API key, or remote address if none
+     */
+    private static String getClientKey(final Request request) {
+        Object headers = request.getAttributes().get(HEADERS_ATTRIBUTE);
+        if (headers instanceof Form) {
+            String apiKey = ((Form) headers).getFirstValue(API_KEY_HEADER, true);
+            if (apiKey != null && apiKey.length() > 0) {
+                return apiKey;
+            }
+        }
+        String address = request.getClientInfo().getAddress();
+        return address != null ? address : "";
+    }
+
+    /**
+     * Scheduling state of a client.
+     */
+    private final class Client {
+        private final double weight;
+
+        /** Rate limit, or null if the client is interactive. */
+        private final TokenBucket bucket;
+
+        /** Virtual finish time of the client's latest request. */
+        private double finishTime = 0;
+
+        /** Number of requests waiting or running. */
+        private int pending = 0;
+
+        /** Number of requests running. */
+        private int running = 0;
+
+        /**
+         * @param interactive true if the client is interactive
+         */
+        private Client(boolean interactive) {
+            weight = interactive ? INTERACTIVE_WEIGHT : BATCH_WEIGHT;
+            bucket = interactive ? null : new TokenBucket(clientRate, clientBurst);
+        }
+    }
+
+    /**
+     * A request waiting to start.
+     */
+    private static final class Ticket implements Comparable<Ticket> {
+        private final Client client;
+        private final double finishTime;
+        private final long sequence;
+        private boolean started = false;
+
+        /**
+         * @param client client making the request
+         * @param finishTime virtual finish time
+         * @param sequence arrival order
+         */
+        private Ticket(Client client, double finishTime, long sequence) {
+            this.client = client;
+            this.finishTime = finishTime;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Ticket other) {
+            if (finishTime != other.finishTime) {
+                return finishTime < other.finishTime ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.application;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * Process-wide monitor of heap pressure.  The monitor sets a collection
+ * usage threshold on each tenured heap pool (the pools which support
+ * usage thresholds: old generation, not eden or survivor) and listens
+ * for the notification that the pool is still over the threshold after
+ * a garbage collection, i.e. that live data, not garbage, fills it.
+ * The heap is then under pressure until a later collection leaves every
+ * pool below its threshold again; the JVM sends no notification for
+ * that, so it is checked whenever the pressure is queried.
+ * <p>
+ * While the heap is under pressure the compute budget holds back large
+ * designs, so that running calculations can finish instead of every
+ * request in the JVM failing with an OutOfMemoryError.
+ *
+ * @author Sarah Kreidler
+ */
+public final class HeapPressureMonitor {
+    /** Default threshold, as a fraction of each pool's maximum size. */
+    public static final double DEFAULT_THRESHOLD = 0.85;
+
+    private static final HeapPressureMonitor INSTANCE = new HeapPressureMonitor();
+
+    private final List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+    private volatile boolean underPressure = false;
+    private boolean listening = false;
+
+    private final AtomicLong events = PowerMetrics.getInstance().counter("heap_pressure_events");
+
+    /**
+     * @return the process-wide monitor
+     */
+    public static HeapPressureMonitor getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Create the monitor.
+     */
+    private HeapPressureMonitor() {
+        PowerMetrics.getInstance().gauge("heap_pressure", new PowerMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return isUnderPressure() ? 1 : 0;
+            }
+        });
+    }
+
+    /**
+     * Set the threshold on the tenured heap pools and start listening
+     * for notifications.  May be called again to change the threshold.
+     *
+     * @param threshold threshold, as a fraction of each pool's maximum size
+     */
+    public synchronized void start(double threshold) {
+        if (threshold <= 0 || threshold >= 1) {
+            throw new IllegalArgumentException("Invalid heap pressure threshold: " + threshold);
+        }
+        pools.clear();
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+            long max = pool.getUsage().getMax();
+            if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+                    && pool.isCollectionUsageThresholdSupported() && max > 0) {
+                pool.setCollectionUsageThreshold((long) (max * threshold));
+                pools.add(pool);
+            }
+        }
+        if (!listening) {
+            listening = true;
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(
+                    new NotificationListener() {
+                        public void handleNotification(Notification notification, Object handback) {
+                            if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(
+                                    notification.getType())) {
+                                pressure();
+                            }
+                        }
+                    }, null, null);
+        }
+        PowerLogger.getInstance().info("Watching " + pools.size() + " heap pool(s) for usage over "
+                + Math.round(threshold * 100) + "% after garbage collection.");
+    }
+
+    /**
+     * Check whether the heap is under pressure.
+     *
+     * @return true if live data filled a tenured pool past its threshold
+     *         after the last garbage collection
+     */
+    public boolean isUnderPressure() {
+        if (underPressure) {
+            synchronized (this) {
+                for (MemoryPoolMXBean pool: pools) {
+                    if (pool.isCollectionUsageThresholdExceeded()) {
+                        return true;
+                    }
+                }
+                if (underPressure) {
+                    underPressure = false;
+                    PowerLogger.getInstance().info("Heap pressure relieved; admitting large designs.");
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record a threshold notification.
+     */
+    private void pressure() {
+        events.incrementAndGet();
+        if (!underPressure) {
+            underPressure = true;
+            PowerLogger.getInstance().warn("Heap under pressure; holding back large designs.");
+        }
+    }
+}
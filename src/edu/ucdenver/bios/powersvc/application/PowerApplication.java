@@ -22,6 +22,13 @@
  */
 package edu.ucdenver.bios.powersvc.application;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
 import org.restlet.Application;
 import org.restlet.Context;
 import org.restlet.Request;
@@ -34,11 +41,22 @@ import org.restlet.representation.StringRepresentation;
 import org.restlet.routing.Router;
 import org.restlet.service.StatusService;
 
+import edu.cudenver.bios.power.GLMMPowerCalculator;
 import edu.ucdenver.bios.powersvc.resource.DefaultResource;
+import edu.ucdenver.bios.powersvc.resource.DesignRegistry;
+import edu.ucdenver.bios.powersvc.resource.DesignServerResource;
 import edu.ucdenver.bios.powersvc.resource.DetectableDifferenceServerResource;
+import edu.ucdenver.bios.powersvc.resource.DetectableDifferenceStreamServerResource;
+import edu.ucdenver.bios.powersvc.resource.MetricsResource;
+import edu.ucdenver.bios.powersvc.resource.PowerCurveServerResource;
+import edu.ucdenver.bios.powersvc.resource.PowerHypothesesServerResource;
 import edu.ucdenver.bios.powersvc.resource.PowerMatrixHTMLServerResource;
+import edu.ucdenver.bios.powersvc.resource.PowerMatrixHTMLStreamServerResource;
 import edu.ucdenver.bios.powersvc.resource.PowerMatrixServerResource;
 import edu.ucdenver.bios.powersvc.resource.PowerServerResource;
+import edu.ucdenver.bios.powersvc.resource.PowerSimulationServerResource;
+import edu.ucdenver.bios.powersvc.resource.ReadinessResource;
+import edu.ucdenver.bios.powersvc.resource.ResultStore;
 import edu.ucdenver.bios.powersvc.resource.SampleSizeServerResource;
 import edu.ucdenver.bios.powersvc.resource.test.FTestResource;
 
@@ -50,6 +68,111 @@ import edu.ucdenver.bios.powersvc.resource.test.FTestResource;
  * @author Sarah Kreidler
  */
 public class PowerApplication extends Application {
+    /** Context parameter: number of passes over the warm-up corpus (0 disables warm-up). */
+    public static final String WARMUP_ROUNDS_PARAMETER =
+            "edu.ucdenver.bios.powersvc.application.warmupRounds";
+    /** Context parameter: maximum time to spend warming up, in seconds. */
+    public static final String WARMUP_SECONDS_PARAMETER =
+            "edu.ucdenver.bios.powersvc.application.warmupSeconds";
+
+    /** Context parameter: time allowed for a calculation, in seconds. */
+    public static final String CALCULATION_TIMEOUT_SECONDS_PARAMETER =
+            "edu.ucdenver.bios.powersvc.application.calculationTimeoutSeconds";
+
+    /** Context parameter: maximum rows or columns shown for a matrix by /matrix/html. */
+    public static final String MATRIX_DISPLAY_DIMENSION_PARAMETER =
+            "edu.ucdenver.bios.powersvc.application.matrixDisplayDimension";
+
+    /** Context parameter: maximum number of designs held for what-if recomputation. */
+    public static final String DESIGN_REGISTRY_CAPACITY_PARAMETER =
+            "edu.ucdenver.bios.powersvc.application.designRegistryCapacity";
+
+    /** Context parameter: heap budget for the matrices of the designs held, in megabytes. */
+    public static final String DESIGN_REGISTRY_MEGABYTES_PARAMETER =
+            "edu.ucdenver.bios.powersvc.application.designRegistryMegabytes";
+
+    /** Context parameter: estimated cost of the calculations which may run at once. */
+    public static final String COMPUTE_BUDGET_PARAMETER =
+            "edu.ucdenver.bios.powersvc.application.computeBudget";
+
+    /** Context parameter: share of the maximum heap for the matrices of the calculations at once. */
+    public static final String HEAP_BUDGET_PERCENT_PARAMETER =
+            "edu.ucdenver.bios.powersvc.application.heapBudgetPercent";
+
+    /** Context parameter: footprint above which a design waits while the heap is under pressure. */
+    public static final String LARGE_DESIGN_MEGABYTES_PARAMETER =
+            "edu.ucdenver.bios.powersvc.application.largeDesignMegabytes";
+
+    /** Context parameter: size, in kilobytes, at which a request's matrices are held off the heap. */
+    public static final String OFF_HEAP_MATRIX_KILOBYTES_PARAMETER =
+            "edu.ucdenver.bios.powersvc.application.offHeapMatrixKilobytes";
+
+    /** Context parameter: tenured heap usage after garbage collection which counts as pressure. */
+    public static final String HEAP_PRESSURE_PERCENT_PARAMETER =
+            "edu.ucdenver.bios.powersvc.application.heapPressurePercent";
+
+    /** Context parameter: largest limit on the number of calculations at once. */
+    public static final String COMPUTE_CONCURRENCY_PARAMETER =
+            "edu.ucdenver.bios.powersvc.application.computeConcurrency";
+
+    /** Context parameter: maximum number of calculations at once for a batch client. */
+    public static final String CLIENT_CONCURRENCY_PARAMETER =
+            "edu.ucdenver.bios.powersvc.application.clientConcurrency";
+
+    /** Context parameter: requests per second allowed for a batch client. */
+    public static final String CLIENT_RATE_PARAMETER =
+            "edu.ucdenver.bios.powersvc.application.clientRequestsPerSecond";
+
+    /** Context parameter: requests allowed at once, above the rate, for a batch client. */
+    public static final String CLIENT_BURST_PARAMETER =
+            "edu.ucdenver.bios.powersvc.application.clientBurst";
+
+    /** Context parameter: maximum time a request waits to start a calculation, in seconds. */
+    public static final String QUEUE_TIMEOUT_SECONDS_PARAMETER =
+            "edu.ucdenver.bios.powersvc.application.queueTimeoutSeconds";
+
+    /** Context parameter: comma separated API keys and addresses of interactive clients. */
+    public static final String INTERACTIVE_CLIENTS_PARAMETER =
+            "edu.ucdenver.bios.powersvc.application.interactiveClients";
+
+    /** Context parameter: file holding the results of earlier requests; empty to disable. */
+    public static final String RESULT_STORE_FILE_PARAMETER =
+            "edu.ucdenver.bios.powersvc.application.resultStoreFile";
+
+    /** Context parameter: size of the result store file beyond which it is compacted, in megabytes. */
+    public static final String RESULT_STORE_MEGABYTES_PARAMETER =
+            "edu.ucdenver.bios.powersvc.application.resultStoreMegabytes";
+
+    private static final String DEFAULT_WARMUP_ROUNDS = "20";
+    private static final String DEFAULT_WARMUP_SECONDS = "120";
+    private static final String DEFAULT_CLIENT_CONCURRENCY = "2";
+    private static final String DEFAULT_CLIENT_RATE = "2";
+    private static final String DEFAULT_CLIENT_BURST = "10";
+    private static final String DEFAULT_QUEUE_TIMEOUT_SECONDS = "60";
+    private static final String DEFAULT_RESULT_STORE_FILE = "power-results.store";
+    private static final String DEFAULT_HEAP_BUDGET_PERCENT = "50";
+
+    /** Default time allowed for a calculation, in milliseconds. */
+    private static final long DEFAULT_CALCULATION_TIMEOUT_MILLISECONDS = 300 * 1000L;
+
+    /** Filter which tracks in-flight requests and refuses new ones while draining. */
+    private final RequestDrainFilter drainFilter;
+
+    /** Filter which shares the calculation slots fairly between clients. */
+    private final FairQueueFilter fairQueueFilter;
+
+    /** Runs the warm-up corpus before the service reports ready. */
+    private final PowerWarmUp warmUp;
+
+    /** Time allowed for a calculation, in milliseconds. */
+    private final long calculationTimeoutMillis;
+
+    /** Study designs registered for what-if recomputation. */
+    private final DesignRegistry designRegistry;
+
+    /** Results of earlier requests, or null if disabled. */
+    private final ResultStore resultStore;
+
     /**
      * Class which dispatches http requests to the appropriate
      * handler class for the power service.
@@ -62,9 +185,132 @@ public class PowerApplication extends Application {
     throws Exception {
         super(parentContext);
         setStatusService(new PowerStatusService());
+        drainFilter = new RequestDrainFilter(getContext());
+        AdaptiveConcurrencyLimit.getInstance().setBounds(1,
+                Integer.parseInt(getContext().getParameters().getFirstValue(
+                        COMPUTE_CONCURRENCY_PARAMETER,
+                        String.valueOf(4 * Runtime.getRuntime().availableProcessors()))));
+        fairQueueFilter = new FairQueueFilter(getContext(), AdaptiveConcurrencyLimit.getInstance(),
+                Integer.parseInt(getContext().getParameters().getFirstValue(
+                        CLIENT_CONCURRENCY_PARAMETER, DEFAULT_CLIENT_CONCURRENCY)),
+                Double.parseDouble(getContext().getParameters().getFirstValue(
+                        CLIENT_RATE_PARAMETER, DEFAULT_CLIENT_RATE)),
+                Integer.parseInt(getContext().getParameters().getFirstValue(
+                        CLIENT_BURST_PARAMETER, DEFAULT_CLIENT_BURST)),
+                1000L * Integer.parseInt(getContext().getParameters().getFirstValue(
+                        QUEUE_TIMEOUT_SECONDS_PARAMETER, DEFAULT_QUEUE_TIMEOUT_SECONDS)),
+                parseList(getContext().getParameters().getFirstValue(
+                        INTERACTIVE_CLIENTS_PARAMETER, "")));
+        warmUp = new PowerWarmUp(
+                Integer.parseInt(getContext().getParameters().getFirstValue(
+                        WARMUP_ROUNDS_PARAMETER, DEFAULT_WARMUP_ROUNDS)),
+                1000L * Integer.parseInt(getContext().getParameters().getFirstValue(
+                        WARMUP_SECONDS_PARAMETER, DEFAULT_WARMUP_SECONDS)));
+        calculationTimeoutMillis = 1000L * Integer.parseInt(getContext().getParameters().getFirstValue(
+                CALCULATION_TIMEOUT_SECONDS_PARAMETER,
+                String.valueOf(DEFAULT_CALCULATION_TIMEOUT_MILLISECONDS / 1000)));
+        designRegistry = new DesignRegistry(
+                Integer.parseInt(getContext().getParameters().getFirstValue(
+                        DESIGN_REGISTRY_CAPACITY_PARAMETER,
+                        String.valueOf(DesignRegistry.DEFAULT_CAPACITY))),
+                1024L * 1024 * Integer.parseInt(getContext().getParameters().getFirstValue(
+                        DESIGN_REGISTRY_MEGABYTES_PARAMETER,
+                        String.valueOf(DesignRegistry.DEFAULT_MEGABYTES))),
+                calculationTimeoutMillis);
+        resultStore = openResultStore(
+                getContext().getParameters().getFirstValue(RESULT_STORE_FILE_PARAMETER,
+                        new File(System.getProperty("java.io.tmpdir"), DEFAULT_RESULT_STORE_FILE).getPath()),
+                1024L * 1024 * Integer.parseInt(getContext().getParameters().getFirstValue(
+                        RESULT_STORE_MEGABYTES_PARAMETER,
+                        String.valueOf(ResultStore.DEFAULT_MAX_BYTES / (1024 * 1024)))),
+                getBuild());
+        ComputeBudget.getInstance().setCapacity(
+                Long.parseLong(getContext().getParameters().getFirstValue(
+                        COMPUTE_BUDGET_PARAMETER,
+                        String.valueOf(ComputeBudget.DEFAULT_CAPACITY))));
+        ComputeBudget.getInstance().setHeapCapacity(
+                Runtime.getRuntime().maxMemory() / 100
+                        * Integer.parseInt(getContext().getParameters().getFirstValue(
+                                HEAP_BUDGET_PERCENT_PARAMETER, DEFAULT_HEAP_BUDGET_PERCENT)),
+                1024L * 1024 * Integer.parseInt(getContext().getParameters().getFirstValue(
+                        LARGE_DESIGN_MEGABYTES_PARAMETER,
+                        String.valueOf(ComputeBudget.DEFAULT_LARGE_DESIGN_BYTES / (1024 * 1024)))));
+        HeapPressureMonitor.getInstance().start(
+                Integer.parseInt(getContext().getParameters().getFirstValue(
+                        HEAP_PRESSURE_PERCENT_PARAMETER,
+                        String.valueOf(Math.round(HeapPressureMonitor.DEFAULT_THRESHOLD * 100)))) / 100.0);
         PowerLogger.getInstance().info("Statistical power service starting.");
     }
 
+    /**
+     * Start the application, and warm up the calculation code paths
+     * in the background.
+     * @throws Exception if the application fails to start
+     */
+    @Override
+    public synchronized void start() throws Exception {
+        super.start();
+        Thread thread = new Thread(warmUp, "power-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the application, and close the result store.
+     * @throws Exception if the application fails to stop
+     */
+    @Override
+    public synchronized void stop() throws Exception {
+        super.stop();
+        if (resultStore != null) {
+            resultStore.close();
+        }
+    }
+
+    /**
+     * Determine if the service should receive traffic: warm-up is
+     * complete and the service is not draining.
+     * @return true if the service is ready
+     */
+    public final boolean isReady() {
+        return warmUp.isComplete() && !drainFilter.isDraining();
+    }
+
+    /**
+     * @return time allowed for a calculation, in milliseconds
+     */
+    public final long getCalculationTimeoutMillis() {
+        return calculationTimeoutMillis;
+    }
+
+    /**
+     * Get the time allowed for a calculation by an application: the
+     * configured time for the Power Service, otherwise the default, as
+     * for resources used outside the service.
+     *
+     * @param application application, or null
+     * @return time allowed for a calculation, in milliseconds
+     */
+    public static long getCalculationTimeoutMillis(final Application application) {
+        return application instanceof PowerApplication
+                ? ((PowerApplication) application).getCalculationTimeoutMillis()
+                : DEFAULT_CALCULATION_TIMEOUT_MILLISECONDS;
+    }
+
+    /**
+     * @return study designs registered for what-if recomputation
+     */
+    public final DesignRegistry getDesignRegistry() {
+        return designRegistry;
+    }
+
+    /**
+     * @return results of earlier requests, or null if disabled
+     */
+    public final ResultStore getResultStore() {
+        return resultStore;
+    }
+
     /**
      * Define URI mappings for incoming power, sample size,
      * and detectable difference requests.
@@ -80,15 +326,134 @@ public class PowerApplication extends Application {
 
         // Power, sample size, detectable difference, and matrix calculation resources
         router.attach("/power",       PowerServerResource.class);                // used by GLIMMPSE
+        router.attach("/power/curve", PowerCurveServerResource.class);
+        router.attach("/power/hypotheses", PowerHypothesesServerResource.class);
+        router.attach("/power/simulate", PowerSimulationServerResource.class);
         router.attach("/samplesize",  SampleSizeServerResource.class);           // used by GLIMMPSE
         router.attach("/difference",  DetectableDifferenceServerResource.class);
+        router.attach("/difference/stream", DetectableDifferenceStreamServerResource.class);
         router.attach("/matrix",      PowerMatrixServerResource.class);
         router.attach("/matrix/html", PowerMatrixHTMLServerResource.class);      // used by GLIMMPSE
+        router.attach("/matrix/html/stream", PowerMatrixHTMLStreamServerResource.class);
+
+        // what-if recomputation against a registered design
+        router.attach("/design",      DesignServerResource.class);
+        router.attach("/design/{" + DesignServerResource.ID_ATTRIBUTE + "}", DesignServerResource.class);
+
+        // readiness for load balancers, separate from the self-identifying default route
+        router.attach("/ready",       ReadinessResource.class);
+
+        // counters and gauges for monitoring
+        router.attach("/metrics",     MetricsResource.class);
 
         // unit test resource - easier to collaborate with remote testers this way
         router.attach("/testf", FTestResource.class);
 
-        return router;
+        // share the calculation slots fairly between clients
+        fairQueueFilter.setNext(router);
+
+        // count in-flight requests so that the service can be drained on shutdown
+        drainFilter.setNext(fairQueueFilter);
+        return drainFilter;
+    }
+
+    /**
+     * Stop accepting new requests and wait for in-flight computations
+     * to complete, up to the specified grace period.
+     *
+     * @param gracePeriod maximum time to wait
+     * @param unit time unit of the grace period
+     * @return true if all in-flight requests completed within the grace period
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public final boolean drain(final long gracePeriod, final TimeUnit unit)
+    throws InterruptedException {
+        PowerLogger.getInstance().info("Statistical power service draining: "
+                + drainFilter.getInFlight() + " request(s) in flight.");
+        boolean drained = drainFilter.drain(gracePeriod, unit);
+        if (!drained) {
+            PowerLogger.getInstance().warn("Statistical power service grace period expired with "
+                    + drainFilter.getInFlight() + " request(s) in flight.");
+        }
+        return drained;
+    }
+
+    /**
+     * Open the result store.  The service runs without one if it
+     * cannot be opened.
+     *
+     * @param path store file, or empty to disable the store
+     * @param maxBytes size beyond which the file is compacted
+     * @param build versions of the code which computes the results
+     * @return result store, or null if disabled or unavailable
+     */
+    private static ResultStore openResultStore(final String path, final long maxBytes,
+            final String build) {
+        if (path == null || path.trim().length() == 0) {
+            return null;
+        }
+        try {
+            return new ResultStore(new File(path.trim()), maxBytes, build);
+        } catch (IOException ioe) {
+            PowerLogger.getInstance().warn("Result store unavailable: " + ioe.getMessage(), ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Describe the build of the power service and of JavaStatistics,
+     * so that stored results of another build are not reused.
+     *
+     * @return versions of the code which computes the results
+     */
+    private String getBuild() {
+        String version = getContext().getParameters().getFirstValue(PowerServer.VERSION_PARAMETER);
+        if (version == null || "UNKNOWN".equals(version)) {
+            version = getVersion(PowerApplication.class);
+        }
+        return "PowerSvc " + version + ", JavaStatistics " + getVersion(GLMMPowerCalculator.class);
+    }
+
+    /**
+     * Get the implementation version of the code holding a class, or,
+     * for unversioned builds, the time the class was built.
+     *
+     * @param type class
+     * @return version
+     */
+    private static String getVersion(final Class<?> type) {
+        Package typePackage = type.getPackage();
+        String version = (typePackage != null ? typePackage.getImplementationVersion() : null);
+        if (version != null) {
+            return version;
+        }
+        URL url = type.getResource(type.getSimpleName() + ".class");
+        if (url != null) {
+            try {
+                return "UNKNOWN built " + url.openConnection().getLastModified();
+            } catch (IOException ioe) {
+                PowerLogger.getInstance().warn("Build time unavailable: " + ioe.getMessage(), ioe);
+            }
+        }
+        return "UNKNOWN";
+    }
+
+    /**
+     * Parse a comma separated list of values.
+     *
+     * @param value list, possibly empty or null
+     * @return set of the non-blank values
+     */
+    private static Set<String> parseList(final String value) {
+        Set<String> values = new HashSet<String>();
+        if (value != null) {
+            for (String item: value.split(",")) {
+                if (item.trim().length() > 0) {
+                    values.add(item.trim());
+                }
+            }
+        }
+        return values;
     }
 
     /**
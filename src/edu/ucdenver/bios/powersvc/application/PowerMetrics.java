@@ -0,0 +1,120 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.application;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide counters and gauges for the power service, reported
+ * by the /metrics resource in the Prometheus text format, one
+ * "name value" line per metric.
+ *
+ * @author Sarah Kreidler
+ */
+public final class PowerMetrics {
+    private static final PowerMetrics INSTANCE = new PowerMetrics();
+
+    private final ConcurrentMap<String, AtomicLong> counters =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, Gauge> gauges =
+            new ConcurrentHashMap<String, Gauge>();
+
+    /**
+     * Value computed when the metrics are reported.
+     */
+    public interface Gauge {
+        /**
+         * @return current value
+         */
+        double getValue();
+    }
+
+    /**
+     * @return the process-wide metrics
+     */
+    public static PowerMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Constructor.
+     */
+    private PowerMetrics() {
+    }
+
+    /**
+     * Get a counter, creating it at zero if necessary.
+     *
+     * @param name metric name
+     * @return counter
+     */
+    public AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Register a gauge, replacing any gauge of the same name.
+     *
+     * @param name metric name
+     * @param gauge gauge
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Write all metrics, sorted by name.
+     *
+     * @param writer writer
+     * @throws IOException if the metrics cannot be written
+     */
+    public void write(Writer writer) throws IOException {
+        Map<String, String> values = new TreeMap<String, String>();
+        for (Map.Entry<String, AtomicLong> counter: counters.entrySet()) {
+            values.put(counter.getKey(), Long.toString(counter.getValue().get()));
+        }
+        for (Map.Entry<String, Gauge> gauge: gauges.entrySet()) {
+            values.put(gauge.getKey(), Double.toString(gauge.getValue().getValue()));
+        }
+        for (Map.Entry<String, String> value: values.entrySet()) {
+            writer.write(value.getKey());
+            writer.write(' ');
+            writer.write(value.getValue());
+            writer.write('\n');
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.application;
+
+import java.util.concurrent.TimeUnit;
+
+import org.restlet.Component;
+import org.restlet.Context;
+import org.restlet.Server;
+import org.restlet.data.Protocol;
+
+/**
+ * Standalone entry point for the Power Service.  Runs the
+ * PowerApplication in an embedded Restlet component using the
+ * built-in HTTP connector, so no servlet container or WAR
+ * deployment is needed.
+ * <p>
+ * The server is configured with the following system properties:
+ * <ul>
+ * <li>power.port - HTTP port (default 8080)</li>
+ * <li>power.contextPath - URI prefix for the application (default /power,
+ * matching the WAR deployment)</li>
+ * <li>power.minThreads, power.maxThreads - connector worker threads</li>
+ * <li>power.drainSeconds - grace period for in-flight requests on shutdown
+ * (default 300, the computation timeout)</li>
+ * <li>power.version - version reported by the default resource</li>
+ * <li>power.useForwardedFor - take the client address from the
+ * X-Forwarded-For header, when running behind the router (default false)</li>
+ * </ul>
+ * On shutdown (SIGTERM or Ctrl-C) the server stops accepting requests,
+ * waits for in-flight computations to finish within the grace period,
+ * and then exits.
+ *
+ * @author Sarah Kreidler
+ */
+public final class PowerServer {
+    /** Name of the context parameter holding the application version. */
+    public static final String VERSION_PARAMETER = "edu.ucdenver.bios.powersvc.application.version";
+
+    private static final String PROPERTY_PORT = "power.port";
+    private static final String PROPERTY_CONTEXT_PATH = "power.contextPath";
+    private static final String PROPERTY_MIN_THREADS = "power.minThreads";
+    private static final String PROPERTY_MAX_THREADS = "power.maxThreads";
+    private static final String PROPERTY_DRAIN_SECONDS = "power.drainSeconds";
+    private static final String PROPERTY_VERSION = "power.version";
+    private static final String PROPERTY_USE_FORWARDED_FOR = "power.useForwardedFor";
+
+    private static final int DEFAULT_PORT = 8080;
+    private static final String DEFAULT_CONTEXT_PATH = "/power";
+    private static final int DEFAULT_MIN_THREADS = 4;
+    private static final int DEFAULT_MAX_THREADS = 64;
+    private static final int DEFAULT_DRAIN_SECONDS = 300;
+
+    private final Component component;
+    private final PowerApplication application;
+    private final long drainSeconds;
+
+    /**
+     * Create an embedded power server.
+     *
+     * @param port HTTP port
+     * @param contextPath URI prefix for the application
+     * @param minThreads minimum number of connector worker threads
+     * @param maxThreads maximum number of connector worker threads
+     * @param drainSeconds grace period for in-flight requests on shutdown
+     * @param version version reported by the default resource
+     * @param useForwardedFor take the client address from the X-Forwarded-For header
+     * @throws Exception if the application cannot be created
+     */
+    public PowerServer(final int port, final String contextPath,
+            final int minThreads, final int maxThreads,
+            final long drainSeconds, final String version,
+            final boolean useForwardedFor)
+    throws Exception {
+        this.drainSeconds = drainSeconds;
+
+        component = new Component();
+        Server server = component.getServers().add(Protocol.HTTP, port);
+        server.getContext().getParameters().add("minThreads", Integer.toString(minThreads));
+        server.getContext().getParameters().add("maxThreads", Integer.toString(maxThreads));
+        server.getContext().getParameters().add("useForwardedForHeader", Boolean.toString(useForwardedFor));
+
+        Context applicationContext = component.getContext().createChildContext();
+        applicationContext.getParameters().add(VERSION_PARAMETER, version);
+        application = new PowerApplication(applicationContext);
+        component.getDefaultHost().attach(contextPath, application);
+    }
+
+    /**
+     * Start the component.
+     *
+     * @throws Exception if the connector cannot be started
+     */
+    public void start() throws Exception {
+        component.start();
+    }
+
+    /**
+     * Stop accepting requests, let in-flight computations finish within
+     * the grace period, then stop the component.
+     *
+     * @throws Exception if the component fails to stop
+     */
+    public void stop() throws Exception {
+        try {
+            application.drain(drainSeconds, TimeUnit.SECONDS);
+        } finally {
+            component.stop();
+            PowerLogger.getInstance().info("Statistical power service stopped.");
+        }
+    }
+
+    /**
+     * Run the power service as a standalone process.
+     *
+     * @param args unused; configuration is via system properties
+     * @throws Exception if the server fails to start
+     */
+    public static void main(final String[] args) throws Exception {
+        String version = System.getProperty(PROPERTY_VERSION);
+        if (version == null) {
+            version = PowerServer.class.getPackage().getImplementationVersion();
+        }
+
+        final PowerServer powerServer = new PowerServer(
+                Integer.getInteger(PROPERTY_PORT, DEFAULT_PORT),
+                System.getProperty(PROPERTY_CONTEXT_PATH, DEFAULT_CONTEXT_PATH),
+                Integer.getInteger(PROPERTY_MIN_THREADS, DEFAULT_MIN_THREADS),
+                Integer.getInteger(PROPERTY_MAX_THREADS, DEFAULT_MAX_THREADS),
+                Long.getLong(PROPERTY_DRAIN_SECONDS, DEFAULT_DRAIN_SECONDS),
+                version != null ? version : "UNKNOWN",
+                Boolean.getBoolean(PROPERTY_USE_FORWARDED_FOR));
+
+        Runtime.getRuntime().addShutdownHook(new Thread("power-shutdown") {
+            @Override
+            public void run() {
+                try {
+                    powerServer.stop();
+                } catch (Exception e) {
+                    PowerLogger.getInstance().error("Failed to stop power service: " + e.getMessage(), e);
+                }
+            }
+        });
+
+        powerServer.start();
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.application;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import edu.ucdenver.bios.powersvc.resource.DesignContext;
+import edu.ucdenver.bios.powersvc.resource.PowerMatrixHTMLServerResource;
+import edu.ucdenver.bios.powersvc.resource.PowerResourceHelper;
+import edu.ucdenver.bios.webservice.common.domain.PowerResultList;
+import edu.ucdenver.bios.webservice.common.domain.StudyDesign;
+
+/**
+ * Runs a bundled corpus of representative study designs through the
+ * full JSON conversion, matrix construction, and power calculation
+ * pipeline so that the hot code paths are compiled before the service
+ * reports ready.
+ * <p>
+ * The corpus is listed in the classpath resource warmup/corpus.txt,
+ * one classpath-relative JSON study design per line.
+ *
+ * @author Sarah Kreidler
+ */
+public class PowerWarmUp implements Runnable {
+    /** Classpath resource listing the warm-up designs. */
+    public static final String CORPUS_INDEX = "warmup/corpus.txt";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String ENCODING = "UTF-8";
+
+    /** Number of passes over the corpus. */
+    private final int rounds;
+
+    /** Maximum time to spend warming up, in milliseconds. */
+    private final long maxMillis;
+
+    /** True once warm-up has finished (or been abandoned). */
+    private volatile boolean complete = false;
+
+    /**
+     * Create a warm-up task.
+     *
+     * @param rounds number of passes over the corpus; zero disables warm-up
+     * @param maxMillis maximum time to spend warming up, in milliseconds
+     */
+    public PowerWarmUp(final int rounds, final long maxMillis) {
+        this.rounds = rounds;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Determine if warm-up has finished.
+     *
+     * @return true if the service has been warmed up
+     */
+    public final boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Run the corpus through the calculation pipeline.  Designs that fail
+     * are logged and skipped; warm-up never prevents the service from
+     * becoming ready.
+     */
+    @Override
+    public void run() {
+        long start = System.currentTimeMillis();
+        try {
+            List<String> corpus = loadCorpus();
+            int calculations = 0;
+            for (int round = 0; round < rounds; round++) {
+                for (String jsonStudyDesign: corpus) {
+                    if (System.currentTimeMillis() - start > maxMillis) {
+                        PowerLogger.getInstance().warn("Warm-up time limit reached after "
+                                + calculations + " calculations.");
+                        return;
+                    }
+                    try {
+                        exercise(jsonStudyDesign, start + maxMillis);
+                        calculations++;
+                    } catch (Exception e) {
+                        if (round == 0) {
+                            PowerLogger.getInstance().warn("Warm-up design failed: " + e.getMessage(), e);
+                        }
+                    }
+                }
+            }
+            PowerLogger.getInstance().info("Warm-up completed " + calculations + " calculations in "
+                    + (System.currentTimeMillis() - start) + " milliseconds.");
+        } catch (IOException ioe) {
+            PowerLogger.getInstance().error("Unable to load warm-up corpus: " + ioe.getMessage(), ioe);
+        } finally {
+            complete = true;
+        }
+    }
+
+    /**
+     * Run one study design through the same steps as a live request:
+     * JSON parsing, matrix construction, calculation, result
+     * serialization, and the matrix display.  The calculation is the
+     * one used by the resources, so sample size designs exercise the
+     * sample size search.
+     *
+     * @param jsonStudyDesign study design JSON
+     * @param deadline time by which warm-up must finish, in milliseconds since the epoch
+     * @throws Exception if any step fails
+     */
+    private void exercise(final String jsonStudyDesign, final long deadline) throws Exception {
+        StudyDesign studyDesign = MAPPER.readValue(jsonStudyDesign, StudyDesign.class);
+
+        DesignContext context = new DesignContext(studyDesign);
+
+        PowerResultList powerResultList = PowerResourceHelper.calculate(context, deadline);
+        MAPPER.writeValueAsString(powerResultList);
+
+        MAPPER.writeValueAsString(context.toNamedMatrixList());
+        new PowerMatrixHTMLServerResource().getMatricesAsHTML(context);
+    }
+
+    /**
+     * Load the study design JSON listed in the corpus index.
+     *
+     * @return list of study design JSON strings
+     * @throws IOException if the index or a design cannot be read
+     */
+    private List<String> loadCorpus() throws IOException {
+        List<String> corpus = new ArrayList<String>();
+        for (String line: readLines(CORPUS_INDEX)) {
+            String name = line.trim();
+            if (name.length() > 0 && !name.startsWith("#")) {
+                StringBuilder json = new StringBuilder();
+                for (String jsonLine: readLines(name)) {
+                    json.append(jsonLine).append('\n');
+                }
+                corpus.add(json.toString());
+            }
+        }
+        return corpus;
+    }
+
+    /**
+     * Read the lines of a classpath resource.
+     *
+     * @param name resource name
+     * @return list of lines
+     * @throws IOException if the resource is missing or cannot be read
+     */
+    private List<String> readLines(final String name) throws IOException {
+        InputStream in = PowerWarmUp.class.getClassLoader().getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("Missing warm-up resource '" + name + "'");
+        }
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, ENCODING));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.application;
+
+import java.util.concurrent.TimeUnit;
+
+import org.restlet.Context;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.data.Status;
+import org.restlet.routing.Filter;
+
+/**
+ * Filter which counts the requests currently being handled by the
+ * power application, and which can be switched into a draining state
+ * in which new requests are refused with 503 (Service Unavailable)
+ * while the requests already in flight are allowed to finish.
+ * <p>
+ * A request stays in flight until its response is finished (see
+ * ResponseCompletion), since streamed entities are produced as the
+ * connector writes them, after the resource has returned.
+ *
+ * @author Sarah Kreidler
+ */
+public class RequestDrainFilter extends Filter {
+
+    /** Number of requests currently being handled. */
+    private int inFlight = 0;
+
+    /** True once draining has started. */
+    private volatile boolean draining = false;
+
+    /**
+     * Create a new drain filter.
+     *
+     * @param context application context
+     */
+    public RequestDrainFilter(final Context context) {
+        super(context);
+    }
+
+    /**
+     * Refuse the request if we are draining, otherwise count it as in flight.
+     */
+    @Override
+    protected int beforeHandle(final Request request, final Response response) {
+        synchronized (this) {
+            if (!draining) {
+                inFlight++;
+                return CONTINUE;
+            }
+        }
+        response.setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE,
+                "The power service is shutting down.");
+        return STOP;
+    }
+
+    /**
+     * Pass the request on.  The in-flight count taken in beforeHandle
+     * is released once the response is finished: when its entity has
+     * been written or released, or, if there is no entity to write,
+     * on return, even if the next Restlet fails.
+     */
+    @Override
+    protected int doHandle(final Request request, final Response response) {
+        ResponseCompletion completion = new ResponseCompletion() {
+            @Override
+            protected void finished() {
+                RequestDrainFilter.this.finished();
+            }
+        };
+        try {
+            return super.doHandle(request, response);
+        } finally {
+            completion.attach(request, response);
+        }
+    }
+
+    /**
+     * Release the in-flight count of a request.
+     */
+    private synchronized void finished() {
+        inFlight--;
+        if (inFlight == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Get the number of requests currently in flight.
+     *
+     * @return number of requests being handled
+     */
+    public final synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Determine if the filter is refusing new requests.
+     *
+     * @return true if draining has started
+     */
+    public final boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Stop accepting new requests and wait for the in-flight requests
+     * to complete, up to the specified grace period.
+     *
+     * @param gracePeriod maximum time to wait
+     * @param unit time unit of the grace period
+     * @return true if all in-flight requests completed within the grace period
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public final synchronized boolean drain(final long gracePeriod, final TimeUnit unit)
+    throws InterruptedException {
+        draining = true;
+        long deadline = System.currentTimeMillis() + unit.toMillis(gracePeriod);
+        while (inFlight > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.application;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.data.Method;
+import org.restlet.representation.Representation;
+import org.restlet.util.WrapperRepresentation;
+
+/**
+ * Callback run once a response is finished, for filters which hold
+ * something (an in-flight count, a calculation slot) for the life of
+ * a request.  Streamed entities, e.g. the matrix HTML page and NDJSON
+ * detectable difference results, are produced as the connector writes
+ * them, after the resource has returned, so a response with an entity
+ * is finished once the entity has been written, whether or not the
+ * write succeeds, or released by the connector, whichever comes first.
+ * A response without an entity, or to a HEAD request, whose entity the
+ * connector drops unwritten, is finished on return.
+ * <p>
+ * Restlet 2.0 has no callback for a response having been sent, so the
+ * entity is wrapped.
+ *
+ * @author Sarah Kreidler
+ */
+abstract class ResponseCompletion {
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    /**
+     * Called once, when the response is finished.
+     */
+    protected abstract void finished();
+
+    /**
+     * Finish the response after its entity is written, if it has one
+     * which will be written, otherwise now.  Called once the next
+     * Restlet has returned, or failed.
+     *
+     * @param request request
+     * @param response response
+     */
+    final void attach(final Request request, final Response response) {
+        Representation entity = response.getEntity();
+        if (entity != null && entity.isAvailable() && !Method.HEAD.equals(request.getMethod())) {
+            response.setEntity(new CompletingRepresentation(entity));
+        } else {
+            finish();
+        }
+    }
+
+    /**
+     * Finish the response, unless it has been already.
+     */
+    final void finish() {
+        if (finished.compareAndSet(false, true)) {
+            finished();
+        }
+    }
+
+    /**
+     * Response entity which finishes its response once it has been
+     * written or released.
+     */
+    private final class CompletingRepresentation extends WrapperRepresentation {
+        /**
+         * @param entity response entity
+         */
+        private CompletingRepresentation(final Representation entity) {
+            super(entity);
+        }
+
+        @Override
+        public void write(final OutputStream outputStream) throws IOException {
+            try {
+                super.write(outputStream);
+            } finally {
+                finish();
+            }
+        }
+
+        @Override
+        public void write(final WritableByteChannel writableChannel) throws IOException {
+            try {
+                super.write(writableChannel);
+            } finally {
+                finish();
+            }
+        }
+
+        @Override
+        public void write(final Writer writer) throws IOException {
+            try {
+                super.write(writer);
+            } finally {
+                finish();
+            }
+        }
+
+        @Override
+        public void release() {
+            try {
+                super.release();
+            } finally {
+                finish();
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.application;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket rate limit.  The bucket holds up to "burst"
+ * tokens, refilled at "rate" tokens per second, and each request takes
+ * one token.
+ * <p>
+ * Rather than a token count, the bucket keeps the time at which it
+ * will next be full, so that taking a token is a single compare and
+ * set: a request is allowed if, after adding one token interval to
+ * that time, the bucket would still be no more than "burst" tokens
+ * short of full.
+ *
+ * @author Sarah Kreidler
+ */
+public final class TokenBucket {
+    private final long intervalNanos;
+    private final long burstNanos;
+
+    /** Time at which the bucket will be full, in System.nanoTime() units. */
+    private final AtomicLong fullAt;
+
+    /**
+     * Create a full bucket.
+     *
+     * @param rate tokens added per second
+     * @param burst maximum number of tokens
+     */
+    public TokenBucket(double rate, int burst) {
+        if (!(rate > 0) || burst < 1) {
+            throw new IllegalArgumentException("Invalid token bucket: rate " + rate + ", burst " + burst);
+        }
+        intervalNanos = Math.max(1, (long) (1e9 / rate));
+        burstNanos = intervalNanos * burst;
+        fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Take a token, if one is available.
+     *
+     * @return true if a token was taken
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+            long next = (current - now > 0 ? current : now) + intervalNanos;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return true if the bucket holds all of its tokens
+     */
+    public boolean isFull() {
+        return fullAt.get() - System.nanoTime() <= 0;
+    }
+}
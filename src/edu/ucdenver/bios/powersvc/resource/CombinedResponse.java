@@ -0,0 +1,115 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import edu.ucdenver.bios.webservice.common.domain.PowerResultList;
+
+/**
+ * Response for /power and /samplesize requests which ask for the
+ * matrices along with the results, e.g. "/power?include=matrices,html".
+ * The results, the matrix list and the matrix HTML are all produced
+ * from the same design context, so the study design is parsed and
+ * its matrices are built only once.
+ * <p>
+ * The response is a JSON object with the fields "results", and,
+ * as requested, "matrices" (as returned by /matrix) and "html"
+ * (as returned by /matrix/html).
+ *
+ * @author Sarah Kreidler
+ */
+final class CombinedResponse {
+    /** Query parameter listing the extra items in the response. */
+    static final String INCLUDE_PARAMETER = "include";
+
+    /** Include the list of named matrices. */
+    static final String INCLUDE_MATRICES = "matrices";
+
+    /** Include the matrix HTML page. */
+    static final String INCLUDE_HTML = "html";
+
+    private static final String RESULTS = "results";
+
+    /**
+     * Constructor.
+     */
+    private CombinedResponse() {
+    }
+
+    /**
+     * Parse the value of the include query parameter.
+     *
+     * @param value comma separated list of items, or null
+     * @return set of items to include, empty if none
+     * @throws IllegalArgumentException if an item is not recognized
+     */
+    static Set<String> parseIncludes(String value) throws IllegalArgumentException {
+        Set<String> includes = new LinkedHashSet<String>();
+        if (value != null) {
+            for (String item: value.split(",")) {
+                String name = item.trim();
+                if (INCLUDE_MATRICES.equals(name) || INCLUDE_HTML.equals(name)) {
+                    includes.add(name);
+                } else if (name.length() > 0) {
+                    throw new IllegalArgumentException("Invalid include option: " + name);
+                }
+            }
+        }
+        return includes;
+    }
+
+    /**
+     * Write the results and the requested matrices as JSON.
+     *
+     * @param mapper object mapper
+     * @param powerResultList results of the calculation
+     * @param context design context used for the calculation
+     * @param includes items to include, from parseIncludes
+     * @param maxDimension maximum rows or columns shown for a matrix in the HTML
+     * @return JSON string
+     * @throws IOException if the response cannot be serialized
+     */
+    static String toJSON(ObjectMapper mapper, PowerResultList powerResultList,
+            DesignContext context, Set<String> includes, int maxDimension)
+                    throws IOException {
+        Map<String, Object> response = new LinkedHashMap<String, Object>();
+        response.put(RESULTS, powerResultList);
+        if (includes.contains(INCLUDE_MATRICES)) {
+            response.put(INCLUDE_MATRICES, context.toNamedMatrixList());
+        }
+        if (includes.contains(INCLUDE_HTML)) {
+            StringWriter writer = new StringWriter();
+            new MatrixHTMLPage(context, maxDimension).write(writer);
+            response.put(INCLUDE_HTML, writer.toString());
+        }
+        return mapper.writeValueAsString(response);
+    }
+}
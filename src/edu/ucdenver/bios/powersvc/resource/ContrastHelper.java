@@ -22,6 +22,7 @@
  */
 package edu.ucdenver.bios.powersvc.resource;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.commons.math3.linear.RealMatrix;
@@ -54,6 +55,18 @@ public class ContrastHelper {
      */
     public static RealMatrix mainEffectBetween(BetweenParticipantFactor factorOfInterest,
             List<BetweenParticipantFactor> factorList) {
+        return kroneckerProduct(mainEffectBetweenFactors(factorOfInterest, factorList));
+    }
+
+    /**
+     * Create the Kronecker factors of a main effect contrast for
+     * between-participant factors.
+     * @param factorOfInterest factor being tested
+     * @param factorList list of all between-participant factors
+     * @return factors whose Kronecker product is the main effect contrast (C)
+     */
+    public static List<RealMatrix> mainEffectBetweenFactors(BetweenParticipantFactor factorOfInterest,
+            List<BetweenParticipantFactor> factorList) {
         if (factorOfInterest == null || factorOfInterest.getCategoryList() == null) {
             throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
             "Cannot compute between-participant contrast - invalid factor of interest");
@@ -76,24 +89,23 @@ public class ContrastHelper {
             RealMatrix column1s = MatrixUtils.getRealMatrixWithFilledValue(df, 1, 1);
             RealMatrix effectContrast = MatrixUtils.getHorizontalAppend(column1s, negIdentity);
 
-            // compute the overall contrast across the factors
-            RealMatrix contrast = org.apache.commons.math3.linear.MatrixUtils.createRealIdentityMatrix(1);
+            // collect the factors of the overall contrast
+            List<RealMatrix> factors = new ArrayList<RealMatrix>();
             for(BetweenParticipantFactor factor: factorList) {
                 if (factor.getPredictorName().equals(factorOfInterest.getPredictorName())) {
-                    contrast = MatrixUtils.getKroneckerProduct(contrast, effectContrast);
+                    factors.add(effectContrast);
                 } else {
                     List<Category> categoryList = factor.getCategoryList();
                     if (categoryList.size() > 0) {
                         int dimension = categoryList.size();
-                        contrast = MatrixUtils.getKroneckerProduct(contrast,
-                                MatrixUtils.getRealMatrixWithFilledValue(1, dimension, 1/(double) dimension));
+                        factors.add(MatrixUtils.getRealMatrixWithFilledValue(1, dimension, 1/(double) dimension));
                     }
                 }
             }
-            return contrast;
+            return factors;
         } else {
             // if less than 2 categories for the factor of interest, just compute the grand mean
-            return ContrastHelper.grandMeanBetween(factorList);
+            return ContrastHelper.grandMeanBetweenFactors(factorList);
         }
     }
 
@@ -107,6 +119,20 @@ public class ContrastHelper {
     public static RealMatrix mainEffectWithin(RepeatedMeasuresNode factorOfInterest,
             List<RepeatedMeasuresNode> factorList,
             List<ResponseNode> responseList) {
+        return kroneckerProduct(mainEffectWithinFactors(factorOfInterest, factorList, responseList));
+    }
+
+    /**
+     * Create the Kronecker factors of a main effect contrast for
+     * within-participant factors.
+     * @param factorOfInterest factor being tested
+     * @param factorList list of all within-participant factors
+     * @param responseList list of response variables
+     * @return factors whose Kronecker product is the main effect contrast (U)
+     */
+    public static List<RealMatrix> mainEffectWithinFactors(RepeatedMeasuresNode factorOfInterest,
+            List<RepeatedMeasuresNode> factorList,
+            List<ResponseNode> responseList) {
         if (factorOfInterest == null || factorOfInterest.getNumberOfMeasurements() == null) {
             throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
             "Cannot compute within-participant contrast - invalid factor of interest");
@@ -127,26 +153,24 @@ public class ContrastHelper {
         // perform a kronecker product across the factors with the effect of interest
         // and average contrasts for any remaining factors
         if (df > 0) {
-            RealMatrix contrast = org.apache.commons.math3.linear.MatrixUtils.createRealIdentityMatrix(1);
+            List<RealMatrix> factors = new ArrayList<RealMatrix>();
             for(RepeatedMeasuresNode factor: factorList) {
                 if (factor.getDimension().equals(factorOfInterest.getDimension())) {
-                    contrast = MatrixUtils.getKroneckerProduct(contrast, effectContrast);
+                    factors.add(effectContrast);
                 } else {
                     int size = factor.getNumberOfMeasurements();
                     if (size > 0) {
-                        contrast = MatrixUtils.getKroneckerProduct(contrast,
-                                MatrixUtils.getRealMatrixWithFilledValue(size, 1, 1/(double) size));
+                        factors.add(MatrixUtils.getRealMatrixWithFilledValue(size, 1, 1/(double) size));
                     }
                 }
             }
             // multiply on an identity matrix with dimension equal to the number of multivariate responses
             if (responseList != null && responseList.size() > 1) {
-                contrast = MatrixUtils.getKroneckerProduct(contrast,
-                        org.apache.commons.math3.linear.MatrixUtils.createRealIdentityMatrix(responseList.size()));
+                factors.add(org.apache.commons.math3.linear.MatrixUtils.createRealIdentityMatrix(responseList.size()));
             }
-            return contrast;
+            return factors;
         } else {
-            return ContrastHelper.grandMeanWithin(factorList, responseList);
+            return ContrastHelper.grandMeanWithinFactors(factorList, responseList);
         }
     }
 
@@ -158,6 +182,18 @@ public class ContrastHelper {
      */
     public static RealMatrix interactionBetween(List<HypothesisBetweenParticipantMapping> betweenMap,
             List<BetweenParticipantFactor> factorList) {
+        return kroneckerProduct(interactionBetweenFactors(betweenMap, factorList));
+    }
+
+    /**
+     * Create the Kronecker factors of an interaction contrast for
+     * between-participant factors.
+     * @param betweenMap list of all between-participant factors being tested
+     * @param factorList list of all between-participant factors
+     * @return factors whose Kronecker product is the interaction contrast (C)
+     */
+    public static List<RealMatrix> interactionBetweenFactors(List<HypothesisBetweenParticipantMapping> betweenMap,
+            List<BetweenParticipantFactor> factorList) {
         if (betweenMap == null || betweenMap.size() <= 0) {
             throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
             "Cannot compute between-participant contrast - invalid test list");
@@ -167,8 +203,7 @@ public class ContrastHelper {
             "Cannot compute between-participant contrast - invalid factor list");
         }
 
-        RealMatrix contrast =
-            org.apache.commons.math3.linear.MatrixUtils.createRealIdentityMatrix(1);
+        List<RealMatrix> factors = new ArrayList<RealMatrix>();
         for(BetweenParticipantFactor factor: factorList) {
             HypothesisBetweenParticipantMapping factorMapping =
                 betweenFactorInTestList(factor, betweenMap);
@@ -177,18 +212,16 @@ public class ContrastHelper {
                 int levels = factor.getCategoryList().size();
                 double[] spacing = new double[levels];
                 for(int i = 0; i < levels; i++) { spacing[i] = i; }
-                contrast = MatrixUtils.getKroneckerProduct(contrast,
-                        getTrendContrast(spacing, factorMapping.getType(), true));
+                factors.add(getTrendContrast(spacing, factorMapping.getType(), true));
             } else {
                 List<Category> categoryList = factor.getCategoryList();
                 if (categoryList.size() > 0) {
                     int dimension = categoryList.size();
-                    contrast = MatrixUtils.getKroneckerProduct(contrast,
-                            MatrixUtils.getRealMatrixWithFilledValue(1, dimension, 1/(double) dimension));
+                    factors.add(MatrixUtils.getRealMatrixWithFilledValue(1, dimension, 1/(double) dimension));
                 }
             }
         }
-        return contrast;
+        return factors;
     }
 
     /**
@@ -201,6 +234,20 @@ public class ContrastHelper {
     public static RealMatrix interactionWithin(List<HypothesisRepeatedMeasuresMapping> withinMap,
             List<RepeatedMeasuresNode> factorList,
             List<ResponseNode> responseList) {
+        return kroneckerProduct(interactionWithinFactors(withinMap, factorList, responseList));
+    }
+
+    /**
+     * Create the Kronecker factors of an interaction contrast for
+     * within-participant factors.
+     * @param withinMap list of all within-participant factors being tested
+     * @param factorList list of all within-participant factors
+     * @param responseList list of response variables
+     * @return factors whose Kronecker product is the interaction contrast (U)
+     */
+    public static List<RealMatrix> interactionWithinFactors(List<HypothesisRepeatedMeasuresMapping> withinMap,
+            List<RepeatedMeasuresNode> factorList,
+            List<ResponseNode> responseList) {
         if (withinMap == null || withinMap.size() <= 0) {
             throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
             "Cannot compute within-participant contrast - invalid test list");
@@ -210,8 +257,7 @@ public class ContrastHelper {
             "Cannot compute within-participant contrast - invalid factor list");
         }
 
-        RealMatrix contrast =
-            org.apache.commons.math3.linear.MatrixUtils.createRealIdentityMatrix(1);
+        List<RealMatrix> factors = new ArrayList<RealMatrix>();
         for(RepeatedMeasuresNode factor: factorList) {
             HypothesisRepeatedMeasuresMapping factorMapping =
                 withinFactorInTestList(factor, withinMap);
@@ -226,20 +272,17 @@ public class ContrastHelper {
                     spacingArray = new double[size];
                     for(int i = 0; i < size; i++) { spacingArray[i] = i; }
                 }
-                contrast = MatrixUtils.getKroneckerProduct(contrast,
-                        getTrendContrast(spacingArray, factorMapping.getType(), false));
+                factors.add(getTrendContrast(spacingArray, factorMapping.getType(), false));
             } else {
                 int size = factor.getNumberOfMeasurements();
-                contrast = MatrixUtils.getKroneckerProduct(contrast,
-                        MatrixUtils.getRealMatrixWithFilledValue(size, 1, 1/(double) size));
+                factors.add(MatrixUtils.getRealMatrixWithFilledValue(size, 1, 1/(double) size));
             }
         }
         // multiply on an identity matrix with dimension equal to the number of multivariate responses
         if (responseList != null && responseList.size() > 1) {
-            contrast = MatrixUtils.getKroneckerProduct(contrast,
-                    org.apache.commons.math3.linear.MatrixUtils.createRealIdentityMatrix(responseList.size()));
+            factors.add(org.apache.commons.math3.linear.MatrixUtils.createRealIdentityMatrix(responseList.size()));
         }
-        return contrast;
+        return factors;
     }
 
     /**
@@ -250,6 +293,18 @@ public class ContrastHelper {
      */
     public static RealMatrix trendBetween(HypothesisBetweenParticipantMapping factorOfInterestMap,
             List<BetweenParticipantFactor> factorList) {
+        return kroneckerProduct(trendBetweenFactors(factorOfInterestMap, factorList));
+    }
+
+    /**
+     * Create the Kronecker factors of a trend contrast for
+     * between-participant factors.
+     * @param factorOfInterestMap factor of interest plus trend type information
+     * @param factorList list of all between-participant factors
+     * @return factors whose Kronecker product is the trend contrast (C)
+     */
+    public static List<RealMatrix> trendBetweenFactors(HypothesisBetweenParticipantMapping factorOfInterestMap,
+            List<BetweenParticipantFactor> factorList) {
         // build contrast component for the effect of interest
         BetweenParticipantFactor factorOfInterest = factorOfInterestMap.getBetweenParticipantFactor();
         HypothesisTrendTypeEnum trendType = factorOfInterestMap.getType();
@@ -262,22 +317,21 @@ public class ContrastHelper {
 
             // Kronecker product the trend contrast with average contrasts for remaining
             // factors
-            RealMatrix contrast = MatrixUtils.getRealMatrixWithFilledValue(1, 1, 1);
+            List<RealMatrix> factors = new ArrayList<RealMatrix>();
             for(BetweenParticipantFactor factor: factorList) {
                 if (factor.getPredictorName().equals(factorOfInterest.getPredictorName())) {
-                    contrast = MatrixUtils.getKroneckerProduct(contrast, trendContrast);
+                    factors.add(trendContrast);
                 } else {
                     List<Category> categoryList = factor.getCategoryList();
                     if (categoryList.size() > 0) {
                         int dimension = categoryList.size();
-                        contrast = MatrixUtils.getKroneckerProduct(contrast,
-                                MatrixUtils.getRealMatrixWithFilledValue(1, dimension, 1/(double) dimension));
+                        factors.add(MatrixUtils.getRealMatrixWithFilledValue(1, dimension, 1/(double) dimension));
                     }
                 }
             }
-            return contrast;
+            return factors;
         } else {
-            return ContrastHelper.grandMeanBetween(factorList);
+            return ContrastHelper.grandMeanBetweenFactors(factorList);
         }
     }
 
@@ -291,6 +345,20 @@ public class ContrastHelper {
     public static RealMatrix trendWithin(HypothesisRepeatedMeasuresMapping factorOfInterestMap,
             List<RepeatedMeasuresNode> factorList,
             List<ResponseNode> responseList) {
+        return kroneckerProduct(trendWithinFactors(factorOfInterestMap, factorList, responseList));
+    }
+
+    /**
+     * Create the Kronecker factors of a trend contrast for
+     * within-participant factors.
+     * @param factorOfInterestMap factor of interest plus trend type information
+     * @param factorList list of all within-participant factors
+     * @param responseList list of response variables
+     * @return factors whose Kronecker product is the trend contrast (U)
+     */
+    public static List<RealMatrix> trendWithinFactors(HypothesisRepeatedMeasuresMapping factorOfInterestMap,
+            List<RepeatedMeasuresNode> factorList,
+            List<ResponseNode> responseList) {
         // build contrast component for the effect of interest
         RepeatedMeasuresNode factorOfInterest = factorOfInterestMap.getRepeatedMeasuresNode();
         HypothesisTrendTypeEnum trendType = factorOfInterestMap.getType();
@@ -310,29 +378,36 @@ public class ContrastHelper {
 
             // horizontal direct product the trend contrast with average contrasts for remaining
             // factors
-            RealMatrix contrast = MatrixUtils.getRealMatrixWithFilledValue(1, 1, 1);
+            List<RealMatrix> factors = new ArrayList<RealMatrix>();
             for(RepeatedMeasuresNode factor: factorList) {
                 if (factor.getDimension().equals(factorOfInterest.getDimension())) {
-                    contrast = MatrixUtils.getKroneckerProduct(contrast, trendContrast);
+                    factors.add(trendContrast);
                 } else {
                     int size = factor.getNumberOfMeasurements();
                     if (size > 0) {
-                        contrast = MatrixUtils.getKroneckerProduct(contrast,
-                                MatrixUtils.getRealMatrixWithFilledValue(size, 1, 1/(double) size));
+                        factors.add(MatrixUtils.getRealMatrixWithFilledValue(size, 1, 1/(double) size));
                     }
                 }
             }
             // multiply on an identity matrix with dimension equal to the number of multivariate responses
             if (responseList != null && responseList.size() > 1) {
-                contrast = MatrixUtils.getKroneckerProduct(contrast,
-                        org.apache.commons.math3.linear.MatrixUtils.createRealIdentityMatrix(responseList.size()));
+                factors.add(org.apache.commons.math3.linear.MatrixUtils.createRealIdentityMatrix(responseList.size()));
             }
-            return contrast;
+            return factors;
         } else {
-            return ContrastHelper.grandMeanWithin(factorList, responseList);
+            return ContrastHelper.grandMeanWithinFactors(factorList, responseList);
         }
     }
 
+    /**
+     * Calculate the Kronecker product of a list of factors, in order.
+     * An empty list yields the 1x1 identity.
+     * @param factors list of matrices
+     * @return Kronecker product of the factors
+     */
+    public static RealMatrix kroneckerProduct(List<RealMatrix> factors) {
+        return KroneckerProduct.of(factors);
+    }
 
     /**
      * Calculate the grand mean contrast.
@@ -391,6 +466,32 @@ public class ContrastHelper {
         return MatrixUtils.getRealMatrixWithFilledValue(dimension, 1, 1/(double) dimension);
     }
 
+    /**
+     * Create the grand mean contrast for between-participant factors as a
+     * single Kronecker factor.
+     * @param factorList list of all between-participant factors
+     * @return single element list holding the grand mean contrast (C)
+     */
+    public static List<RealMatrix> grandMeanBetweenFactors(List<BetweenParticipantFactor> factorList) {
+        List<RealMatrix> factors = new ArrayList<RealMatrix>();
+        factors.add(grandMeanBetween(factorList));
+        return factors;
+    }
+
+    /**
+     * Create the grand mean contrast for within-participant factors as a
+     * single Kronecker factor.
+     * @param factorList list of all within-participant factors
+     * @param responseList list of all response variables
+     * @return single element list holding the grand mean contrast (U)
+     */
+    public static List<RealMatrix> grandMeanWithinFactors(List<RepeatedMeasuresNode> factorList,
+            List<ResponseNode> responseList) {
+        List<RealMatrix> factors = new ArrayList<RealMatrix>();
+        factors.add(grandMeanWithin(factorList, responseList));
+        return factors;
+    }
+
     /**
      * Create a MANOVA contrast for between-participant factors.
      * @param factorOfInterest factor being tested
@@ -399,6 +500,18 @@ public class ContrastHelper {
      */
     public static RealMatrix manovaBetween(BetweenParticipantFactor factorOfInterest,
             List<BetweenParticipantFactor> factorList) {
+        return kroneckerProduct(manovaBetweenFactors(factorOfInterest, factorList));
+    }
+
+    /**
+     * Create the Kronecker factors of a MANOVA contrast for
+     * between-participant factors.
+     * @param factorOfInterest factor being tested
+     * @param factorList list of all between-participant factors
+     * @return factors whose Kronecker product is the MANOVA contrast (C)
+     */
+    public static List<RealMatrix> manovaBetweenFactors(BetweenParticipantFactor factorOfInterest,
+            List<BetweenParticipantFactor> factorList) {
         if (factorOfInterest == null || factorOfInterest.getCategoryList() == null) {
             throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
             "Cannot compute between-participant contrast - invalid factor of interest");
@@ -418,22 +531,21 @@ public class ContrastHelper {
 
             // Kronecker product the trend contrast with average contrasts for remaining
             // factors
-            RealMatrix contrast = MatrixUtils.getRealMatrixWithFilledValue(1, 1, 1);
+            List<RealMatrix> factors = new ArrayList<RealMatrix>();
             for(BetweenParticipantFactor factor: factorList) {
                 if (factor.getPredictorName().equals(factorOfInterest.getPredictorName())) {
-                    contrast = MatrixUtils.getKroneckerProduct(contrast, trendContrast);
+                    factors.add(trendContrast);
                 } else {
                     List<Category> categoryList = factor.getCategoryList();
                     if (categoryList.size() > 0) {
                         int dimension = categoryList.size();
-                        contrast = MatrixUtils.getKroneckerProduct(contrast,
-                                MatrixUtils.getRealMatrixWithFilledValue(1, dimension, 1/(double) dimension));
+                        factors.add(MatrixUtils.getRealMatrixWithFilledValue(1, dimension, 1/(double) dimension));
                     }
                 }
             }
-            return contrast;
+            return factors;
         } else {
-            return ContrastHelper.grandMeanBetween(factorList);
+            return ContrastHelper.grandMeanBetweenFactors(factorList);
         }
     }
 
@@ -451,7 +563,8 @@ public class ContrastHelper {
     }
 
     /**
-     * Create a trend contrast of the specified type.
+     * Get a trend contrast of the specified type, from the cache if
+     * it has been built before.
      * @param spacing list of integer positions representing spacing of measurements
      * @param trendType type of trend contrast
      * @param transpose if true, return the transpose of the contrast
@@ -459,6 +572,18 @@ public class ContrastHelper {
      */
     private static RealMatrix getTrendContrast(double[] spacing, HypothesisTrendTypeEnum trendType,
             boolean transpose) {
+        return TrendContrastCache.getInstance().get(spacing, trendType, transpose);
+    }
+
+    /**
+     * Create a trend contrast of the specified type.
+     * @param spacing list of integer positions representing spacing of measurements
+     * @param trendType type of trend contrast
+     * @param transpose if true, return the transpose of the contrast
+     * @return trend contrast
+     */
+    static RealMatrix trendContrast(double[] spacing, HypothesisTrendTypeEnum trendType,
+            boolean transpose) {
         int levels = spacing.length;
         // get all possible polynomial trends
         RealMatrix allTrendContrast =
@@ -90,7 +90,7 @@ public class CovarianceHelper {
         if (blob != null && blob.getData() != null) {
             List<StandardDeviation> stddevList = covariance.getStandardDeviationList();
             if (stddevList.size() == covariance.getRows()) {
-                covarianceData = new Array2DRowRealMatrix(covariance.getBlob().getData());
+                covarianceData = new SharedRealMatrix(covariance.getBlob().getData());
                 /* For each diagonal cell, square the standard deviation
                  * For each off-diagonal cell, use formula
                  * covariance = correlation * sqrt (var1 * var2)
@@ -198,7 +198,7 @@ public class CovarianceHelper {
                 // unstructured covariance, so simply extract the data
                 Blob2DArray blob = covariance.getBlob();
                 if (blob != null) {
-                    covarianceData = new Array2DRowRealMatrix(covariance.getBlob().getData());
+                    covarianceData = new SharedRealMatrix(covariance.getBlob().getData());
                 }
                 break;
             }
@@ -0,0 +1,572 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.util.List;
+
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import edu.cudenver.bios.matrix.FixedRandomMatrix;
+import edu.cudenver.bios.power.parameters.GLMMPowerParameters;
+import edu.ucdenver.bios.webservice.common.domain.ClusterNode;
+import edu.ucdenver.bios.webservice.common.domain.Hypothesis;
+import edu.ucdenver.bios.webservice.common.domain.NamedMatrixList;
+import edu.ucdenver.bios.webservice.common.domain.StudyDesign;
+import edu.ucdenver.bios.webservice.common.enums.StudyDesignViewTypeEnum;
+
+/**
+ * Per-request view of the matrices generated by a study design.
+ * Each matrix is built at most once, on first use, and both the
+ * clustered matrices used in the power calculation and the
+ * unclustered matrices used for display are available without
+ * modifying the study design.
+ * <p>
+ * The matrices returned are shared by all users of the context and
+ * must not be modified; the power parameters are built from copies
+ * since the calculator updates them.
+ * <p>
+ * A context created with a matrix scope builds the error covariance
+ * and the clustered within participant contrast, the largest of its
+ * matrices, in that scope, so they may be held off the heap and are
+ * valid only while the scope is open.
+ *
+ * @author Sarah Kreidler
+ */
+public final class DesignContext {
+
+    private final StudyDesign studyDesign;
+    private final MatrixScope scope;
+    private final Hypothesis hypothesis;
+    private final boolean primary;
+    private final List<ClusterNode> clusterNodeList;
+    private final int clusterSize;
+
+    private final Memo<RealMatrix> designMatrix = new Memo<RealMatrix>() {
+        @Override
+        protected RealMatrix compute() {
+            return PowerResourceHelper.designMatrixFromStudyDesign(studyDesign);
+        }
+    };
+
+    private final Memo<FixedRandomMatrix> beta = new Memo<FixedRandomMatrix>() {
+        @Override
+        protected FixedRandomMatrix compute() {
+            return PowerResourceHelper.betaMatrixFromStudyDesign(studyDesign, clusterNodeList);
+        }
+    };
+
+    private final Memo<FixedRandomMatrix> unclusteredBeta = new Memo<FixedRandomMatrix>() {
+        @Override
+        protected FixedRandomMatrix compute() {
+            return clusterSize > 1
+                    ? PowerResourceHelper.betaMatrixFromStudyDesign(studyDesign, null)
+                    : getBeta();
+        }
+    };
+
+    private final Memo<FixedRandomMatrix> betweenContrast = new Memo<FixedRandomMatrix>() {
+        @Override
+        protected FixedRandomMatrix compute() {
+            return PowerResourceHelper.betweenParticipantContrastFromStudyDesign(studyDesign, hypothesis);
+        }
+    };
+
+    private final Memo<List<RealMatrix>> betweenContrastFactors = new Memo<List<RealMatrix>>() {
+        @Override
+        protected List<RealMatrix> compute() {
+            return PowerResourceHelper.betweenParticipantContrastFactorsFromStudyDesign(studyDesign,
+                    hypothesis);
+        }
+    };
+
+    private final Memo<RealMatrix> withinContrast = new Memo<RealMatrix>() {
+        @Override
+        protected RealMatrix compute() {
+            return PowerResourceHelper.withinParticipantContrastFromStudyDesign(studyDesign,
+                    clusterNodeList, scope, hypothesis);
+        }
+    };
+
+    private final Memo<RealMatrix> unclusteredWithinContrast = new Memo<RealMatrix>() {
+        @Override
+        protected RealMatrix compute() {
+            return clusterSize > 1
+                    ? PowerResourceHelper.withinParticipantContrastFromStudyDesign(studyDesign, null,
+                            null, hypothesis)
+                    : getWithinContrast();
+        }
+    };
+
+    private final Memo<List<RealMatrix>> withinContrastFactors = new Memo<List<RealMatrix>>() {
+        @Override
+        protected List<RealMatrix> compute() {
+            return PowerResourceHelper.withinParticipantContrastFactorsFromStudyDesign(studyDesign,
+                    hypothesis);
+        }
+    };
+
+    private final Memo<RealMatrix> thetaNull = new Memo<RealMatrix>() {
+        @Override
+        protected RealMatrix compute() {
+            // theta null has the rows of C and the columns of U, so clustering does not matter
+            List<RealMatrix> betweenFactors = getBetweenContrastFactors();
+            List<RealMatrix> withinFactors = getWithinContrastFactors();
+            if (betweenFactors != null && withinFactors != null) {
+                // guided mode: the dimensions follow from the factors, without building C or U
+                return PowerResourceHelper.thetaNullMatrixFromStudyDesign(studyDesign,
+                        KroneckerProduct.rows(betweenFactors), KroneckerProduct.columns(withinFactors),
+                        primary);
+            }
+            return PowerResourceHelper.thetaNullMatrixFromStudyDesign(studyDesign,
+                    getBetweenContrast(), getWithinContrast(), primary);
+        }
+    };
+
+    private final Memo<RealMatrix> thetaObserved = new Memo<RealMatrix>() {
+        @Override
+        protected RealMatrix compute() {
+            return ThetaEvaluator.evaluate(DesignContext.this);
+        }
+    };
+
+    private final Memo<RealMatrix> sigmaError = new Memo<RealMatrix>() {
+        @Override
+        protected RealMatrix compute() {
+            return PowerResourceHelper.sigmaErrorMatrixFromStudyDesign(studyDesign, scope);
+        }
+    };
+
+    private final Memo<RealMatrix> sigmaOutcome = new Memo<RealMatrix>() {
+        @Override
+        protected RealMatrix compute() {
+            // in guided mode, the outcome covariance is built like the error covariance
+            return studyDesign.getViewTypeEnum() == StudyDesignViewTypeEnum.MATRIX_MODE
+                    ? PowerResourceHelper.sigmaOutcomesMatrixFromStudyDesign(studyDesign)
+                    : getSigmaError();
+        }
+    };
+
+    private final Memo<RealMatrix> sigmaCovariate = new Memo<RealMatrix>() {
+        @Override
+        protected RealMatrix compute() {
+            return PowerResourceHelper.sigmaCovariateMatrixFromStudyDesign(studyDesign);
+        }
+    };
+
+    private final Memo<RealMatrix> sigmaCovariateInverse = new Memo<RealMatrix>() {
+        @Override
+        protected RealMatrix compute() {
+            return new LUDecomposition(getSigmaCovariate()).getSolver().getInverse();
+        }
+    };
+
+    private final Memo<RealMatrix> sigmaOutcomeCovariate = new Memo<RealMatrix>() {
+        @Override
+        protected RealMatrix compute() {
+            return PowerResourceHelper.sigmaOutcomesCovariateMatrixFromStudyDesign(studyDesign,
+                    getSigmaCovariate(), getSigmaOutcome(), clusterNodeList);
+        }
+    };
+
+    private final Memo<RealMatrix> unclusteredSigmaOutcomeCovariate = new Memo<RealMatrix>() {
+        @Override
+        protected RealMatrix compute() {
+            /*
+             * Only the leading diagonal of sigmaY is used, and the compound
+             * symmetric cluster factors have a unit diagonal, so the clustered
+             * sigmaY gives the same result as the unclustered one.
+             */
+            return clusterSize > 1
+                    ? PowerResourceHelper.sigmaOutcomesCovariateMatrixFromStudyDesign(studyDesign,
+                            getSigmaCovariate(), getSigmaOutcome(), null)
+                    : getSigmaOutcomeCovariate();
+        }
+    };
+
+    /**
+     * Create a context for a study design.
+     *
+     * @param studyDesign study design object
+     */
+    public DesignContext(StudyDesign studyDesign) {
+        this(studyDesign, (MatrixScope) null);
+    }
+
+    /**
+     * Create a context for a study design whose largest matrices are
+     * built in a matrix scope.
+     *
+     * @param studyDesign study design object
+     * @param scope scope for large matrices, or null to build on the heap
+     */
+    DesignContext(StudyDesign studyDesign, MatrixScope scope) {
+        this(studyDesign, scope, PowerResourceHelper.primaryHypothesis(studyDesign), true);
+    }
+
+    /**
+     * Create a context for one hypothesis of a study design.
+     *
+     * @param studyDesign study design object
+     * @param scope scope for large matrices, or null to build on the heap
+     * @param hypothesis hypothesis of interest, or null if there is none
+     * @param primary true if the hypothesis is the primary hypothesis
+     */
+    private DesignContext(StudyDesign studyDesign, MatrixScope scope, Hypothesis hypothesis,
+            boolean primary) {
+        if (studyDesign == null) {
+            throw new IllegalArgumentException("Invalid study design.");
+        }
+        this.studyDesign = studyDesign;
+        this.scope = scope;
+        this.hypothesis = hypothesis;
+        this.primary = primary;
+        this.clusterNodeList = studyDesign.getClusteringTree();
+        int size = 1;
+        if (clusterNodeList != null) {
+            for(ClusterNode node: clusterNodeList) {
+                size *= node.getGroupSize();
+            }
+        }
+        this.clusterSize = size;
+    }
+
+    /**
+     * Create a context for a revised study design which shares the
+     * matrices already built by another context.  The revision must
+     * leave the matrices unchanged, except for the covariance
+     * matrices if covarianceChanged is set.  The revised context
+     * shares the matrix scope of the original.
+     *
+     * @param studyDesign revised study design object
+     * @param base context for the original study design
+     * @param covarianceChanged true if the covariance matrices must be rebuilt
+     */
+    private DesignContext(StudyDesign studyDesign, DesignContext base, boolean covarianceChanged) {
+        this(studyDesign, base.scope, base.hypothesis, base.primary);
+        designMatrix.seed(base.designMatrix);
+        beta.seed(base.beta);
+        unclusteredBeta.seed(base.unclusteredBeta);
+        betweenContrast.seed(base.betweenContrast);
+        betweenContrastFactors.seed(base.betweenContrastFactors);
+        withinContrast.seed(base.withinContrast);
+        unclusteredWithinContrast.seed(base.unclusteredWithinContrast);
+        withinContrastFactors.seed(base.withinContrastFactors);
+        thetaNull.seed(base.thetaNull);
+        thetaObserved.seed(base.thetaObserved);
+        if (!covarianceChanged) {
+            sigmaError.seed(base.sigmaError);
+            sigmaOutcome.seed(base.sigmaOutcome);
+            sigmaCovariate.seed(base.sigmaCovariate);
+            sigmaCovariateInverse.seed(base.sigmaCovariateInverse);
+            sigmaOutcomeCovariate.seed(base.sigmaOutcomeCovariate);
+            unclusteredSigmaOutcomeCovariate.seed(base.unclusteredSigmaOutcomeCovariate);
+        }
+    }
+
+    /**
+     * Create a context for another hypothesis of the same study design,
+     * which shares the design, beta and covariance matrices already
+     * built by another context.
+     *
+     * @param base context for the study design
+     * @param hypothesis hypothesis of interest
+     * @param primary true if the hypothesis is the primary hypothesis
+     */
+    private DesignContext(DesignContext base, Hypothesis hypothesis, boolean primary) {
+        this(base.studyDesign, base.scope, hypothesis, primary);
+        designMatrix.seed(base.designMatrix);
+        beta.seed(base.beta);
+        unclusteredBeta.seed(base.unclusteredBeta);
+        sigmaError.seed(base.sigmaError);
+        sigmaOutcome.seed(base.sigmaOutcome);
+        sigmaCovariate.seed(base.sigmaCovariate);
+        sigmaCovariateInverse.seed(base.sigmaCovariateInverse);
+        sigmaOutcomeCovariate.seed(base.sigmaOutcomeCovariate);
+        unclusteredSigmaOutcomeCovariate.seed(base.unclusteredSigmaOutcomeCovariate);
+    }
+
+    /**
+     * Create a context for testing another hypothesis of this study
+     * design, reusing the design, beta and covariance matrices built
+     * so far.  The contrasts and theta null are built for the
+     * hypothesis.  Matrix mode designs have a single hypothesis,
+     * given by their contrast matrices, so the hypothesis is ignored.
+     *
+     * @param otherHypothesis hypothesis of the study design
+     * @return context for the hypothesis
+     */
+    public DesignContext forHypothesis(Hypothesis otherHypothesis) {
+        if (otherHypothesis == hypothesis) {
+            return this;
+        }
+        // the hypothesis is one of this context's study design, which
+        // may be a revision whose hypotheses are new objects
+        return new DesignContext(this, otherHypothesis,
+                otherHypothesis == PowerResourceHelper.primaryHypothesis(studyDesign));
+    }
+
+    /**
+     * Create a context for a revision of this study design, reusing
+     * the matrices built so far.  The revision may change the lists
+     * of alpha, sample size, scale factors, tests, etc., and, if
+     * covarianceChanged is set, the covariance; any other change
+     * requires a new context.
+     *
+     * @param revisedStudyDesign revised study design object
+     * @param covarianceChanged true if the covariance matrices must be rebuilt
+     * @return context for the revised design
+     */
+    public DesignContext revise(StudyDesign revisedStudyDesign, boolean covarianceChanged) {
+        return new DesignContext(revisedStudyDesign, this, covarianceChanged);
+    }
+
+    /**
+     * @return the study design
+     */
+    public StudyDesign getStudyDesign() {
+        return studyDesign;
+    }
+
+    /**
+     * @return scope holding the largest matrices, or null if they are on the heap
+     */
+    MatrixScope getScope() {
+        return scope;
+    }
+
+    /**
+     * @return the hypothesis tested, or null if there is none
+     */
+    public Hypothesis getHypothesis() {
+        return hypothesis;
+    }
+
+    /**
+     * @return the clustering tree, or null if the design is not clustered
+     */
+    public List<ClusterNode> getClusterNodeList() {
+        return clusterNodeList;
+    }
+
+    /**
+     * @return total number of observations per independent sampling unit
+     * due to clustering (1 if not clustered)
+     */
+    public int getClusterSize() {
+        return clusterSize;
+    }
+
+    /**
+     * @return design essence matrix (X)
+     */
+    public RealMatrix getDesignMatrix() {
+        return designMatrix.get();
+    }
+
+    /**
+     * @return fixed/random beta matrix, expanded for clustering
+     */
+    public FixedRandomMatrix getBeta() {
+        return beta.get();
+    }
+
+    /**
+     * @return fixed/random beta matrix without the clustering expansion
+     */
+    public FixedRandomMatrix getUnclusteredBeta() {
+        return unclusteredBeta.get();
+    }
+
+    /**
+     * @return fixed/random between participant contrast (C)
+     */
+    public FixedRandomMatrix getBetweenContrast() {
+        return betweenContrast.get();
+    }
+
+    /**
+     * @return Kronecker factors of the fixed between participant contrast,
+     * or null if not available
+     */
+    public List<RealMatrix> getBetweenContrastFactors() {
+        return betweenContrastFactors.get();
+    }
+
+    /**
+     * @return within participant contrast (U), expanded for clustering
+     */
+    public RealMatrix getWithinContrast() {
+        return withinContrast.get();
+    }
+
+    /**
+     * @return within participant contrast (U) without the clustering expansion
+     */
+    public RealMatrix getUnclusteredWithinContrast() {
+        return unclusteredWithinContrast.get();
+    }
+
+    /**
+     * @return Kronecker factors of the unclustered within participant
+     * contrast, or null if not available
+     */
+    public List<RealMatrix> getWithinContrastFactors() {
+        return withinContrastFactors.get();
+    }
+
+    /**
+     * @return null hypothesis matrix (theta null)
+     */
+    public RealMatrix getThetaNull() {
+        return thetaNull.get();
+    }
+
+    /**
+     * @return observed theta, C B U, computed without expanding B and U
+     * for clustering where the design's structure allows
+     */
+    public RealMatrix getThetaObserved() {
+        return thetaObserved.get();
+    }
+
+    /**
+     * @return error covariance, including clustering
+     */
+    public RealMatrix getSigmaError() {
+        return sigmaError.get();
+    }
+
+    /**
+     * @return outcomes covariance for Gaussian covariate designs
+     */
+    public RealMatrix getSigmaOutcome() {
+        return sigmaOutcome.get();
+    }
+
+    /**
+     * @return variance of the Gaussian covariate
+     */
+    public RealMatrix getSigmaCovariate() {
+        return sigmaCovariate.get();
+    }
+
+    /**
+     * @return inverse of the variance of the Gaussian covariate
+     */
+    public RealMatrix getSigmaCovariateInverse() {
+        return sigmaCovariateInverse.get();
+    }
+
+    /**
+     * @return covariance of the outcomes and the Gaussian covariate,
+     * expanded for clustering
+     */
+    public RealMatrix getSigmaOutcomeCovariate() {
+        return sigmaOutcomeCovariate.get();
+    }
+
+    /**
+     * @return covariance of the outcomes and the Gaussian covariate
+     * without the clustering expansion
+     */
+    public RealMatrix getUnclusteredSigmaOutcomeCovariate() {
+        return unclusteredSigmaOutcomeCovariate.get();
+    }
+
+    /**
+     * Build the parameters for the power calculator.  Each call
+     * returns new parameters holding copies of the matrices.
+     *
+     * @return power parameter object for use with JavaStatistics
+     * @throws IllegalArgumentException if the design is invalid
+     */
+    public GLMMPowerParameters toPowerParameters() throws IllegalArgumentException {
+        return PowerResourceHelper.studyDesignToPowerParameters(this);
+    }
+
+    /**
+     * Build the parameters for the power calculator, with the
+     * specified per group sample sizes in place of those listed
+     * in the study design.
+     *
+     * @param sampleSizeList per group sample sizes
+     * @return power parameter object for use with JavaStatistics
+     * @throws IllegalArgumentException if the design is invalid
+     */
+    public GLMMPowerParameters toPowerParameters(List<Integer> sampleSizeList)
+            throws IllegalArgumentException {
+        return PowerResourceHelper.studyDesignToPowerParameters(this, sampleSizeList);
+    }
+
+    /**
+     * Create the list of matrices used to compute power.
+     *
+     * @return list of named matrices
+     */
+    public NamedMatrixList toNamedMatrixList() {
+        return PowerResourceHelper.namedMatrixListFromDesignContext(this);
+    }
+
+    /**
+     * Lazily computed value.  A null result is remembered like any other.
+     *
+     * @param <T> type of value
+     */
+    private abstract static class Memo<T> {
+        private boolean computed = false;
+        private T value;
+
+        /**
+         * @return the value, computing it on first use
+         */
+        public final synchronized T get() {
+            if (!computed) {
+                value = compute();
+                computed = true;
+            }
+            return value;
+        }
+
+        /**
+         * Use the value of another memo, if already computed.
+         *
+         * @param other memo for the same value
+         */
+        public final void seed(Memo<T> other) {
+            synchronized (other) {
+                if (other.computed) {
+                    synchronized (this) {
+                        value = other.value;
+                        computed = true;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the value
+         */
+        protected abstract T compute();
+    }
+}
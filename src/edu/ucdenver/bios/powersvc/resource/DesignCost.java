@@ -0,0 +1,453 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.util.List;
+
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+
+import edu.ucdenver.bios.powersvc.application.ComputeBudget;
+import edu.ucdenver.bios.webservice.common.domain.BetweenParticipantFactor;
+import edu.ucdenver.bios.webservice.common.domain.Category;
+import edu.ucdenver.bios.webservice.common.domain.PowerMethod;
+import edu.ucdenver.bios.webservice.common.domain.RepeatedMeasuresNode;
+import edu.ucdenver.bios.webservice.common.domain.StudyDesign;
+import edu.ucdenver.bios.webservice.common.enums.PowerMethodEnum;
+import edu.ucdenver.bios.webservice.common.enums.SolutionTypeEnum;
+
+/**
+ * Estimated cost of calculating the results for a study design.
+ * The cost is the number of cases, times the work for each case,
+ * which grows with
+ * <ul>
+ * <li>the dimensions of the matrices: the number of groups and
+ * the number of responses</li>
+ * <li>the power methods: with a Gaussian covariate, unconditional
+ * power integrates over the covariate, and each quantile power
+ * inverts its distribution</li>
+ * <li>the solution type: sample size and detectable difference
+ * search over many power calculations</li>
+ * </ul>
+ * One unit is roughly the work of calculating conditional power for
+ * one case of a small design.  A design whose cost exceeds the
+ * compute budget is rejected outright; otherwise it is admitted
+ * when the budget has room for it.
+ *
+ * @author Sarah Kreidler
+ */
+final class DesignCost {
+    /** Maximum time a request waits to be admitted, in milliseconds. */
+    static final long ADMISSION_TIMEOUT_MILLISECONDS = 30 * 1000L;
+
+    /**
+     * Matrix work, (groups + responses) * responses^2, which doubles
+     * the cost of a case: e.g. 16 groups and 16 responses.
+     */
+    private static final double REFERENCE_MATRIX_WORK = 8192;
+
+    /** Relative work of unconditional power. */
+    private static final double UNCONDITIONAL_WEIGHT = 25;
+
+    /** Relative work of each quantile power. */
+    private static final double QUANTILE_WEIGHT = 8;
+
+    /** Relative work of a sample size or detectable difference search. */
+    private static final double SEARCH_WEIGHT = 12;
+
+    private final SolutionTypeEnum solutionType;
+    private final List<BetweenParticipantFactor> factorList;
+    private final int nUnits;
+    private final int nStatisticalTests;
+    private final int nAlphas;
+    private final int nBetaScales;
+    private final int nSigmaScales;
+    private final long nCases;
+    private final long nGroups;
+    private final long nResponses;
+    private final int nPowerMethods;
+    private final long cost;
+
+    /**
+     * Estimate the cost of a study design.
+     *
+     * @param studyDesign The study design.
+     *
+     * @throws IllegalArgumentException if the design has no solution type.
+     */
+    DesignCost(StudyDesign studyDesign) {
+        solutionType = studyDesign.getSolutionTypeEnum();
+        if (solutionType == null) {
+            throw new IllegalArgumentException("Internal error 93.");
+        }
+
+        switch (solutionType) {
+        case POWER:
+            nUnits = size(studyDesign.getSampleSizeList());
+            break;
+        case SAMPLE_SIZE:
+            nUnits = size(studyDesign.getNominalPowerList());
+            break;
+        default:
+            nUnits = weight(size(studyDesign.getSampleSizeList()))
+                * weight(size(studyDesign.getNominalPowerList()));
+            break;
+        }
+
+        nStatisticalTests = size(studyDesign.getStatisticalTestList());
+        nAlphas           = size(studyDesign.getAlphaList());
+        nBetaScales       = size(studyDesign.getBetaScaleList());
+        nSigmaScales      = size(studyDesign.getSigmaScaleList());
+
+        nCases =
+              (long) weight(nUnits)
+            * weight(nStatisticalTests)
+            * weight(nAlphas)
+            * weight(nBetaScales)
+            * weight(nSigmaScales)
+        ;
+
+        factorList = studyDesign.getBetweenParticipantFactorList();
+        long groups = 1;
+        if (factorList != null) {
+            for (BetweenParticipantFactor factor: factorList) {
+                List<Category> categoryList = factor.getCategoryList();
+                if (categoryList != null) {
+                    groups *= weight(categoryList.size());
+                }
+            }
+        }
+        nGroups = groups;
+
+        long responses = weight(size(studyDesign.getResponseList()));
+        List<RepeatedMeasuresNode> rmNodeList = studyDesign.getRepeatedMeasuresTree();
+        if (rmNodeList != null) {
+            for (RepeatedMeasuresNode rmNode: rmNodeList) {
+                Integer nMeasurements = rmNode.getNumberOfMeasurements();
+                if (nMeasurements != null) {
+                    responses *= weight(nMeasurements);
+                }
+            }
+        }
+        nResponses = responses;
+
+        double methodWeight = 1;
+        if (studyDesign.isGaussianCovariate()) {
+            List<PowerMethod> powerMethodList = studyDesign.getPowerMethodList();
+            int nQuantiles = size(studyDesign.getQuantileList());
+            boolean conditional = hasPowerMethod(powerMethodList, PowerMethodEnum.CONDITIONAL);
+            boolean unconditional = hasPowerMethod(powerMethodList, PowerMethodEnum.UNCONDITIONAL);
+            boolean quantile = hasPowerMethod(powerMethodList, PowerMethodEnum.QUANTILE);
+            nPowerMethods = (conditional ? 1 : 0) + (unconditional ? 1 : 0) + (quantile ? nQuantiles : 0);
+            methodWeight = Math.max(1,
+                    (conditional ? 1 : 0)
+                    + (unconditional ? UNCONDITIONAL_WEIGHT : 0)
+                    + (quantile ? QUANTILE_WEIGHT * nQuantiles : 0));
+        } else {
+            nPowerMethods = 0;
+        }
+
+        double matrixWork = (double) (nGroups + nResponses) * nResponses * nResponses;
+        double estimate = nCases
+                * methodWeight
+                * (1 + matrixWork / REFERENCE_MATRIX_WORK)
+                * (solutionType == SolutionTypeEnum.POWER ? 1 : SEARCH_WEIGHT);
+        cost = estimate < Long.MAX_VALUE ? (long) Math.ceil(estimate) : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return estimated cost, in cost units
+     */
+    long getCost() {
+        return cost;
+    }
+
+    /**
+     * See if the cost is reasonable: no greater than the largest
+     * cost which can be admitted.
+     *
+     * @param limit The largest cost which can be admitted.
+     *
+     * @throws IllegalArgumentException if not.
+     */
+    void validate(long limit) {
+        if (cost <= limit) {
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("To better manage the load on our server, we ask that you limit your request to an estimated cost of no more than ")
+          .append(pretty(limit))
+          .append(".");
+        sb.append("<br>");
+        sb.append("Your request currently has an estimated cost of ")
+          .append(pretty(cost))
+          .append(", for ")
+          .append(pretty(nCases))
+          .append(nCases == 1 ? " case (" : " cases (");
+        Product cases = new Product(sb);
+        cases.times(solutionType == SolutionTypeEnum.DETECTABLE_DIFFERENCE ? 0 : nUnits);
+        cases.times(nStatisticalTests);
+        cases.times(nAlphas);
+        cases.times(nBetaScales);
+        cases.times(nSigmaScales);
+        sb.append(") of a design with ")
+          .append(pretty(nGroups))
+          .append(nGroups == 1 ? " group" : " groups");
+        if (nGroups > 1) {
+            sb.append(" (");
+            Product groups = new Product(sb);
+            for (BetweenParticipantFactor factor: factorList) {
+                if (factor.getCategoryList() != null) {
+                    groups.times(factor.getCategoryList().size());
+                }
+            }
+            sb.append(")");
+        }
+        sb.append(" and ")
+          .append(pretty(nResponses))
+          .append(nResponses == 1 ? " response" : " responses");
+        if (solutionType == SolutionTypeEnum.SAMPLE_SIZE) {
+            sb.append(", each case requiring a search for the sample size");
+        } else if (solutionType == SolutionTypeEnum.DETECTABLE_DIFFERENCE) {
+            sb.append(", each case requiring a search for the detectable difference");
+        }
+        sb.append(":");
+
+        sb.append("<ul>");
+
+        if (nUnits > 0 && solutionType != SolutionTypeEnum.DETECTABLE_DIFFERENCE) {
+            sb.append("<li>")
+              .append(
+                solutionType == SolutionTypeEnum.POWER
+                    ? combination(nUnits, "Group Size", "Group Sizes")
+                    : combination(nUnits, "Desired Power", "Desired Powers")
+               )
+              .append("</li>");
+        }
+
+        if (nStatisticalTests > 0) {
+            sb.append("<li>")
+              .append(combination(nStatisticalTests, "Statistical Test", "Statistical Tests"))
+              .append("</li>");
+        }
+
+        if (nAlphas > 0) {
+            sb.append("<li>")
+              .append(combination(nAlphas, "Type I Error Rate", "Type I Error Rates"))
+              .append("</li>");
+        }
+
+        if (nBetaScales > 0) {
+            sb.append("<li>")
+              .append(combination(nBetaScales, "Scale Factor For Means", "Scale Factors for Means"))
+              .append("</li>");
+        }
+
+        if (nSigmaScales > 0) {
+            sb.append("<li>")
+              .append(combination(nSigmaScales, "Scale Factor for Variability", "Scale Factors for Variability"))
+              .append("</li>");
+        }
+
+        if (factorList != null) {
+            for (BetweenParticipantFactor factor: factorList) {
+                List<Category> categoryList = factor.getCategoryList();
+                if (categoryList != null) {
+                    sb.append("<li>")
+                      .append("predictor '" + factor.getPredictorName() + "' has " + categoryList.size() + " values")
+                      .append("</li>");
+                }
+            }
+        }
+
+        if (nPowerMethods > 0) {
+            sb.append("<li>")
+              .append(combination(nPowerMethods, "Power Method", "Power Methods"))
+              .append(" with a Gaussian covariate")
+              .append("</li>");
+        }
+
+        sb.append("</ul>");
+
+        throw new IllegalArgumentException(sb.toString());
+    }
+
+    /**
+     * Admit a request for a design to the compute budget, waiting if
+     * the server is busy or the heap is under pressure.  The returned
+     * lease must be released when the calculation finishes.
+     *
+     * @param cost The estimated cost of the request.
+     * @param bytes The estimated heap footprint of the request.
+     *
+     * @return The lease.
+     *
+     * @throws ResourceException if the request was not admitted in time.
+     */
+    static ComputeBudget.Lease admit(long cost, long bytes) throws ResourceException {
+        ComputeBudget budget = ComputeBudget.getInstance();
+        ComputeBudget.Lease lease;
+        try {
+            lease = budget.acquire(cost, bytes, ADMISSION_TIMEOUT_MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Computation interrupted.");
+        }
+        if (lease == null) {
+            throw new ResourceException(Status.SERVER_ERROR_SERVICE_UNAVAILABLE,
+                    "The server is busy with other calculations. Please try again in a few minutes.");
+        }
+        return lease;
+    }
+
+    /**
+     * Admit a request for a design to the compute budget, as for
+     * admit(long, long), first rejecting designs which could never be
+     * admitted: those too costly, or too large for the heap budget.
+     *
+     * @param studyDesign The study design.
+     *
+     * @return The lease.
+     *
+     * @throws ResourceException if the design is invalid or too costly,
+     *         or if the request was not admitted in time.
+     */
+    static ComputeBudget.Lease admit(StudyDesign studyDesign) throws ResourceException {
+        long cost;
+        long bytes;
+        try {
+            DesignCost designCost = new DesignCost(studyDesign);
+            designCost.validate(ComputeBudget.getInstance().getCapacity());
+            cost = designCost.getCost();
+            DesignFootprint footprint = new DesignFootprint(studyDesign);
+            footprint.validate(ComputeBudget.getInstance().getHeapCapacity());
+            bytes = footprint.getBytes();
+        } catch (IllegalArgumentException iae) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, iae.getMessage());
+        }
+        return admit(cost, bytes);
+    }
+
+    /**
+     * Appends factors to a message, separated by multiplication signs.
+     */
+    private static final class Product {
+        private final StringBuilder sb;
+        private boolean first = true;
+
+        /**
+         * @param sb The message.
+         */
+        private Product(StringBuilder sb) {
+            this.sb = sb;
+        }
+
+        /**
+         * @param n The factor, or zero if the factor is absent.
+         */
+        private void times(long n) {
+            if (n > 0) {
+                if (first) {
+                    first = false;
+                } else {
+                    sb.append(" \u00d7 ");
+                }
+                sb.append(n);
+            }
+        }
+    }
+
+    /**
+     * Combine a number with a noun, to produce, for example,
+     * "1 apple" or "2 apples".
+     *
+     * @param n  The number.
+     * @param s1 The noun to use if the number is the number 1.
+     * @param s  The noun to use otherwise.
+     *
+     * @return The combination of the number and the noun.
+     */
+    private static String combination(int n, String s1, String s) {
+        return n == 1 ? "1 " + s1 : n + " " + s;
+    }
+
+    /**
+     * See if a power method list contains a particular power method.
+     *
+     * @param powerMethodList The power method list.
+     * @param powerMethodEnum The particular power method.
+     *
+     * @return True if it does, else false.
+     */
+    private static boolean hasPowerMethod(List<PowerMethod> powerMethodList, PowerMethodEnum powerMethodEnum) {
+        if (powerMethodList == null) {
+            return false;
+        }
+
+        for (PowerMethod powerMethod: powerMethodList) {
+            if (powerMethod.getPowerMethodEnum() == powerMethodEnum) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Return the size of a (possibly null) list.
+     *
+     * @param list The list.
+     *
+     * @return The size of the list, or zero if null.
+     */
+    static int size(List<?> list) {
+        return list != null ? list.size() : 0;
+    }
+
+    /**
+     * Return the multiplicative effect of a factor that may be absent.
+     * If the factor is present, its multiplicative effect is its value.
+     * If it is absent, its multiplicative effect is the number 1; that
+     * is, it has no effect.
+     *
+     * @param n The value of a factor, or zero if the factor is absent.
+     *
+     * @return The multiplicative effect of the factor.
+     */
+    private static int weight(int n) {
+        return n != 0 ? n : 1;
+    }
+
+    /**
+     * Compute a string representation of an integer, with commas.
+     *
+     * @param n The integer.
+     *
+     * @return The string representation.
+     */
+    private static String pretty(long n) {
+        return java.text.NumberFormat.getIntegerInstance(java.util.Locale.US).format(n);
+    }
+}
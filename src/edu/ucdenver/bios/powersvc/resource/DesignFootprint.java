@@ -0,0 +1,257 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.util.List;
+
+import edu.ucdenver.bios.powersvc.application.PowerConstants;
+import edu.ucdenver.bios.webservice.common.domain.Blob2DArray;
+import edu.ucdenver.bios.webservice.common.domain.BetweenParticipantFactor;
+import edu.ucdenver.bios.webservice.common.domain.Category;
+import edu.ucdenver.bios.webservice.common.domain.ClusterNode;
+import edu.ucdenver.bios.webservice.common.domain.NamedMatrix;
+import edu.ucdenver.bios.webservice.common.domain.RelativeGroupSize;
+import edu.ucdenver.bios.webservice.common.domain.RepeatedMeasuresNode;
+import edu.ucdenver.bios.webservice.common.domain.StudyDesign;
+import edu.ucdenver.bios.webservice.common.enums.StudyDesignViewTypeEnum;
+
+/**
+ * Estimated heap footprint of the matrices for a study design, worked
+ * out from the study design alone, before any matrix is built.
+ * <p>
+ * In guided mode the dimensions follow from the design:
+ * <ul>
+ * <li>X has a row for each unit of relative group size and a column
+ * for each group (the product of the numbers of categories of the
+ * between participant factors)</li>
+ * <li>there are p = cluster size &times; repeated measurements &times;
+ * responses outcomes, so B is groups &times; p and Sigma is p &times; p</li>
+ * <li>U has p rows and, at most, a column for each repeated measurement
+ * and response, and C has, at most, a row for each group</li>
+ * </ul>
+ * In matrix mode the dimensions are those of the matrices supplied.
+ * A design whose footprint exceeds the heap budget is rejected outright;
+ * otherwise it is admitted when the budget has room for it.
+ *
+ * @author Sarah Kreidler
+ */
+final class DesignFootprint {
+    /**
+     * Copies of each matrix alive during a calculation: the design
+     * context's, the copy in the power parameters, and the calculator's
+     * products of the same shape, such as U'SigmaU, or the partial
+     * Kronecker products which build Sigma.
+     */
+    private static final int WORKING_COPIES = 4;
+
+    /** Bytes in an object or array header, rounded up. */
+    private static final long HEADER_BYTES = 16;
+
+    private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    private final long designRows;
+    private final long groups;
+    private final long outcomes;
+    private final long clusterSize;
+    private final long measurements;
+    private final long responses;
+    private final long withinColumns;
+    private final long contrastRows;
+    private final long contextBytes;
+    private final long bytes;
+
+    /**
+     * Estimate the footprint of a study design.
+     *
+     * @param studyDesign The study design.
+     */
+    DesignFootprint(StudyDesign studyDesign) {
+        long covariateColumns = studyDesign.isGaussianCovariate() ? 1 : 0;
+        if (studyDesign.getViewTypeEnum() == StudyDesignViewTypeEnum.MATRIX_MODE) {
+            long[] x = dimensions(studyDesign, PowerConstants.MATRIX_DESIGN);
+            long[] beta = dimensions(studyDesign, PowerConstants.MATRIX_BETA);
+            long[] u = dimensions(studyDesign, PowerConstants.MATRIX_WITHIN_CONTRAST);
+            long[] c = dimensions(studyDesign, PowerConstants.MATRIX_BETWEEN_CONTRAST);
+            designRows = x[0];
+            groups = Math.max(x[1], beta[0]);
+            outcomes = Math.max(beta[1], u[0]);
+            clusterSize = 1;
+            measurements = 1;
+            responses = outcomes;
+            withinColumns = u[1];
+            contrastRows = c[0];
+        } else {
+            long nGroups = 1;
+            List<BetweenParticipantFactor> factorList = studyDesign.getBetweenParticipantFactorList();
+            if (factorList != null) {
+                for (BetweenParticipantFactor factor: factorList) {
+                    List<Category> categoryList = factor.getCategoryList();
+                    if (categoryList != null && !categoryList.isEmpty()) {
+                        nGroups *= categoryList.size();
+                    }
+                }
+            }
+            groups = nGroups;
+
+            long rows = 0;
+            List<RelativeGroupSize> groupSizeList = studyDesign.getRelativeGroupSizeList();
+            if (groups > 1 && groupSizeList != null) {
+                for (RelativeGroupSize relativeSize: groupSizeList) {
+                    rows += Math.max(relativeSize.getValue(), 0);
+                }
+            }
+            designRows = Math.max(rows, groups);
+
+            long nClusterSize = 1;
+            List<ClusterNode> clusterNodeList = studyDesign.getClusteringTree();
+            if (clusterNodeList != null) {
+                for (ClusterNode node: clusterNodeList) {
+                    nClusterSize *= Math.max(node.getGroupSize(), 1);
+                }
+            }
+            clusterSize = nClusterSize;
+
+            long nMeasurements = 1;
+            List<RepeatedMeasuresNode> rmNodeList = studyDesign.getRepeatedMeasuresTree();
+            if (rmNodeList != null) {
+                for (RepeatedMeasuresNode rmNode: rmNodeList) {
+                    Integer n = rmNode.getNumberOfMeasurements();
+                    if (n != null && n > 0) {
+                        nMeasurements *= n;
+                    }
+                }
+            }
+            measurements = nMeasurements;
+            responses = Math.max(DesignCost.size(studyDesign.getResponseList()), 1);
+
+            outcomes = clusterSize * measurements * responses;
+            withinColumns = measurements * responses;
+            contrastRows = groups;
+        }
+
+        long q = groups + covariateColumns;
+        double total = matrixBytes(designRows, q)          // X
+                + matrixBytes(q, outcomes)                 // B
+                + matrixBytes(contrastRows, q)             // C
+                + matrixBytes(outcomes, withinColumns)     // U
+                + matrixBytes(contrastRows, withinColumns) // theta null
+                + matrixBytes(outcomes, outcomes)          // sigma
+                + matrixBytes(outcomes, covariateColumns); // sigma outcome/covariate
+        contextBytes = total < Long.MAX_VALUE ? (long) Math.ceil(total) : Long.MAX_VALUE;
+        double estimate = WORKING_COPIES * total;
+        bytes = estimate < Long.MAX_VALUE ? (long) Math.ceil(estimate) : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return estimated heap footprint, in bytes
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return estimated heap footprint of a single copy of the matrices,
+     * as held by a design context once the calculation is done, in bytes
+     */
+    long getContextBytes() {
+        return contextBytes;
+    }
+
+    /**
+     * See if the footprint is reasonable: no greater than the heap
+     * budget for all of the calculations in progress.
+     *
+     * @param limit The heap budget, in bytes.
+     *
+     * @throws IllegalArgumentException if not.
+     */
+    void validate(long limit) {
+        if (bytes <= limit) {
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("To better manage the load on our server, we ask that you limit your request to an estimated ")
+          .append(megabytes(limit))
+          .append(" MB of memory.");
+        sb.append("<br>");
+        sb.append("Your request currently needs an estimated ")
+          .append(megabytes(bytes))
+          .append(" MB, chiefly for its ")
+          .append(outcomes)
+          .append(" \u00d7 ")
+          .append(outcomes)
+          .append(" covariance matrix");
+        if (clusterSize > 1 || measurements > 1) {
+            sb.append(" (")
+              .append(clusterSize > 1 ? clusterSize + " observations per cluster \u00d7 " : "")
+              .append(measurements > 1 ? measurements + " repeated measurements \u00d7 " : "")
+              .append(responses)
+              .append(responses == 1 ? " response)" : " responses)");
+        }
+        sb.append(" and its ")
+          .append(groups)
+          .append(groups == 1 ? " group." : " groups.");
+
+        throw new IllegalArgumentException(sb.toString());
+    }
+
+    /**
+     * Estimate the heap footprint of a matrix held as double[rows][columns].
+     *
+     * @param rows number of rows
+     * @param columns number of columns
+     * @return bytes, or zero for an empty matrix
+     */
+    static double matrixBytes(long rows, long columns) {
+        if (rows <= 0 || columns <= 0) {
+            return 0;
+        }
+        return HEADER_BYTES + 8.0 * rows + rows * (HEADER_BYTES + 8.0 * columns);
+    }
+
+    /**
+     * Get the dimensions of a matrix supplied with a study design.
+     *
+     * @param studyDesign The study design.
+     * @param name The name of the matrix.
+     * @return rows and columns, zero if the matrix is absent
+     */
+    private static long[] dimensions(StudyDesign studyDesign, String name) {
+        NamedMatrix matrix = studyDesign.getNamedMatrix(name);
+        Blob2DArray blob = (matrix != null ? matrix.getData() : null);
+        double[][] data = (blob != null ? blob.getData() : null);
+        if (data == null || data.length == 0 || data[0] == null) {
+            return new long[] {0, 0};
+        }
+        return new long[] {data.length, data[0].length};
+    }
+
+    /**
+     * @param n bytes
+     * @return megabytes, rounded up
+     */
+    private static long megabytes(long n) {
+        return (n + BYTES_PER_MEGABYTE - 1) / BYTES_PER_MEGABYTE;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+
+/**
+ * Canonical hash of a study design: SHA-256 of its JSON, written with
+ * the fields of each object in sorted order and without whitespace,
+ * so that the same design always has the same hash however the client
+ * wrote it.
+ *
+ * @author Sarah Kreidler
+ */
+public final class DesignHash {
+    /** Length of a hash, in bytes. */
+    public static final int BYTES = 32;
+
+    /**
+     * Constructor.
+     */
+    private DesignHash() {
+    }
+
+    /**
+     * Compute the hash of a study design.
+     *
+     * @param kind kind of request, hashed along with the design so
+     *        that different requests for a design differ, or "" for
+     *        the design alone
+     * @param json study design JSON
+     * @return hash
+     */
+    public static byte[] of(String kind, JsonNode json) {
+        StringBuilder sb = new StringBuilder(kind).append('\n');
+        appendCanonical(sb, json);
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Write JSON with the fields of each object in sorted order.
+     *
+     * @param sb output
+     * @param json JSON value
+     */
+    private static void appendCanonical(StringBuilder sb, JsonNode json) {
+        if (json == null) {
+            sb.append("null");
+        } else if (json.isObject()) {
+            TreeMap<String, JsonNode> fields = new TreeMap<String, JsonNode>();
+            Iterator<Map.Entry<String, JsonNode>> iterator = json.getFields();
+            while (iterator.hasNext()) {
+                Map.Entry<String, JsonNode> field = iterator.next();
+                fields.put(field.getKey(), field.getValue());
+            }
+            sb.append('{');
+            boolean first = true;
+            for (Map.Entry<String, JsonNode> field: fields.entrySet()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                sb.append(JsonNodeFactory.instance.textNode(field.getKey()).toString()).append(':');
+                appendCanonical(sb, field.getValue());
+            }
+            sb.append('}');
+        } else if (json.isArray()) {
+            sb.append('[');
+            for (int i = 0; i < json.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                appendCanonical(sb, json.get(i));
+            }
+            sb.append(']');
+        } else {
+            sb.append(json.toString());
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+import edu.ucdenver.bios.webservice.common.domain.StudyDesign;
+
+/**
+ * Helpers for working with study design JSON as a tree, so that
+ * variants of a design can be created by replacing top level fields.
+ *
+ * @author Sarah Kreidler
+ */
+final class DesignJson {
+    /** Study design fields which only determine the set of cases calculated. */
+    static final String[] CASE_FIELDS = {
+        "statisticalTestList", "alphaList", "nominalPowerList", "sampleSizeList",
+        "betaScaleList", "sigmaScaleList", "powerMethodList", "quantileList"
+    };
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Constructor.
+     */
+    private DesignJson() {
+    }
+
+    /**
+     * Parse a JSON object.
+     *
+     * @param json JSON string
+     * @param description description of the object, for error messages
+     * @return JSON object
+     * @throws IOException if the JSON is malformed
+     * @throws IllegalArgumentException if the JSON is not an object
+     */
+    static ObjectNode parse(String json, String description)
+            throws IOException, IllegalArgumentException {
+        JsonNode tree = MAPPER.readTree(json);
+        if (tree == null || !tree.isObject()) {
+            throw new IllegalArgumentException("Invalid " + description + ".");
+        }
+        return (ObjectNode) tree;
+    }
+
+    /**
+     * Shallow copy of a JSON object.  Field values are shared, and
+     * must be replaced rather than modified.
+     *
+     * @param json JSON object
+     * @return copy
+     */
+    static ObjectNode copy(ObjectNode json) {
+        ObjectNode copy = MAPPER.createObjectNode();
+        Iterator<Map.Entry<String, JsonNode>> fields = json.getFields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            copy.put(field.getKey(), field.getValue());
+        }
+        return copy;
+    }
+
+    /**
+     * Split a design into one design per combination of the entries
+     * of the listed fields.  Fields which are absent, or which are
+     * not arrays, are left as they are.  The combinations are in
+     * order, with the last field varying fastest.
+     *
+     * @param json study design JSON
+     * @param fields array fields to split
+     * @return one design per combination
+     */
+    static List<ObjectNode> split(ObjectNode json, List<String> fields) {
+        List<ObjectNode> designs = new ArrayList<ObjectNode>();
+        designs.add(json);
+        for (String field: fields) {
+            JsonNode entries = json.get(field);
+            if (entries == null || !entries.isArray() || entries.size() < 2) {
+                continue;
+            }
+            List<ObjectNode> expanded = new ArrayList<ObjectNode>();
+            for (ObjectNode design: designs) {
+                for (JsonNode entry: entries) {
+                    ArrayNode list = MAPPER.createArrayNode();
+                    list.add(entry);
+                    ObjectNode single = copy(design);
+                    single.put(field, list);
+                    expanded.add(single);
+                }
+            }
+            designs = expanded;
+        }
+        return designs;
+    }
+
+    /**
+     * Convert a JSON object to a study design.
+     *
+     * @param json study design JSON
+     * @return study design object
+     * @throws IllegalArgumentException if the JSON is not a valid study design
+     */
+    static StudyDesign toStudyDesign(ObjectNode json) throws IllegalArgumentException {
+        try {
+            return MAPPER.readValue(json, StudyDesign.class);
+        } catch (IOException ioe) {
+            throw new IllegalArgumentException(ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * @return mapper used for study design JSON
+     */
+    static ObjectMapper getMapper() {
+        return MAPPER;
+    }
+}
@@ -0,0 +1,586 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+import edu.cudenver.bios.power.PowerException;
+import edu.ucdenver.bios.powersvc.application.ComputeBudget;
+import edu.ucdenver.bios.webservice.common.domain.PowerResultList;
+import edu.ucdenver.bios.webservice.common.domain.StudyDesign;
+
+/**
+ * Server-held study designs for what-if recomputation.  A client
+ * registers a design and receives an id, then submits deltas against
+ * that id.  A delta is a JSON object holding replacement values for
+ * top level study design fields, e.g. {"alphaList": [...]}.
+ * <p>
+ * Only the work invalidated by a delta is repeated:
+ * <ul>
+ * <li>changes to the lists of alpha, sample size, nominal power,
+ * beta and sigma scale, tests, power methods, and quantiles reuse
+ * all of the matrices, and calculate only the cases which were not
+ * in the previous design</li>
+ * <li>changes to the covariance rebuild the covariance matrices
+ * and recalculate all cases</li>
+ * <li>any other change rebuilds the design from scratch</li>
+ * </ul>
+ * The revised design replaces the registered design, so deltas may
+ * be chained.  The least recently used designs are discarded once
+ * the registry is full.
+ * <p>
+ * The matrices of the registered designs are held within a heap budget,
+ * by their estimated footprint.  Beyond it, the least recently used
+ * designs keep only their JSON, and their matrices are built again by
+ * their next delta.
+ * <p>
+ * A delta is calculated without holding any lock, and the revised design
+ * then replaces the design it was calculated from, unless another delta
+ * has replaced that design in the meantime; the later delta is then
+ * refused, rather than one delta silently undoing the other.
+ * <p>
+ * A design id begins with the hex of the first bytes of the hash of
+ * the registered design, so that a router which sends the design to
+ * an instance by its hash sends the later requests for the id there
+ * too (see routingHash).
+ *
+ * @author Sarah Kreidler
+ */
+public final class DesignRegistry {
+    /** Default maximum number of registered designs. */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /** Default heap budget for the matrices of registered designs, in megabytes. */
+    public static final int DEFAULT_MEGABYTES = 64;
+
+    /** Bytes of the design hash at the start of a design id. */
+    private static final int ID_HASH_BYTES = 8;
+
+    /** Study design field holding the covariance. */
+    private static final String COVARIANCE_FIELD = "covariance";
+
+    /** Registered designs, least recently used first. */
+    private final Map<String, RegisteredDesign> designs;
+
+    /** Heap budget for the matrices of registered designs, in bytes. */
+    private final long maxContextBytes;
+
+    /** Time allowed for the calculation of a registration or delta, in milliseconds. */
+    private final long timeoutMillis;
+
+    /** Estimated footprint of the matrices held, in bytes; guarded by designs. */
+    private long contextBytes = 0;
+
+    /**
+     * Create a registry.
+     *
+     * @param capacity maximum number of registered designs
+     * @param maxContextBytes heap budget for the matrices of registered designs, in bytes
+     * @param timeoutMillis time allowed for the calculation of a registration
+     * or delta, in milliseconds
+     */
+    public DesignRegistry(final int capacity, final long maxContextBytes, final long timeoutMillis) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid design registry capacity: " + capacity);
+        }
+        if (maxContextBytes < 0) {
+            throw new IllegalArgumentException("Invalid design registry heap budget: " + maxContextBytes);
+        }
+        this.maxContextBytes = maxContextBytes;
+        this.timeoutMillis = timeoutMillis;
+        designs = new LinkedHashMap<String, RegisteredDesign>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RegisteredDesign> eldest) {
+                if (size() <= capacity) {
+                    return false;
+                }
+                release(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Register a study design and calculate all of its results.
+     *
+     * @param jsonStudyDesign study design JSON
+     * @return id of the registered design and its results
+     * @throws IOException if the JSON is invalid
+     * @throws IllegalArgumentException if the design is invalid
+     * @throws PowerException if the calculation fails
+     * @throws TimeoutException if the calculation does not complete in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Registration register(String jsonStudyDesign)
+            throws IOException, IllegalArgumentException, PowerException, TimeoutException,
+            InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        ObjectNode json = DesignJson.parse(jsonStudyDesign, "study design");
+        DesignContext context = new DesignContext(DesignJson.toStudyDesign(json));
+        PowerResultList results = calculate(context, deadline);
+
+        String id = newId(DesignHash.of("", json));
+        synchronized (designs) {
+            put(id, new RegisteredDesign(json, context));
+        }
+        return new Registration(id, results);
+    }
+
+    /**
+     * Apply a delta to a registered design, and calculate the results
+     * which changed.  If the delta is invalid, the registered design
+     * is unchanged.
+     *
+     * @param id design id
+     * @param jsonDelta JSON object of replacement study design fields
+     * @return the changed results, or null if the id is not registered
+     * @throws IOException if the JSON is invalid
+     * @throws IllegalArgumentException if the revised design is invalid
+     * @throws PowerException if the calculation fails
+     * @throws TimeoutException if the calculation does not complete in time
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ConcurrentModificationException if another delta replaced
+     * the registered design while this one was calculated
+     */
+    public PowerResultList update(String id, String jsonDelta)
+            throws IOException, IllegalArgumentException, PowerException, TimeoutException,
+            InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        RegisteredDesign design;
+        DesignContext context;
+        synchronized (designs) {
+            design = designs.get(id);
+            if (design == null) {
+                return null;
+            }
+            context = design.context;
+        }
+
+        ObjectNode delta = DesignJson.parse(jsonDelta, "study design delta");
+        Revision revision = design.revise(context, delta, deadline);
+
+        synchronized (designs) {
+            RegisteredDesign current = designs.get(id);
+            if (current == null) {
+                return null;
+            }
+            if (current != design) {
+                throw new ConcurrentModificationException("Design " + id
+                        + " was changed by another request; apply the delta again.");
+            }
+            put(id, revision.design);
+        }
+        return revision.results;
+    }
+
+    /**
+     * Discard a registered design.
+     *
+     * @param id design id
+     * @return true if the design was registered
+     */
+    public boolean remove(String id) {
+        synchronized (designs) {
+            RegisteredDesign design = designs.remove(id);
+            if (design == null) {
+                return false;
+            }
+            release(design);
+            return true;
+        }
+    }
+
+    /**
+     * Register a design under an id, replacing any design held under it,
+     * then drop the matrices of the least recently used designs until
+     * those held fit the heap budget.  The caller holds the lock on designs.
+     *
+     * @param id design id
+     * @param design design
+     */
+    private void put(String id, RegisteredDesign design) {
+        contextBytes += design.contextBytes;
+        RegisteredDesign previous = designs.put(id, design);
+        if (previous != null) {
+            release(previous);
+        }
+        Iterator<RegisteredDesign> iterator = designs.values().iterator();
+        while (contextBytes > maxContextBytes && iterator.hasNext()) {
+            release(iterator.next());
+        }
+    }
+
+    /**
+     * Drop the matrices of a design, keeping its JSON.  The caller holds
+     * the lock on designs.
+     *
+     * @param design design
+     */
+    private void release(RegisteredDesign design) {
+        if (design.context != null) {
+            design.context = null;
+            contextBytes -= design.contextBytes;
+        }
+    }
+
+    /**
+     * Create an id for a design: the hex of the first bytes of its
+     * hash, then a random part.
+     *
+     * @param designHash hash of the study design JSON, as routed
+     * @return new design id
+     */
+    public static String newId(byte[] designHash) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ID_HASH_BYTES; i++) {
+            sb.append(Character.forDigit((designHash[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(designHash[i] & 0xf, 16));
+        }
+        return sb.append('-').append(UUID.randomUUID()).toString();
+    }
+
+    /**
+     * Get the leading bytes of the design hash encoded in a design id,
+     * which route requests for the id to the instance holding it.
+     *
+     * @param id design id
+     * @return leading bytes of the design hash, or null if the id holds none
+     */
+    public static byte[] routingHash(String id) {
+        if (id == null || id.length() <= 2 * ID_HASH_BYTES || id.charAt(2 * ID_HASH_BYTES) != '-') {
+            return null;
+        }
+        byte[] hash = new byte[ID_HASH_BYTES];
+        for (int i = 0; i < ID_HASH_BYTES; i++) {
+            int high = Character.digit(id.charAt(2 * i), 16);
+            int low = Character.digit(id.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            hash[i] = (byte) ((high << 4) | low);
+        }
+        return hash;
+    }
+
+    /**
+     * @return number of registered designs
+     */
+    public int size() {
+        synchronized (designs) {
+            return designs.size();
+        }
+    }
+
+    /**
+     * Result of registering a design.
+     */
+    public static final class Registration {
+        private final String id;
+        private final PowerResultList results;
+
+        /**
+         * @param id design id
+         * @param results results for the design
+         */
+        private Registration(String id, PowerResultList results) {
+            this.id = id;
+            this.results = results;
+        }
+
+        /**
+         * @return design id
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return results for the design
+         */
+        public PowerResultList getResults() {
+            return results;
+        }
+    }
+
+    /**
+     * A registered design: its JSON, and the context holding its matrices.
+     */
+    private static final class RegisteredDesign {
+        private final ObjectNode json;
+
+        /** Context holding the matrices, or null once dropped; guarded by the registry. */
+        private DesignContext context;
+
+        /** Estimated footprint of the matrices of the context, in bytes. */
+        private final long contextBytes;
+
+        /**
+         * @param json study design JSON
+         * @param context design context
+         */
+        private RegisteredDesign(ObjectNode json, DesignContext context) {
+            this.json = json;
+            this.context = context;
+            this.contextBytes = new DesignFootprint(context.getStudyDesign()).getContextBytes();
+        }
+
+        /**
+         * Apply a delta, and calculate the results which changed.  The
+         * design itself is unchanged.
+         *
+         * @param baseContext context holding the matrices of the design,
+         * or null to build them again
+         * @param delta replacement study design fields
+         * @param deadline time by which the calculation must be complete
+         * @return the revised design and the changed results
+         * @throws IllegalArgumentException if the revised design is invalid
+         * @throws PowerException if the calculation fails
+         * @throws TimeoutException if the deadline passes
+         * @throws InterruptedException if interrupted while waiting
+         */
+        private Revision revise(DesignContext baseContext, ObjectNode delta, long deadline)
+                throws IllegalArgumentException, PowerException, TimeoutException,
+                InterruptedException {
+            if (baseContext == null) {
+                baseContext = new DesignContext(DesignJson.toStudyDesign(json));
+            }
+            ObjectNode revisedJson = DesignJson.copy(json);
+            List<String> changedCaseFields = new ArrayList<String>();
+            boolean covarianceChanged = false;
+            boolean designChanged = false;
+
+            Iterator<Map.Entry<String, JsonNode>> fields = delta.getFields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                String name = field.getKey();
+                JsonNode value = field.getValue();
+                if (value.equals(json.get(name))) {
+                    continue;
+                }
+                revisedJson.put(name, value);
+                if (COVARIANCE_FIELD.equals(name)) {
+                    covarianceChanged = true;
+                } else if (isCaseField(name)) {
+                    changedCaseFields.add(name);
+                } else {
+                    designChanged = true;
+                }
+            }
+
+            StudyDesign revisedDesign = DesignJson.toStudyDesign(revisedJson);
+            DesignContext revisedContext;
+            PowerResultList results;
+            if (designChanged) {
+                revisedContext = new DesignContext(revisedDesign);
+                results = calculate(revisedContext, deadline);
+            } else if (covarianceChanged) {
+                revisedContext = baseContext.revise(revisedDesign, true);
+                results = calculate(revisedContext, deadline);
+            } else {
+                revisedContext = baseContext.revise(revisedDesign, false);
+                results = calculateNewCases(revisedJson, revisedContext, changedCaseFields, deadline);
+            }
+
+            return new Revision(new RegisteredDesign(revisedJson, revisedContext), results);
+        }
+
+        /**
+         * Calculate the cases of the revised design which were not
+         * cases of the registered design.  For each changed list in
+         * turn, the design is restricted to the added entries of that
+         * list, the entries common to the old and new versions of the
+         * preceding changed lists, and all entries of the remaining
+         * lists, so that each new case is calculated exactly once.
+         *
+         * @param revisedJson revised study design JSON
+         * @param revisedContext context for the revised design
+         * @param changedFields changed case fields
+         * @param deadline time by which the calculation must be complete
+         * @return results for the new cases
+         * @throws PowerException if the calculation fails
+         * @throws TimeoutException if the deadline passes
+         * @throws InterruptedException if interrupted while waiting
+         */
+        private PowerResultList calculateNewCases(ObjectNode revisedJson,
+                DesignContext revisedContext, List<String> changedFields, long deadline)
+                        throws PowerException, TimeoutException, InterruptedException {
+            PowerResultList results = new PowerResultList();
+            StudyDesign revisedDesign = revisedContext.getStudyDesign();
+            List<String> fields = new ArrayList<String>();
+            for (String name: changedFields) {
+                if (affectsResults(name, revisedDesign)) {
+                    fields.add(name);
+                }
+            }
+
+            for (int i = 0; i < fields.size(); i++) {
+                ObjectNode restricted = DesignJson.copy(revisedJson);
+                boolean empty = false;
+                for (int j = 0; j <= i && !empty; j++) {
+                    String name = fields.get(j);
+                    ArrayNode entries = (j < i
+                            ? intersection(revisedJson.get(name), json.get(name))
+                            : difference(revisedJson.get(name), json.get(name)));
+                    restricted.put(name, entries);
+                    empty = entries.size() == 0;
+                }
+                if (!empty) {
+                    results.addAll(calculate(revisedContext.revise(DesignJson.toStudyDesign(restricted), false),
+                            deadline));
+                }
+            }
+            return results;
+        }
+    }
+
+    /**
+     * A design revised by a delta, and the results which changed.
+     */
+    private static final class Revision {
+        private final RegisteredDesign design;
+        private final PowerResultList results;
+
+        /**
+         * @param design revised design
+         * @param results changed results
+         */
+        private Revision(RegisteredDesign design, PowerResultList results) {
+            this.design = design;
+            this.results = results;
+        }
+    }
+
+    /**
+     * Calculate all results for a design, according to its solution type,
+     * once the compute budget has room for it.
+     *
+     * @param context design context
+     * @param deadline time by which the calculation must be complete
+     * @return results
+     * @throws IllegalArgumentException if the design is invalid
+     * @throws PowerException if the calculation fails
+     * @throws TimeoutException if the deadline passes
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static PowerResultList calculate(DesignContext context, long deadline)
+            throws IllegalArgumentException, PowerException, TimeoutException,
+            InterruptedException {
+        ComputeBudget.Lease lease = DesignCost.admit(context.getStudyDesign());
+        try {
+            return PowerResourceHelper.calculate(context, deadline);
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * Determine if a list of the study design is used in calculating
+     * its results: power ignores the nominal power list, sample size
+     * ignores the sample size list, and only designs with a Gaussian
+     * covariate use the power method and quantile lists.
+     *
+     * @param name study design field
+     * @param studyDesign study design
+     * @return true if the list affects the results
+     */
+    private static boolean affectsResults(String name, StudyDesign studyDesign) {
+        if ("powerMethodList".equals(name) || "quantileList".equals(name)) {
+            return studyDesign.isGaussianCovariate();
+        }
+        if (studyDesign.getSolutionTypeEnum() == null) {
+            return true;
+        }
+        switch (studyDesign.getSolutionTypeEnum()) {
+        case POWER:
+            return !"nominalPowerList".equals(name);
+        case SAMPLE_SIZE:
+            return !"sampleSizeList".equals(name);
+        default:
+            return true;
+        }
+    }
+
+    private static boolean isCaseField(String name) {
+        for (String field: DesignJson.CASE_FIELDS) {
+            if (field.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param entries new list entries, or null
+     * @param previous previous list entries, or null
+     * @return entries which are also in the previous list
+     */
+    private static ArrayNode intersection(JsonNode entries, JsonNode previous) {
+        return filter(entries, previous, true);
+    }
+
+    /**
+     * @param entries new list entries, or null
+     * @param previous previous list entries, or null
+     * @return entries which are not in the previous list
+     */
+    private static ArrayNode difference(JsonNode entries, JsonNode previous) {
+        return filter(entries, previous, false);
+    }
+
+    private static ArrayNode filter(JsonNode entries, JsonNode previous, boolean keepCommon) {
+        ArrayNode result = DesignJson.getMapper().createArrayNode();
+        if (entries != null) {
+            for (JsonNode entry: entries) {
+                if (contains(previous, entry) == keepCommon) {
+                    result.add(entry);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean contains(JsonNode list, JsonNode entry) {
+        if (list != null) {
+            for (JsonNode element: list) {
+                if (element.equals(entry)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import org.restlet.resource.Delete;
+import org.restlet.resource.Post;
+
+/**
+ * Main interface for what-if recomputation against a
+ * server-held study design.
+ *
+ * @author Sarah Kreidler
+ */
+public interface DesignResource {
+    /**
+     * Register a study design, or, if the URI includes a design id,
+     * apply a delta to the registered design.
+     *
+     * @param json study design JSON, or a JSON object holding
+     *        replacement study design fields
+     *
+     * @return JSON object holding the design id and the results
+     *         (all results on registration, changed results for a delta)
+     */
+    @Post("json:json")
+    String update(String json);
+
+    /**
+     * Discard the registered design.
+     */
+    @Delete
+    void remove();
+}
@@ -0,0 +1,156 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.io.IOException;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.restlet.data.Status;
+import org.restlet.resource.Delete;
+import org.restlet.resource.Post;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.ServerResource;
+
+import edu.cudenver.bios.power.PowerException;
+import edu.ucdenver.bios.powersvc.application.PowerApplication;
+import edu.ucdenver.bios.powersvc.application.PowerLogger;
+import edu.ucdenver.bios.webservice.common.domain.PowerResultList;
+
+/**
+ * Implementation of the DesignResource interface for what-if
+ * recomputation.  POST /design registers a study design;
+ * POST /design/{id} applies a delta to it, and DELETE /design/{id}
+ * discards it.  A delta which loses the race with another delta to
+ * the same design is refused with 409 Conflict.
+ *
+ * @author Sarah Kreidler
+ */
+public class DesignServerResource extends ServerResource
+        implements DesignResource {
+    /** URI template attribute holding the design id. */
+    public static final String ID_ATTRIBUTE = "id";
+
+    private static final String ID = "id";
+    private static final String RESULTS = "results";
+
+    private Logger logger = Logger.getLogger(getClass());
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Register a study design, or, if the URI includes a design id,
+     * apply a delta to the registered design.
+     *
+     * @param json study design JSON, or a JSON object holding
+     *        replacement study design fields
+     *
+     * @return JSON object holding the design id and the results
+     *         (all results on registration, changed results for a delta)
+     */
+    @Post("json:json")
+    public final String update(final String json) {
+        if (json == null) {
+            throw badRequestException("Invalid study design.");
+        }
+
+        String id = getDesignId();
+        logger.info("update(): " + getRequest().getRootRef() + ": id = " + id
+                + ", json = '" + json + "'");
+
+        Map<String, Object> response = new LinkedHashMap<String, Object>();
+        long start = System.currentTimeMillis();
+        try {
+            if (id == null) {
+                DesignRegistry.Registration registration = getRegistry().register(json);
+                response.put(ID, registration.getId());
+                response.put(RESULTS, registration.getResults());
+            } else {
+                PowerResultList results = getRegistry().update(id, json);
+                if (results == null) {
+                    throw notFoundException(id);
+                }
+                response.put(ID, id);
+                response.put(RESULTS, results);
+            }
+            logger.info("update(): executed in " + (System.currentTimeMillis() - start) + " milliseconds");
+            return MAPPER.writeValueAsString(response);
+        } catch (IOException ioe) {
+            PowerLogger.getInstance().error(ioe.getMessage(), ioe);
+            throw badRequestException(ioe.getMessage());
+        } catch (IllegalArgumentException iae) {
+            PowerLogger.getInstance().error(iae.getMessage(), iae);
+            throw badRequestException(iae.getMessage());
+        } catch (PowerException pe) {
+            PowerLogger.getInstance().error("[" + pe.getErrorCode() + "]:" + pe.getMessage(), pe);
+            throw badRequestException(pe.getMessage());
+        } catch (TimeoutException te) {
+            logger.warn(getClass().getSimpleName() + ": TimeoutException(): " + getRequest().getRootRef());
+            throw badRequestException("Request timed out during computation.");
+        } catch (InterruptedException ie) {
+            logger.warn(getClass().getSimpleName() + ": InterruptedException(): " + getRequest().getRootRef(), ie);
+            throw badRequestException("Computation interrupted.");
+        } catch (ConcurrentModificationException cme) {
+            logger.warn(getClass().getSimpleName() + ": conflicting delta: " + getRequest().getRootRef());
+            throw new ResourceException(Status.CLIENT_ERROR_CONFLICT, cme.getMessage());
+        } catch (OutOfMemoryError oome) {
+            PowerLogger.getInstance().error(oome.getMessage(), oome);
+            throw badRequestException("Insufficient memory to process this study design.");
+        }
+    }
+
+    /**
+     * Discard the registered design.
+     */
+    @Delete
+    public final void remove() {
+        String id = getDesignId();
+        if (id == null || !getRegistry().remove(id)) {
+            throw notFoundException(id);
+        }
+    }
+
+    /**
+     * @return design id from the URI, or null if none
+     */
+    private String getDesignId() {
+        Object id = getRequestAttributes().get(ID_ATTRIBUTE);
+        return id != null ? id.toString() : null;
+    }
+
+    private DesignRegistry getRegistry() {
+        return ((PowerApplication) getApplication()).getDesignRegistry();
+    }
+
+    private static ResourceException notFoundException(String id) {
+        return new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "Unknown design id: " + id);
+    }
+
+    private static ResourceException badRequestException(String message) {
+        return new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, message);
+    }
+}
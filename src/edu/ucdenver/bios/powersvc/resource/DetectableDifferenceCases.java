@@ -0,0 +1,228 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.codehaus.jackson.node.ObjectNode;
+
+import edu.cudenver.bios.power.GLMMPowerCalculator;
+import edu.cudenver.bios.power.PowerException;
+import edu.ucdenver.bios.powersvc.application.ComputeScheduler;
+import edu.ucdenver.bios.webservice.common.domain.PowerResultList;
+
+/**
+ * Detectable difference calculation split into independent cases,
+ * one per combination of the design's lists (tests, alpha, sample
+ * size, nominal power, etc.), which are run in parallel on the
+ * shared compute scheduler under a deadline.  All cases share the
+ * matrices of one design context.
+ * <p>
+ * Without the design JSON, the design is run as a single case.
+ *
+ * @author Sarah Kreidler
+ */
+final class DetectableDifferenceCases {
+    /**
+     * Receives the results of each case as it completes.
+     */
+    interface Listener {
+        /**
+         * @param index case index, in the order of the combinations
+         * @param results results for the case
+         * @throws IOException if the results cannot be written
+         */
+        void caseCompleted(int index, PowerResultList results) throws IOException;
+    }
+
+    private final DesignContext context;
+    private final ObjectNode json;
+    private List<DesignContext> cases = null;
+
+    /**
+     * Create the cases for a design.
+     *
+     * @param context design context
+     * @param json study design JSON, or null to run the design as a single case
+     */
+    DetectableDifferenceCases(DesignContext context, ObjectNode json) {
+        this.context = context;
+        this.json = json;
+    }
+
+    /**
+     * @return design context for the whole design
+     */
+    DesignContext getContext() {
+        return context;
+    }
+
+    /**
+     * Validate the design, and split it into cases.  Called by run
+     * if not called beforehand.
+     *
+     * @return design context for each case
+     * @throws IllegalArgumentException if the design is invalid
+     */
+    synchronized List<DesignContext> prepare() throws IllegalArgumentException {
+        if (cases != null) {
+            return cases;
+        }
+        // validate and build the shared matrices before the cases copy them
+        context.toPowerParameters();
+
+        List<DesignContext> caseList = new ArrayList<DesignContext>();
+        if (json == null) {
+            caseList.add(context);
+        } else {
+            List<String> fields = new ArrayList<String>(Arrays.asList(DesignJson.CASE_FIELDS));
+            if (!context.getStudyDesign().isGaussianCovariate()) {
+                fields.remove("powerMethodList");
+                fields.remove("quantileList");
+            }
+            for (ObjectNode caseJson: DesignJson.split(json, fields)) {
+                caseList.add(context.revise(DesignJson.toStudyDesign(caseJson), false));
+            }
+        }
+        cases = caseList;
+        return cases;
+    }
+
+    /**
+     * Run all cases, and collect the results in case order.
+     *
+     * @param deadline time by which all cases must be complete,
+     *        in milliseconds since the epoch
+     * @return results
+     * @throws IllegalArgumentException if the design is invalid
+     * @throws PowerException if the calculation fails
+     * @throws TimeoutException if the deadline passes
+     * @throws InterruptedException if interrupted while waiting
+     */
+    PowerResultList run(long deadline) throws IllegalArgumentException,
+            PowerException, TimeoutException, InterruptedException {
+        final Map<Integer, PowerResultList> resultsByCase = new HashMap<Integer, PowerResultList>();
+        int nCases;
+        try {
+            nCases = run(deadline, new Listener() {
+                @Override
+                public void caseCompleted(int index, PowerResultList results) {
+                    resultsByCase.put(index, results);
+                }
+            });
+        } catch (IOException ioe) {
+            // not thrown by the listener
+            throw new IllegalStateException(ioe);
+        }
+        PowerResultList results = new PowerResultList();
+        for (int i = 0; i < nCases; i++) {
+            results.addAll(resultsByCase.get(i));
+        }
+        return results;
+    }
+
+    /**
+     * Run all cases, passing the results of each to the listener as
+     * it completes.  The design is validated before any case is run,
+     * and the cases still running when an error occurs or the
+     * deadline passes are cancelled.
+     *
+     * @param deadline time by which all cases must be complete,
+     *        in milliseconds since the epoch
+     * @param listener listener for the results
+     * @return number of cases
+     * @throws IllegalArgumentException if the design is invalid
+     * @throws PowerException if the calculation fails
+     * @throws TimeoutException if the deadline passes
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IOException if the listener fails
+     */
+    int run(long deadline, Listener listener) throws IllegalArgumentException,
+            PowerException, TimeoutException, InterruptedException, IOException {
+        List<DesignContext> cases = prepare();
+
+        CompletionService<PowerResultList> completionService =
+                ComputeScheduler.getInstance().newCompletionService();
+        Map<Future<PowerResultList>, Integer> futures = new HashMap<Future<PowerResultList>, Integer>();
+        try {
+            for (final DesignContext caseContext: cases) {
+                futures.put(completionService.submit(new Callable<PowerResultList>() {
+                    @Override
+                    public PowerResultList call() throws Exception {
+                        GLMMPowerCalculator calculator = new GLMMPowerCalculator();
+                        return PowerResourceHelper.toPowerResultList(
+                                calculator.getDetectableDifference(caseContext.toPowerParameters()));
+                    }
+                }), futures.size());
+            }
+            for (int completed = 0; completed < cases.size(); completed++) {
+                long timeout = deadline - System.currentTimeMillis();
+                Future<PowerResultList> future = (timeout > 0
+                        ? completionService.poll(timeout, TimeUnit.MILLISECONDS) : null);
+                if (future == null) {
+                    throw new TimeoutException("Detectable difference did not complete in time.");
+                }
+                listener.caseCompleted(futures.remove(future), get(future));
+            }
+        } finally {
+            for (Future<PowerResultList> future: futures.keySet()) {
+                future.cancel(true);
+            }
+        }
+        return cases.size();
+    }
+
+    /**
+     * Get the results of a completed case, unwrapping any exception.
+     *
+     * @param future completed case
+     * @return results
+     */
+    private static PowerResultList get(Future<PowerResultList> future)
+            throws PowerException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof PowerException) {
+                throw (PowerException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -22,29 +22,35 @@
  */
 package edu.ucdenver.bios.powersvc.resource;
 
-import java.util.List;
+import java.util.concurrent.TimeoutException;
 
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ObjectNode;
 import org.restlet.data.Status;
 import org.restlet.resource.Post;
 import org.restlet.resource.ResourceException;
 import org.restlet.resource.ServerResource;
 
-import edu.cudenver.bios.power.GLMMPowerCalculator;
-import edu.cudenver.bios.power.Power;
 import edu.cudenver.bios.power.PowerException;
-import edu.cudenver.bios.power.parameters.GLMMPowerParameters;
+import edu.ucdenver.bios.powersvc.application.ComputeBudget;
+import edu.ucdenver.bios.powersvc.application.PowerApplication;
 import edu.ucdenver.bios.powersvc.application.PowerLogger;
 import edu.ucdenver.bios.webservice.common.domain.PowerResultList;
 import edu.ucdenver.bios.webservice.common.domain.StudyDesign;
 
 /**
  * Implementation of the DetectableDifferenceResource interface
- * for calculating detectable difference.
+ * for calculating detectable difference.  The cases of the design
+ * are calculated in parallel on the shared compute scheduler,
+ * subject to a deadline.  DetectableDifferenceStreamServerResource
+ * streams the results of each case instead.
  *
  * @author Sarah Kreidler
  */
 public class DetectableDifferenceServerResource extends ServerResource
 implements DetectableDifferenceResource {
+    private Logger logger = Logger.getLogger(getClass());
 
     /**
      * Calculate the detectable difference for the specified study design.
@@ -53,29 +59,74 @@ implements DetectableDifferenceResource {
      * @return List of power objects for the study design.  These will contain the detectable difference
      */
     @Post
-    public PowerResultList getDetectableDifference(StudyDesign studyDesign)
-    {
-        if (studyDesign == null)
-            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
-                    "Invalid study design");
+    public final PowerResultList getDetectableDifference(final StudyDesign studyDesign) {
+        if (studyDesign == null) {
+            throw badRequestException("Invalid study design.");
+        }
+
+        logger.info("getDetectableDifference(): " + getRequest().getRootRef());
 
+        long start = System.currentTimeMillis();
+        DetectableDifferenceCases cases = new DetectableDifferenceCases(
+                new DesignContext(studyDesign), toJson(studyDesign));
+        PowerResultList results = run(cases, start);
+        logger.info("getDetectableDifference(): " + "executed in "
+                + (System.currentTimeMillis() - start) + " milliseconds");
+        return results;
+    }
+
+    /**
+     * Convert a study design back to JSON, so that it can be split
+     * into cases.
+     *
+     * @param studyDesign study design object
+     * @return study design JSON, or null to run the design as a single case
+     */
+    private static ObjectNode toJson(StudyDesign studyDesign) {
         try {
-            GLMMPowerParameters params =
-                PowerResourceHelper.studyDesignToPowerParameters(studyDesign);
-            // create the appropriate power calculator for this model
-            GLMMPowerCalculator calculator = new GLMMPowerCalculator();
-            // calculate the power results
-            List<Power> calcResults = calculator.getDetectableDifference(params);
-            // convert to concrete classes
-            return PowerResourceHelper.toPowerResultList(calcResults);
+            JsonNode json = DesignJson.getMapper().valueToTree(studyDesign);
+            return (json != null && json.isObject() ? (ObjectNode) json : null);
         } catch (IllegalArgumentException iae) {
-            PowerLogger.getInstance().error(iae.getMessage());
-            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, iae.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Run the cases of a design, mapping failures to responses.
+     *
+     * @param cases cases of the design
+     * @param start time the request started, in milliseconds since the epoch
+     * @return List of power objects for the study design
+     */
+    private PowerResultList run(final DetectableDifferenceCases cases, final long start) {
+        ComputeBudget.Lease lease = null;
+        try {
+            cases.prepare();
+            lease = DesignCost.admit(cases.getContext().getStudyDesign());
+            return cases.run(start + PowerApplication.getCalculationTimeoutMillis(getApplication()));
+        } catch (IllegalArgumentException iae) {
+            PowerLogger.getInstance().error(iae.getMessage(), iae);
+            throw badRequestException(iae.getMessage());
         } catch (PowerException pe) {
-            PowerLogger.getInstance().error("[" + pe.getErrorCode() + "]:" + pe.getMessage());
-            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST,
-                    pe.getMessage());
+            PowerLogger.getInstance().error("[" + pe.getErrorCode() + "]:" + pe.getMessage(), pe);
+            throw badRequestException(pe.getMessage());
+        } catch (TimeoutException te) {
+            logger.warn(getClass().getSimpleName() + ": TimeoutException(): " + getRequest().getRootRef());
+            throw badRequestException("Request timed out during computation.");
+        } catch (InterruptedException ie) {
+            logger.warn(getClass().getSimpleName() + ": InterruptedException(): " + getRequest().getRootRef(), ie);
+            throw badRequestException("Computation interrupted.");
+        } catch (OutOfMemoryError oome) {
+            PowerLogger.getInstance().error(oome.getMessage(), oome);
+            throw badRequestException("Insufficient memory to process this study design.");
+        } finally {
+            if (lease != null) {
+                lease.release();
+            }
         }
     }
 
+    private static ResourceException badRequestException(String message) {
+        return new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, message);
+    }
 }
@@ -0,0 +1,188 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2010 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+import org.restlet.data.CharacterSet;
+import org.restlet.data.MediaType;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.representation.WriterRepresentation;
+import org.restlet.resource.Post;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.ServerResource;
+
+import edu.cudenver.bios.power.PowerException;
+import edu.ucdenver.bios.powersvc.application.ComputeBudget;
+import edu.ucdenver.bios.powersvc.application.PowerApplication;
+import edu.ucdenver.bios.powersvc.application.PowerLogger;
+import edu.ucdenver.bios.webservice.common.domain.PowerResultList;
+import edu.ucdenver.bios.webservice.common.domain.StudyDesign;
+
+/**
+ * Implementation of the DetectableDifferenceStreamResource interface
+ * for calculating detectable difference with the results of each case
+ * written as a line of JSON as soon as the case completes.  The cases
+ * are run as by DetectableDifferenceServerResource.
+ *
+ * @author Sarah Kreidler
+ */
+public class DetectableDifferenceStreamServerResource extends ServerResource
+implements DetectableDifferenceStreamResource {
+    /** Media type of streamed results: one JSON value per line. */
+    public static final MediaType APPLICATION_NDJSON =
+            MediaType.register("application/x-ndjson", "Newline delimited JSON");
+
+    private Logger logger = Logger.getLogger(getClass());
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Calculate the detectable difference for the specified study design
+     * JSON, writing the results of each case as a line of JSON as soon as
+     * the case completes.
+     *
+     * @param jsonStudyDesign study design JSON
+     * @return one JSON list of power objects per line
+     */
+    @Post("json:json")
+    public final Representation getDetectableDifferenceStream(final String jsonStudyDesign) {
+        if (jsonStudyDesign == null) {
+            throw badRequestException("Invalid study design.");
+        }
+
+        logger.info("getDetectableDifferenceStream(): " + getRequest().getRootRef() + ": "
+                        + "jsonStudyDesign = '" + jsonStudyDesign + "'");
+
+        JsonNode json;
+        StudyDesign studyDesign;
+
+        try {
+            json = MAPPER.readTree(jsonStudyDesign);
+            studyDesign = (json != null ? MAPPER.readValue(json, StudyDesign.class) : null);
+        } catch (IOException ioe) {
+            PowerLogger.getInstance().error(ioe.getMessage(), ioe);
+            throw badRequestException(ioe.getMessage());
+        }
+
+        if (studyDesign == null) {
+            throw badRequestException("Invalid study design.");
+        }
+
+        final long start = System.currentTimeMillis();
+        // read now: the application is not known to the thread writing the response
+        final long deadline = start + PowerApplication.getCalculationTimeoutMillis(getApplication());
+        final DetectableDifferenceCases cases = new DetectableDifferenceCases(
+                new DesignContext(studyDesign), (json.isObject() ? (ObjectNode) json : null));
+
+        // report an invalid design before any response is streamed
+        try {
+            cases.prepare();
+        } catch (IllegalArgumentException iae) {
+            PowerLogger.getInstance().error(iae.getMessage(), iae);
+            throw badRequestException(iae.getMessage());
+        }
+
+        logger.info("INPUT = '" + jsonStudyDesign + "'");
+
+        Representation representation = new WriterRepresentation(APPLICATION_NDJSON) {
+            @Override
+            public void write(final Writer writer) throws IOException {
+                writeCases(cases, start, deadline, writer);
+            }
+        };
+        representation.setCharacterSet(CharacterSet.UTF_8);
+        return representation;
+    }
+
+    /**
+     * Run the cases of a design, writing the results of each case as a
+     * line of JSON as it completes.  Since the response has already
+     * started, a failure is reported as a final line holding an
+     * "error" field.
+     *
+     * @param cases cases of the design
+     * @param start time the request started, in milliseconds since the epoch
+     * @param deadline time by which the cases must be complete
+     * @param writer response writer
+     * @throws IOException if the response cannot be written
+     */
+    private void writeCases(final DetectableDifferenceCases cases, final long start, final long deadline,
+            final Writer writer) throws IOException {
+        String error = null;
+        ComputeBudget.Lease lease = null;
+        try {
+            lease = DesignCost.admit(cases.getContext().getStudyDesign());
+            cases.run(deadline,
+                    new DetectableDifferenceCases.Listener() {
+                @Override
+                public void caseCompleted(int index, PowerResultList results) throws IOException {
+                    writer.write(MAPPER.writeValueAsString(results));
+                    writer.write('\n');
+                    writer.flush();
+                }
+            });
+            logger.info("getDetectableDifferenceStream(): " + "streamed in "
+                    + (System.currentTimeMillis() - start) + " milliseconds");
+        } catch (IllegalArgumentException iae) {
+            PowerLogger.getInstance().error(iae.getMessage(), iae);
+            error = iae.getMessage();
+        } catch (PowerException pe) {
+            PowerLogger.getInstance().error("[" + pe.getErrorCode() + "]:" + pe.getMessage(), pe);
+            error = pe.getMessage();
+        } catch (TimeoutException te) {
+            logger.warn(getClass().getSimpleName() + ": TimeoutException(): " + getRequest().getRootRef());
+            error = "Request timed out during computation.";
+        } catch (InterruptedException ie) {
+            logger.warn(getClass().getSimpleName() + ": InterruptedException(): " + getRequest().getRootRef(), ie);
+            error = "Computation interrupted.";
+        } catch (OutOfMemoryError oome) {
+            PowerLogger.getInstance().error(oome.getMessage(), oome);
+            error = "Insufficient memory to process this study design.";
+        } catch (ResourceException re) {
+            logger.warn(getClass().getSimpleName() + ": not admitted: " + getRequest().getRootRef());
+            error = re.getStatus().getDescription();
+        } finally {
+            if (lease != null) {
+                lease.release();
+            }
+        }
+        if (error != null) {
+            writer.write(MAPPER.writeValueAsString(Collections.singletonMap("error", error)));
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    private static ResourceException badRequestException(String message) {
+        return new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, message);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.cudenver.bios.distribution.NonCentralFDistribution;
+import edu.ucdenver.bios.powersvc.application.PowerMetrics;
+
+/**
+ * Process-wide cache of central F quantiles, i.e. critical values,
+ * by (probability, numerator df, denominator df).  The same few
+ * combinations recur across designs and requests, since most designs
+ * use alpha 0.05 or 0.01 and a small set of degrees of freedom.
+ * <p>
+ * The cache is bounded: once full, arbitrary entries are discarded
+ * to make room.  Hits, misses, and size are reported in the metrics
+ * as "fcritical_cache_*".
+ *
+ * @author Sarah Kreidler
+ */
+public final class FCriticalValueCache {
+    /** Maximum number of cached critical values. */
+    public static final int CAPACITY = 4096;
+
+    private static final FCriticalValueCache INSTANCE = new FCriticalValueCache(CAPACITY);
+
+    private final int capacity;
+    private final ConcurrentMap<Key, Double> values = new ConcurrentHashMap<Key, Double>();
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    /**
+     * @return the process-wide cache
+     */
+    public static FCriticalValueCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Create a cache, and register its metrics.
+     *
+     * @param capacity maximum number of entries
+     */
+    private FCriticalValueCache(int capacity) {
+        this.capacity = capacity;
+        PowerMetrics metrics = PowerMetrics.getInstance();
+        hits = metrics.counter("fcritical_cache_hits");
+        misses = metrics.counter("fcritical_cache_misses");
+        metrics.gauge("fcritical_cache_size", new PowerMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return values.size();
+            }
+        });
+        metrics.gauge("fcritical_cache_hit_ratio", new PowerMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                long h = hits.get();
+                long total = h + misses.get();
+                return (total > 0 ? (double) h / total : 0);
+            }
+        });
+    }
+
+    /**
+     * Get the quantile of the central F distribution, e.g. the critical
+     * value for a test at level alpha is inverseCDF(1 - alpha, ndf, ddf).
+     *
+     * @param probability cumulative probability
+     * @param ndf numerator degrees of freedom
+     * @param ddf denominator degrees of freedom
+     * @return quantile
+     * @throws IllegalArgumentException if the degrees of freedom are invalid
+     */
+    public double inverseCDF(double probability, double ndf, double ddf)
+            throws IllegalArgumentException {
+        Key key = new Key(probability, ndf, ddf);
+        Double value = values.get(key);
+        if (value != null) {
+            hits.incrementAndGet();
+            return value;
+        }
+        misses.incrementAndGet();
+        double quantile = new NonCentralFDistribution(ndf, ddf, 0).inverseCDF(probability);
+        if (values.size() >= capacity) {
+            Iterator<Key> keys = values.keySet().iterator();
+            for (int i = 0; i < capacity / 16 && keys.hasNext(); i++) {
+                keys.next();
+                keys.remove();
+            }
+        }
+        values.put(key, quantile);
+        return quantile;
+    }
+
+    /**
+     * Cache key.
+     */
+    private static final class Key {
+        private final double probability;
+        private final double ndf;
+        private final double ddf;
+
+        private Key(double probability, double ndf, double ddf) {
+            this.probability = probability;
+            this.ndf = ndf;
+            this.ddf = ddf;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return Double.compare(probability, other.probability) == 0
+                    && Double.compare(ndf, other.ndf) == 0
+                    && Double.compare(ddf, other.ddf) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            long bits = Double.doubleToLongBits(probability);
+            bits = 31 * bits + Double.doubleToLongBits(ndf);
+            bits = 31 * bits + Double.doubleToLongBits(ddf);
+            return (int) (bits ^ (bits >>> 32));
+        }
+    }
+}
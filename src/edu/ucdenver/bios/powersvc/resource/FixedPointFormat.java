@@ -0,0 +1,182 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Fixed-point formatter for doubles, used for the text output of
+ * matrices in place of DecimalFormat("0.0000").  Values are rounded
+ * half-even on their exact binary value, and negative values which
+ * round to zero are written without a sign.
+ * <p>
+ * Digits are appended directly to a StringBuilder, or written to a
+ * Writer through a reusable character buffer, without creating
+ * intermediate Strings.  The static append method is thread safe;
+ * an instance holds a scratch buffer and should be confined to a
+ * single request.
+ *
+ * @author Sarah Kreidler
+ */
+public final class FixedPointFormat {
+    /** Maximum number of decimal places supported. */
+    public static final int MAX_DECIMALS = 9;
+
+    /** Powers of ten, indexed by exponent. */
+    private static final long[] POWERS_OF_TEN = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+        100000000L, 1000000000L, 10000000000L, 100000000000L,
+        1000000000000L, 10000000000000L, 100000000000000L,
+        1000000000000000L, 10000000000000000L, 100000000000000000L,
+        1000000000000000000L
+    };
+
+    /**
+     * Largest scaled value handled by the fast path.  Below this,
+     * the error in value * 10^decimals is far smaller than TIE_TOLERANCE.
+     */
+    private static final double FAST_LIMIT = 1e9;
+
+    /** Scaled values this close to a rounding tie are rounded exactly. */
+    private static final double TIE_TOLERANCE = 1e-6;
+
+    private final int decimals;
+    private final StringBuilder scratch = new StringBuilder(32);
+    private char[] chars = new char[32];
+
+    /**
+     * Create a formatter for a fixed number of decimal places.
+     *
+     * @param decimals number of decimal places (0 to MAX_DECIMALS)
+     */
+    public FixedPointFormat(int decimals) {
+        checkDecimals(decimals);
+        this.decimals = decimals;
+    }
+
+    /**
+     * Write a value to a character stream.
+     *
+     * @param out character stream
+     * @param value value to format
+     * @throws IOException if the stream cannot be written
+     */
+    public void write(Writer out, double value) throws IOException {
+        scratch.setLength(0);
+        append(scratch, value, decimals);
+        int length = scratch.length();
+        if (length > chars.length) {
+            chars = new char[length];
+        }
+        scratch.getChars(0, length, chars, 0);
+        out.write(chars, 0, length);
+    }
+
+    /**
+     * Append a value to a buffer.
+     *
+     * @param buffer buffer
+     * @param value value to format
+     * @return the buffer
+     */
+    public StringBuilder append(StringBuilder buffer, double value) {
+        return append(buffer, value, decimals);
+    }
+
+    /**
+     * Append a value, rounded half-even to the specified number of
+     * decimal places, to a buffer.
+     *
+     * @param buffer buffer
+     * @param value value to format
+     * @param decimals number of decimal places (0 to MAX_DECIMALS)
+     * @return the buffer
+     */
+    public static StringBuilder append(StringBuilder buffer, double value, int decimals) {
+        checkDecimals(decimals);
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return buffer.append(value);
+        }
+
+        double scaled = Math.abs(value) * POWERS_OF_TEN[decimals];
+        if (scaled < FAST_LIMIT) {
+            double floor = Math.floor(scaled);
+            double fraction = scaled - floor;
+            if (Math.abs(fraction - 0.5) > TIE_TOLERANCE) {
+                long units = (long) floor + (fraction > 0.5 ? 1 : 0);
+                if (units != 0 && value < 0) {
+                    buffer.append('-');
+                }
+                appendUnits(buffer, units, decimals);
+                return buffer;
+            }
+        }
+
+        // large values, and values close to a rounding tie, are rounded exactly
+        BigDecimal rounded = new BigDecimal(value).setScale(decimals, RoundingMode.HALF_EVEN);
+        if (rounded.signum() == 0) {
+            rounded = rounded.abs();
+        }
+        return buffer.append(rounded.toPlainString());
+    }
+
+    /**
+     * Append a non-negative scaled value as integer digits, a decimal
+     * point, and zero padded decimal digits.
+     *
+     * @param buffer buffer
+     * @param units value multiplied by 10^decimals
+     * @param decimals number of decimal places
+     */
+    private static void appendUnits(StringBuilder buffer, long units, int decimals) {
+        long scale = POWERS_OF_TEN[decimals];
+        long integerPart = units / scale;
+        long fractionPart = units % scale;
+
+        // integer digits, most significant first
+        int exponent = 0;
+        while (exponent + 1 < POWERS_OF_TEN.length && POWERS_OF_TEN[exponent + 1] <= integerPart) {
+            exponent++;
+        }
+        for(int e = exponent; e >= 0; e--) {
+            buffer.append((char) ('0' + (integerPart / POWERS_OF_TEN[e]) % 10));
+        }
+
+        // decimal digits, including leading zeros
+        if (decimals > 0) {
+            buffer.append('.');
+            for(int e = decimals - 1; e >= 0; e--) {
+                buffer.append((char) ('0' + (fractionPart / POWERS_OF_TEN[e]) % 10));
+            }
+        }
+    }
+
+    private static void checkDecimals(int decimals) {
+        if (decimals < 0 || decimals > MAX_DECIMALS) {
+            throw new IllegalArgumentException("Invalid number of decimal places: " + decimals);
+        }
+    }
+}
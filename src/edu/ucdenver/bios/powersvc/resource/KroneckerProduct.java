@@ -0,0 +1,455 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import edu.ucdenver.bios.powersvc.application.ComputeScheduler;
+
+/**
+ * Kronecker product of a chain of factors, built in a single pass.
+ * Multiplying the factors pairwise allocates every intermediate
+ * product; here the result is sized once, and each of its rows is
+ * written directly.
+ * <p>
+ * Rows are filled in groups which share the row of every factor but
+ * the last.  The product of those rows is formed once per group, and
+ * each row of the group is then that product times a row of the last
+ * factor, written from left to right with one multiplication per
+ * entry.  Large products are filled in parallel: the caller and
+ * helpers on the shared compute scheduler claim blocks of groups in
+ * turn, so the fill never waits for a helper to be scheduled, and
+ * small products are filled by the caller alone.
+ *
+ * @author Sarah Kreidler
+ */
+final class KroneckerProduct {
+    /** Entries in a product at which rows are filled in parallel. */
+    static final long PARALLEL_ENTRIES = 1L << 20;
+
+    /** Fewest rows filled by a parallel task. */
+    private static final int MIN_BLOCK_ROWS = 64;
+
+    /** Entries of the factors other than the last, outermost first. */
+    private final double[][][] prefixFactors;
+    private final double[][] lastFactor;
+    private final int prefixRows;
+    private final int prefixColumns;
+    private final int rows;
+    private final int columns;
+
+    /**
+     * @param factors factors, outermost first
+     */
+    private KroneckerProduct(List<RealMatrix> factors) {
+        int count = factors.size();
+        if (count == 0) {
+            // the empty product is the 1x1 identity
+            prefixFactors = new double[0][][];
+            lastFactor = new double[][] {{1}};
+        } else {
+            prefixFactors = new double[count - 1][][];
+            for (int i = 0; i < count - 1; i++) {
+                prefixFactors[i] = entries(factors.get(i));
+            }
+            lastFactor = entries(factors.get(count - 1));
+        }
+        int prefixRowCount = 1;
+        int prefixColumnCount = 1;
+        for (double[][] factor: prefixFactors) {
+            prefixRowCount *= factor.length;
+            prefixColumnCount *= factor[0].length;
+        }
+        this.prefixRows = prefixRowCount;
+        this.prefixColumns = prefixColumnCount;
+        long rowCount = (long) prefixRows * lastFactor.length;
+        long columnCount = (long) prefixColumns * lastFactor[0].length;
+        if (rowCount > Integer.MAX_VALUE || columnCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Kronecker product is too large: " +
+                    rowCount + " x " + columnCount);
+        }
+        this.rows = (int) rowCount;
+        this.columns = (int) columnCount;
+    }
+
+    /**
+     * Kronecker product of two matrices.
+     *
+     * @param left outer factor
+     * @param right inner factor
+     * @return left (x) right
+     */
+    static RealMatrix of(RealMatrix left, RealMatrix right) {
+        return of(Arrays.asList(left, right), null);
+    }
+
+    /**
+     * Kronecker product of a list of matrices.  An empty list yields
+     * the 1x1 identity.
+     *
+     * @param factors factors, outermost first
+     * @return product of the factors
+     */
+    static RealMatrix of(List<RealMatrix> factors) {
+        return of(factors, null);
+    }
+
+    /**
+     * Kronecker product of a list of matrices, built in a matrix from
+     * the specified scope.
+     *
+     * @param factors factors, outermost first
+     * @param scope scope for large matrices, or null to build on the heap
+     * @return product of the factors
+     */
+    static RealMatrix of(List<RealMatrix> factors, MatrixScope scope) {
+        KroneckerProduct product = new KroneckerProduct(factors);
+        if (scope == null) {
+            double[][] data = new double[product.rows][product.columns];
+            product.fill(data, null);
+            return new Array2DRowRealMatrix(data, false);
+        }
+        RealMatrix target = scope.allocate(product.rows, product.columns);
+        if (target instanceof Array2DRowRealMatrix) {
+            product.fill(((Array2DRowRealMatrix) target).getDataRef(), null);
+        } else {
+            product.fill(null, target);
+        }
+        return target;
+    }
+
+    /**
+     * Number of rows of the Kronecker product of a list of factors,
+     * without forming the product.
+     *
+     * @param factors factors
+     * @return rows of the product
+     * @throws IllegalArgumentException if the product is too large
+     */
+    static int rows(List<RealMatrix> factors) {
+        long rows = 1;
+        for (RealMatrix factor: factors) {
+            rows *= factor.getRowDimension();
+            if (rows > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Kronecker product is too large: " + rows + " rows");
+            }
+        }
+        return (int) rows;
+    }
+
+    /**
+     * Number of columns of the Kronecker product of a list of factors,
+     * without forming the product.
+     *
+     * @param factors factors
+     * @return columns of the product
+     * @throws IllegalArgumentException if the product is too large
+     */
+    static int columns(List<RealMatrix> factors) {
+        long columns = 1;
+        for (RealMatrix factor: factors) {
+            columns *= factor.getColumnDimension();
+            if (columns > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Kronecker product is too large: " + columns + " columns");
+            }
+        }
+        return (int) columns;
+    }
+
+    /**
+     * Product of the Kronecker product of a list of factors and a
+     * matrix, without forming the Kronecker product.  The factors are
+     * applied one at a time, each to its own index of the rows of the
+     * matrix, so the cost is that of multiplying by each factor rather
+     * than by their product.
+     *
+     * @param factors factors, outermost first
+     * @param matrix matrix with as many rows as the product has columns
+     * @return (factor 1 (x) factor 2 (x) ...) matrix
+     * @throws IllegalArgumentException if the matrices do not conform
+     */
+    static RealMatrix leftMultiply(List<RealMatrix> factors, RealMatrix matrix) {
+        int count = factors.size();
+        double[][][] factorData = new double[count][][];
+        long columnCount = 1;
+        for (int i = 0; i < count; i++) {
+            factorData[i] = entries(factors.get(i));
+            columnCount *= factorData[i][0].length;
+        }
+        int rows = matrix.getRowDimension();
+        int width = matrix.getColumnDimension();
+        if (columnCount != rows) {
+            throw new IllegalArgumentException("Kronecker product with " + columnCount +
+                    " columns cannot multiply a matrix with " + rows + " rows.");
+        }
+
+        // the rows of the matrix are indexed by one index per factor, the
+        // last varying fastest; factor i replaces index i, so the entries
+        // before it have the row counts of the factors already applied,
+        // and those after it the column counts of the factors still to come
+        double[] current = new double[rows * width];
+        double[][] data = entries(matrix);
+        for (int row = 0; row < rows; row++) {
+            System.arraycopy(data[row], 0, current, row * width, width);
+        }
+        int outer = 1;
+        int inner = rows * width;
+        for (int i = 0; i < count; i++) {
+            double[][] factor = factorData[i];
+            int factorRows = factor.length;
+            int factorColumns = factor[0].length;
+            inner /= factorColumns;
+            double[] next = new double[outer * factorRows * inner];
+            for (int o = 0; o < outer; o++) {
+                int sourceBase = o * factorColumns * inner;
+                int targetBase = o * factorRows * inner;
+                for (int s = 0; s < factorRows; s++) {
+                    double[] factorRow = factor[s];
+                    int target = targetBase + s * inner;
+                    for (int t = 0; t < factorColumns; t++) {
+                        double value = factorRow[t];
+                        if (value != 0) {
+                            int source = sourceBase + t * inner;
+                            for (int r = 0; r < inner; r++) {
+                                next[target + r] += value * current[source + r];
+                            }
+                        }
+                    }
+                }
+            }
+            current = next;
+            outer *= factorRows;
+        }
+
+        double[][] product = new double[outer][width];
+        for (int row = 0; row < outer; row++) {
+            System.arraycopy(current, row * width, product[row], 0, width);
+        }
+        return new Array2DRowRealMatrix(product, false);
+    }
+
+    /**
+     * Product of a matrix and the Kronecker product of a list of
+     * factors, without forming the Kronecker product.
+     *
+     * @param matrix matrix with as many columns as the product has rows
+     * @param factors factors, outermost first
+     * @return matrix (factor 1 (x) factor 2 (x) ...)
+     * @throws IllegalArgumentException if the matrices do not conform
+     */
+    static RealMatrix rightMultiply(RealMatrix matrix, List<RealMatrix> factors) {
+        // (A (x) B)' = A' (x) B'
+        List<RealMatrix> transposes = new ArrayList<RealMatrix>(factors.size());
+        for (RealMatrix factor: factors) {
+            transposes.add(factor.transpose());
+        }
+        return leftMultiply(transposes, matrix.transpose()).transpose();
+    }
+
+    /**
+     * Fill the product, in parallel if it is large.  The rows are
+     * either written in place, into zero filled arrays, or copied
+     * into the target matrix.
+     *
+     * @param data rows of the product, or null to use the target
+     * @param target matrix to fill, if data is null
+     */
+    private void fill(double[][] data, RealMatrix target) {
+        int groupRows = lastFactor.length;
+        int blockGroups = Math.max(1, (MIN_BLOCK_ROWS + groupRows - 1) / groupRows);
+        int blocks = (prefixRows + blockGroups - 1) / blockGroups;
+        int threads = ComputeScheduler.getInstance().getParallelism();
+        if ((long) rows * columns < PARALLEL_ENTRIES || threads < 2 || blocks < 2) {
+            fill(0, prefixRows, data, target);
+            return;
+        }
+
+        // a few blocks per thread, so that uneven blocks even out
+        blocks = Math.min(blocks, 4 * threads);
+        blockGroups = (prefixRows + blocks - 1) / blocks;
+        ParallelFill parallelFill = new ParallelFill(blockGroups, data, target);
+        for (int i = 1; i < Math.min(blocks, threads); i++) {
+            ComputeScheduler.getInstance().execute(parallelFill);
+        }
+        parallelFill.run();
+        parallelFill.finish();
+    }
+
+    /**
+     * Blocks of groups shared by the caller and its helpers, each of
+     * which claims blocks until none are left.  Helpers which start
+     * after the caller has finished do nothing.
+     */
+    private final class ParallelFill implements Runnable {
+        private final int blockGroups;
+        private final double[][] data;
+        private final RealMatrix target;
+        private final AtomicInteger nextGroup = new AtomicInteger(0);
+        private int active = 0;
+        private boolean closed = false;
+        private RuntimeException failure = null;
+
+        /**
+         * @param blockGroups groups in a block
+         * @param data rows of the product, or null to use the target
+         * @param target matrix to fill, if data is null
+         */
+        private ParallelFill(int blockGroups, double[][] data, RealMatrix target) {
+            this.blockGroups = blockGroups;
+            this.data = data;
+            this.target = target;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                active++;
+            }
+            try {
+                int first;
+                while ((first = nextGroup.getAndAdd(blockGroups)) < prefixRows) {
+                    fill(first, Math.min(prefixRows, first + blockGroups), data, target);
+                }
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                // leave no blocks for the others
+                nextGroup.set(prefixRows);
+            } finally {
+                synchronized (this) {
+                    active--;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Wait for the helpers which started, even if interrupted,
+         * since they write into the target until they finish.
+         */
+        private synchronized void finish() {
+            closed = true;
+            boolean interrupted = false;
+            while (active > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Fill the rows of a range of groups.
+     *
+     * @param firstGroup first group, i.e. row of the product of all factors but the last
+     * @param endGroup group after the last
+     * @param data rows of the product, or null to use the target
+     * @param target matrix to fill, if data is null
+     */
+    private void fill(int firstGroup, int endGroup, double[][] data, RealMatrix target) {
+        int count = prefixFactors.length;
+        int groupRows = lastFactor.length;
+        int width = lastFactor[0].length;
+        int[] factorRows = new int[count];
+        double[] prefix = new double[prefixColumns];
+        double[] scratch = (data == null ? new double[columns] : null);
+
+        for (int group = firstGroup; group < endGroup; group++) {
+            // the row of each factor, the last factor varying fastest
+            int remainder = group;
+            for (int i = count - 1; i >= 0; i--) {
+                int factorRowCount = prefixFactors[i].length;
+                factorRows[i] = remainder % factorRowCount;
+                remainder /= factorRowCount;
+            }
+            // Kronecker product of the factor rows, expanded in place
+            // from the back so that no entry is overwritten before use
+            int length = 1;
+            prefix[0] = 1;
+            for (int i = 0; i < count; i++) {
+                double[] factorRow = prefixFactors[i][factorRows[i]];
+                int factorWidth = factorRow.length;
+                for (int a = length - 1; a >= 0; a--) {
+                    double value = prefix[a];
+                    for (int b = factorWidth - 1; b >= 0; b--) {
+                        prefix[a * factorWidth + b] = value * factorRow[b];
+                    }
+                }
+                length *= factorWidth;
+            }
+
+            for (int lastRow = 0; lastRow < groupRows; lastRow++) {
+                double[] last = lastFactor[lastRow];
+                int row = group * groupRows + lastRow;
+                if (data != null) {
+                    // zero filled, so zero blocks of the prefix may be skipped
+                    double[] out = data[row];
+                    for (int a = 0, index = 0; a < prefixColumns; a++, index += width) {
+                        double value = prefix[a];
+                        if (value != 0) {
+                            for (int b = 0; b < width; b++) {
+                                out[index + b] = value * last[b];
+                            }
+                        }
+                    }
+                } else {
+                    for (int a = 0, index = 0; a < prefixColumns; a++) {
+                        double value = prefix[a];
+                        for (int b = 0; b < width; b++) {
+                            scratch[index++] = value * last[b];
+                        }
+                    }
+                    target.setRow(row, scratch);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param matrix factor
+     * @return its entries, shared if possible, since they are only read
+     */
+    private static double[][] entries(RealMatrix matrix) {
+        return SharedRealMatrix.dataOf(matrix);
+    }
+}
@@ -0,0 +1,657 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.math3.linear.OpenMapRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import edu.cudenver.bios.matrix.FixedRandomMatrix;
+import edu.ucdenver.bios.powersvc.application.PowerConstants;
+import edu.ucdenver.bios.webservice.common.domain.ClusterNode;
+import edu.ucdenver.bios.webservice.common.domain.Covariance;
+import edu.ucdenver.bios.webservice.common.domain.RepeatedMeasuresNode;
+import edu.ucdenver.bios.webservice.common.domain.StudyDesign;
+import edu.ucdenver.bios.webservice.common.enums.StudyDesignViewTypeEnum;
+
+import static edu.ucdenver.bios.powersvc.resource.PowerMatrixHTMLServerResource.DISPLAY_MATRIX_BETA;
+import static edu.ucdenver.bios.powersvc.resource.PowerMatrixHTMLServerResource.DISPLAY_MATRIX_BETWEEN_CONTRAST;
+import static edu.ucdenver.bios.powersvc.resource.PowerMatrixHTMLServerResource.DISPLAY_MATRIX_DESIGN;
+import static edu.ucdenver.bios.powersvc.resource.PowerMatrixHTMLServerResource.DISPLAY_MATRIX_SIGMA_ERROR;
+import static edu.ucdenver.bios.powersvc.resource.PowerMatrixHTMLServerResource.DISPLAY_MATRIX_SIGMA_GAUSSIAN;
+import static edu.ucdenver.bios.powersvc.resource.PowerMatrixHTMLServerResource.DISPLAY_MATRIX_SIGMA_OUTCOME;
+import static edu.ucdenver.bios.powersvc.resource.PowerMatrixHTMLServerResource.DISPLAY_MATRIX_SIGMA_OUTCOME_GAUSSIAN;
+import static edu.ucdenver.bios.powersvc.resource.PowerMatrixHTMLServerResource.DISPLAY_MATRIX_THETA_NULL;
+import static edu.ucdenver.bios.powersvc.resource.PowerMatrixHTMLServerResource.DISPLAY_MATRIX_THETA_OBSERVED;
+import static edu.ucdenver.bios.powersvc.resource.PowerMatrixHTMLServerResource.DISPLAY_MATRIX_WITHIN_CONTRAST;
+
+/**
+ * HTML/MathJax page showing the matrices used in a power calculation,
+ * using the notation of Muller & Stewart 2007.
+ * <p>
+ * All matrices are obtained from the design context when the page is
+ * created, so that invalid study designs are reported before any output
+ * is written.  The page is then written directly to a character stream.  Matrices with more
+ * than the maximum display dimension of rows or columns have their
+ * interiors elided, and guided mode contrasts which are too large to
+ * show in full are displayed as the Kronecker product of their factors.
+ * <p>
+ * Guided mode matrices which are shown only symbolically or as factors
+ * are never built: the design matrix is shown as an identity from its
+ * dimensions, C and U from their factors, and the error covariance from
+ * its factors, whose diagonal is all that the covariate correlations
+ * need.
+ *
+ * @author Sarah Kreidler
+ */
+class MatrixHTMLPage {
+    /** Default maximum number of rows or columns displayed for a matrix. */
+    public static final int DEFAULT_MAX_DIMENSION = 16;
+
+    /** Smallest usable maximum dimension: first entry, ellipsis, last entry. */
+    private static final int MIN_DIMENSION = 3;
+
+    /** Index used to mark an elided row or column. */
+    private static final int ELIDED = -1;
+
+    private static final String KRONECKER_PRODUCT = "\\otimes";
+    private static final String LATEX_MATRIX_BEGIN = "\\begin{bmatrix}";
+    private static final String LATEX_MATRIX_END = "\\end{bmatrix}";
+    private static final String BEGIN_EQUATION = "\n<br/>\n\\begin{equation*}\n<br/>\n";
+    private static final String END_EQUATION = "\n<br/>\n\\end{equation*}\n<br/>\n";
+
+    /** Number of decimal places shown for matrix entries. */
+    private static final int DECIMALS = 4;
+
+    /** Formatter for matrix entries, owned by this page. */
+    private final FixedPointFormat formatter = new FixedPointFormat(DECIMALS);
+
+    private final int maxDimension;
+
+    private final StudyDesign studyDesign;
+    private final List<ClusterNode> clusterNodeList;
+    private final int clusterSize;
+
+    /* Design matrix, or the size of an identity design matrix too large to show */
+    private RealMatrix designMatrix = null;
+    private int designIdentitySize = 0;
+
+    private final FixedRandomMatrix beta;
+
+    /* Guided mode contrasts too large to show are held as factors only */
+    private RealMatrix betweenContrast = null;
+    private List<RealMatrix> betweenContrastFactors = null;
+    private RealMatrix withinContrast = null;
+    private List<RealMatrix> withinContrastFactors = null;
+
+    private final RealMatrix thetaObserved;
+    private final RealMatrix thetaNull;
+
+    /* Gaussian covariate designs only */
+    private RealMatrix sigmaG = null;
+    private RealMatrix sigmaYG = null;
+
+    /* Matrix mode sigma, or the non-cluster Kronecker factors of a guided mode sigma */
+    private RealMatrix sigmaMatrix = null;
+    private List<RealMatrix> sigmaFactors = null;
+
+    /** Set once any matrix has been written with elided rows or columns. */
+    private boolean elided = false;
+
+    /**
+     * Compute the matrices for a study design.
+     *
+     * @param context design context
+     * @param maxDimension maximum number of rows or columns to display
+     * for a matrix before eliding its interior
+     */
+    public MatrixHTMLPage(DesignContext context, int maxDimension) {
+        this.studyDesign = context.getStudyDesign();
+        this.maxDimension = Math.max(MIN_DIMENSION, maxDimension);
+        this.clusterNodeList = context.getClusterNodeList();
+        this.clusterSize = context.getClusterSize();
+
+        boolean guided = studyDesign.getViewTypeEnum() != StudyDesignViewTypeEnum.MATRIX_MODE;
+
+        // the observed theta is that of the clustered matrices
+        thetaObserved = context.getThetaObserved();
+
+        // the remaining matrices are displayed without the clustering adjustment
+        FixedRandomMatrix B = context.getUnclusteredBeta();
+        beta = new FixedRandomMatrix(B.getFixedMatrix().getData(),
+                (B.getRandomMatrix() != null ? B.getRandomMatrix().getData() : null), false);
+        thetaNull = context.getThetaNull();
+
+        // a guided mode design matrix is an identity unless the group sizes are unequal
+        int[] designDimensions = (guided ? PowerResourceHelper.guidedDesignMatrixDimensions(studyDesign) : null);
+        if (designDimensions != null && designDimensions[0] == designDimensions[1]
+                && designDimensions[0] > this.maxDimension) {
+            designIdentitySize = designDimensions[0];
+        } else {
+            designMatrix = context.getDesignMatrix();
+        }
+
+        // the random part of a guided mode C is a column of zeros
+        List<RealMatrix> factors = context.getBetweenContrastFactors();
+        if (showsFactors(factors, studyDesign.isGaussianCovariate() ? 1 : 0)) {
+            betweenContrastFactors = factors;
+        } else {
+            FixedRandomMatrix C = context.getBetweenContrast();
+            betweenContrast = (C != null ? C.getCombinedMatrix() : null);
+        }
+        factors = context.getWithinContrastFactors();
+        if (showsFactors(factors, 0)) {
+            withinContrastFactors = factors;
+        } else {
+            withinContrast = context.getUnclusteredWithinContrast();
+        }
+
+        // covariance of the errors (or outcomes, for Gaussian covariate designs)
+        if (guided) {
+            sigmaFactors = sigmaFactorsFromStudyDesign(studyDesign);
+        } else {
+            sigmaMatrix = studyDesign.isGaussianCovariate()
+                    ? context.getSigmaOutcome()
+                    : context.getSigmaError();
+        }
+
+        if (studyDesign.isGaussianCovariate()) {
+            sigmaG = context.getSigmaCovariate();
+            // only the diagonal of a guided mode sigmaY is used, and the
+            // compound symmetric cluster factors have a unit diagonal
+            sigmaYG = guided
+                    ? PowerResourceHelper.sigmaOutcomesCovariateMatrixFromStudyDesign(studyDesign,
+                            sigmaG, diagonalOfProduct(sigmaFactors), null)
+                    : context.getUnclusteredSigmaOutcomeCovariate();
+            // display the random part of beta as sigmaG^-1 * sigmaGY
+            beta.updateRandomMatrix(context.getSigmaCovariateInverse().multiply(sigmaYG.transpose()));
+        }
+    }
+
+    /**
+     * Determine if a contrast is to be shown as the Kronecker product of
+     * its factors, because the product is too large to show in full.
+     *
+     * @param factors factors of the contrast, or null if not available
+     * @param extraColumns columns appended to the product
+     * @return true if the factors are shown rather than the product
+     */
+    private boolean showsFactors(List<RealMatrix> factors, int extraColumns) {
+        return factors != null && factors.size() >= 2
+                && (KroneckerProduct.rows(factors) > maxDimension
+                        || (long) KroneckerProduct.columns(factors) + extraColumns > maxDimension);
+    }
+
+    /**
+     * Build the diagonal of the Kronecker product of a list of factors as a
+     * sparse matrix, without forming the product.
+     *
+     * @param factors square factors
+     * @return matrix holding only the diagonal of the product
+     */
+    private static RealMatrix diagonalOfProduct(List<RealMatrix> factors) {
+        double[] diagonal = new double[] {1};
+        for(RealMatrix factor: factors) {
+            int size = factor.getRowDimension();
+            double[] next = new double[diagonal.length * size];
+            for(int i = 0; i < diagonal.length; i++) {
+                for(int j = 0; j < size; j++) {
+                    next[i * size + j] = diagonal[i] * factor.getEntry(j, j);
+                }
+            }
+            diagonal = next;
+        }
+        RealMatrix matrix = new OpenMapRealMatrix(diagonal.length, diagonal.length);
+        for(int i = 0; i < diagonal.length; i++) {
+            matrix.setEntry(i, i, diagonal[i]);
+        }
+        return matrix;
+    }
+
+    /**
+     * Write the page.
+     *
+     * @param out character stream
+     * @throws IOException if the stream cannot be written
+     */
+    public void write(Writer out) throws IOException {
+        out.write("<html><head><script type=\"text/javascript\" ");
+        out.write("src=\"https://cdnjs.cloudflare.com/ajax/libs/mathjax/2.7.1/MathJax.js?");
+        out.write("config=TeX-AMS-MML_HTMLorMML\"></script></head><body>");
+        out.write("<script>MathJax.Hub.Queue([\"Typeset\",MathJax.Hub]);</script>");
+
+        // design matrix
+        out.write(BEGIN_EQUATION);
+        out.write(DISPLAY_MATRIX_DESIGN);
+        out.write(" = ");
+        if (designIdentitySize > 0) {
+            writeIdentity(out, designIdentitySize);
+        } else {
+            writeMatrix(out, designMatrix);
+        }
+        out.write(END_EQUATION);
+
+        // beta matrix
+        out.write(BEGIN_EQUATION);
+        out.write(DISPLAY_MATRIX_BETA);
+        out.write(" = ");
+        if (clusterSize > 1) {
+            writeColumnOfOnes(out, clusterSize, true);
+            out.write(KRONECKER_PRODUCT);
+        }
+        writeMatrix(out, beta.getCombinedMatrix());
+        out.write(END_EQUATION);
+
+        // between participant contrast
+        out.write(BEGIN_EQUATION);
+        out.write(DISPLAY_MATRIX_BETWEEN_CONTRAST);
+        out.write(" = ");
+        if (betweenContrastFactors != null && studyDesign.isGaussianCovariate()) {
+            // the fixed factors, then the zero column of the random part
+            out.write("\\left[");
+            writeFactors(out, betweenContrastFactors);
+            out.write("\\;\\boldsymbol{0}\\right]");
+        } else {
+            writeProduct(out, betweenContrast, betweenContrastFactors);
+        }
+        out.write(END_EQUATION);
+
+        // within participant contrast
+        out.write(BEGIN_EQUATION);
+        out.write(DISPLAY_MATRIX_WITHIN_CONTRAST);
+        out.write(" = ");
+        if (clusterSize > 1) {
+            writeColumnOfOnes(out, clusterSize, false);
+            out.write(KRONECKER_PRODUCT);
+        }
+        writeProduct(out, withinContrast, withinContrastFactors);
+        out.write(END_EQUATION);
+
+        // observed theta
+        out.write(BEGIN_EQUATION);
+        out.write(DISPLAY_MATRIX_THETA_OBSERVED);
+        out.write(" = ");
+        writeMatrix(out, thetaObserved);
+        out.write(END_EQUATION);
+
+        // theta null matrix
+        out.write(BEGIN_EQUATION);
+        out.write(DISPLAY_MATRIX_THETA_NULL);
+        out.write(" = ");
+        writeMatrix(out, thetaNull);
+        out.write(END_EQUATION);
+
+        // add matrices for either GLMM(F) or GLMM(F,g) designs
+        if (studyDesign.isGaussianCovariate()) {
+            // sigma for Gaussian covariate
+            out.write(BEGIN_EQUATION);
+            out.write(DISPLAY_MATRIX_SIGMA_GAUSSIAN);
+            out.write(" = ");
+            writeMatrix(out, sigmaG);
+            out.write(END_EQUATION);
+
+            // sigma for Gaussian covariate and outcomes
+            out.write(BEGIN_EQUATION);
+            out.write(DISPLAY_MATRIX_SIGMA_OUTCOME_GAUSSIAN);
+            out.write(" = ");
+            if (clusterSize > 1) {
+                writeColumnOfOnes(out, clusterSize, false);
+                out.write(KRONECKER_PRODUCT);
+            }
+            writeMatrix(out, sigmaYG);
+            out.write(END_EQUATION);
+
+            // sigma outcomes matrix
+            out.write(BEGIN_EQUATION);
+            writeSigma(out, DISPLAY_MATRIX_SIGMA_OUTCOME);
+            out.write(END_EQUATION);
+        } else {
+            // sigma error
+            out.write(BEGIN_EQUATION);
+            writeSigma(out, DISPLAY_MATRIX_SIGMA_ERROR);
+            out.write(END_EQUATION);
+        }
+
+        out.write("<p/>(For ease of display, some scaling factors may have been omitted.)");
+        if (elided) {
+            out.write("<p/>(Rows and columns of large matrices have been elided.)");
+        }
+        out.write("<p/>For notation details, please see<p/>");
+        out.write(createCitations());
+        out.write(createBrowserNotes());
+        out.write("</body></html>");
+        out.flush();
+    }
+
+    /**
+     * Collect the Kronecker factors of the guided mode error covariance,
+     * excluding the compound symmetric cluster factors.
+     *
+     * @param studyDesign study design object
+     * @return list of covariance matrices
+     */
+    private static List<RealMatrix> sigmaFactorsFromStudyDesign(StudyDesign studyDesign) {
+        List<RealMatrix> factors = new ArrayList<RealMatrix>();
+
+        // add covariance for repeated measures
+        List<RepeatedMeasuresNode> rmNodeList = studyDesign.getRepeatedMeasuresTree();
+        if (rmNodeList != null) {
+            for(RepeatedMeasuresNode rmNode: rmNodeList) {
+                Covariance covariance = studyDesign.getCovarianceFromSet(rmNode.getDimension());
+                if (covariance != null) {
+                    RealMatrix kroneckerMatrix =
+                            CovarianceHelper.covarianceToRealMatrix(covariance, rmNode);
+                    if (kroneckerMatrix != null) {
+                        factors.add(kroneckerMatrix);
+                    }
+                }
+            }
+        }
+        // lastly, we need to add the covariance of responses
+        Covariance covariance = studyDesign.getCovarianceFromSet(
+                PowerConstants.RESPONSES_COVARIANCE_LABEL);
+        RealMatrix kroneckerMatrix = CovarianceHelper.covarianceToRealMatrix(covariance,
+                studyDesign.getResponseList());
+        if (kroneckerMatrix != null) {
+            factors.add(kroneckerMatrix);
+        }
+        return factors;
+    }
+
+    /**
+     * Write MathJax LaTeX for the sigma error (or outcomes) matrix.
+     *
+     * @param out character stream
+     * @param name display name of the matrix
+     * @throws IOException if the stream cannot be written
+     */
+    private void writeSigma(Writer out, String name) throws IOException {
+        out.write(name);
+        out.write(" = ");
+        if (sigmaMatrix != null) {
+            writeMatrix(out, sigmaMatrix);
+            return;
+        }
+
+        // add covariance information for clustering
+        boolean first = true;
+        if (clusterSize > 1) {
+            for(ClusterNode clusterNode: clusterNodeList) {
+                if (!first) {
+                    out.write(KRONECKER_PRODUCT);
+                }
+                writeCompoundSymmetric(out, clusterNode.getGroupSize(),
+                        clusterNode.getIntraClusterCorrelation());
+                first = false;
+            }
+        }
+
+        // add covariance for repeated measures and responses
+        if (sigmaFactors != null) {
+            for(RealMatrix factor: sigmaFactors) {
+                if (!first) {
+                    out.write(KRONECKER_PRODUCT);
+                }
+                writeMatrix(out, factor);
+                first = false;
+            }
+        }
+    }
+
+    /**
+     * Write a matrix which is the Kronecker product of some factors: the
+     * factors if the product was too large to build, otherwise the product.
+     *
+     * @param out character stream
+     * @param product product matrix, or null if shown as factors
+     * @param factors factors of the product, or null if the product is shown
+     * @throws IOException if the stream cannot be written
+     */
+    private void writeProduct(Writer out, RealMatrix product, List<RealMatrix> factors)
+    throws IOException {
+        if (factors != null) {
+            writeFactors(out, factors);
+        } else {
+            writeMatrix(out, product);
+        }
+    }
+
+    /**
+     * Write the Kronecker product of a list of factors, factor by factor.
+     *
+     * @param out character stream
+     * @param factors factors of the product
+     * @throws IOException if the stream cannot be written
+     */
+    private void writeFactors(Writer out, List<RealMatrix> factors) throws IOException {
+        boolean first = true;
+        for(RealMatrix factor: factors) {
+            if (!first) {
+                out.write(KRONECKER_PRODUCT);
+            }
+            writeMatrix(out, factor);
+            first = false;
+        }
+    }
+
+    /**
+     * Write a LaTeX representation of the matrix.  Large identity
+     * matrices are written symbolically, and other large matrices
+     * have their interior rows and columns elided.
+     *
+     * @param out character stream
+     * @param matrix matrix
+     * @throws IOException if the stream cannot be written
+     */
+    private void writeMatrix(Writer out, RealMatrix matrix) throws IOException {
+        if (matrix == null) {
+            return;
+        }
+        int rows = matrix.getRowDimension();
+        int columns = matrix.getColumnDimension();
+        if (!fits(matrix)) {
+            if (isIdentity(matrix)) {
+                writeIdentity(out, rows);
+                return;
+            }
+            elided = true;
+        }
+
+        int displayRows = Math.min(rows, maxDimension);
+        int displayColumns = Math.min(columns, maxDimension);
+
+        out.write(LATEX_MATRIX_BEGIN);
+        for(int displayRow = 0; displayRow < displayRows; displayRow++) {
+            if (displayRow > 0) {
+                out.write(" \\\\ ");
+            }
+            int row = displayIndex(displayRow, rows);
+            for(int displayColumn = 0; displayColumn < displayColumns; displayColumn++) {
+                if (displayColumn > 0) {
+                    out.write(" & ");
+                }
+                int col = displayIndex(displayColumn, columns);
+                if (row == ELIDED && col == ELIDED) {
+                    out.write("\\ddots");
+                } else if (row == ELIDED) {
+                    out.write("\\vdots");
+                } else if (col == ELIDED) {
+                    out.write("\\cdots");
+                } else {
+                    formatter.write(out, matrix.getEntry(row, col));
+                }
+            }
+        }
+        out.write(LATEX_MATRIX_END);
+    }
+
+    /**
+     * Map a displayed row or column to the matrix row or column.  If the
+     * dimension exceeds the display, the leading entries are shown,
+     * followed by an ellipsis and the last entry.
+     *
+     * @param displayIndex displayed row or column
+     * @param dimension number of rows or columns in the matrix
+     * @return matrix row or column, or ELIDED for the ellipsis
+     */
+    private int displayIndex(int displayIndex, int dimension) {
+        if (dimension <= maxDimension || displayIndex < maxDimension - 2) {
+            return displayIndex;
+        } else if (displayIndex == maxDimension - 2) {
+            return ELIDED;
+        } else {
+            return dimension - 1;
+        }
+    }
+
+    /**
+     * Determine if the matrix can be displayed without elision.
+     *
+     * @param matrix matrix
+     * @return true if the matrix fits the maximum display dimension
+     */
+    private boolean fits(RealMatrix matrix) {
+        return matrix.getRowDimension() <= maxDimension
+                && matrix.getColumnDimension() <= maxDimension;
+    }
+
+    /**
+     * Determine if the matrix is an identity matrix.
+     *
+     * @param matrix matrix
+     * @return true if square with ones on the diagonal and zeros elsewhere
+     */
+    private static boolean isIdentity(RealMatrix matrix) {
+        int rows = matrix.getRowDimension();
+        if (rows != matrix.getColumnDimension()) {
+            return false;
+        }
+        for(int row = 0; row < rows; row++) {
+            for(int col = 0; col < rows; col++) {
+                if (matrix.getEntry(row, col) != (row == col ? 1 : 0)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write a matrix representing with a column of 1's using
+     * Muller & Stewart 2007 notation.
+     *
+     * @param out character stream
+     * @param size column size
+     * @param transpose indicates if the matrix is transposed.
+     * @throws IOException if the stream cannot be written
+     */
+    private static void writeColumnOfOnes(Writer out, int size, boolean transpose)
+    throws IOException {
+        out.write("\\boldsymbol{1}_{");
+        out.write(Integer.toString(size));
+        out.write("}");
+        if (transpose) {
+            out.write("'");
+        }
+    }
+
+    /**
+     * Write MathJax LaTeX for an identity matrix using
+     * Muller & Stewart 2007 notation.
+     *
+     * @param out character stream
+     * @param size column size
+     * @throws IOException if the stream cannot be written
+     */
+    private static void writeIdentity(Writer out, int size) throws IOException {
+        out.write("\\boldsymbol{I}_{");
+        out.write(Integer.toString(size));
+        out.write("}");
+    }
+
+    /**
+     * Write LaTeX for a compound symmetric correlation matrix
+     *
+     * @param out character stream
+     * @param size size of the matrix
+     * @param rho correlation parameter
+     * @throws IOException if the stream cannot be written
+     */
+    private void writeCompoundSymmetric(Writer out, int size, double rho) throws IOException {
+        out.write("\\left[");
+        writeColumnOfOnes(out, size, false);
+        writeColumnOfOnes(out, size, true);
+        out.write("\\left(");
+        formatter.write(out, rho);
+        out.write("\\right)");
+        out.write(" + ");
+        writeIdentity(out, size);
+        out.write("\\left(1 - ");
+        formatter.write(out, rho);
+        out.write("\\right)");
+        out.write("\\right]");
+    }
+
+    /**
+     * Output the notation citations
+     * @return HTML citation block
+     */
+    private static String createCitations() {
+        return "<div class=\"csl-bib-body\" style=\"line-height: 1.35; \">" +
+                "<div class=\"csl-entry\" style=\"margin-bottom: 1em;\">" +
+                "1. Glueck DH, Muller KE. Adjusting power for a baseline " +
+                "covariate in linear models. <i>Statistics in Medicine</i>. " +
+                "2003;22:2535-2551.</div><span class=\"Z3988\" title=" +
+                "\"url_ver=Z39.88-2004&amp;ctx_ver=Z39.88-2004&amp;" +
+                "rfr_id=info%3Asid%2Fzotero.org%3A2&amp;rft_val_fmt=" +
+                "info%3Aofi%2Ffmt%3Akev%3Amtx%3Ajournal&amp;rft.genre" +
+                "=article&amp;rft.atitle=Adjusting%20power%20for%20a%20" +
+                "baseline%20covariate%20in%20linear%20models&amp;rft.jtitle=" +
+                "Statistics%20in%20Medicine&amp;rft.volume=22&amp;rft.aufirst" +
+                "=D.%20H&amp;rft.aulast=Glueck&amp;rft.au=D.%20H%20Glueck" +
+                "&amp;rft.au=K.%20E%20Muller&amp;rft.date=2003&amp;rft.pages" +
+                "=2535-2551&amp;rft.spage=2535&amp;rft.epage=2551\"/>" +
+                "<div class=\"csl-entry\">2. Muller KE, Stewart PW. <i>Linear Model " +
+                "Theory: Univariate, Multivariate, and Mixed Models</i>. Hoboken, NJ: " +
+                "Wiley; 2006.</div><span class=\"Z3988\" title=\"url_ver=Z39.88-2004" +
+                "&amp;ctx_ver=Z39.88-2004&amp;rfr_id=info%3Asid%2Fzotero.org%3A2" +
+                "&amp;rft_val_fmt=info%3Aofi%2Ffmt%3Akev%3Amtx%3Abook&amp;" +
+                "rft.genre=book&amp;rft.btitle=Linear%20Model%20Theory%3A%20" +
+                "Univariate%2C%20Multivariate%2C%20and%20Mixed%20Models" +
+                "&amp;rft.place=Hoboken%2C%20NJ&amp;rft.publisher=Wiley" +
+                "&amp;rft.aufirst=Keith%20E&amp;rft.aulast=Muller&amp;" +
+                "rft.au=Keith%20E%20Muller&amp;rft.au=Paul%20W%20Stewart" +
+                "&amp;rft.date=2006\"/></div>";
+    }
+
+    private static String createBrowserNotes() {
+        return "<p/><div ng-show=\"!isMobile\">" +
+                "This feature requires browser support of MathJax.  Please see the " +
+                "<a target=\"_blank\" href=\"http://www.mathjax.org/\">MathJax Homepage</a> " +
+                "for information regarding supported browsers.</div>";
+    }
+}
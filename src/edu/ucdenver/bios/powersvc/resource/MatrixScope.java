@@ -0,0 +1,241 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.restlet.Context;
+
+import edu.ucdenver.bios.powersvc.application.PowerApplication;
+
+/**
+ * Owner of the off-heap matrices built for a single request.  Matrices
+ * at or above the size threshold are held in direct buffers, and all
+ * of them, with the copies sharing their buffers, are detached together
+ * when the last reference to the scope is released, so that nothing
+ * uses them afterward.  The buffers are not freed explicitly: a reader
+ * without a reference, e.g. a response rendered after the calculation,
+ * could otherwise read freed memory and crash the process, where a
+ * detached matrix fails with an IllegalStateException.  Smaller
+ * matrices are ordinary heap matrices.
+ * <p>
+ * The request holds the first reference.  A calculation run on
+ * another thread holds its own, taken by submit, so that the matrices
+ * outlive a request which times out while the calculation is still
+ * running.
+ *
+ * @author Sarah Kreidler
+ */
+final class MatrixScope {
+    /** Default size, in kilobytes, at which matrices are held off the heap. */
+    static final int DEFAULT_THRESHOLD_KILOBYTES = 1024;
+
+    private static final long BYTES_PER_KILOBYTE = 1024;
+
+    private final long thresholdEntries;
+    private final List<OffHeapRealMatrix> matrices = new ArrayList<OffHeapRealMatrix>();
+    private int references = 1;
+
+    /**
+     * Create a scope, holding one reference for the caller.
+     *
+     * @param thresholdBytes size at which matrices are held off the heap,
+     * or zero to keep all matrices on the heap
+     */
+    MatrixScope(long thresholdBytes) {
+        this.thresholdEntries = (thresholdBytes > 0
+                ? Math.max(1, thresholdBytes / OffHeapRealMatrix.BYTES_PER_ENTRY) : Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a scope with the threshold configured for the application,
+     * holding one reference for the caller.
+     *
+     * @param context application context, or null
+     * @return new scope
+     */
+    static MatrixScope create(Context context) {
+        int kilobytes = DEFAULT_THRESHOLD_KILOBYTES;
+        if (context != null) {
+            String value = context.getParameters().getFirstValue(
+                    PowerApplication.OFF_HEAP_MATRIX_KILOBYTES_PARAMETER);
+            if (value != null) {
+                kilobytes = Integer.parseInt(value);
+            }
+        }
+        return new MatrixScope(kilobytes * BYTES_PER_KILOBYTE);
+    }
+
+    /**
+     * Allocate a zero matrix, off the heap if it is at or above the threshold.
+     *
+     * @param rows number of rows
+     * @param columns number of columns
+     * @return new matrix
+     * @throws IllegalStateException if the scope is closed
+     */
+    RealMatrix allocate(int rows, int columns) {
+        long entries = (long) rows * columns;
+        if (entries >= thresholdEntries && entries <= OffHeapRealMatrix.MAX_ENTRIES) {
+            return allocateOffHeap(rows, columns);
+        }
+        return new Array2DRowRealMatrix(rows, columns);
+    }
+
+    /**
+     * Allocate a zero matrix off the heap, whatever its size.
+     *
+     * @param rows number of rows
+     * @param columns number of columns
+     * @return new matrix
+     * @throws IllegalStateException if the scope is closed
+     */
+    synchronized OffHeapRealMatrix allocateOffHeap(int rows, int columns) {
+        if (references <= 0) {
+            throw new IllegalStateException("Matrix scope is closed.");
+        }
+        OffHeapRealMatrix matrix = new OffHeapRealMatrix(rows, columns);
+        matrices.add(matrix);
+        return matrix;
+    }
+
+    /**
+     * Submit a calculation which holds a reference to this scope until
+     * it finishes, or until it is canceled before it starts.  A
+     * calculation canceled while running keeps its reference until it
+     * stops, since the matrices must not be detached under it.
+     *
+     * @param <T> type of result
+     * @param executor executor which runs the calculation
+     * @param callable calculation
+     * @return future result
+     */
+    <T> Future<T> submit(ExecutorService executor, final Callable<T> callable) {
+        retain();
+        // whichever of starting or canceling comes first owns the release
+        final AtomicBoolean claimed = new AtomicBoolean(false);
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                if (!claimed.compareAndSet(false, true)) {
+                    throw new IllegalStateException("Calculation canceled.");
+                }
+                try {
+                    return callable.call();
+                } finally {
+                    release();
+                }
+            }
+        }) {
+            @Override
+            protected void done() {
+                if (claimed.compareAndSet(false, true)) {
+                    release();
+                }
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ree) {
+            release();
+            throw ree;
+        }
+        return task;
+    }
+
+    /**
+     * Wrap a piece of a calculation, e.g. a probe run on the compute
+     * scheduler, so that it holds a reference to this scope while it
+     * runs.  The calculation which divides up the work may give up on
+     * pieces which are still running, and release its own reference,
+     * so the matrices must not be detached under them.  A piece which
+     * starts after the scope is closed fails without running.
+     *
+     * @param <T> type of result
+     * @param callable piece of the calculation
+     * @return piece holding a reference while it runs
+     */
+    <T> Callable<T> hold(final Callable<T> callable) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                retain();
+                try {
+                    return callable.call();
+                } finally {
+                    release();
+                }
+            }
+        };
+    }
+
+    /**
+     * Take another reference to the scope.
+     *
+     * @throws IllegalStateException if the scope is closed
+     */
+    synchronized void retain() {
+        if (references <= 0) {
+            throw new IllegalStateException("Matrix scope is closed.");
+        }
+        references++;
+    }
+
+    /**
+     * Release a reference to the scope, detaching its matrices when it
+     * was the last.
+     */
+    void release() {
+        List<OffHeapRealMatrix> released;
+        synchronized (this) {
+            if (references <= 0) {
+                return;
+            }
+            references--;
+            if (references > 0) {
+                return;
+            }
+            released = new ArrayList<OffHeapRealMatrix>(matrices);
+            matrices.clear();
+        }
+        for (OffHeapRealMatrix matrix: released) {
+            matrix.detach();
+        }
+    }
+
+    /**
+     * @return number of matrices held off the heap
+     */
+    synchronized int getOffHeapCount() {
+        return matrices.size();
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.restlet.data.MediaType;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+import edu.ucdenver.bios.powersvc.application.PowerMetrics;
+
+/**
+ * Metrics resource for monitoring.  Called from the URI /metrics.
+ * Returns the process-wide metrics as plain text.
+ *
+ * @author Sarah Kreidler
+ */
+public class MetricsResource extends ServerResource {
+    /**
+     * Report the current metrics.
+     * @return metrics, one "name value" line each
+     * @throws IOException if the metrics cannot be written
+     */
+    @Get
+    public final Representation represent() throws IOException {
+        StringWriter writer = new StringWriter();
+        PowerMetrics.getInstance().write(writer);
+        return new StringRepresentation(writer.toString(), MediaType.TEXT_PLAIN);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import edu.cudenver.bios.power.PowerException;
+import edu.ucdenver.bios.powersvc.application.ComputeScheduler;
+import edu.ucdenver.bios.webservice.common.domain.Hypothesis;
+import edu.ucdenver.bios.webservice.common.domain.PowerResultList;
+import edu.ucdenver.bios.webservice.common.enums.StudyDesignViewTypeEnum;
+
+/**
+ * Results for every hypothesis of a study design, in one request.
+ * The design matrix, beta and the covariance matrices do not depend
+ * on the hypothesis, so they are built once and shared; each
+ * hypothesis builds only its own contrasts and theta null, and the
+ * hypotheses are evaluated in parallel on the shared compute
+ * scheduler.
+ * <p>
+ * Matrix mode designs have a single hypothesis, given by their
+ * contrast matrices, as do guided designs without a hypothesis.
+ *
+ * @author Sarah Kreidler
+ */
+final class MultiHypothesisEvaluation {
+    private final DesignContext context;
+    private final List<Hypothesis> hypotheses;
+
+    /**
+     * Create an evaluation.
+     *
+     * @param context context for the study design
+     */
+    MultiHypothesisEvaluation(DesignContext context) {
+        this.context = context;
+        this.hypotheses = new ArrayList<Hypothesis>();
+        Set<Hypothesis> hypothesisSet = context.getStudyDesign().getHypothesis();
+        if (context.getHypothesis() != null && hypothesisSet != null
+                && context.getStudyDesign().getViewTypeEnum() != StudyDesignViewTypeEnum.MATRIX_MODE) {
+            hypotheses.addAll(hypothesisSet);
+        } else {
+            hypotheses.add(context.getHypothesis());
+        }
+    }
+
+    /**
+     * @return hypotheses evaluated, in the order of the results
+     */
+    List<Hypothesis> getHypotheses() {
+        return hypotheses;
+    }
+
+    /**
+     * Calculate the results for each hypothesis, according to the
+     * solution type of the design.
+     *
+     * @param deadline time by which the evaluation must be complete,
+     *        in milliseconds since the epoch
+     * @return results for each hypothesis, in the order of getHypotheses
+     * @throws IllegalArgumentException if the design is invalid
+     * @throws PowerException if the calculation fails
+     * @throws TimeoutException if the deadline passes
+     * @throws InterruptedException if interrupted while waiting
+     */
+    List<PowerResultList> compute(final long deadline)
+            throws IllegalArgumentException, PowerException, TimeoutException,
+            InterruptedException {
+        // build and validate the shared matrices once, before the hypotheses use them
+        context.toPowerParameters();
+
+        // build each hypothesis's theta null up front, so that a design
+        // whose theta null only fits the primary hypothesis is rejected
+        // before any power is calculated
+        List<Callable<PowerResultList>> tasks = new ArrayList<Callable<PowerResultList>>();
+        for (Hypothesis hypothesis: hypotheses) {
+            final DesignContext hypothesisContext = context.forHypothesis(hypothesis);
+            hypothesisContext.getThetaNull();
+            tasks.add(new Callable<PowerResultList>() {
+                @Override
+                public PowerResultList call() throws Exception {
+                    return PowerResourceHelper.calculate(hypothesisContext, deadline);
+                }
+            });
+        }
+        List<Future<PowerResultList>> futures =
+                ComputeScheduler.getInstance().invokeAll(tasks, deadline);
+        List<PowerResultList> results = new ArrayList<PowerResultList>();
+        for (Future<PowerResultList> future: futures) {
+            try {
+                results.add(future.get());
+            } catch (CancellationException ce) {
+                throw new TimeoutException("Hypotheses did not complete in time.");
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof PowerException) {
+                    throw (PowerException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+        return results;
+    }
+}
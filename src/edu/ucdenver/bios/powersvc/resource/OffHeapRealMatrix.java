@@ -0,0 +1,238 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+import org.apache.commons.math3.linear.AbstractRealMatrix;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * Real matrix held row by row in a direct buffer, outside the Java heap.
+ * A large double[][] is allocated straight into the old generation, so
+ * that a few large designs can force full collections which stall every
+ * request in progress; a direct buffer is not.
+ * <p>
+ * Matrices are created by a MatrixScope, and must not be used once it
+ * is closed: closing detaches the buffer, so that a later use fails
+ * with an IllegalStateException.  The memory itself is returned by the
+ * buffer's cleaner once nothing refers to it, never while a reader
+ * which started before the scope closed is still using it.
+ * <p>
+ * Copies share the buffer until either is modified, so that the power
+ * parameters hold the context's matrices rather than heap copies of
+ * them; the first change to a copy moves it to a buffer of its own.
+ * The results of arithmetic are ordinary heap matrices, counted among
+ * the working copies of the design's footprint.
+ *
+ * @author Sarah Kreidler
+ */
+final class OffHeapRealMatrix extends AbstractRealMatrix {
+    /** Bytes in a double. */
+    static final int BYTES_PER_ENTRY = 8;
+
+    /** Largest number of entries a direct buffer can hold. */
+    static final long MAX_ENTRIES = Integer.MAX_VALUE / BYTES_PER_ENTRY;
+
+    private final int rows;
+    private final int columns;
+    private Entries entries;
+    private boolean shared;
+
+    /**
+     * Create a zero matrix.
+     *
+     * @param rows number of rows
+     * @param columns number of columns
+     * @throws IllegalArgumentException if the matrix is too large for a direct buffer
+     */
+    OffHeapRealMatrix(int rows, int columns) {
+        this(new Entries(allocate(rows, columns)), rows, columns, false);
+    }
+
+    /**
+     * @param entries entries, row by row
+     * @param rows number of rows
+     * @param columns number of columns
+     * @param shared true if the entries are shared with another matrix
+     */
+    private OffHeapRealMatrix(Entries entries, int rows, int columns, boolean shared) {
+        super(rows, columns);
+        this.rows = rows;
+        this.columns = columns;
+        this.entries = entries;
+        this.shared = shared;
+    }
+
+    @Override
+    public int getRowDimension() {
+        return rows;
+    }
+
+    @Override
+    public int getColumnDimension() {
+        return columns;
+    }
+
+    @Override
+    public RealMatrix createMatrix(int rowDimension, int columnDimension) {
+        return new Array2DRowRealMatrix(rowDimension, columnDimension);
+    }
+
+    /**
+     * Copy the matrix, sharing its buffer until either is modified.
+     * The copy is detached, along with the original, when the scope
+     * is closed.
+     *
+     * @return copy of the matrix
+     */
+    @Override
+    public RealMatrix copy() {
+        shared = true;
+        return new OffHeapRealMatrix(entries, rows, columns, true);
+    }
+
+    @Override
+    public double getEntry(int row, int column) {
+        MatrixUtils.checkMatrixIndex(this, row, column);
+        return data().get(row * columns + column);
+    }
+
+    @Override
+    public void setEntry(int row, int column, double value) {
+        MatrixUtils.checkMatrixIndex(this, row, column);
+        own().put(row * columns + column, value);
+    }
+
+    @Override
+    public void addToEntry(int row, int column, double increment) {
+        MatrixUtils.checkMatrixIndex(this, row, column);
+        DoubleBuffer data = own();
+        int index = row * columns + column;
+        data.put(index, data.get(index) + increment);
+    }
+
+    @Override
+    public void multiplyEntry(int row, int column, double factor) {
+        MatrixUtils.checkMatrixIndex(this, row, column);
+        DoubleBuffer data = own();
+        int index = row * columns + column;
+        data.put(index, data.get(index) * factor);
+    }
+
+    @Override
+    public double[] getRow(int row) {
+        MatrixUtils.checkRowIndex(this, row);
+        double[] values = new double[columns];
+        DoubleBuffer data = data().duplicate();
+        data.position(row * columns);
+        data.get(values);
+        return values;
+    }
+
+    @Override
+    public void setRow(int row, double[] values) {
+        MatrixUtils.checkRowIndex(this, row);
+        if (values.length != columns) {
+            throw new IllegalArgumentException("Row has " + values.length +
+                    " entries, expected " + columns);
+        }
+        DoubleBuffer data = own().duplicate();
+        data.position(row * columns);
+        data.put(values);
+    }
+
+    /**
+     * Detach the buffer from this matrix and the copies sharing it.
+     * Called by the scope when it is closed.
+     */
+    void detach() {
+        entries.data = null;
+    }
+
+    /**
+     * @return the entries, row by row
+     * @throws IllegalStateException if the scope has been closed
+     */
+    private DoubleBuffer data() {
+        DoubleBuffer data = entries.data;
+        if (data == null) {
+            throw new IllegalStateException("Matrix used after its scope was closed.");
+        }
+        return data;
+    }
+
+    /**
+     * @return the entries, moved to a buffer of their own first if they are shared
+     * @throws IllegalStateException if the scope has been closed
+     */
+    private DoubleBuffer own() {
+        DoubleBuffer data = data();
+        if (shared) {
+            DoubleBuffer copy = allocate(rows, columns);
+            DoubleBuffer source = data.duplicate();
+            source.clear();
+            copy.put(source);
+            copy.clear();
+            // the new buffer belongs to this matrix alone, not to the scope
+            entries = new Entries(copy);
+            shared = false;
+            data = copy;
+        }
+        return data;
+    }
+
+    /**
+     * @param rows number of rows
+     * @param columns number of columns
+     * @return zero filled buffer for the entries
+     * @throws IllegalArgumentException if the matrix is too large for a direct buffer
+     */
+    private static DoubleBuffer allocate(int rows, int columns) {
+        if ((long) rows * columns > MAX_ENTRIES) {
+            throw new IllegalArgumentException("Matrix is too large: " + rows + " x " + columns);
+        }
+        // direct buffers are zero filled
+        return ByteBuffer.allocateDirect(rows * columns * BYTES_PER_ENTRY)
+                .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+
+    /**
+     * Buffer shared by a matrix and its copies, so that closing the
+     * scope detaches all of them.
+     */
+    private static final class Entries {
+        private volatile DoubleBuffer data;
+
+        /**
+         * @param data entries, row by row
+         */
+        private Entries(DoubleBuffer data) {
+            this.data = data;
+        }
+    }
+}
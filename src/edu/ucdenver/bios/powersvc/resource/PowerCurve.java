@@ -0,0 +1,353 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+import edu.cudenver.bios.power.GLMMPowerCalculator;
+import edu.cudenver.bios.power.PowerException;
+import edu.ucdenver.bios.powersvc.application.ComputeScheduler;
+import edu.ucdenver.bios.webservice.common.domain.PowerResult;
+import edu.ucdenver.bios.webservice.common.domain.PowerResultList;
+import edu.ucdenver.bios.webservice.common.domain.StudyDesign;
+import edu.ucdenver.bios.webservice.common.enums.SolutionTypeEnum;
+
+/**
+ * Power curve over a range of per group sample size, beta scale,
+ * or sigma scale, computed by adaptive refinement.  The curve starts
+ * from a coarse uniform grid, and intervals over which any power
+ * changes by more than the tolerance are bisected until the change
+ * is within tolerance, the interval cannot be split further, or the
+ * point budget is spent.  The points of each round are evaluated
+ * in parallel on the shared compute scheduler.
+ * <p>
+ * Each point is a copy of the design with the curve variable set to
+ * a single value, so the other lists of the design (tests, alpha,
+ * etc.) give one series per combination.  All points share the
+ * matrices of one design context.
+ *
+ * @author Sarah Kreidler
+ */
+final class PowerCurve {
+    /** Default maximum number of points on the curve. */
+    static final int DEFAULT_MAX_POINTS = 64;
+
+    /** Largest maximum number of points a request may ask for. */
+    static final int MAX_POINTS = 256;
+
+    /** Number of points in the initial uniform grid. */
+    static final int INITIAL_POINTS = 9;
+
+    /** Default largest change in power allowed between neighbouring points. */
+    static final double DEFAULT_TOLERANCE = 0.02;
+
+    /** Study design field holding the solution type. */
+    private static final String SOLUTION_TYPE_FIELD = "solutionTypeEnum";
+
+    /**
+     * Design variable along the curve.
+     */
+    enum Variable {
+        SAMPLE_SIZE("sampleSize", "sampleSizeList"),
+        BETA_SCALE("betaScale", "betaScaleList"),
+        SIGMA_SCALE("sigmaScale", "sigmaScaleList");
+
+        private final String name;
+        private final String field;
+
+        private Variable(String name, String field) {
+            this.name = name;
+            this.field = field;
+        }
+
+        /**
+         * @return name used in requests and responses
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * Find a variable by name.
+         *
+         * @param name variable name
+         * @return variable
+         * @throws IllegalArgumentException if the name is not recognized
+         */
+        static Variable fromName(String name) throws IllegalArgumentException {
+            for (Variable variable: values()) {
+                if (variable.name.equals(name)) {
+                    return variable;
+                }
+            }
+            throw new IllegalArgumentException("Invalid power curve variable: " + name);
+        }
+    }
+
+    private final ObjectNode json;
+    private final DesignContext context;
+    private final Variable variable;
+    private final double from;
+    private final double to;
+    private final int maxPoints;
+    private final double tolerance;
+
+    /**
+     * Create a power curve.
+     *
+     * @param json study design JSON
+     * @param context context for the study design
+     * @param variable design variable along the curve
+     * @param from smallest value of the variable
+     * @param to largest value of the variable
+     * @param maxPoints maximum number of points
+     * @param tolerance largest change in power allowed between neighbouring points
+     * @throws IllegalArgumentException if the range or limits are invalid
+     */
+    PowerCurve(ObjectNode json, DesignContext context, Variable variable,
+            double from, double to, int maxPoints, double tolerance)
+                    throws IllegalArgumentException {
+        if (Double.isNaN(from) || Double.isNaN(to) || from < 0 || from >= to
+                || Double.isInfinite(to)) {
+            throw new IllegalArgumentException("Invalid power curve range: " + from + " to " + to);
+        }
+        if (variable == Variable.SAMPLE_SIZE && (from < 1 || from != Math.floor(from)
+                || to != Math.floor(to))) {
+            throw new IllegalArgumentException("Sample sizes must be positive integers.");
+        }
+        if (maxPoints < INITIAL_POINTS || maxPoints > MAX_POINTS) {
+            throw new IllegalArgumentException("The number of power curve points must be between "
+                    + INITIAL_POINTS + " and " + MAX_POINTS + ".");
+        }
+        if (!(tolerance > 0)) {
+            throw new IllegalArgumentException("Invalid power curve tolerance: " + tolerance);
+        }
+        this.json = json;
+        this.context = context;
+        this.variable = variable;
+        this.from = from;
+        this.to = to;
+        this.maxPoints = maxPoints;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * @return design variable along the curve
+     */
+    Variable getVariable() {
+        return variable;
+    }
+
+    /**
+     * @return maximum number of points
+     */
+    int getMaxPoints() {
+        return maxPoints;
+    }
+
+    /**
+     * Get the design calculated at a single point of the curve: the
+     * curve variable set to one value, solving for power, as each point
+     * does.  The cost of a point is that of this design.
+     *
+     * @return study design of a point
+     * @throws IllegalArgumentException if the design is invalid
+     */
+    StudyDesign getPointDesign() throws IllegalArgumentException {
+        ObjectNode point = pointJson(from);
+        point.put(SOLUTION_TYPE_FIELD, SolutionTypeEnum.POWER.name());
+        return DesignJson.toStudyDesign(point);
+    }
+
+    /**
+     * Compute the curve.
+     *
+     * @param deadline time by which the curve must be complete,
+     *        in milliseconds since the epoch
+     * @return results for each value of the variable, in increasing order
+     * @throws IllegalArgumentException if the design is invalid
+     * @throws PowerException if the calculation fails
+     * @throws TimeoutException if the deadline passes
+     * @throws InterruptedException if interrupted while waiting
+     */
+    TreeMap<Double, PowerResultList> compute(long deadline)
+            throws IllegalArgumentException, PowerException, TimeoutException,
+            InterruptedException {
+        // build and validate the shared matrices once, before the points copy them
+        context.toPowerParameters();
+
+        TreeMap<Double, PowerResultList> points = new TreeMap<Double, PowerResultList>();
+        SortedSet<Double> grid = new TreeSet<Double>();
+        for (int i = 0; i < INITIAL_POINTS; i++) {
+            grid.add(round(from + (to - from) * i / (INITIAL_POINTS - 1)));
+        }
+        evaluate(new ArrayList<Double>(grid), points, deadline);
+
+        while (points.size() < maxPoints) {
+            List<double[]> splits = new ArrayList<double[]>();
+            Map.Entry<Double, PowerResultList> previous = null;
+            for (Map.Entry<Double, PowerResultList> point: points.entrySet()) {
+                if (previous != null) {
+                    double midpoint = round((previous.getKey() + point.getKey()) / 2);
+                    double change = change(previous.getValue(), point.getValue());
+                    if (change > tolerance && midpoint > previous.getKey()
+                            && midpoint < point.getKey()) {
+                        splits.add(new double[] {change, midpoint});
+                    }
+                }
+                previous = point;
+            }
+            if (splits.isEmpty()) {
+                break;
+            }
+
+            // spend the remaining budget on the steepest intervals first
+            Collections.sort(splits, new Comparator<double[]>() {
+                @Override
+                public int compare(double[] a, double[] b) {
+                    return Double.compare(b[0], a[0]);
+                }
+            });
+            List<Double> values = new ArrayList<Double>();
+            for (int i = 0; i < splits.size() && points.size() + values.size() < maxPoints; i++) {
+                values.add(splits.get(i)[1]);
+            }
+            evaluate(values, points, deadline);
+        }
+        return points;
+    }
+
+    /**
+     * Evaluate power at a set of values of the variable, in parallel.
+     *
+     * @param values values of the variable
+     * @param points map to which the results are added
+     * @param deadline time by which the evaluation must be complete
+     */
+    private void evaluate(List<Double> values, Map<Double, PowerResultList> points, long deadline)
+            throws IllegalArgumentException, PowerException, TimeoutException,
+            InterruptedException {
+        List<Callable<PowerResultList>> tasks = new ArrayList<Callable<PowerResultList>>();
+        for (final Double value: values) {
+            tasks.add(new Callable<PowerResultList>() {
+                @Override
+                public PowerResultList call() throws Exception {
+                    return evaluate(value);
+                }
+            });
+        }
+        List<Future<PowerResultList>> futures =
+                ComputeScheduler.getInstance().invokeAll(tasks, deadline);
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                points.put(values.get(i), futures.get(i).get());
+            } catch (CancellationException ce) {
+                throw new TimeoutException("Power curve did not complete in time.");
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof PowerException) {
+                    throw (PowerException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+    /**
+     * Evaluate power with the variable set to a single value.
+     *
+     * @param value value of the variable
+     * @return results
+     */
+    private PowerResultList evaluate(double value) throws IllegalArgumentException, PowerException {
+        DesignContext pointContext = context.revise(DesignJson.toStudyDesign(pointJson(value)), false);
+        GLMMPowerCalculator calculator = new GLMMPowerCalculator();
+        return PowerResourceHelper.toPowerResultList(
+                calculator.getPower(pointContext.toPowerParameters()));
+    }
+
+    /**
+     * @param value value of the variable
+     * @return copy of the design JSON with the variable set to the value
+     */
+    private ObjectNode pointJson(double value) {
+        ObjectNode point = DesignJson.copy(json);
+        ArrayNode list = DesignJson.getMapper().createArrayNode();
+        if (variable == Variable.SAMPLE_SIZE) {
+            list.addObject().put("value", (int) value);
+        } else {
+            list.addObject().put("value", value);
+        }
+        point.put(variable.field, list);
+        return point;
+    }
+
+    /**
+     * @return value rounded to an integer for sample size,
+     *         otherwise unchanged
+     */
+    private double round(double value) {
+        return variable == Variable.SAMPLE_SIZE ? Math.floor(value) : value;
+    }
+
+    /**
+     * Largest change in power between two points, over all series.
+     * Series with an undefined power are ignored.
+     *
+     * @param a results at one point
+     * @param b results at the other point
+     * @return largest absolute change
+     */
+    private static double change(PowerResultList a, PowerResultList b) {
+        double change = 0;
+        int n = Math.min(a.size(), b.size());
+        for (int i = 0; i < n; i++) {
+            PowerResult resultA = a.get(i);
+            PowerResult resultB = b.get(i);
+            double difference = Math.abs(resultA.getActualPower() - resultB.getActualPower());
+            if (difference > change) {
+                change = difference;
+            }
+        }
+        return change;
+    }
+}
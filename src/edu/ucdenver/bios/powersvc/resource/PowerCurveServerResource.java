@@ -0,0 +1,189 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+import org.restlet.data.Status;
+import org.restlet.resource.Post;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.ServerResource;
+
+import edu.cudenver.bios.power.PowerException;
+import edu.ucdenver.bios.powersvc.application.ComputeBudget;
+import edu.ucdenver.bios.powersvc.application.PowerApplication;
+import edu.ucdenver.bios.powersvc.application.PowerLogger;
+import edu.ucdenver.bios.webservice.common.domain.PowerResultList;
+import edu.ucdenver.bios.webservice.common.domain.StudyDesign;
+
+/**
+ * Implementation of the PowerCurveResource interface
+ * for calculating power curves.
+ *
+ * @author Sarah Kreidler
+ */
+public class PowerCurveServerResource extends ServerResource
+        implements PowerCurveResource {
+    /** Query parameter: design variable along the curve. */
+    public static final String VARIABLE_PARAMETER = "variable";
+    /** Query parameter: smallest value of the variable. */
+    public static final String FROM_PARAMETER = "from";
+    /** Query parameter: largest value of the variable. */
+    public static final String TO_PARAMETER = "to";
+    /** Query parameter: maximum number of points. */
+    public static final String POINTS_PARAMETER = "points";
+    /** Query parameter: largest change in power between neighbouring points. */
+    public static final String TOLERANCE_PARAMETER = "tolerance";
+
+    private Logger logger = Logger.getLogger(getClass());
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Calculate a power curve for the specified study design JSON.
+     * The curve is described by the query parameters "variable"
+     * (sampleSize, betaScale, or sigmaScale), "from", "to", and,
+     * optionally, "points" (maximum number of points) and
+     * "tolerance" (largest change in power between points).
+     *
+     * @param jsonStudyDesign study design JSON
+     *
+     * @return JSON representation of the points on the curve
+     */
+    @Post("json:json")
+    public final String getPowerCurve(final String jsonStudyDesign) {
+        if (jsonStudyDesign == null) {
+            throw badRequestException("Invalid study design.");
+        }
+
+        logger.info("getPowerCurve(): " + getRequest().getRootRef() + ": "
+                        + "jsonStudyDesign = '" + jsonStudyDesign + "'");
+
+        long start = System.currentTimeMillis();
+        String result;
+
+        ComputeBudget.Lease lease = null;
+        try {
+            ObjectNode json = DesignJson.parse(jsonStudyDesign, "study design");
+            StudyDesign studyDesign = DesignJson.toStudyDesign(json);
+            PowerCurve curve = new PowerCurve(json,
+                    new DesignContext(studyDesign),
+                    PowerCurve.Variable.fromName(getQueryValue(VARIABLE_PARAMETER)),
+                    getDoubleQueryValue(FROM_PARAMETER, null),
+                    getDoubleQueryValue(TO_PARAMETER, null),
+                    (int) getDoubleQueryValue(POINTS_PARAMETER, (double) PowerCurve.DEFAULT_MAX_POINTS),
+                    getDoubleQueryValue(TOLERANCE_PARAMETER, PowerCurve.DEFAULT_TOLERANCE));
+
+            // each point is the design with one value of the variable, solving for
+            // power, and the points share the matrices of the design
+            DesignCost cost = new DesignCost(curve.getPointDesign());
+            cost.validate(ComputeBudget.getInstance().getCapacity());
+            DesignFootprint footprint = new DesignFootprint(studyDesign);
+            footprint.validate(ComputeBudget.getInstance().getHeapCapacity());
+            lease = DesignCost.admit(cost.getCost() * curve.getMaxPoints(), footprint.getBytes());
+
+            TreeMap<Double, PowerResultList> points = curve.compute(
+                    start + PowerApplication.getCalculationTimeoutMillis(getApplication()));
+
+            List<Map<String, Object>> pointList = new ArrayList<Map<String, Object>>();
+            for (Map.Entry<Double, PowerResultList> point: points.entrySet()) {
+                Map<String, Object> entry = new LinkedHashMap<String, Object>();
+                if (curve.getVariable() == PowerCurve.Variable.SAMPLE_SIZE) {
+                    entry.put("value", point.getKey().intValue());
+                } else {
+                    entry.put("value", point.getKey());
+                }
+                entry.put("results", point.getValue());
+                pointList.add(entry);
+            }
+            Map<String, Object> response = new LinkedHashMap<String, Object>();
+            response.put(VARIABLE_PARAMETER, curve.getVariable().getName());
+            response.put("points", pointList);
+            result = MAPPER.writeValueAsString(response);
+        } catch (IOException ioe) {
+            PowerLogger.getInstance().error(ioe.getMessage(), ioe);
+            throw badRequestException(ioe.getMessage());
+        } catch (IllegalArgumentException iae) {
+            PowerLogger.getInstance().error(iae.getMessage(), iae);
+            throw badRequestException(iae.getMessage());
+        } catch (PowerException pe) {
+            PowerLogger.getInstance().error("[" + pe.getErrorCode() + "]:" + pe.getMessage(), pe);
+            throw badRequestException(pe.getMessage());
+        } catch (TimeoutException te) {
+            logger.warn(getClass().getSimpleName() + ": TimeoutException(): " + getRequest().getRootRef());
+            throw badRequestException("Request timed out during computation.");
+        } catch (InterruptedException ie) {
+            logger.warn(getClass().getSimpleName() + ": InterruptedException(): " + getRequest().getRootRef(), ie);
+            throw badRequestException("Computation interrupted.");
+        } catch (OutOfMemoryError oome) {
+            PowerLogger.getInstance().error(oome.getMessage(), oome);
+            throw badRequestException("Insufficient memory to process this study design.");
+        } finally {
+            if (lease != null) {
+                lease.release();
+            }
+        }
+
+        logger.info("getPowerCurve(): " + "executed in " + (System.currentTimeMillis() - start) + " milliseconds");
+        logger.info("OUTPUT = '" + result + "'");
+
+        return result;
+    }
+
+    /**
+     * Get a numeric query parameter.
+     *
+     * @param name parameter name
+     * @param defaultValue value if the parameter is absent, or null if required
+     * @return parameter value
+     * @throws IllegalArgumentException if the parameter is missing or not a number
+     */
+    private double getDoubleQueryValue(String name, Double defaultValue)
+            throws IllegalArgumentException {
+        String value = getQueryValue(name);
+        if (value == null) {
+            if (defaultValue == null) {
+                throw new IllegalArgumentException("Missing query parameter: " + name);
+            }
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Invalid value for query parameter " + name + ": " + value);
+        }
+    }
+
+    private static ResourceException badRequestException(String message) {
+        return new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, message);
+    }
+}
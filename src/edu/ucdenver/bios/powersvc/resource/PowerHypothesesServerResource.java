@@ -0,0 +1,145 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.restlet.data.Status;
+import org.restlet.resource.Post;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.ServerResource;
+
+import edu.cudenver.bios.power.PowerException;
+import edu.ucdenver.bios.powersvc.application.ComputeBudget;
+import edu.ucdenver.bios.powersvc.application.PowerApplication;
+import edu.ucdenver.bios.powersvc.application.PowerLogger;
+import edu.ucdenver.bios.webservice.common.domain.Hypothesis;
+import edu.ucdenver.bios.webservice.common.domain.PowerResultList;
+import edu.ucdenver.bios.webservice.common.domain.StudyDesign;
+
+/**
+ * Implementation of the PowerHypothesesResource interface
+ * for calculating results for every hypothesis of a study design.
+ * The response is a JSON object with the field "hypotheses", a list
+ * holding, for each hypothesis, its "index" in the design's list
+ * of hypotheses, its "type", and its "results".
+ *
+ * @author Sarah Kreidler
+ */
+public class PowerHypothesesServerResource extends ServerResource
+        implements PowerHypothesesResource {
+    private Logger logger = Logger.getLogger(getClass());
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Calculate power, sample size, or detectable difference, according
+     * to the solution type of the design, for each of its hypotheses.
+     *
+     * @param jsonStudyDesign study design JSON
+     *
+     * @return JSON representation of the results for each hypothesis
+     */
+    @Post("json:json")
+    public final String getHypothesesResults(final String jsonStudyDesign) {
+        if (jsonStudyDesign == null) {
+            throw badRequestException("Invalid study design.");
+        }
+
+        logger.info("getHypothesesResults(): " + getRequest().getRootRef() + ": "
+                        + "jsonStudyDesign = '" + jsonStudyDesign + "'");
+
+        long start = System.currentTimeMillis();
+        String result;
+
+        ComputeBudget.Lease lease = null;
+        try {
+            StudyDesign studyDesign = DesignJson.toStudyDesign(
+                    DesignJson.parse(jsonStudyDesign, "study design"));
+            MultiHypothesisEvaluation evaluation =
+                    new MultiHypothesisEvaluation(new DesignContext(studyDesign));
+
+            // each hypothesis costs about as much as the design itself, and they share its matrices
+            DesignCost cost = new DesignCost(studyDesign);
+            cost.validate(ComputeBudget.getInstance().getCapacity());
+            DesignFootprint footprint = new DesignFootprint(studyDesign);
+            footprint.validate(ComputeBudget.getInstance().getHeapCapacity());
+            lease = DesignCost.admit(cost.getCost() * evaluation.getHypotheses().size(),
+                    footprint.getBytes());
+
+            List<PowerResultList> results = evaluation.compute(
+                    start + PowerApplication.getCalculationTimeoutMillis(getApplication()));
+
+            List<Map<String, Object>> hypothesisList = new ArrayList<Map<String, Object>>();
+            for (int i = 0; i < results.size(); i++) {
+                Hypothesis hypothesis = evaluation.getHypotheses().get(i);
+                Map<String, Object> entry = new LinkedHashMap<String, Object>();
+                entry.put("index", i);
+                entry.put("type", (hypothesis != null ? hypothesis.getType() : null));
+                entry.put("results", results.get(i));
+                hypothesisList.add(entry);
+            }
+            Map<String, Object> response = new LinkedHashMap<String, Object>();
+            response.put("hypotheses", hypothesisList);
+            result = MAPPER.writeValueAsString(response);
+        } catch (IOException ioe) {
+            PowerLogger.getInstance().error(ioe.getMessage(), ioe);
+            throw badRequestException(ioe.getMessage());
+        } catch (IllegalArgumentException iae) {
+            PowerLogger.getInstance().error(iae.getMessage(), iae);
+            throw badRequestException(iae.getMessage());
+        } catch (PowerException pe) {
+            PowerLogger.getInstance().error("[" + pe.getErrorCode() + "]:" + pe.getMessage(), pe);
+            throw badRequestException(pe.getMessage());
+        } catch (TimeoutException te) {
+            logger.warn(getClass().getSimpleName() + ": TimeoutException(): " + getRequest().getRootRef());
+            throw badRequestException("Request timed out during computation.");
+        } catch (InterruptedException ie) {
+            logger.warn(getClass().getSimpleName() + ": InterruptedException(): " + getRequest().getRootRef(), ie);
+            throw badRequestException("Computation interrupted.");
+        } catch (OutOfMemoryError oome) {
+            PowerLogger.getInstance().error(oome.getMessage(), oome);
+            throw badRequestException("Insufficient memory to process this study design.");
+        } finally {
+            if (lease != null) {
+                lease.release();
+            }
+        }
+
+        logger.info("getHypothesesResults(): " + "executed in " + (System.currentTimeMillis() - start) + " milliseconds");
+        logger.info("OUTPUT = '" + result + "'");
+
+        return result;
+    }
+
+    private static ResourceException badRequestException(String message) {
+        return new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, message);
+    }
+}
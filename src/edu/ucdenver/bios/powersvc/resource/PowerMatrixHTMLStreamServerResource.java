@@ -0,0 +1,78 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.apache.log4j.Logger;
+import org.restlet.data.CharacterSet;
+import org.restlet.data.MediaType;
+import org.restlet.representation.Representation;
+import org.restlet.representation.WriterRepresentation;
+import org.restlet.resource.Post;
+import org.restlet.resource.ServerResource;
+
+/**
+ * Implementation of the PowerMatrixHTMLStreamResource interface
+ * for calculating an HTML/MathJax representation of the matrices
+ * used in a power calculation.  The page is that of
+ * PowerMatrixHTMLServerResource, written directly to the response.
+ *
+ * @author Sarah Kreidler
+ */
+public class PowerMatrixHTMLStreamServerResource extends ServerResource
+        implements PowerMatrixHTMLStreamResource {
+    private Logger logger = Logger.getLogger(getClass());
+
+    /**
+     * Get matrices used in the power calculation for a "guided" study design
+     * as an HTML page written directly to the response.
+     * <p>
+     * This method uses the notation of Muller & Stewart 2007.
+     *
+     * @param jsonStudyDesign study design JSON
+     *
+     * @return html representation of matrices
+     */
+    @Post("json:html")
+    public Representation getMatricesAsHTMLStream(String jsonStudyDesign) {
+        logger.info("getMatricesAsHTMLStream(): " + getRequest().getRootRef() + ": "
+                        + "jsonStudyDesign = '" + jsonStudyDesign + "'");
+
+        // compute the matrices now, so that errors are reported before the response starts
+        final MatrixHTMLPage page = PowerMatrixHTMLServerResource.createPage(jsonStudyDesign,
+                getContext());
+
+        logger.info("INPUT = '" + jsonStudyDesign + "'");
+
+        Representation representation = new WriterRepresentation(MediaType.TEXT_HTML) {
+            @Override
+            public void write(Writer writer) throws IOException {
+                page.write(writer);
+            }
+        };
+        representation.setCharacterSet(CharacterSet.UTF_8);
+        return representation;
+    }
+}
@@ -22,9 +22,12 @@
  */
 package edu.ucdenver.bios.powersvc.resource;
 
+import org.restlet.data.Status;
 import org.restlet.resource.Post;
+import org.restlet.resource.ResourceException;
 import org.restlet.resource.ServerResource;
 
+import edu.ucdenver.bios.powersvc.application.ComputeBudget;
 import edu.ucdenver.bios.webservice.common.domain.NamedMatrixList;
 import edu.ucdenver.bios.webservice.common.domain.StudyDesign;
 
@@ -43,6 +46,13 @@ implements PowerMatrixResource {
      */
     @Post
     public NamedMatrixList getMatrices(StudyDesign studyDesign) {
+        if (studyDesign != null) {
+            try {
+                new DesignFootprint(studyDesign).validate(ComputeBudget.getInstance().getHeapCapacity());
+            } catch (IllegalArgumentException iae) {
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, iae.getMessage());
+            }
+        }
         return PowerResourceHelper.namedMatrixListFromStudyDesign(studyDesign);
     }
 }
@@ -23,9 +23,11 @@
 package edu.ucdenver.bios.powersvc.resource;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.RealMatrix;
@@ -34,11 +36,14 @@ import edu.cudenver.bios.matrix.FixedRandomMatrix;
 import edu.cudenver.bios.matrix.MatrixUtilities;
 import edu.cudenver.bios.matrix.MatrixUtils;
 import edu.cudenver.bios.power.GLMMPower;
+import edu.cudenver.bios.power.GLMMPowerCalculator;
 import edu.cudenver.bios.power.Power;
+import edu.cudenver.bios.power.PowerException;
 import edu.cudenver.bios.power.glmm.GLMMPowerConfidenceInterval.ConfidenceIntervalType;
 import edu.cudenver.bios.power.glmm.GLMMTestFactory;
 import edu.cudenver.bios.power.parameters.GLMMPowerParameters;
 import edu.cudenver.bios.utils.Logger;
+import edu.ucdenver.bios.powersvc.application.ComputeBudget;
 import edu.ucdenver.bios.powersvc.application.PowerConstants;
 import edu.ucdenver.bios.powersvc.application.PowerLogger;
 import edu.ucdenver.bios.webservice.common.domain.BetaScale;
@@ -67,6 +72,7 @@ import edu.ucdenver.bios.webservice.common.domain.StatisticalTest;
 import edu.ucdenver.bios.webservice.common.domain.StudyDesign;
 import edu.ucdenver.bios.webservice.common.domain.TypeIError;
 import edu.ucdenver.bios.webservice.common.enums.HypothesisTypeEnum;
+import edu.ucdenver.bios.webservice.common.enums.PowerErrorEnum;
 import edu.ucdenver.bios.webservice.common.enums.PowerMethodEnum;
 import edu.ucdenver.bios.webservice.common.enums.SolutionTypeEnum;
 import edu.ucdenver.bios.webservice.common.enums.StatisticalTestTypeEnum;
@@ -84,12 +90,6 @@ public final class PowerResourceHelper {
     /** The logger. */
     private static final Logger LOGGER = Logger.getLogger(PowerLogger.getInstance());
 
-    /** The maximum number of groups we consider reasonable. */
-    private static final int MAX_GROUPS = 100;
-
-    /** The maximum number of cases we consider reasonable. */
-    private static final int MAX_CASES = 72;
-
     /**
      * Convert a study design object into a power parameters object
      * TODO: should be removed once modifications to java stats are complete
@@ -99,8 +99,53 @@ public final class PowerResourceHelper {
      */
     public static GLMMPowerParameters studyDesignToPowerParameters(StudyDesign studyDesign)
             throws IllegalArgumentException {
-        validate(studyDesign);
+        return studyDesignToPowerParameters(new DesignContext(studyDesign));
+    }
 
+    /**
+     * Convert the study design held by a design context into a power
+     * parameters object, reusing the matrices already built by the context.
+     * The parameters hold copies of the matrices, since the calculator
+     * updates them.
+     *
+     * @param context design context
+     * @return power parameter object for use with JavaStatistics
+     */
+    public static GLMMPowerParameters studyDesignToPowerParameters(DesignContext context)
+            throws IllegalArgumentException {
+        return studyDesignToPowerParameters(context, null);
+    }
+
+    /**
+     * Convert the study design held by a design context into a power
+     * parameters object, as above, but with the specified per group
+     * sample sizes in place of those listed in the study design.
+     *
+     * @param context design context
+     * @param sampleSizeList per group sample sizes, or null to use the study design's
+     * @return power parameter object for use with JavaStatistics
+     */
+    public static GLMMPowerParameters studyDesignToPowerParameters(DesignContext context,
+            List<Integer> sampleSizeList)
+            throws IllegalArgumentException {
+        validate(context.getStudyDesign());
+        return buildPowerParameters(context, sampleSizeList);
+    }
+
+    /**
+     * Convert the study design held by a design context into a power
+     * parameters object, as above, without validating the design, for
+     * callers which build many parameter objects from one design and
+     * have already validated it.
+     *
+     * @param context design context
+     * @param sampleSizeList per group sample sizes, or null to use the study design's
+     * @return power parameter object for use with JavaStatistics
+     */
+    static GLMMPowerParameters buildPowerParameters(DesignContext context,
+            List<Integer> sampleSizeList)
+            throws IllegalArgumentException {
+        StudyDesign studyDesign = context.getStudyDesign();
         GLMMPowerParameters params = new GLMMPowerParameters();
 
         /** Build list inputs **/
@@ -123,7 +168,11 @@ public final class PowerResourceHelper {
             }
         }
         // add per group sample sizes
-        if (studyDesign.getSampleSizeList() != null) {
+        if (sampleSizeList != null) {
+            for(Integer size: sampleSizeList) {
+                params.addSampleSize(size);
+            }
+        } else if (studyDesign.getSampleSizeList() != null) {
             for(SampleSize size: studyDesign.getSampleSizeList()) {
                 params.addSampleSize(size.getValue());
             }
@@ -144,32 +193,26 @@ public final class PowerResourceHelper {
         /** Generate and add matrices **/
 
         // build design matrix
-        params.setDesignEssence(designMatrixFromStudyDesign(studyDesign));
+        params.setDesignEssence(copy(context.getDesignMatrix()));
 
         // build beta matrix
-        params.setBeta(betaMatrixFromStudyDesign(studyDesign));
+        params.setBeta(copy(context.getBeta(), false));
         debug("beta set to:", params.getBeta().getCombinedMatrix());
 
         // build the between subject contrast
-        params.setBetweenSubjectContrast(betweenParticipantContrastFromStudyDesign(studyDesign));
+        params.setBetweenSubjectContrast(copy(context.getBetweenContrast(), true));
 
         // build the within subject contrast
-        params.setWithinSubjectContrast(withinParticipantContrastFromStudyDesign(studyDesign));
+        params.setWithinSubjectContrast(copy(context.getWithinContrast()));
 
         // build theta null matrix
-        params.setTheta(thetaNullMatrixFromStudyDesign(studyDesign,
-                params.getBetweenSubjectContrast(),
-                params.getWithinSubjectContrast()));
+        params.setTheta(copy(context.getThetaNull()));
 
         // add matrices for either GLMM(F) or GLMM(F,g) designs
         if (studyDesign.isGaussianCovariate()) {
-            RealMatrix sigmaY = sigmaOutcomesMatrixFromStudyDesign(studyDesign);
-            RealMatrix sigmaG = sigmaCovariateMatrixFromStudyDesign(studyDesign);
-            params.setSigmaOutcome(sigmaY);
-            params.setSigmaGaussianRandom(sigmaG);
-            params.setSigmaOutcomeGaussianRandom(
-                    sigmaOutcomesCovariateMatrixFromStudyDesign(studyDesign,
-                            sigmaG, sigmaY));
+            params.setSigmaOutcome(copy(context.getSigmaOutcome()));
+            params.setSigmaGaussianRandom(copy(context.getSigmaCovariate()));
+            params.setSigmaOutcomeGaussianRandom(copy(context.getSigmaOutcomeCovariate()));
 
             // add power methods
             if (studyDesign.getPowerMethodList() != null) {
@@ -184,7 +227,7 @@ public final class PowerResourceHelper {
                 }
             }
         } else {
-            params.setSigmaError(forceSymmetric(sigmaErrorMatrixFromStudyDesign(studyDesign)));
+            params.setSigmaError(forceSymmetric(copy(context.getSigmaError())));
             params.addPowerMethod(GLMMPowerParameters.PowerMethod.CONDITIONAL_POWER);
 
             // add confidence intervals if specified
@@ -245,6 +288,24 @@ public final class PowerResourceHelper {
         }
     }
 
+    /**
+     * Convert a JavaStatistics error code to the domain layer error code
+     * of the same name.
+     * @param errorCode JavaStatistics error code, or null
+     * @return domain layer error code, or null if there is none of that name
+     */
+    private static PowerErrorEnum toPowerErrorEnum(
+            edu.cudenver.bios.power.PowerErrorEnum errorCode) {
+        if (errorCode == null) {
+            return null;
+        }
+        try {
+            return PowerErrorEnum.valueOf(errorCode.name());
+        } catch (IllegalArgumentException iae) {
+            return null;
+        }
+    }
+
     /**
      * Convert a domain layer statistical test to a GLMMTest enum
      */
@@ -273,7 +334,7 @@ public final class PowerResourceHelper {
     /**
      * Convert a domain layer statistical test to a GLMMTest enum
      */
-    private static StatisticalTest toStatisticalTest(GLMMTestFactory.Test test)
+    static StatisticalTest toStatisticalTest(GLMMTestFactory.Test test)
     throws IllegalArgumentException {
         switch(test) {
         case UNIREP:
@@ -311,41 +372,10 @@ public final class PowerResourceHelper {
              * of each between subject factor
              * We add additional rows for unequal group sizes
              */
-            int totalColumns = 1;
-            // calculate the product of the #levels of each between participant factor
-            List<BetweenParticipantFactor> factorList = studyDesign.getBetweenParticipantFactorList();
-            if (factorList != null) {
-                for(BetweenParticipantFactor factor: factorList) {
-                    List<Category> categoryList = factor.getCategoryList();
-                    if (categoryList != null) {
-                        totalColumns *= categoryList.size();
-                    }
-                }
-            }
-            int totalRows = 0;
-            List<RelativeGroupSize> groupSizeList = studyDesign.getRelativeGroupSizeList();
-            if (totalColumns > 1) {
-                // we have multiple groups, so check for unequal group sizes
-                if (groupSizeList != null) {
-                    if (groupSizeList.size() != totalColumns) {
-                        // invalid relative group size list
-                        throw new IllegalArgumentException("Invalid list of relative group sizes");
-                    }
-                    for(RelativeGroupSize relativeSize: groupSizeList) {
-                        totalRows += relativeSize.getValue();
-                    }
-                } else {
-                    totalRows = totalColumns;
-                }
-            } else {
-                // only 1 column, so the X matrix must be 1x1
-                totalRows = 1;
-            }
+            int[] dimensions = guidedDesignMatrixDimensions(studyDesign);
+            int totalRows = dimensions[0];
+            int totalColumns = dimensions[1];
             RealMatrix designEssenceMatrix = null;
-            // make sure we didn't produce bad dimensions
-            if (totalRows <=0 || totalColumns <= 0) {
-                throw new IllegalArgumentException("Unable to produce a valid design matrix");
-            }
             // now build the actual matrix
             if (totalRows == totalColumns) {
                 // equal group sizes, so just a basic cell means coding (i.e. identity)
@@ -358,7 +388,7 @@ public final class PowerResourceHelper {
                 // now set 1's in the appropriate places
                 int col = 0;
                 int row = 0;
-                for(RelativeGroupSize relativeSize: groupSizeList) {
+                for(RelativeGroupSize relativeSize: studyDesign.getRelativeGroupSizeList()) {
                     for(int counter = 0; counter < relativeSize.getValue(); counter++) {
                         designEssenceMatrix.setEntry(row, col, 1);
                         row++;
@@ -370,12 +400,70 @@ public final class PowerResourceHelper {
         }
     }
 
+    /**
+     * Get the dimensions of the cell means coded design essence matrix
+     * of a "guided" study design, without building it.  The matrix is
+     * an identity matrix if the dimensions are equal.
+     * @param studyDesign study design object
+     * @return rows and columns of the design essence matrix
+     * @throws IllegalArgumentException if the group sizes are invalid
+     */
+    static int[] guidedDesignMatrixDimensions(StudyDesign studyDesign) {
+        int totalColumns = 1;
+        // calculate the product of the #levels of each between participant factor
+        List<BetweenParticipantFactor> factorList = studyDesign.getBetweenParticipantFactorList();
+        if (factorList != null) {
+            for(BetweenParticipantFactor factor: factorList) {
+                List<Category> categoryList = factor.getCategoryList();
+                if (categoryList != null) {
+                    totalColumns *= categoryList.size();
+                }
+            }
+        }
+        int totalRows = 0;
+        List<RelativeGroupSize> groupSizeList = studyDesign.getRelativeGroupSizeList();
+        if (totalColumns > 1) {
+            // we have multiple groups, so check for unequal group sizes
+            if (groupSizeList != null) {
+                if (groupSizeList.size() != totalColumns) {
+                    // invalid relative group size list
+                    throw new IllegalArgumentException("Invalid list of relative group sizes");
+                }
+                for(RelativeGroupSize relativeSize: groupSizeList) {
+                    totalRows += relativeSize.getValue();
+                }
+            } else {
+                totalRows = totalColumns;
+            }
+        } else {
+            // only 1 column, so the X matrix must be 1x1
+            totalRows = 1;
+        }
+        // make sure we didn't produce bad dimensions
+        if (totalRows <=0 || totalColumns <= 0) {
+            throw new IllegalArgumentException("Unable to produce a valid design matrix");
+        }
+        return new int[] {totalRows, totalColumns};
+    }
+
     /**
      * Create a fixed/random beta matrix from the study design.
      * @param studyDesign study design object
      * @return fixed/random beta matrix
      */
     public static FixedRandomMatrix betaMatrixFromStudyDesign(StudyDesign studyDesign) {
+        return betaMatrixFromStudyDesign(studyDesign, studyDesign.getClusteringTree());
+    }
+
+    /**
+     * Create a fixed/random beta matrix from the study design, adjusting
+     * for the specified clustering rather than the design's own.
+     * @param studyDesign study design object
+     * @param clusterNodeList clustering tree, or null for no clustering
+     * @return fixed/random beta matrix
+     */
+    public static FixedRandomMatrix betaMatrixFromStudyDesign(StudyDesign studyDesign,
+            List<ClusterNode> clusterNodeList) {
         double[][] betaFixedData = null;
         double[][] betaRandomData = null;
 
@@ -394,7 +482,6 @@ public final class PowerResourceHelper {
 
         // for guided mode designs, we need to adjust for clustering
         if (studyDesign.getViewTypeEnum() == StudyDesignViewTypeEnum.GUIDED_MODE) {
-            List<ClusterNode> clusterNodeList = studyDesign.getClusteringTree();
             if (clusterNodeList != null && clusterNodeList.size() > 0) {
                 int totalColumns = 1;
                 for(ClusterNode node: clusterNodeList) {
@@ -405,17 +492,19 @@ public final class PowerResourceHelper {
                 // generate the proper dimensions for a cluster sample
                 RealMatrix oneMatrix = MatrixUtils.getRealMatrixWithFilledValue(1, totalColumns, 1);
 
-                RealMatrix betaFixedMatrix = new Array2DRowRealMatrix(betaFixedData);
-                betaFixedMatrix = MatrixUtils.getKroneckerProduct(oneMatrix, betaFixedMatrix);
+                // (the factors and the product share their entries rather
+                // than copying them, since none of them is modified)
+                RealMatrix betaFixedMatrix = new Array2DRowRealMatrix(betaFixedData, false);
+                betaFixedMatrix = KroneckerProduct.of(oneMatrix, betaFixedMatrix);
                 // reset the data
-                betaFixedData = betaFixedMatrix.getData();
+                betaFixedData = SharedRealMatrix.dataOf(betaFixedMatrix);
 
                 // now repeat for the beta random matrix
                 if (betaRandom != null) {
-                    RealMatrix betaRandomMatrix = new Array2DRowRealMatrix(betaRandomData);
-                    betaRandomMatrix = MatrixUtils.getKroneckerProduct(oneMatrix, betaRandomMatrix);
+                    RealMatrix betaRandomMatrix = new Array2DRowRealMatrix(betaRandomData, false);
+                    betaRandomMatrix = KroneckerProduct.of(oneMatrix, betaRandomMatrix);
                     // reset the data
-                    betaRandomData = betaRandomMatrix.getData();
+                    betaRandomData = SharedRealMatrix.dataOf(betaRandomMatrix);
                 }
             }
         }
@@ -432,6 +521,19 @@ public final class PowerResourceHelper {
      * @return fixed/random C matrix
      */
     public static FixedRandomMatrix betweenParticipantContrastFromStudyDesign(StudyDesign studyDesign) {
+        return betweenParticipantContrastFromStudyDesign(studyDesign, primaryHypothesis(studyDesign));
+    }
+
+    /**
+     * Create a fixed/random between participant contrast (C matrix)
+     * from the study design, for the specified hypothesis of a
+     * "guided" study design.
+     * @param studyDesign study design object
+     * @param hypothesis hypothesis of interest, ignored in matrix mode
+     * @return fixed/random C matrix
+     */
+    static FixedRandomMatrix betweenParticipantContrastFromStudyDesign(StudyDesign studyDesign,
+            Hypothesis hypothesis) {
         if (studyDesign.getViewTypeEnum() == StudyDesignViewTypeEnum.MATRIX_MODE) {
             // matrix based design
             NamedMatrix cFixed =
@@ -445,42 +547,11 @@ public final class PowerResourceHelper {
                     true);
         } else {
             // Guided design
-            Set<Hypothesis> hypothesisSet = studyDesign.getHypothesis();
-            if (hypothesisSet != null) {
-                // only consider the primary hypothesis at present (i.e. the first one)
-                Hypothesis hypothesis = hypothesisSet.iterator().next();
+            if (studyDesign.getHypothesis() != null) {
                 if (hypothesis != null) {
-                    RealMatrix cFixed = null;
+                    List<RealMatrix> cFactors = betweenParticipantContrastFactors(studyDesign, hypothesis);
+                    RealMatrix cFixed = (cFactors != null ? ContrastHelper.kroneckerProduct(cFactors) : null);
                     RealMatrix cRandom = null;
-                    // get the factor of interest
-                    List<HypothesisBetweenParticipantMapping> betweenMap =
-                        hypothesis.getBetweenParticipantFactorMapList();
-                    if (betweenMap != null && betweenMap.size() > 0) {
-                        // build the fixed part of the contrast based on the hypothesis of interest
-                        switch (hypothesis.getType()) {
-                        case MAIN_EFFECT:
-                            // between subject factor of interest
-                            cFixed = ContrastHelper.mainEffectBetween(betweenMap.get(0).getBetweenParticipantFactor(),
-                                    studyDesign.getBetweenParticipantFactorList());
-                            break;
-                        case INTERACTION:
-                            cFixed = ContrastHelper.interactionBetween(betweenMap,
-                                    studyDesign.getBetweenParticipantFactorList());
-                            break;
-                        case TREND:
-                            cFixed = ContrastHelper.trendBetween(betweenMap.get(0),
-                                    studyDesign.getBetweenParticipantFactorList());
-                            break;
-                        case MANOVA:
-                            // between subject factor of interest
-                            cFixed = ContrastHelper.manovaBetween(betweenMap.get(0).getBetweenParticipantFactor(),
-                                    studyDesign.getBetweenParticipantFactorList());
-                            break;
-                        }
-                    } else {
-                        cFixed = ContrastHelper.grandMeanBetween(
-                                studyDesign.getBetweenParticipantFactorList());
-                    }
 
                     // build the random contrast if the design has a baseline covariate
                     if (studyDesign.isGaussianCovariate()) {
@@ -510,64 +581,48 @@ public final class PowerResourceHelper {
      * @return U matrix
      */
     public static RealMatrix withinParticipantContrastFromStudyDesign(StudyDesign studyDesign) {
+        return withinParticipantContrastFromStudyDesign(studyDesign, studyDesign.getClusteringTree());
+    }
+
+    /**
+     * Create the within participant contrast (U matrix) from the study
+     * design, expanding for the specified clustering rather than the
+     * design's own.
+     * @param studyDesign study design object
+     * @param clusterNodeList clustering tree, or null for no clustering
+     * @return U matrix
+     */
+    public static RealMatrix withinParticipantContrastFromStudyDesign(StudyDesign studyDesign,
+            List<ClusterNode> clusterNodeList) {
+        return withinParticipantContrastFromStudyDesign(studyDesign, clusterNodeList, null,
+                primaryHypothesis(studyDesign));
+    }
+
+    /**
+     * Create the within participant contrast (U matrix) from the study
+     * design, for the specified hypothesis of a "guided" study design,
+     * expanding for the specified clustering, with a clustered U built
+     * in a matrix from the specified scope.
+     * @param studyDesign study design object
+     * @param clusterNodeList clustering tree, or null for no clustering
+     * @param scope scope for large matrices, or null to build on the heap
+     * @param hypothesis hypothesis of interest, ignored in matrix mode
+     * @return U matrix
+     */
+    static RealMatrix withinParticipantContrastFromStudyDesign(StudyDesign studyDesign,
+            List<ClusterNode> clusterNodeList, MatrixScope scope, Hypothesis hypothesis) {
         if (studyDesign.getViewTypeEnum() == StudyDesignViewTypeEnum.MATRIX_MODE) {
             return toRealMatrix(studyDesign.getNamedMatrix(PowerConstants.MATRIX_WITHIN_CONTRAST));
         } else {
             // Guided design
-            Set<Hypothesis> hypothesisSet = studyDesign.getHypothesis();
-            if (hypothesisSet != null) {
-                // only consider the primary hypothesis at present (i.e. the first one)
-                Hypothesis hypothesis = hypothesisSet.iterator().next();
+            if (studyDesign.getHypothesis() != null) {
                 if (hypothesis != null) {
-                    RealMatrix withinContrast = null;
-                    if (hypothesis.getType() == HypothesisTypeEnum.MANOVA) {
-                        withinContrast = ContrastHelper.manovaWithin(studyDesign.getResponseList());
-                    } else {
-                        // get the factor of interest
-                        List<HypothesisRepeatedMeasuresMapping> withinMap =
-                            hypothesis.getRepeatedMeasuresMapTree();
-                        if (withinMap != null && withinMap.size() > 0) {
-                            // build the fixed part of the contrast based on the hypothesis of interest
-                            switch (hypothesis.getType()) {
-                            case MAIN_EFFECT:
-                                // within subject factor of interest
-                                withinContrast = ContrastHelper.mainEffectWithin(withinMap.get(0).getRepeatedMeasuresNode(),
-                                        studyDesign.getRepeatedMeasuresTree(), studyDesign.getResponseList());
-                                debug(
-                                    "withinContrast after calling mainEffectWithin("
-                                        + withinMap.get(0).getRepeatedMeasuresNode() + ", "
-                                        + studyDesign.getRepeatedMeasuresTree() + ", "
-                                        + studyDesign.getResponseList() + ")",
-                                    withinContrast
-                                );
-                                break;
-
-                            case INTERACTION:
-                                withinContrast = ContrastHelper.interactionWithin(withinMap,
-                                        studyDesign.getRepeatedMeasuresTree(), studyDesign.getResponseList());
-                                break;
-
-                            case TREND:
-                                withinContrast = ContrastHelper.trendWithin(withinMap.get(0),
-                                        studyDesign.getRepeatedMeasuresTree(), studyDesign.getResponseList());
-                                debug(
-                                    "withinContrast after calling trendWithin("
-                                        + withinMap.get(0) + ", "
-                                        + studyDesign.getRepeatedMeasuresTree() + ", "
-                                        + studyDesign.getResponseList() + ")",
-                                    withinContrast
-                                );
-                                break;
-                            }
-                        } else {
-                            withinContrast = ContrastHelper.grandMeanWithin(
-                                    studyDesign.getRepeatedMeasuresTree(), studyDesign.getResponseList());
-                        }
-                    }
+                    List<RealMatrix> uFactors = withinParticipantContrastFactors(studyDesign, hypothesis);
+                    RealMatrix withinContrast = (uFactors != null ? ContrastHelper.kroneckerProduct(uFactors) : null);
 
                     // expand rows if clustering is present
                     if (withinContrast != null) {
-                        List<ClusterNode> clusterNodeList = studyDesign.getClusteringTree();
+                        debug("withinContrast for " + hypothesis.getType() + " hypothesis", withinContrast);
                         if (clusterNodeList != null && clusterNodeList.size() > 0) {
                             int totalRows = 1;
                             for(ClusterNode node: clusterNodeList) {
@@ -579,7 +634,7 @@ public final class PowerResourceHelper {
                             // generate the proper dimensions for a cluster sample
                             RealMatrix oneMatrix =
                                 MatrixUtils.getRealMatrixWithFilledValue(totalRows, 1, 1);
-                            withinContrast = MatrixUtils.getKroneckerProduct(oneMatrix, withinContrast);
+                            withinContrast = KroneckerProduct.of(Arrays.asList(oneMatrix, withinContrast), scope);
 
                         }
                     }
@@ -596,12 +651,183 @@ public final class PowerResourceHelper {
         return null;
     }
 
+    /**
+     * Create the Kronecker factors of the fixed between participant
+     * contrast (C matrix) for a "guided" study design.  The product of
+     * the factors is the fixed part of the matrix returned by
+     * betweenParticipantContrastFromStudyDesign.
+     * @param studyDesign study design object
+     * @return list of factors, or null for matrix mode designs or if
+     * no applicable hypothesis is specified
+     */
+    public static List<RealMatrix> betweenParticipantContrastFactorsFromStudyDesign(StudyDesign studyDesign) {
+        return betweenParticipantContrastFactorsFromStudyDesign(studyDesign, primaryHypothesis(studyDesign));
+    }
+
+    /**
+     * Create the Kronecker factors of the fixed between participant
+     * contrast (C matrix) for the specified hypothesis of a "guided"
+     * study design.
+     * @param studyDesign study design object
+     * @param hypothesis hypothesis of interest
+     * @return list of factors, or null for matrix mode designs or if
+     * no hypothesis is specified
+     */
+    static List<RealMatrix> betweenParticipantContrastFactorsFromStudyDesign(StudyDesign studyDesign,
+            Hypothesis hypothesis) {
+        if (studyDesign.getViewTypeEnum() != StudyDesignViewTypeEnum.GUIDED_MODE
+                || hypothesis == null) {
+            return null;
+        }
+        return betweenParticipantContrastFactors(studyDesign, hypothesis);
+    }
+
+    /**
+     * Create the Kronecker factors of the within participant contrast
+     * (U matrix) for a "guided" study design, without the expansion
+     * for clustering.
+     * @param studyDesign study design object
+     * @return list of factors, or null for matrix mode designs or if
+     * no applicable hypothesis is specified
+     */
+    public static List<RealMatrix> withinParticipantContrastFactorsFromStudyDesign(StudyDesign studyDesign) {
+        return withinParticipantContrastFactorsFromStudyDesign(studyDesign, primaryHypothesis(studyDesign));
+    }
+
+    /**
+     * Create the Kronecker factors of the within participant contrast
+     * (U matrix) for the specified hypothesis of a "guided" study
+     * design, without the expansion for clustering.
+     * @param studyDesign study design object
+     * @param hypothesis hypothesis of interest
+     * @return list of factors, or null for matrix mode designs or if
+     * no hypothesis is specified
+     */
+    static List<RealMatrix> withinParticipantContrastFactorsFromStudyDesign(StudyDesign studyDesign,
+            Hypothesis hypothesis) {
+        if (studyDesign.getViewTypeEnum() != StudyDesignViewTypeEnum.GUIDED_MODE
+                || hypothesis == null) {
+            return null;
+        }
+        return withinParticipantContrastFactors(studyDesign, hypothesis);
+    }
+
+    /**
+     * Get the primary hypothesis of a study design, i.e. the first one,
+     * which is the one tested by /power, /samplesize and /difference.
+     * @param studyDesign study design object, or null
+     * @return primary hypothesis, or null if there is none
+     */
+    static Hypothesis primaryHypothesis(StudyDesign studyDesign) {
+        Set<Hypothesis> hypothesisSet = (studyDesign != null ? studyDesign.getHypothesis() : null);
+        if (hypothesisSet == null || hypothesisSet.isEmpty()) {
+            return null;
+        }
+        return hypothesisSet.iterator().next();
+    }
+
+    /**
+     * Build the factors of the fixed between participant contrast
+     * for the specified hypothesis.
+     * @param studyDesign study design object
+     * @param hypothesis hypothesis of interest
+     * @return list of factors, or null if the hypothesis type does not apply
+     */
+    private static List<RealMatrix> betweenParticipantContrastFactors(StudyDesign studyDesign,
+            Hypothesis hypothesis) {
+        List<RealMatrix> factors = null;
+        // get the factor of interest
+        List<HypothesisBetweenParticipantMapping> betweenMap =
+            hypothesis.getBetweenParticipantFactorMapList();
+        if (betweenMap != null && betweenMap.size() > 0) {
+            // build the fixed part of the contrast based on the hypothesis of interest
+            switch (hypothesis.getType()) {
+            case MAIN_EFFECT:
+                // between subject factor of interest
+                factors = ContrastHelper.mainEffectBetweenFactors(betweenMap.get(0).getBetweenParticipantFactor(),
+                        studyDesign.getBetweenParticipantFactorList());
+                break;
+            case INTERACTION:
+                factors = ContrastHelper.interactionBetweenFactors(betweenMap,
+                        studyDesign.getBetweenParticipantFactorList());
+                break;
+            case TREND:
+                factors = ContrastHelper.trendBetweenFactors(betweenMap.get(0),
+                        studyDesign.getBetweenParticipantFactorList());
+                break;
+            case MANOVA:
+                // between subject factor of interest
+                factors = ContrastHelper.manovaBetweenFactors(betweenMap.get(0).getBetweenParticipantFactor(),
+                        studyDesign.getBetweenParticipantFactorList());
+                break;
+            }
+        } else {
+            factors = ContrastHelper.grandMeanBetweenFactors(
+                    studyDesign.getBetweenParticipantFactorList());
+        }
+        return factors;
+    }
+
+    /**
+     * Build the factors of the within participant contrast for the
+     * specified hypothesis, without the expansion for clustering.
+     * @param studyDesign study design object
+     * @param hypothesis hypothesis of interest
+     * @return list of factors, or null if the hypothesis type does not apply
+     */
+    private static List<RealMatrix> withinParticipantContrastFactors(StudyDesign studyDesign,
+            Hypothesis hypothesis) {
+        List<RealMatrix> factors = null;
+        if (hypothesis.getType() == HypothesisTypeEnum.MANOVA) {
+            factors = new ArrayList<RealMatrix>();
+            factors.add(ContrastHelper.manovaWithin(studyDesign.getResponseList()));
+        } else {
+            // get the factor of interest
+            List<HypothesisRepeatedMeasuresMapping> withinMap =
+                hypothesis.getRepeatedMeasuresMapTree();
+            if (withinMap != null && withinMap.size() > 0) {
+                // build the fixed part of the contrast based on the hypothesis of interest
+                switch (hypothesis.getType()) {
+                case MAIN_EFFECT:
+                    // within subject factor of interest
+                    factors = ContrastHelper.mainEffectWithinFactors(withinMap.get(0).getRepeatedMeasuresNode(),
+                            studyDesign.getRepeatedMeasuresTree(), studyDesign.getResponseList());
+                    break;
+                case INTERACTION:
+                    factors = ContrastHelper.interactionWithinFactors(withinMap,
+                            studyDesign.getRepeatedMeasuresTree(), studyDesign.getResponseList());
+                    break;
+                case TREND:
+                    factors = ContrastHelper.trendWithinFactors(withinMap.get(0),
+                            studyDesign.getRepeatedMeasuresTree(), studyDesign.getResponseList());
+                    break;
+                }
+            } else {
+                factors = ContrastHelper.grandMeanWithinFactors(
+                        studyDesign.getRepeatedMeasuresTree(), studyDesign.getResponseList());
+            }
+        }
+        return factors;
+    }
+
     /**
      * Create a sigma error matrix from the study design.
      * @param studyDesign study design object
      * @return sigma error matrix
      */
-    private static RealMatrix sigmaErrorMatrixFromStudyDesign(StudyDesign studyDesign) {
+    public static RealMatrix sigmaErrorMatrixFromStudyDesign(StudyDesign studyDesign) {
+        return sigmaErrorMatrixFromStudyDesign(studyDesign, null);
+    }
+
+    /**
+     * Create a sigma error matrix from the study design, building the
+     * Kronecker product for a guided design in a matrix from the
+     * specified scope.
+     * @param studyDesign study design object
+     * @param scope scope for large matrices, or null to build on the heap
+     * @return sigma error matrix
+     */
+    static RealMatrix sigmaErrorMatrixFromStudyDesign(StudyDesign studyDesign, MatrixScope scope) {
         if (studyDesign.getViewTypeEnum() == StudyDesignViewTypeEnum.MATRIX_MODE) {
             return toRealMatrix(studyDesign.getNamedMatrix(PowerConstants.MATRIX_SIGMA_ERROR));
         } else {
@@ -664,7 +890,7 @@ public final class PowerResourceHelper {
                 throw new IllegalArgumentException("Invalid covariance information for response variables");
             }
 
-            return MatrixUtils.getKroneckerProduct(kroneckerMatrixList);
+            return KroneckerProduct.of(kroneckerMatrixList, scope);
         }
     }
 
@@ -689,6 +915,23 @@ public final class PowerResourceHelper {
     public static RealMatrix sigmaOutcomesCovariateMatrixFromStudyDesign(
             StudyDesign studyDesign,
             RealMatrix sigmaG, RealMatrix sigmaY) {
+        return sigmaOutcomesCovariateMatrixFromStudyDesign(studyDesign, sigmaG, sigmaY,
+                studyDesign.getClusteringTree());
+    }
+
+    /**
+     * Create a sigma outcomes/covariate matrix from the study design,
+     * expanding for the specified clustering rather than the design's own.
+     * @param studyDesign study design object
+     * @param sigmaG covariate variance
+     * @param sigmaY outcomes covariance
+     * @param clusterNodeList clustering tree, or null for no clustering
+     * @return sigma outcomes/covariate matrix
+     */
+    public static RealMatrix sigmaOutcomesCovariateMatrixFromStudyDesign(
+            StudyDesign studyDesign,
+            RealMatrix sigmaG, RealMatrix sigmaY,
+            List<ClusterNode> clusterNodeList) {
         RealMatrix sigmaYG;
 
         if (studyDesign.getViewTypeEnum() == StudyDesignViewTypeEnum.MATRIX_MODE) {
@@ -742,7 +985,6 @@ public final class PowerResourceHelper {
                 debug("sigmaYG prior to accounting for clustering", sigmaYG);
 
                 // calculate cluster size
-                List<ClusterNode> clusterNodeList = studyDesign.getClusteringTree();
                 if (clusterNodeList != null && clusterNodeList.size() > 0) {
                     int totalRows = 1;
                     for(ClusterNode node: clusterNodeList) {
@@ -756,7 +998,7 @@ public final class PowerResourceHelper {
                     RealMatrix oneMatrix = MatrixUtils.getRealMatrixWithFilledValue(totalRows, 1, 1);
                     debug("matrix of ones", oneMatrix);
 
-                    sigmaYG = MatrixUtils.getKroneckerProduct(oneMatrix, sigmaYG);
+                    sigmaYG = KroneckerProduct.of(oneMatrix, sigmaYG);
                     debug("final sigmaYG", sigmaYG);
                 }
             }
@@ -795,15 +1037,62 @@ public final class PowerResourceHelper {
      */
     public static RealMatrix thetaNullMatrixFromStudyDesign(StudyDesign studyDesign,
             FixedRandomMatrix C, RealMatrix U) {
+        return thetaNullMatrixFromStudyDesign(studyDesign, C, U, true);
+    }
+
+    /**
+     * Create a null hypothesis matrix from the study design, for the
+     * primary or another hypothesis of a "guided" study design.  The
+     * theta null of the study design belongs to the primary hypothesis;
+     * another hypothesis is tested against zero, so a design with a
+     * non-zero theta null cannot be tested for other hypotheses.
+     * @param studyDesign study design object
+     * @param C between participant contrast for the hypothesis
+     * @param U within participant contrast for the hypothesis
+     * @param primary true for the primary hypothesis
+     * @return theta null matrix
+     * @throws IllegalArgumentException if another hypothesis is tested
+     * for a design with a non-zero theta null
+     */
+    static RealMatrix thetaNullMatrixFromStudyDesign(StudyDesign studyDesign,
+            FixedRandomMatrix C, RealMatrix U, boolean primary) {
+        int rows = -1;
+        int columns = -1;
+        if (C != null && C.getFixedMatrix() != null && U != null) {
+            rows = C.getFixedMatrix().getRowDimension();
+            columns = U.getColumnDimension();
+        }
+        return thetaNullMatrixFromStudyDesign(studyDesign, rows, columns, primary);
+    }
+
+    /**
+     * Create a null hypothesis matrix from the study design, for the
+     * primary or another hypothesis of a "guided" study design, given
+     * the rows of C and the columns of U rather than the matrices.
+     * @param studyDesign study design object
+     * @param rows rows of the between participant contrast, or -1 if unknown
+     * @param columns columns of the within participant contrast, or -1 if unknown
+     * @param primary true for the primary hypothesis
+     * @return theta null matrix
+     * @throws IllegalArgumentException if another hypothesis is tested
+     * for a design with a non-zero theta null
+     */
+    static RealMatrix thetaNullMatrixFromStudyDesign(StudyDesign studyDesign,
+            int rows, int columns, boolean primary) {
         if (studyDesign.getViewTypeEnum() == StudyDesignViewTypeEnum.MATRIX_MODE) {
             return toRealMatrix(studyDesign.getNamedMatrix(PowerConstants.MATRIX_THETA_NULL));
         } else {
             RealMatrix thetaNull =
                 toRealMatrix(studyDesign.getNamedMatrix(PowerConstants.MATRIX_THETA_NULL));
+            if (thetaNull != null && !primary) {
+                if (!isZero(thetaNull)) {
+                    throw new IllegalArgumentException("Theta null applies only to the primary "
+                            + "hypothesis; other hypotheses require a zero theta null.");
+                }
+                thetaNull = null;
+            }
             if (thetaNull == null) {
-                if (C != null && C.getFixedMatrix() != null && U != null) {
-                    int rows = C.getFixedMatrix().getRowDimension();
-                    int columns = U.getColumnDimension();
+                if (rows >= 0 && columns >= 0) {
                     thetaNull = MatrixUtils.getRealMatrixWithFilledValue(rows, columns, 0);
                 }
             }
@@ -811,6 +1100,21 @@ public final class PowerResourceHelper {
         }
     }
 
+    /**
+     * @param matrix matrix
+     * @return true if every entry of the matrix is zero
+     */
+    private static boolean isZero(RealMatrix matrix) {
+        for (int row = 0; row < matrix.getRowDimension(); row++) {
+            for (int column = 0; column < matrix.getColumnDimension(); column++) {
+                if (matrix.getEntry(row, column) != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     /**
      * Create the list of matrices generated by the specified study design
      * @param studyDesign study design object
@@ -820,64 +1124,74 @@ public final class PowerResourceHelper {
         if (studyDesign == null) {
             return null;
         }
+        return namedMatrixListFromDesignContext(new DesignContext(studyDesign));
+    }
+
+    /**
+     * Create the list of matrices generated by the study design held by
+     * a design context, reusing the matrices already built by the context.
+     * @param context design context
+     * @return list of matrices used to compute power
+     */
+    public static NamedMatrixList namedMatrixListFromDesignContext(DesignContext context) {
+        StudyDesign studyDesign = context.getStudyDesign();
         // allocate a result list
         NamedMatrixList matrixList = new NamedMatrixList();
         // parse the study design into matrices
         // build design matrix
-        NamedMatrix X = toNamedMatrix(designMatrixFromStudyDesign(studyDesign),
-                PowerConstants.MATRIX_DESIGN);
+        NamedMatrix X = toNamedMatrix(context.getDesignMatrix(),
+                PowerConstants.MATRIX_DESIGN, true);
         if (X != null) matrixList.add(X);
         // build beta matrix
-        FixedRandomMatrix beta = betaMatrixFromStudyDesign(studyDesign);
+        FixedRandomMatrix beta = context.getBeta();
         if (beta != null) {
-            matrixList.add(toNamedMatrix(beta.getFixedMatrix(), PowerConstants.MATRIX_BETA));
+            matrixList.add(toNamedMatrix(beta.getFixedMatrix(), PowerConstants.MATRIX_BETA, true));
             if (studyDesign.isGaussianCovariate()) {
                 matrixList.add(toNamedMatrix(beta.getRandomMatrix(),
-                        PowerConstants.MATRIX_BETA_RANDOM));
+                        PowerConstants.MATRIX_BETA_RANDOM, true));
             }
         }
         // build the between subject contrast
-        FixedRandomMatrix C = betweenParticipantContrastFromStudyDesign(studyDesign);
+        FixedRandomMatrix C = context.getBetweenContrast();
         if (C != null) {
             matrixList.add(toNamedMatrix(C.getFixedMatrix(),
-                    PowerConstants.MATRIX_BETWEEN_CONTRAST));
+                    PowerConstants.MATRIX_BETWEEN_CONTRAST, true));
             if (studyDesign.isGaussianCovariate()) {
                 matrixList.add(toNamedMatrix(C.getRandomMatrix(),
-                        PowerConstants.MATRIX_BETWEEN_CONTRAST_RANDOM));
+                        PowerConstants.MATRIX_BETWEEN_CONTRAST_RANDOM, true));
             }
         }
 
         // build the within subject contrast
-        RealMatrix U = withinParticipantContrastFromStudyDesign(studyDesign);
+        RealMatrix U = context.getWithinContrast();
         if (U != null) {
-            matrixList.add(toNamedMatrix(U, PowerConstants.MATRIX_WITHIN_CONTRAST));
+            matrixList.add(toNamedMatrix(U, PowerConstants.MATRIX_WITHIN_CONTRAST, true));
         }
         // build theta null matrix
-        NamedMatrix thetaNull = toNamedMatrix(thetaNullMatrixFromStudyDesign(studyDesign, C, U),
-                PowerConstants.MATRIX_THETA_NULL);
+        NamedMatrix thetaNull = toNamedMatrix(context.getThetaNull(),
+                PowerConstants.MATRIX_THETA_NULL, true);
         matrixList.add(thetaNull);
 
         // add matrices for either GLMM(F) or GLMM(F,g) designs
         if (studyDesign.isGaussianCovariate()) {
             NamedMatrix sigmaY =
-                toNamedMatrix(sigmaOutcomesMatrixFromStudyDesign(studyDesign),
-                        PowerConstants.MATRIX_SIGMA_OUTCOME);
+                toNamedMatrix(context.getSigmaOutcome(),
+                        PowerConstants.MATRIX_SIGMA_OUTCOME, true);
             if (sigmaY != null) matrixList.add(sigmaY);
 
             NamedMatrix sigmaG =
-                toNamedMatrix(sigmaCovariateMatrixFromStudyDesign(studyDesign),
-                        PowerConstants.MATRIX_SIGMA_GAUSSIAN);
+                toNamedMatrix(context.getSigmaCovariate(),
+                        PowerConstants.MATRIX_SIGMA_GAUSSIAN, true);
             if (sigmaG != null) matrixList.add(sigmaG);
 
             NamedMatrix sigmaYG =
-                toNamedMatrix(sigmaOutcomesCovariateMatrixFromStudyDesign(studyDesign,
-                        toRealMatrix(sigmaG), toRealMatrix(sigmaY)),
-                        PowerConstants.MATRIX_SIGMA_OUTCOME_GAUSSIAN);
+                toNamedMatrix(context.getSigmaOutcomeCovariate(),
+                        PowerConstants.MATRIX_SIGMA_OUTCOME_GAUSSIAN, true);
             if (sigmaYG != null) matrixList.add(sigmaYG);
         } else {
             NamedMatrix sigmaE =
-                toNamedMatrix(sigmaErrorMatrixFromStudyDesign(studyDesign),
-                        PowerConstants.MATRIX_SIGMA_ERROR);
+                toNamedMatrix(context.getSigmaError(),
+                        PowerConstants.MATRIX_SIGMA_ERROR, true);
             if (sigmaE != null) matrixList.add(sigmaE);
         }
         return matrixList;
@@ -891,14 +1205,15 @@ public final class PowerResourceHelper {
      *            The matrix is a input matrix of type NamedMatrix which is to
      *            be converted to type RealMatrix.
      * @return RealMatrix Returns a RealMatrix which is obtained by converting
-     *         the input matrix to a RealMatrix.
+     *         the input matrix to a RealMatrix.  It shares the entries of
+     *         the named matrix until it is modified.
      */
     public static RealMatrix toRealMatrix(final NamedMatrix namedMatrix) {
         RealMatrix realMatrix = null;
         if (namedMatrix != null) {
             Blob2DArray blob = namedMatrix.getData();
             if (blob != null) {
-                realMatrix = new Array2DRowRealMatrix(blob.getData());
+                realMatrix = new SharedRealMatrix(blob.getData());
             }
         }
         return realMatrix;
@@ -917,18 +1232,97 @@ public final class PowerResourceHelper {
      *         the input matrix to NamedMatrix
      */
     public static NamedMatrix toNamedMatrix(final RealMatrix matrix, final String name) {
+        return toNamedMatrix(matrix, name, false);
+    }
+
+    /**
+     * Convert a RealMatrix to a NamedMatrix, sharing the entries of the
+     * matrix rather than copying them if share is set.  A shared matrix
+     * and the named matrix must not be modified afterward.
+     *
+     * @param matrix matrix to convert
+     * @param name name of the matrix
+     * @param share true to share the entries of the matrix, if possible
+     * @return named matrix, or null if either argument is missing
+     */
+    private static NamedMatrix toNamedMatrix(final RealMatrix matrix, final String name,
+            final boolean share) {
         if (matrix == null || name == null || name.isEmpty()) {
             LOGGER.error("failed to create NamedMatrix object name=[" + (name != null ? name : "NULL")+ "]");
             return null;
         }
         NamedMatrix namedMatrix = new NamedMatrix();
-        namedMatrix.setDataFromArray(matrix.getData());
+        namedMatrix.setDataFromArray(share ? SharedRealMatrix.dataOf(matrix) : matrix.getData());
         namedMatrix.setName(name);
         namedMatrix.setColumns(matrix.getColumnDimension());
         namedMatrix.setRows(matrix.getRowDimension());
         return namedMatrix;
     }
 
+    /**
+     * Copy a matrix.  The copy shares the entries of the matrix until
+     * either is modified.
+     * @param matrix matrix, or null
+     * @return copy of the matrix, or null
+     */
+    private static RealMatrix copy(RealMatrix matrix) {
+        return SharedRealMatrix.copyOf(matrix);
+    }
+
+    /**
+     * Copy a fixed/random matrix.
+     * @param matrix fixed/random matrix, or null
+     * @param combineHorizontal true if the fixed and random parts are combined horizontally
+     * @return copy of the matrix, or null
+     */
+    private static FixedRandomMatrix copy(FixedRandomMatrix matrix, boolean combineHorizontal) {
+        if (matrix == null) {
+            return null;
+        }
+        RealMatrix fixed = matrix.getFixedMatrix();
+        RealMatrix random = matrix.getRandomMatrix();
+        return new FixedRandomMatrix((fixed != null ? fixed.getData() : null),
+                (random != null ? random.getData() : null), combineHorizontal);
+    }
+
+    /**
+     * Calculate all results for a design context, according to the
+     * solution type of its study design.  Sample size is found by
+     * SampleSizeSearch, as for /samplesize.
+     * @param context design context
+     * @param deadline time by which the calculation must be complete,
+     *        in milliseconds since the epoch
+     * @return results
+     * @throws IllegalArgumentException if the design is invalid, or has
+     *         no solution type
+     * @throws PowerException if the calculation fails
+     * @throws TimeoutException if the deadline passes
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static PowerResultList calculate(DesignContext context, long deadline)
+            throws IllegalArgumentException, PowerException, TimeoutException,
+            InterruptedException {
+        SolutionTypeEnum solutionType = context.getStudyDesign().getSolutionTypeEnum();
+        if (solutionType == null) {
+            throw new IllegalArgumentException("Invalid solution type.");
+        }
+        if (solutionType == SolutionTypeEnum.SAMPLE_SIZE) {
+            return new SampleSizeSearch(context, null).search(deadline);
+        }
+        GLMMPowerParameters params = context.toPowerParameters();
+        GLMMPowerCalculator calculator = new GLMMPowerCalculator();
+        List<Power> calcResults;
+        switch (solutionType) {
+        case DETECTABLE_DIFFERENCE:
+            calcResults = calculator.getDetectableDifference(params);
+            break;
+        default:
+            calcResults = calculator.getPower(params);
+            break;
+        }
+        return toPowerResultList(calcResults);
+    }
+
     /**
      * Convert a list of GLMMPower objects to a list of PowerResult objects
      * @param powerList GLMMPower object list
@@ -967,7 +1361,7 @@ public final class PowerResourceHelper {
                 toConfidenceInterval(glmmPower.getConfidenceInterval())
         );
 
-        // powerResult.setErrorCode(glmmPower.getErrorCode()); // TODO: convert enum
+        powerResult.setErrorCode(toPowerErrorEnum(glmmPower.getErrorCode()));
         powerResult.setErrorMessage(glmmPower.getErrorMessage());
 
         return powerResult;
@@ -996,7 +1390,7 @@ public final class PowerResourceHelper {
      * @throws IllegalArgumentException if the study design does not pass
      *                                  some input validity tests.
      */
-    private static void validate(StudyDesign studyDesign) {
+    static void validate(StudyDesign studyDesign) {
         // All repeatedMeasuresTree node dimensions must be distinct.
         Set<String> dimensions = new HashSet<String>();
         List<RepeatedMeasuresNode> rmNodes = studyDesign.getRepeatedMeasuresTree();
@@ -1023,292 +1417,9 @@ public final class PowerResourceHelper {
             }
         }
 
-        // The number of groups must be "reasonable".
-        validateNumberOfGroups(studyDesign);
-
-        // The number of cases must be "reasonable".
-        validateNumberOfCases(studyDesign);
-    }
-
-    /**
-     * See if the number of groups included in the request defined by
-     * a study design is reasonable. "Reasonable" is subjective: it
-     * means no greater than the constant MAX_GROUPS.
-     *
-     * @param studyDesign The study design.
-     *
-     * @throws IllegalArgumentException if not.
-     */
-    private static void validateNumberOfGroups(StudyDesign studyDesign) {
-        int nGroups = 1;
-
-        List<BetweenParticipantFactor> factorList = studyDesign.getBetweenParticipantFactorList();
-        if (factorList != null) {
-            for (BetweenParticipantFactor factor: factorList) {
-                List<Category> categoryList = factor.getCategoryList();
-                if (categoryList != null) {
-                    nGroups *= categoryList.size();
-                }
-            }
-        }
-
-        if (nGroups > MAX_GROUPS) {
-            StringBuilder sb = new StringBuilder();
-
-            sb.append("To better manage the load on our server, we ask that you limit your request to no more than ")
-              .append(MAX_GROUPS)
-              .append(" groups.");
-            sb.append("<br>");
-            sb.append("Your request currently includes ")
-               .append(pretty(nGroups))
-               .append(" groups (");
-            boolean first = true;
-            for (BetweenParticipantFactor factor: factorList) {
-                List<Category> categoryList = factor.getCategoryList();
-                if (categoryList != null) {
-                    if (first) {
-                        first = false;
-                    } else {
-                        sb.append(" \u00d7 ");
-                    }
-                    sb.append(categoryList.size());
-                }
-            }
-            sb.append("):");
-
-            sb.append("<ul>");
-
-            for (BetweenParticipantFactor factor: factorList) {
-                List<Category> categoryList = factor.getCategoryList();
-                if (categoryList != null) {
-                    sb.append("<li>")
-                      .append("predictor '" + factor.getPredictorName() + "' has " + categoryList.size() + " values")
-                      .append("</li>");
-                }
-            }
-
-            sb.append("</ul>");
-
-            throw new IllegalArgumentException(sb.toString());
-        }
-    }
-
-    /**
-     * See if the number of cases included in the request defined by
-     * a study design is reasonable. "Reasonable" is subjective: it
-     * means no greater than the constant MAX_CASES.
-     *
-     * @param studyDesign The study design.
-     *
-     * @throws IllegalArgumentException if not.
-     */
-    private static void validateNumberOfCases(StudyDesign studyDesign) {
-        SolutionTypeEnum solutionType = studyDesign.getSolutionTypeEnum();
-        if (solutionType == null) {
-            throw new IllegalArgumentException("Internal error 93.");
-        }
-
-        int nUnits;
-        switch (solutionType) {
-        case POWER:
-            nUnits = size(studyDesign.getSampleSizeList());
-            break;
-        case SAMPLE_SIZE:
-            nUnits = size(studyDesign.getNominalPowerList());
-            break;
-        default:
-            nUnits = 0;
-            break;
-        }
-
-        int nStatisticalTests = size(studyDesign.getStatisticalTestList());
-        int nAlphas           = size(studyDesign.getAlphaList());
-        int nBetaScales       = size(studyDesign.getBetaScaleList());
-        int nSigmaScales      = size(studyDesign.getSigmaScaleList());
-
-        List<PowerMethod> powerMethodList = studyDesign.getPowerMethodList();
-        int nPowerMethods =
-            (hasPowerMethod(powerMethodList, PowerMethodEnum.UNCONDITIONAL) ? 1 : 0)
-                + (hasPowerMethod(powerMethodList, PowerMethodEnum.QUANTILE) ? size(studyDesign.getQuantileList()) : 0);
-
-        // TODO: is integer overflow a serious consideration here?
-        int nCases =
-              weight(nUnits)
-            * weight(nStatisticalTests)
-            * weight(nAlphas)
-            * weight(nBetaScales)
-            * weight(nSigmaScales)
-            * weight(nPowerMethods)
-        ;
-
-        if (nCases > MAX_CASES) {
-            StringBuilder sb = new StringBuilder();
-
-            sb.append("To better manage the load on our server, we ask that you limit your request to no more than ")
-              .append(MAX_CASES)
-              .append(" cases.");
-            sb.append("<br>");
-            sb.append("Your request currently includes ")
-               .append(pretty(nCases))
-               .append(" cases (");
-            boolean first = true;
-            if (nUnits > 0) {
-                if (first) {
-                    first = false;
-                } else {
-                    sb.append(" \u00d7 ");
-                }
-                sb.append(nUnits);
-            }
-            if (nStatisticalTests > 0) {
-                if (first) {
-                    first = false;
-                } else {
-                    sb.append(" \u00d7 ");
-                }
-                sb.append(nStatisticalTests);
-            }
-            if (nAlphas > 0) {
-                if (first) {
-                    first = false;
-                } else {
-                    sb.append(" \u00d7 ");
-                }
-                sb.append(nAlphas);
-            }
-            if (nBetaScales > 0) {
-                if (first) {
-                    first = false;
-                } else {
-                    sb.append(" \u00d7 ");
-                }
-                sb.append(nBetaScales);
-            }
-            if (nSigmaScales > 0) {
-                if (first) {
-                    first = false;
-                } else {
-                    sb.append(" \u00d7 ");
-                }
-                sb.append(nSigmaScales);
-            }
-            if (nPowerMethods > 0) {
-                if (first) {
-                    first = false;
-                } else {
-                    sb.append(" \u00d7 ");
-                }
-                sb.append(nPowerMethods);
-            }
-            sb.append("):");
-
-            sb.append("<ul>");
-
-            if (nUnits > 0) {
-                sb.append("<li>")
-                  .append(
-                    solutionType == SolutionTypeEnum.POWER
-                        ? combination(nUnits, "Group Size", "Group Sizes")
-                        : combination(nUnits, "Desired Power", "Desired Powers")
-                   )
-                  .append("</li>");
-            }
-
-            if (nStatisticalTests > 0) {
-                sb.append("<li>")
-                  .append(combination(nStatisticalTests, "Statistical Test", "Statistical Tests"))
-                  .append("</li>");
-            }
-
-            if (nAlphas > 0) {
-                sb.append("<li>")
-                  .append(combination(nAlphas, "Type I Error Rate", "Type I Error Rates"))
-                  .append("</li>");
-            }
-
-            if (nBetaScales > 0) {
-                sb.append("<li>")
-                  .append(combination(nBetaScales, "Scale Factor For Means", "Scale Factors for Means"))
-                  .append("</li>");
-            }
-
-            if (nSigmaScales > 0) {
-                sb.append("<li>")
-                  .append(combination(nSigmaScales, "Scale Factor for Variability", "Scale Factors for Variability"))
-                  .append("</li>");
-            }
-
-            if (nPowerMethods > 0) {
-                sb.append("<li>")
-                  .append(combination(nPowerMethods, "Power Method", "Power Methods"))
-                  .append("</li>");
-            }
-
-            sb.append("</ul>");
-
-            throw new IllegalArgumentException(sb.toString());
-        }
-    }
-
-    /**
-     * Combine a number with a noun, to produce, for example,
-     * "1 apple" or "2 apples".
-     *
-     * @param n  The number.
-     * @param s1 The noun to use if the number is the number 1.
-     * @param s  The noun to use otherwise.
-     *
-     * @return The combination of the number and the noun.
-     */
-    private static String combination(int n, String s1, String s) {
-        return n == 1 ? "1 " + s1 : n + " " + s;
-    }
-
-    /**
-     * See if a power method list contains a particular power method.
-     *
-     * @param powerMethodList The power method list.
-     * @param powerMethodEnum The particular power method.
-     *
-     * @return True if it does, else false.
-     */
-    private static boolean hasPowerMethod(List<PowerMethod> powerMethodList, PowerMethodEnum powerMethodEnum) {
-        if (powerMethodList == null) {
-            return false;
-        }
-
-        for (PowerMethod powerMethod: powerMethodList) {
-            if (powerMethod.getPowerMethodEnum() == powerMethodEnum) {
-                return true;
-            }
-        }
-
-        return false;
-    }
-
-    /**
-     * Return the size of a (possibly null) list.
-     *
-     * @param The list.
-     *
-     * @return The size of the list, or zero if null.
-     */
-    private static int size(List<?> list) {
-        return list != null ? list.size() : 0;
-    }
-
-    /**
-     * Return the multiplicative effect of a factor that may be absent.
-     * If the factor is present, its multiplicative effect is its value.
-     * If it is absent, its multiplicative effect is the number 1; that
-     * is, it has no effect.
-     *
-     * @param n The value of a factor, or zero if the factor is absent.
-     *
-     * @return The multiplicative effect of the factor.
-     */
-    private static int weight(int n) {
-        return n != 0 ? n : 1;
+        // The estimated cost and memory footprint of the calculation must be "reasonable".
+        new DesignCost(studyDesign).validate(ComputeBudget.getInstance().getCapacity());
+        new DesignFootprint(studyDesign).validate(ComputeBudget.getInstance().getHeapCapacity());
     }
 
     /**
@@ -1330,16 +1441,4 @@ public final class PowerResourceHelper {
     private static void debug(String label, RealMatrix realMatrix) {
         LOGGER.debug(MatrixUtilities.logMessageSupplier(label, realMatrix));
     }
-
-    /**
-     * Compute a string representation of an integer, with commas.
-     * (This method belongs in a utility class somewhere.)
-     *
-     * @param n The integer.
-     *
-     * @return The string representation.
-     */
-    private static String pretty(int n) {
-        return java.text.NumberFormat.getIntegerInstance(java.util.Locale.US).format(n);
-    }
 }
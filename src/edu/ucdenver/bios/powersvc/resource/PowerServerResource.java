@@ -24,9 +24,11 @@ package edu.ucdenver.bios.powersvc.resource;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
 
 import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.restlet.data.Status;
 import org.restlet.resource.Post;
@@ -37,6 +39,9 @@ import edu.cudenver.bios.power.GLMMPowerCalculator;
 import edu.cudenver.bios.power.Power;
 import edu.cudenver.bios.power.PowerException;
 import edu.cudenver.bios.power.parameters.GLMMPowerParameters;
+import edu.ucdenver.bios.powersvc.application.AdaptiveConcurrencyLimit;
+import edu.ucdenver.bios.powersvc.application.ComputeBudget;
+import edu.ucdenver.bios.powersvc.application.PowerApplication;
 import edu.ucdenver.bios.powersvc.application.PowerLogger;
 import edu.ucdenver.bios.webservice.common.domain.PowerResultList;
 import edu.ucdenver.bios.webservice.common.domain.StudyDesign;
@@ -57,8 +62,18 @@ public class PowerServerResource extends ServerResource
 
     private static final ExecutorService THREADS = Executors.newCachedThreadPool();
 
+    /** Kind of request, for the design hash which keys the result store. */
+    private static final String RESULT_KIND = "power";
+
     /**
      * Calculate power for the specified study design JSON.
+     * <p>
+     * If the "include" query parameter lists "matrices" and/or "html",
+     * the response is a JSON object holding the results along with
+     * the matrices used in the calculation, built once for both.
+     * <p>
+     * The results of an identical earlier request, by this or another
+     * service process on the host, are returned from the result store.
      *
      * @param jsonStudyDesign study design JSON
      *
@@ -74,30 +89,66 @@ public class PowerServerResource extends ServerResource
         logger.info("getPower(): " + getRequest().getRootRef() + ": "
                         + "jsonStudyDesign = '" + jsonStudyDesign + "'");
 
+        JsonNode json;
         StudyDesign studyDesign;
 
         try {
-            studyDesign = MAPPER.readValue(jsonStudyDesign, StudyDesign.class);
+            json = MAPPER.readTree(jsonStudyDesign);
+            studyDesign = (json != null ? MAPPER.readValue(json, StudyDesign.class) : null);
         } catch (IOException ioe) {
             PowerLogger.getInstance().error(ioe.getMessage(), ioe);
             throw badRequestException(ioe.getMessage());
         }
 
-        PowerResultList powerResultList = getPower(studyDesign, jsonStudyDesign);
+        if (studyDesign == null) {
+            throw badRequestException("Invalid study design.");
+        }
 
-        String result;
+        Set<String> includes;
 
         try {
-            result = MAPPER.writeValueAsString(powerResultList);
-        } catch (IOException ioe) {
-            PowerLogger.getInstance().error(ioe.getMessage(), ioe);
-            throw badRequestException(ioe.getMessage());
+            includes = CombinedResponse.parseIncludes(
+                    getQueryValue(CombinedResponse.INCLUDE_PARAMETER));
+        } catch (IllegalArgumentException iae) {
+            throw badRequestException(iae.getMessage());
         }
 
-        logger.info("INPUT = '" + jsonStudyDesign + "'");
-        logger.info("OUTPUT = '" + result + "'");
+        // the largest matrices are built in a scope closed with the request
+        MatrixScope scope = MatrixScope.create(getContext());
+        try {
+            // reuse the results of an identical earlier request, if stored
+            DesignContext context = new DesignContext(studyDesign, scope);
+            ResultStore store = getResultStore();
+            byte[] key = (store != null ? DesignHash.of(RESULT_KIND, json) : null);
+            PowerResultList powerResultList = (key != null ? store.get(key) : null);
+            if (powerResultList == null) {
+                powerResultList = getPower(context, jsonStudyDesign);
+                if (key != null) {
+                    store.put(key, powerResultList);
+                }
+            }
+
+            String result;
+
+            try {
+                if (includes.isEmpty()) {
+                    result = MAPPER.writeValueAsString(powerResultList);
+                } else {
+                    result = CombinedResponse.toJSON(MAPPER, powerResultList, context, includes,
+                            PowerMatrixHTMLServerResource.getMaxDisplayDimension(getContext()));
+                }
+            } catch (IOException ioe) {
+                PowerLogger.getInstance().error(ioe.getMessage(), ioe);
+                throw badRequestException(ioe.getMessage());
+            }
+
+            logger.info("INPUT = '" + jsonStudyDesign + "'");
+            logger.info("OUTPUT = '" + result + "'");
 
-        return result;
+            return result;
+        } finally {
+            scope.release();
+        }
     }
 
     /**
@@ -109,35 +160,42 @@ public class PowerServerResource extends ServerResource
      * @return List of power objects for the study design
      */
     public final PowerResultList getPower(final StudyDesign studyDesign) {
-        return getPower(studyDesign, "NOT SUPPLIED");
+        if (studyDesign == null) {
+            throw badRequestException("Invalid study design.");
+        }
+        return getPower(new DesignContext(studyDesign), "NOT SUPPLIED");
     }
 
     /**
-     * Calculate power for the specified study design object, and, possibly,
+     * Calculate power for the specified study design context, and, possibly,
      * the study design JSON from whence it came.
      *
-     * @param studyDesign study design object
+     * @param context study design context
      * @param jsonStudyDesign study design JSON, if available
      *
      * @return List of power objects for the study design
      */
-    private final PowerResultList getPower(final StudyDesign studyDesign, final String jsonStudyDesign) {
-        if (studyDesign == null) {
-            throw badRequestException("Invalid study design.");
-        }
-
+    private final PowerResultList getPower(final DesignContext context, final String jsonStudyDesign) {
         // NOTE: we currently run with "-Xms6g -Xmx6g", so we expect total == max
         logger.info("Memory stats: free: " + Runtime.getRuntime().freeMemory() / BYTES_PER_MEG +
                 "M, total: " + Runtime.getRuntime().totalMemory() / BYTES_PER_MEG +
                 "M, max: " + Runtime.getRuntime().maxMemory() / BYTES_PER_MEG + "M");
         long start = System.currentTimeMillis();
 
-        // Execute the calculation asynchronously and time out after a certain period of time.
-        PowerCallable callable = new PowerCallable(studyDesign);
-        Future<PowerResultList> future = THREADS.submit(callable);
+        // Wait for room in the compute budget, so that the server is not overloaded.
+        ComputeBudget.Lease lease = DesignCost.admit(context.getStudyDesign());
+
+        // Execute the calculation asynchronously and time out after a certain period of time,
+        // reporting the time taken to the concurrency limit.
+        long computeStart = System.nanoTime();
+        PowerCallable callable = new PowerCallable(context);
+        MatrixScope scope = context.getScope();
+        Future<PowerResultList> future = (scope != null
+                ? scope.submit(THREADS, callable) : THREADS.submit(callable));
         try {
-            // TODO: make the timeout configurable
-            PowerResultList results = future.get(300, TimeUnit.SECONDS);
+            PowerResultList results = future.get(
+                    PowerApplication.getCalculationTimeoutMillis(getApplication()), TimeUnit.MILLISECONDS);
+            AdaptiveConcurrencyLimit.getInstance().record(lease.getCost(), System.nanoTime() - computeStart);
             logger.info("getPower(): " + "executed in " + (System.currentTimeMillis() - start) + " milliseconds");
             return results;
         } catch (InterruptedException e) {
@@ -160,25 +218,27 @@ public class PowerServerResource extends ServerResource
             throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "Exception during computation");
         } catch (TimeoutException e) {
             logger.warn(getClass().getSimpleName() + ": TimeoutException(): " + getRequest().getRootRef());
+            AdaptiveConcurrencyLimit.getInstance().recordTimeout();
             logger.warn(getClass().getSimpleName() + ": TimeoutException(): " + jsonStudyDesign);
             boolean canceled = future.cancel(true);
             logger.info(getClass().getSimpleName() + ": canceled: " + canceled);
             throw badRequestException("Request timed out during computation.");
+        } finally {
+            lease.release();
         }
     }
 
     public static class PowerCallable implements Callable<PowerResultList> {
-        private StudyDesign studyDesign;
+        private DesignContext context;
 
-        private PowerCallable(StudyDesign studyDesign) {
-            this.studyDesign = studyDesign;
+        private PowerCallable(DesignContext context) {
+            this.context = context;
         }
 
         @Override
         public PowerResultList call() throws Exception {
             try {
-                GLMMPowerParameters params =
-                        PowerResourceHelper.studyDesignToPowerParameters(studyDesign);
+                GLMMPowerParameters params = context.toPowerParameters();
                 // create the appropriate power calculator for this model
                 GLMMPowerCalculator calculator = new GLMMPowerCalculator();
                 // calculate the power results
@@ -198,6 +258,14 @@ public class PowerServerResource extends ServerResource
         }
     }
 
+    /**
+     * @return store of previous results, or null if there is none
+     */
+    private ResultStore getResultStore() {
+        return getApplication() instanceof PowerApplication
+                ? ((PowerApplication) getApplication()).getResultStore() : null;
+    }
+
     private static ResourceException badRequestException(String message) {
         return new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, message);
     }
@@ -0,0 +1,674 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.CholeskyDecomposition;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.NonPositiveDefiniteMatrixException;
+import org.apache.commons.math3.linear.NonSymmetricMatrixException;
+import org.apache.commons.math3.linear.QRDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+
+import edu.cudenver.bios.distribution.NonCentralFDistribution;
+import edu.cudenver.bios.power.glmm.GLMMTestFactory;
+import edu.cudenver.bios.power.parameters.GLMMPowerParameters;
+import edu.ucdenver.bios.powersvc.application.ComputeScheduler;
+
+/**
+ * Monte Carlo estimate of power for a design with fixed predictors.
+ * For each combination of per group sample size, beta scale and sigma
+ * scale, data sets are drawn from the general linear multivariate model
+ * Y = XB + E, and the fraction of data sets in which each requested test
+ * rejects the null hypothesis CBU = Theta0 at each alpha is the estimated
+ * power.  Each data set is scored by all of the tests and alphas at once.
+ * <p>
+ * The data are drawn in the space of the within participant contrast,
+ * U'Y, after U is made orthonormal (as the univariate approach to
+ * repeated measures assumes), which leaves the hypothesis unchanged.
+ * <p>
+ * Replicates are simulated in blocks on the shared compute scheduler.
+ * Each block has its own random stream, split from the seed in block
+ * order, and the stopping rule is checked after each round of a fixed
+ * number of blocks, so that the results depend only on the seed, the
+ * size and the precision, not on the number of cores.  A design point
+ * stops early once the 95% (Wilson score) confidence interval of every
+ * estimate is within the requested precision of the estimate.
+ *
+ * @author Sarah Kreidler
+ */
+final class PowerSimulation {
+    /** Replicates in a block, the unit of work given to a thread. */
+    static final int BLOCK_SIZE = 250;
+
+    /** Blocks simulated between checks of the stopping rule. */
+    static final int BLOCKS_PER_ROUND = 8;
+
+    /** Standard normal quantile for a 95% confidence interval. */
+    static final double Z_95 = 1.959963984540054;
+
+    /** The confidence intervals were within the precision. */
+    static final String STOP_PRECISION = "precision";
+
+    /** All of the requested replicates were simulated. */
+    static final String STOP_SIZE = "size";
+
+    /** The time limit was reached. */
+    static final String STOP_TIMEOUT = "timeout";
+
+    private final RealMatrix essence;
+    private final RealMatrix beta;
+    private final RealMatrix betweenContrast;
+    private final RealMatrix withinContrast;
+    private final RealMatrix thetaNull;
+    private final RealMatrix sigmaError;
+    private final List<GLMMTestFactory.Test> tests;
+    private final List<Double> alphas;
+    private final List<Integer> sampleSizes;
+    private final List<Double> betaScales;
+    private final List<Double> sigmaScales;
+
+    /**
+     * Prepare a simulation for the design held by power parameters.
+     *
+     * @param params power parameters, from studyDesignToPowerParameters
+     * @throws IllegalArgumentException if the design cannot be simulated
+     */
+    PowerSimulation(GLMMPowerParameters params) throws IllegalArgumentException {
+        if (params.getSigmaError() == null) {
+            throw new IllegalArgumentException(
+                    "Simulation is only available for designs with fixed predictors.");
+        }
+        if (isEmpty(params.getTestList()) || isEmpty(params.getAlphaList())
+                || isEmpty(params.getSampleSizeList())) {
+            throw new IllegalArgumentException(
+                    "Simulation requires at least one test, alpha and sample size.");
+        }
+        essence = params.getDesignEssence();
+        beta = params.getBeta().getFixedMatrix();
+        betweenContrast = params.getBetweenSubjectContrast().getFixedMatrix();
+        sigmaError = params.getSigmaError();
+        tests = params.getTestList();
+        alphas = params.getAlphaList();
+        sampleSizes = params.getSampleSizeList();
+        betaScales = orOne(params.getBetaScaleList());
+        sigmaScales = orOne(params.getSigmaScaleList());
+
+        RealMatrix u = params.getWithinSubjectContrast();
+        RealMatrix theta = params.getTheta();
+        if (essence.getColumnDimension() != beta.getRowDimension()
+                || betweenContrast.getColumnDimension() != beta.getRowDimension()
+                || u.getRowDimension() != beta.getColumnDimension()
+                || sigmaError.getRowDimension() != beta.getColumnDimension()
+                || theta.getRowDimension() != betweenContrast.getRowDimension()
+                || theta.getColumnDimension() != u.getColumnDimension()) {
+            throw new IllegalArgumentException("The design matrices do not conform.");
+        }
+
+        // make U orthonormal: U = QR, so CBQ = Theta0 inv(R) is the same hypothesis
+        int b = u.getColumnDimension();
+        RealMatrix r = new QRDecomposition(u).getR().getSubMatrix(0, b - 1, 0, b - 1);
+        LUDecomposition rDecomposition = new LUDecomposition(r);
+        if (!rDecomposition.getSolver().isNonSingular()) {
+            throw new IllegalArgumentException("The within participant contrast is not of full rank.");
+        }
+        RealMatrix rInverse = rDecomposition.getSolver().getInverse();
+        withinContrast = u.multiply(rInverse);
+        thetaNull = theta.multiply(rInverse);
+    }
+
+    /**
+     * Run the simulation.
+     *
+     * @param seed seed of the random streams
+     * @param size maximum number of replicates for each design point
+     * @param precision stop a design point once every confidence interval
+     *        is within this distance of its estimate
+     * @param deadline time by which to stop, in milliseconds since the epoch
+     * @return results for each design point
+     * @throws IllegalArgumentException if a design point cannot be simulated
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    List<Point> run(long seed, int size, double precision, long deadline)
+            throws IllegalArgumentException, InterruptedException {
+        // build every model first, so that invalid points are reported before any work
+        List<Point> points = new ArrayList<Point>();
+        for (Integer sampleSize: sampleSizes) {
+            for (Double betaScale: betaScales) {
+                for (Double sigmaScale: sigmaScales) {
+                    points.add(new Point(sampleSize, betaScale, sigmaScale,
+                            new Model(sampleSize, betaScale, sigmaScale)));
+                }
+            }
+        }
+        SplitMix64 root = new SplitMix64(seed);
+        for (Point point: points) {
+            simulate(point, root.split(), size, precision, deadline);
+        }
+        return points;
+    }
+
+    /**
+     * Simulate one design point, round by round.
+     *
+     * @param point design point
+     * @param random random stream of the point
+     * @param size maximum number of replicates
+     * @param precision target half width of the confidence intervals
+     * @param deadline time by which to stop
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    private void simulate(final Point point, final SplitMix64 random, final int size,
+            final double precision, final long deadline) throws InterruptedException {
+        final Model model = point.model;
+        int[] rejections = new int[point.estimates.size()];
+        int done = 0;
+        while (true) {
+            if (done >= size) {
+                point.stopReason = STOP_SIZE;
+                return;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                point.stopReason = STOP_TIMEOUT;
+                return;
+            }
+
+            List<Callable<int[]>> blocks = new ArrayList<Callable<int[]>>();
+            int round = 0;
+            for (int i = 0; i < BLOCKS_PER_ROUND && done + round < size; i++) {
+                final int replicates = Math.min(BLOCK_SIZE, size - done - round);
+                final SplitMix64 stream = random.split();
+                blocks.add(new Callable<int[]>() {
+                    public int[] call() {
+                        return model.simulate(stream, replicates);
+                    }
+                });
+                round += replicates;
+            }
+
+            List<Future<int[]>> futures = ComputeScheduler.getInstance().invokeAll(blocks, deadline);
+            int[] roundRejections = new int[rejections.length];
+            for (Future<int[]> future: futures) {
+                if (future.isCancelled()) {
+                    // drop the partial round, so that the results stay reproducible
+                    point.stopReason = STOP_TIMEOUT;
+                    return;
+                }
+                int[] counts;
+                try {
+                    counts = future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+                for (int i = 0; i < counts.length; i++) {
+                    roundRejections[i] += counts[i];
+                }
+            }
+
+            done += round;
+            boolean precise = true;
+            for (int i = 0; i < rejections.length; i++) {
+                rejections[i] += roundRejections[i];
+                Interval interval = new Interval(done, rejections[i]);
+                point.estimates.get(i).trace.add(interval);
+                precise &= interval.getHalfWidth() <= precision;
+            }
+            point.replicates = done;
+            if (precise) {
+                point.stopReason = STOP_PRECISION;
+                return;
+            }
+        }
+    }
+
+    private static boolean isEmpty(List<?> list) {
+        return list == null || list.isEmpty();
+    }
+
+    private static List<Double> orOne(List<Double> list) {
+        return isEmpty(list) ? Collections.singletonList(1.0) : list;
+    }
+
+    /**
+     * Model for one design point, shared by the threads simulating it.
+     */
+    private final class Model {
+        private final int perGroupSize;
+        private final int groups;
+        private final int b;
+        private final double errorDegreesOfFreedom;
+        private final double[][] means;
+        private final double[][] root;
+        private final RealMatrix essenceTranspose;
+        private final RealMatrix xtxInverse;
+        private final RealMatrix middleInverse;
+        private final int a;
+        // degrees of freedom by test, before any sphericity correction
+        private final double[][] degreesOfFreedom;
+        // critical values by test and alpha, or NaN if the degrees of freedom vary
+        private final double[][] critical;
+
+        /**
+         * Build the model.
+         *
+         * @param perGroupSize per group sample size
+         * @param betaScale beta scale
+         * @param sigmaScale sigma scale
+         * @throws IllegalArgumentException if the model cannot be simulated
+         */
+        Model(int perGroupSize, double betaScale, double sigmaScale) {
+            this.perGroupSize = perGroupSize;
+            groups = essence.getRowDimension();
+            b = withinContrast.getColumnDimension();
+            a = betweenContrast.getRowDimension();
+            int rank = new SingularValueDecomposition(essence).getRank();
+            errorDegreesOfFreedom = (double) perGroupSize * groups - rank;
+            if (perGroupSize < 1 || errorDegreesOfFreedom < 1) {
+                throw new IllegalArgumentException("Per group sample size " + perGroupSize
+                        + " leaves no error degrees of freedom.");
+            }
+
+            means = essence.multiply(beta.scalarMultiply(betaScale)).multiply(withinContrast).getData();
+            RealMatrix sigma = withinContrast.transpose().multiply(sigmaError).multiply(withinContrast)
+                    .scalarMultiply(sigmaScale);
+            try {
+                root = new CholeskyDecomposition(symmetric(sigma)).getL().getData();
+            } catch (NonPositiveDefiniteMatrixException e) {
+                throw new IllegalArgumentException("The error covariance is not positive definite.");
+            } catch (NonSymmetricMatrixException e) {
+                throw new IllegalArgumentException("The error covariance is not symmetric.");
+            }
+
+            essenceTranspose = essence.transpose();
+            xtxInverse = new SingularValueDecomposition(essenceTranspose.multiply(essence))
+                    .getSolver().getInverse().scalarMultiply(1.0 / perGroupSize);
+            LUDecomposition middle = new LUDecomposition(
+                    betweenContrast.multiply(xtxInverse).multiply(betweenContrast.transpose()));
+            if (!middle.getSolver().isNonSingular()) {
+                throw new IllegalArgumentException("The between participant contrast is not estimable.");
+            }
+            middleInverse = middle.getSolver().getInverse();
+
+            degreesOfFreedom = new double[tests.size()][];
+            critical = new double[tests.size()][alphas.size()];
+            for (int t = 0; t < tests.size(); t++) {
+                GLMMTestFactory.Test test = tests.get(t);
+                if (isMultivariate(test) && errorDegreesOfFreedom < b) {
+                    throw new IllegalArgumentException("Per group sample size " + perGroupSize
+                            + " leaves too few error degrees of freedom for the multivariate tests.");
+                }
+                double[] df = degreesOfFreedom(test, 1);
+                degreesOfFreedom[t] = df;
+                if (!(df[0] > 0 && df[1] > 0)) {
+                    throw new IllegalArgumentException("Per group sample size " + perGroupSize
+                            + " leaves too few error degrees of freedom for the " + test + " test.");
+                }
+                for (int i = 0; i < alphas.size(); i++) {
+                    critical[t][i] = (hasFixedDegreesOfFreedom(test)
+                            ? FCriticalValueCache.getInstance().inverseCDF(1 - alphas.get(i), df[0], df[1])
+                            : Double.NaN);
+                }
+            }
+        }
+
+        /**
+         * Simulate a block of data sets.
+         *
+         * @param random random stream of the block
+         * @param replicates number of data sets
+         * @return number of rejections by test and alpha
+         */
+        int[] simulate(SplitMix64 random, int replicates) {
+            int[] rejections = new int[tests.size() * alphas.size()];
+            double[][] sums = new double[groups][b];
+            double[][] crossProducts = new double[b][b];
+            double[] z = new double[b];
+            double[] y = new double[b];
+            for (int replicate = 0; replicate < replicates; replicate++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                for (int j = 0; j < b; j++) {
+                    Arrays.fill(crossProducts[j], 0);
+                }
+                for (int g = 0; g < groups; g++) {
+                    double[] mean = means[g];
+                    double[] sum = sums[g];
+                    Arrays.fill(sum, 0);
+                    for (int i = 0; i < perGroupSize; i++) {
+                        for (int j = 0; j < b; j++) {
+                            z[j] = random.nextGaussian();
+                        }
+                        for (int j = 0; j < b; j++) {
+                            double value = mean[j];
+                            double[] rootRow = root[j];
+                            for (int k = 0; k <= j; k++) {
+                                value += rootRow[k] * z[k];
+                            }
+                            y[j] = value;
+                            sum[j] += value;
+                            double[] crossRow = crossProducts[j];
+                            for (int k = 0; k <= j; k++) {
+                                crossRow[k] += value * y[k];
+                            }
+                        }
+                    }
+                }
+                for (int j = 0; j < b; j++) {
+                    for (int k = 0; k < j; k++) {
+                        crossProducts[k][j] = crossProducts[j][k];
+                    }
+                }
+
+                // fit the model from the group sums and the cross products
+                RealMatrix xty = essenceTranspose.multiply(new Array2DRowRealMatrix(sums, false));
+                RealMatrix betaHat = xtxInverse.multiply(xty);
+                RealMatrix error = new Array2DRowRealMatrix(crossProducts, true)
+                        .subtract(xty.transpose().multiply(betaHat));
+                RealMatrix difference = betweenContrast.multiply(betaHat).subtract(thetaNull);
+                RealMatrix hypothesis = difference.transpose().multiply(middleInverse).multiply(difference);
+                score(hypothesis, error, rejections);
+            }
+            return rejections;
+        }
+
+        /**
+         * Apply each test to a simulated data set.
+         *
+         * @param hypothesis hypothesis sum of squares and cross products
+         * @param error error sum of squares and cross products
+         * @param rejections rejection counts by test and alpha, updated
+         */
+        private void score(RealMatrix hypothesis, RealMatrix error, int[] rejections) {
+            RealMatrix errorInverse = null;
+            RealMatrix totalInverse = null;
+            for (int t = 0; t < tests.size(); t++) {
+                GLMMTestFactory.Test test = tests.get(t);
+                double[] df = degreesOfFreedom[t];
+                double f;
+                double epsilon = 1;
+                int s = Math.min(a, b);
+                switch (test) {
+                case HOTELLING_LAWLEY_TRACE: {
+                    if (errorInverse == null) {
+                        errorInverse = new LUDecomposition(error).getSolver().getInverse();
+                    }
+                    f = hypothesis.multiply(errorInverse).getTrace() / s * df[1] / df[0];
+                    break;
+                }
+                case PILLAI_BARTLETT_TRACE: {
+                    if (totalInverse == null) {
+                        totalInverse = new LUDecomposition(hypothesis.add(error)).getSolver().getInverse();
+                    }
+                    double v = hypothesis.multiply(totalInverse).getTrace();
+                    f = v / (s - v) * df[1] / df[0];
+                    break;
+                }
+                case WILKS_LAMBDA: {
+                    double lambda = new LUDecomposition(error).getDeterminant()
+                            / new LUDecomposition(hypothesis.add(error)).getDeterminant();
+                    double lambdaRoot = Math.pow(lambda, 1 / wilksT());
+                    f = (1 - lambdaRoot) / lambdaRoot * df[1] / df[0];
+                    break;
+                }
+                default: {
+                    // univariate approach to repeated measures
+                    double errorTrace = error.getTrace();
+                    f = (hypothesis.getTrace() / a) / (errorTrace / errorDegreesOfFreedom);
+                    if (test == GLMMTestFactory.Test.UNIREP_GEISSER_GREENHOUSE
+                            || test == GLMMTestFactory.Test.UNIREP_HUYNH_FELDT) {
+                        epsilon = errorTrace * errorTrace / (b * error.multiply(error).getTrace());
+                        if (test == GLMMTestFactory.Test.UNIREP_HUYNH_FELDT) {
+                            double denominator = b * (errorDegreesOfFreedom - b * epsilon);
+                            double huynhFeldt = ((errorDegreesOfFreedom + 1) * b * epsilon - 2) / denominator;
+                            epsilon = (denominator > 0 ? Math.max(epsilon, Math.min(1, huynhFeldt)) : 1);
+                        }
+                    }
+                    break;
+                }
+                }
+
+                if (hasFixedDegreesOfFreedom(test)) {
+                    for (int i = 0; i < alphas.size(); i++) {
+                        if (f > critical[t][i]) {
+                            rejections[t * alphas.size() + i]++;
+                        }
+                    }
+                } else {
+                    double[] corrected = degreesOfFreedom(test, epsilon);
+                    double p = 1 - new NonCentralFDistribution(corrected[0], corrected[1], 0).cdf(f);
+                    for (int i = 0; i < alphas.size(); i++) {
+                        if (p < alphas.get(i)) {
+                            rejections[t * alphas.size() + i]++;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Get the degrees of freedom of the F approximation for a test.
+         *
+         * @param test statistical test
+         * @param epsilon sphericity correction, for the univariate tests
+         * @return numerator and denominator degrees of freedom
+         */
+        private double[] degreesOfFreedom(GLMMTestFactory.Test test, double epsilon) {
+            double s = Math.min(a, b);
+            double n = (errorDegreesOfFreedom - b - 1) / 2;
+            switch (test) {
+            case HOTELLING_LAWLEY_TRACE:
+                return new double[] {a * b, 2 * (s * n + 1)};
+            case PILLAI_BARTLETT_TRACE:
+                return new double[] {a * b, s * (2 * n + s + 1)};
+            case WILKS_LAMBDA:
+                double t = wilksT();
+                return new double[] {a * b,
+                        (errorDegreesOfFreedom - (b - a + 1) / 2.0) * t - (a * b - 2) / 2.0};
+            case UNIREP_BOX:
+                return new double[] {a, errorDegreesOfFreedom};
+            default:
+                return new double[] {a * b * epsilon, b * errorDegreesOfFreedom * epsilon};
+            }
+        }
+
+        /**
+         * @return exponent of Rao's F approximation to Wilks' lambda
+         */
+        private double wilksT() {
+            double denominator = a * a + b * b - 5;
+            return (denominator > 0 ? Math.sqrt((a * a * b * b - 4) / denominator) : 1);
+        }
+    }
+
+    private static boolean isMultivariate(GLMMTestFactory.Test test) {
+        return test == GLMMTestFactory.Test.HOTELLING_LAWLEY_TRACE
+                || test == GLMMTestFactory.Test.PILLAI_BARTLETT_TRACE
+                || test == GLMMTestFactory.Test.WILKS_LAMBDA;
+    }
+
+    private static boolean hasFixedDegreesOfFreedom(GLMMTestFactory.Test test) {
+        return test != GLMMTestFactory.Test.UNIREP_GEISSER_GREENHOUSE
+                && test != GLMMTestFactory.Test.UNIREP_HUYNH_FELDT;
+    }
+
+    private static RealMatrix symmetric(RealMatrix matrix) {
+        return matrix.add(matrix.transpose()).scalarMultiply(0.5);
+    }
+
+    /**
+     * Results for one combination of sample size, beta scale and sigma scale.
+     */
+    final class Point {
+        private final int perGroupSize;
+        private final double betaScale;
+        private final double sigmaScale;
+        private final Model model;
+        private final List<Estimate> estimates = new ArrayList<Estimate>();
+        private int replicates = 0;
+        private String stopReason;
+
+        private Point(int perGroupSize, double betaScale, double sigmaScale, Model model) {
+            this.perGroupSize = perGroupSize;
+            this.betaScale = betaScale;
+            this.sigmaScale = sigmaScale;
+            this.model = model;
+            for (GLMMTestFactory.Test test: tests) {
+                for (Double alpha: alphas) {
+                    estimates.add(new Estimate(test, alpha));
+                }
+            }
+        }
+
+        int getPerGroupSize() {
+            return perGroupSize;
+        }
+
+        int getTotalSize() {
+            return perGroupSize * model.groups;
+        }
+
+        double getBetaScale() {
+            return betaScale;
+        }
+
+        double getSigmaScale() {
+            return sigmaScale;
+        }
+
+        /**
+         * @return estimates by test, then alpha
+         */
+        List<Estimate> getEstimates() {
+            return estimates;
+        }
+
+        /**
+         * @return number of replicates simulated
+         */
+        int getReplicates() {
+            return replicates;
+        }
+
+        /**
+         * @return why the simulation stopped: STOP_PRECISION, STOP_SIZE or STOP_TIMEOUT
+         */
+        String getStopReason() {
+            return stopReason;
+        }
+    }
+
+    /**
+     * Estimated power of one test at one alpha, with the running
+     * estimate after each round.
+     */
+    static final class Estimate {
+        private final GLMMTestFactory.Test test;
+        private final double alpha;
+        private final List<Interval> trace = new ArrayList<Interval>();
+
+        private Estimate(GLMMTestFactory.Test test, double alpha) {
+            this.test = test;
+            this.alpha = alpha;
+        }
+
+        GLMMTestFactory.Test getTest() {
+            return test;
+        }
+
+        double getAlpha() {
+            return alpha;
+        }
+
+        /**
+         * @return running estimates, one per round
+         */
+        List<Interval> getTrace() {
+            return trace;
+        }
+
+        /**
+         * @return final estimate, or null if no round finished
+         */
+        Interval getFinal() {
+            return trace.isEmpty() ? null : trace.get(trace.size() - 1);
+        }
+    }
+
+    /**
+     * Power estimate with its Wilson score confidence interval.
+     */
+    static final class Interval {
+        private final int replicates;
+        private final int rejections;
+
+        Interval(int replicates, int rejections) {
+            this.replicates = replicates;
+            this.rejections = rejections;
+        }
+
+        int getReplicates() {
+            return replicates;
+        }
+
+        double getPower() {
+            return (double) rejections / replicates;
+        }
+
+        double getLower() {
+            return getCenter() - getHalfWidth();
+        }
+
+        double getUpper() {
+            return getCenter() + getHalfWidth();
+        }
+
+        private double getCenter() {
+            double z2 = Z_95 * Z_95;
+            return (getPower() + z2 / (2 * replicates)) / (1 + z2 / replicates);
+        }
+
+        double getHalfWidth() {
+            double p = getPower();
+            double z2 = Z_95 * Z_95;
+            return Z_95 * Math.sqrt(p * (1 - p) / replicates + z2 / (4.0 * replicates * replicates))
+                    / (1 + z2 / replicates);
+        }
+    }
+}
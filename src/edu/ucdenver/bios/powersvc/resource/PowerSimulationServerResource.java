@@ -0,0 +1,230 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+import org.restlet.data.Status;
+import org.restlet.resource.Post;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.ServerResource;
+
+import edu.ucdenver.bios.powersvc.application.ComputeBudget;
+import edu.ucdenver.bios.powersvc.application.PowerConstants;
+import edu.ucdenver.bios.powersvc.application.PowerApplication;
+import edu.ucdenver.bios.powersvc.application.PowerLogger;
+import edu.ucdenver.bios.webservice.common.domain.StudyDesign;
+
+/**
+ * Implementation of the PowerSimulationResource interface for
+ * estimating power by Monte Carlo simulation, as a check on the
+ * approximations used by /power for unusual designs.
+ *
+ * @author Sarah Kreidler
+ */
+public class PowerSimulationServerResource extends ServerResource
+        implements PowerSimulationResource {
+    /** Query parameter: maximum number of replicates. */
+    public static final String SIZE_PARAMETER = "size";
+
+    /** Query parameter: seed of the random streams. */
+    public static final String SEED_PARAMETER = "seed";
+
+    /** Query parameter: target half width of the confidence intervals. */
+    public static final String PRECISION_PARAMETER = "precision";
+
+    /** Default target half width of the confidence intervals. */
+    public static final double DEFAULT_PRECISION = 0.01;
+
+    private Logger logger = Logger.getLogger(getClass());
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Estimate power by Monte Carlo simulation for the specified study
+     * design JSON.  The simulation is controlled by the optional query
+     * parameters "size" (maximum number of replicates, default 10000),
+     * "seed" (default chosen at random and reported), and "precision"
+     * (default 0.01).
+     * <p>
+     * The response lists, for each test, alpha, sample size, beta scale
+     * and sigma scale, the estimated power with its 95% confidence
+     * interval, the running estimate after each round of replicates,
+     * and why the simulation stopped ("precision", "size" or "timeout").
+     *
+     * @param jsonStudyDesign study design JSON
+     *
+     * @return JSON representation of the simulated power
+     */
+    @Post("json:json")
+    public final String getSimulatedPower(final String jsonStudyDesign) {
+        if (jsonStudyDesign == null) {
+            throw badRequestException("Invalid study design.");
+        }
+
+        logger.info("getSimulatedPower(): " + getRequest().getRootRef() + ": "
+                        + "jsonStudyDesign = '" + jsonStudyDesign + "'");
+
+        long start = System.currentTimeMillis();
+        String result;
+
+        ComputeBudget.Lease lease = null;
+        try {
+            int size = getIntQueryValue(SIZE_PARAMETER, PowerConstants.DEFAULT_SIMULATION_SIZE);
+            if (size < 1 || size > PowerConstants.MAX_SIMULATION_SIZE) {
+                throw new IllegalArgumentException("The simulation size must be between 1 and "
+                        + PowerConstants.MAX_SIMULATION_SIZE + ".");
+            }
+            String seedValue = getQueryValue(SEED_PARAMETER);
+            long seed;
+            try {
+                seed = (seedValue != null ? Long.parseLong(seedValue) : System.nanoTime());
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("Invalid value for query parameter "
+                        + SEED_PARAMETER + ": " + seedValue);
+            }
+            double precision = DEFAULT_PRECISION;
+            String precisionValue = getQueryValue(PRECISION_PARAMETER);
+            if (precisionValue != null) {
+                try {
+                    precision = Double.parseDouble(precisionValue);
+                } catch (NumberFormatException nfe) {
+                    throw new IllegalArgumentException("Invalid value for query parameter "
+                            + PRECISION_PARAMETER + ": " + precisionValue);
+                }
+            }
+
+            ObjectNode json = DesignJson.parse(jsonStudyDesign, "study design");
+            StudyDesign studyDesign = DesignJson.toStudyDesign(json);
+
+            // each round of replicates costs about as much as the design itself
+            DesignCost cost = new DesignCost(studyDesign);
+            cost.validate(ComputeBudget.getInstance().getCapacity());
+            DesignFootprint footprint = new DesignFootprint(studyDesign);
+            footprint.validate(ComputeBudget.getInstance().getHeapCapacity());
+            int roundSize = PowerSimulation.BLOCK_SIZE * PowerSimulation.BLOCKS_PER_ROUND;
+            lease = DesignCost.admit(cost.getCost() * ((size + roundSize - 1) / roundSize),
+                    footprint.getBytes());
+
+            PowerSimulation simulation = new PowerSimulation(
+                    PowerResourceHelper.studyDesignToPowerParameters(studyDesign));
+            List<PowerSimulation.Point> points = simulation.run(seed, size, precision,
+                    start + PowerApplication.getCalculationTimeoutMillis(getApplication()));
+
+            List<Map<String, Object>> resultList = new ArrayList<Map<String, Object>>();
+            for (PowerSimulation.Point point: points) {
+                for (PowerSimulation.Estimate estimate: point.getEstimates()) {
+                    Map<String, Object> entry = new LinkedHashMap<String, Object>();
+                    entry.put("test", PowerResourceHelper.toStatisticalTest(estimate.getTest()));
+                    entry.put("alpha", estimate.getAlpha());
+                    entry.put("perGroupSampleSize", point.getPerGroupSize());
+                    entry.put("totalSampleSize", point.getTotalSize());
+                    entry.put("betaScale", point.getBetaScale());
+                    entry.put("sigmaScale", point.getSigmaScale());
+                    putInterval(entry, estimate.getFinal());
+                    entry.put("stopReason", point.getStopReason());
+                    List<Map<String, Object>> trace = new ArrayList<Map<String, Object>>();
+                    for (PowerSimulation.Interval interval: estimate.getTrace()) {
+                        Map<String, Object> round = new LinkedHashMap<String, Object>();
+                        putInterval(round, interval);
+                        trace.add(round);
+                    }
+                    entry.put("trace", trace);
+                    resultList.add(entry);
+                }
+            }
+            Map<String, Object> response = new LinkedHashMap<String, Object>();
+            response.put(SEED_PARAMETER, seed);
+            response.put(SIZE_PARAMETER, size);
+            response.put(PRECISION_PARAMETER, precision);
+            response.put("results", resultList);
+            result = MAPPER.writeValueAsString(response);
+        } catch (IOException ioe) {
+            PowerLogger.getInstance().error(ioe.getMessage(), ioe);
+            throw badRequestException(ioe.getMessage());
+        } catch (IllegalArgumentException iae) {
+            PowerLogger.getInstance().error(iae.getMessage(), iae);
+            throw badRequestException(iae.getMessage());
+        } catch (InterruptedException ie) {
+            logger.warn(getClass().getSimpleName() + ": InterruptedException(): " + getRequest().getRootRef(), ie);
+            throw badRequestException("Computation interrupted.");
+        } catch (OutOfMemoryError oome) {
+            PowerLogger.getInstance().error(oome.getMessage(), oome);
+            throw badRequestException("Insufficient memory to process this study design.");
+        } finally {
+            if (lease != null) {
+                lease.release();
+            }
+        }
+
+        logger.info("getSimulatedPower(): " + "executed in " + (System.currentTimeMillis() - start) + " milliseconds");
+        logger.info("OUTPUT = '" + result + "'");
+
+        return result;
+    }
+
+    /**
+     * Add a power estimate and its confidence interval to a response entry.
+     *
+     * @param entry response entry
+     * @param interval estimate, or null if none was made in time
+     */
+    private static void putInterval(Map<String, Object> entry, PowerSimulation.Interval interval) {
+        entry.put("replicates", interval != null ? interval.getReplicates() : 0);
+        entry.put("power", interval != null ? interval.getPower() : null);
+        entry.put("lowerBound", interval != null ? interval.getLower() : null);
+        entry.put("upperBound", interval != null ? interval.getUpper() : null);
+    }
+
+    /**
+     * Get an integer query parameter.
+     *
+     * @param name parameter name
+     * @param defaultValue value if the parameter is absent
+     * @return parameter value
+     * @throws IllegalArgumentException if the parameter is not an integer
+     */
+    private int getIntQueryValue(String name, int defaultValue)
+            throws IllegalArgumentException {
+        String value = getQueryValue(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Invalid value for query parameter " + name + ": " + value);
+        }
+    }
+
+    private static ResourceException badRequestException(String message) {
+        return new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, message);
+    }
+}
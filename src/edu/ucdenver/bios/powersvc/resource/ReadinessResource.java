@@ -0,0 +1,52 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import org.restlet.data.Status;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+import edu.ucdenver.bios.powersvc.application.PowerApplication;
+
+/**
+ * Readiness resource for load balancers.  Called from the URI /ready.
+ * Returns 200 once the service has finished warming up, and
+ * 503 (Service Unavailable) while warming up or draining.
+ *
+ * @author Sarah Kreidler
+ */
+public class ReadinessResource extends ServerResource {
+    /**
+     * Report whether the service is ready for traffic.
+     * @return readiness message
+     */
+    @Get
+    public final String represent() {
+        PowerApplication application = (PowerApplication) getApplication();
+        if (application.isReady()) {
+            return "ready";
+        }
+        getResponse().setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE);
+        return "not ready";
+    }
+}
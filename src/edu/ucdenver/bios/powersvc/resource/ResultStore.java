@@ -0,0 +1,660 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import edu.ucdenver.bios.powersvc.application.PowerLogger;
+import edu.ucdenver.bios.powersvc.application.PowerMetrics;
+import edu.ucdenver.bios.webservice.common.domain.PowerResultList;
+
+/**
+ * Results of power and sample size requests, kept in a file so that
+ * they survive restarts, and shared by the service processes on a host.
+ * Results are keyed by the design hash of the request kind and the
+ * study design JSON.
+ * <p>
+ * The file is a header followed by records, which are only ever
+ * appended: a record holds the key, the deflated JSON of the result
+ * list, and a CRC of both.  Each process memory maps the file, and
+ * indexes the records by scanning those appended since its last scan,
+ * so records appended by other processes are found as well.  A record
+ * which is incomplete, because it is still being written, ends the
+ * scan until the next lookup.  Appends are serialized between
+ * processes by a file lock.
+ * <p>
+ * Once the file exceeds its maximum size, it is compacted in the
+ * background: the most used results (as counted by this process),
+ * then the most recent, are copied to a new file of at most half the
+ * maximum size, which replaces the old one.  The old file is marked as
+ * retired, so that other processes reopen the store.
+ * <p>
+ * The header holds a hash of the build which wrote the store: the
+ * versions of the power service and of JavaStatistics.  Results of
+ * another build may differ, so a store written by another build is
+ * discarded on opening, and replaced like a compacted store.
+ *
+ * @author Sarah Kreidler
+ */
+public final class ResultStore {
+    /** Default maximum size of the store file. */
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    /** Largest allowed maximum size, so that the file can be mapped whole. */
+    private static final long MAX_MAX_BYTES = 512L * 1024 * 1024;
+
+    private static final int FILE_MAGIC = 0x50575253;   // "PWRS"
+    private static final int FORMAT_VERSION = 2;
+    private static final int RETIRED_OFFSET = 8;
+    private static final int BUILD_OFFSET = 16;
+    private static final int BUILD_BYTES = 32;
+    private static final int HEADER_BYTES = BUILD_OFFSET + BUILD_BYTES;
+
+    private static final int RECORD_MAGIC = 0x52534c54; // "RSLT"
+    private static final int KEY_BYTES = DesignHash.BYTES;
+
+    /** Bytes in a record besides its value: magic, length, key, CRC. */
+    private static final int RECORD_OVERHEAD = 4 + 4 + KEY_BYTES + 4;
+
+    /** Position of the byte locked while appending, past any real data. */
+    private static final long LOCK_POSITION = Long.MAX_VALUE - 1;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final File file;
+    private final long maxBytes;
+    private final String build;
+    private final byte[] buildHash;
+    private final ExecutorService compactor;
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+
+    /** End of the records indexed so far. */
+    private long scanned;
+
+    /** Latest record for each key, by hex key. */
+    private Map<String, Entry> index = new HashMap<String, Entry>();
+
+    private boolean compacting = false;
+
+    private final AtomicLong hits = PowerMetrics.getInstance().counter("result_store_hits");
+    private final AtomicLong misses = PowerMetrics.getInstance().counter("result_store_misses");
+
+    /**
+     * Open a store, creating the file if necessary.
+     *
+     * @param file store file
+     * @param maxBytes size beyond which the file is compacted
+     * @param build versions of the code which computes the results;
+     *        results stored by another build are discarded
+     * @throws IOException if the file cannot be opened, or is not a store
+     */
+    public ResultStore(File file, long maxBytes, String build) throws IOException {
+        if (maxBytes < 1024 * 1024 || maxBytes > MAX_MAX_BYTES) {
+            throw new IllegalArgumentException("Invalid result store size: " + maxBytes);
+        }
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.build = build;
+        this.buildHash = sha256(build);
+        this.compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "result-store-compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        synchronized (this) {
+            open();
+        }
+        PowerMetrics.getInstance().gauge("result_store_bytes", new PowerMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return getBytes();
+            }
+        });
+        PowerMetrics.getInstance().gauge("result_store_records", new PowerMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return getRecords();
+            }
+        });
+    }
+
+    /**
+     * Look up results.
+     *
+     * @param key key of the request
+     * @return results, or null if none are stored
+     */
+    public PowerResultList get(byte[] key) {
+        byte[] value;
+        synchronized (this) {
+            try {
+                Entry entry = index.get(hex(key));
+                if (entry == null) {
+                    refresh();
+                    entry = index.get(hex(key));
+                }
+                if (entry == null) {
+                    misses.incrementAndGet();
+                    return null;
+                }
+                value = new byte[entry.length - KEY_BYTES];
+                ByteBuffer buffer = map.duplicate();
+                buffer.position((int) entry.offset + 8 + KEY_BYTES);
+                buffer.get(value);
+                entry.hits++;
+            } catch (IOException e) {
+                PowerLogger.getInstance().warn("Result store lookup failed: " + e.getMessage(), e);
+                return null;
+            }
+        }
+        try {
+            PowerResultList results = MAPPER.readValue(
+                    new InflaterInputStream(new ByteArrayInputStream(value)), PowerResultList.class);
+            hits.incrementAndGet();
+            return results;
+        } catch (IOException e) {
+            PowerLogger.getInstance().warn("Result store record unreadable: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Store results.  Failures are logged, not thrown, since the store
+     * is only a cache.
+     *
+     * @param key key of the request
+     * @param results results of the request
+     */
+    public void put(byte[] key, PowerResultList results) {
+        byte[] value;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DeflaterOutputStream deflater = new DeflaterOutputStream(bytes);
+            MAPPER.writeValue(deflater, results);
+            deflater.close();
+            value = bytes.toByteArray();
+        } catch (IOException e) {
+            PowerLogger.getInstance().warn("Result store record not written: " + e.getMessage(), e);
+            return;
+        }
+        if (value.length > maxBytes / 16) {
+            return;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + value.length);
+        record.putInt(RECORD_MAGIC);
+        record.putInt(KEY_BYTES + value.length);
+        record.put(key, 0, KEY_BYTES);
+        record.put(value);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, KEY_BYTES + value.length);
+        record.putInt((int) crc.getValue());
+
+        synchronized (this) {
+            try {
+                while (true) {
+                    FileLock lock = channel.lock(LOCK_POSITION, 1, false);
+                    try {
+                        if (isRetired()) {
+                            open();
+                            continue;
+                        }
+                        refresh();
+                        long size = channel.size();
+                        if (size > 2 * maxBytes) {
+                            break;
+                        }
+                        // nobody is appending, so anything unscanned is left from a failed write
+                        if (scanned < size) {
+                            channel.truncate(scanned);
+                        }
+                        record.rewind();
+                        long position = scanned;
+                        while (record.hasRemaining()) {
+                            position += channel.write(record, position);
+                        }
+                    } finally {
+                        if (lock.isValid()) {
+                            lock.release();
+                        }
+                    }
+                    break;
+                }
+                refresh();
+                if (channel.size() > maxBytes && !compacting) {
+                    compacting = true;
+                    compactor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            compact();
+                        }
+                    });
+                }
+            } catch (IOException e) {
+                PowerLogger.getInstance().warn("Result store append failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Close the store.
+     */
+    public synchronized void close() {
+        compactor.shutdownNow();
+        closeFile();
+    }
+
+    /**
+     * @return size of the store file
+     */
+    public synchronized long getBytes() {
+        return scanned;
+    }
+
+    /**
+     * @return number of results indexed
+     */
+    public synchronized int getRecords() {
+        return index.size();
+    }
+
+    /**
+     * Open the store file, and index its records.  A store written by
+     * another build or format is first replaced by an empty one.  Use
+     * counts of results already indexed are kept.  Called with the
+     * lock held.
+     *
+     * @throws IOException if the file cannot be opened, or is not a store
+     */
+    private void open() throws IOException {
+        while (true) {
+            closeFile();
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
+            FileLock lock = channel.lock(LOCK_POSITION, 1, false);
+            try {
+                if (channel.size() == 0) {
+                    ByteBuffer header = header();
+                    while (header.hasRemaining()) {
+                        channel.write(header, header.position());
+                    }
+                } else {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                    while (header.hasRemaining()) {
+                        if (channel.read(header, header.position()) < 0) {
+                            break;
+                        }
+                    }
+                    if (header.position() >= 4 && header.getInt(0) != FILE_MAGIC) {
+                        closeFile();
+                        throw new IOException("Not a result store: " + file);
+                    }
+                    if (header.position() >= RETIRED_OFFSET + 4 && header.getInt(RETIRED_OFFSET) != 0) {
+                        // replaced since we opened it
+                        continue;
+                    }
+                    if (!isCurrent(header)) {
+                        replace();
+                        PowerLogger.getInstance().info("Result store written by another build discarded; "
+                                + "now storing results of " + build + ".");
+                        continue;
+                    }
+                }
+            } finally {
+                if (lock.isValid()) {
+                    lock.release();
+                }
+            }
+            break;
+        }
+        map = null;
+        map();
+        Map<String, Entry> previous = index;
+        index = new HashMap<String, Entry>();
+        scanned = HEADER_BYTES;
+        refresh();
+        for (Map.Entry<String, Entry> entry: index.entrySet()) {
+            Entry old = previous.get(entry.getKey());
+            if (old != null) {
+                entry.getValue().hits = old.hits;
+            }
+        }
+    }
+
+    /**
+     * @param header header of the store file
+     * @return true if the file was written in this format by this build
+     */
+    private boolean isCurrent(ByteBuffer header) {
+        if (header.position() < HEADER_BYTES || header.getInt(4) != FORMAT_VERSION) {
+            return false;
+        }
+        byte[] hash = new byte[BUILD_BYTES];
+        ByteBuffer stored = header.duplicate();
+        stored.position(BUILD_OFFSET);
+        stored.get(hash);
+        return Arrays.equals(hash, buildHash);
+    }
+
+    /**
+     * Replace the store file with an empty one, and mark the old file as
+     * retired, so that other processes reopen the store.  Called with
+     * the lock held, and the file lock of the old file held.
+     *
+     * @throws IOException if the file cannot be replaced
+     */
+    private void replace() throws IOException {
+        File replacement = new File(file.getPath() + ".new");
+        RandomAccessFile output = new RandomAccessFile(replacement, "rw");
+        try {
+            FileChannel outputChannel = output.getChannel();
+            outputChannel.truncate(0);
+            write(outputChannel, header());
+            outputChannel.force(true);
+        } finally {
+            output.close();
+        }
+        if (!replacement.renameTo(file)) {
+            replacement.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+        ByteBuffer retired = ByteBuffer.allocate(4);
+        retired.putInt(1);
+        retired.flip();
+        channel.write(retired, RETIRED_OFFSET);
+    }
+
+    /**
+     * @return header of a new store file, ready to write
+     */
+    private ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(FILE_MAGIC).putInt(FORMAT_VERSION).putInt(0).putInt(0).put(buildHash);
+        header.flip();
+        return header;
+    }
+
+    private void closeFile() {
+        map = null;
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                PowerLogger.getInstance().warn("Result store close failed: " + e.getMessage(), e);
+            }
+            randomAccessFile = null;
+            channel = null;
+        }
+    }
+
+    /**
+     * Map the whole file, if it has grown.  Called with the lock held.
+     *
+     * @return size of the file
+     * @throws IOException if the file cannot be mapped
+     */
+    private long map() throws IOException {
+        long size = channel.size();
+        if (map == null || map.capacity() < size) {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        return size;
+    }
+
+    /**
+     * Reopen the store if it has been replaced by compaction, then
+     * index any complete records appended since the last scan.
+     * Called with the lock held.
+     *
+     * @throws IOException if the file cannot be read
+     */
+    private void refresh() throws IOException {
+        if (isRetired()) {
+            open();
+            return;
+        }
+        long size = map();
+        while (scanned + RECORD_OVERHEAD <= size) {
+            int position = (int) scanned;
+            int length = map.getInt(position + 4);
+            if (map.getInt(position) != RECORD_MAGIC || length < KEY_BYTES
+                    || position + 8L + length + 4 > size) {
+                break;
+            }
+            ByteBuffer body = map.duplicate();
+            body.position(position + 8);
+            body.limit(position + 8 + length);
+            byte[] bytes = new byte[length];
+            body.get(bytes);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            if (map.getInt(position + 8 + length) != (int) crc.getValue()) {
+                break;
+            }
+            byte[] key = new byte[KEY_BYTES];
+            System.arraycopy(bytes, 0, key, 0, KEY_BYTES);
+            String hexKey = hex(key);
+            Entry old = index.get(hexKey);
+            Entry entry = new Entry(scanned, length);
+            if (old != null) {
+                entry.hits = old.hits;
+            }
+            index.put(hexKey, entry);
+            scanned += 8 + length + 4;
+        }
+    }
+
+    /**
+     * Called with the lock held.
+     *
+     * @return true if the file has been replaced by compaction
+     */
+    private boolean isRetired() {
+        return map != null && map.getInt(RETIRED_OFFSET) != 0;
+    }
+
+    /**
+     * Copy the most used and most recent results to a new file, and
+     * replace the store file with it.  Runs on the compactor thread.
+     */
+    private void compact() {
+        File compacted = new File(file.getPath() + ".compact");
+        try {
+            List<Entry> entries = new ArrayList<Entry>();
+            MappedByteBuffer source;
+            long end;
+            synchronized (this) {
+                refresh();
+                for (Entry entry: index.values()) {
+                    Entry copy = new Entry(entry.offset, entry.length);
+                    copy.hits = entry.hits;
+                    entries.add(copy);
+                }
+                source = map;
+                end = scanned;
+            }
+
+            Collections.sort(entries, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry x, Entry y) {
+                    if (x.hits != y.hits) {
+                        return x.hits > y.hits ? -1 : 1;
+                    }
+                    return x.offset > y.offset ? -1 : (x.offset == y.offset ? 0 : 1);
+                }
+            });
+            // keep the chosen records in their original order
+            TreeMap<Long, Integer> kept = new TreeMap<Long, Integer>();
+            long bytes = HEADER_BYTES;
+            for (Entry entry: entries) {
+                long recordBytes = RECORD_OVERHEAD - KEY_BYTES + entry.length;
+                if (bytes + recordBytes > maxBytes / 2) {
+                    continue;
+                }
+                bytes += recordBytes;
+                kept.put(entry.offset, entry.length);
+            }
+
+            RandomAccessFile output = new RandomAccessFile(compacted, "rw");
+            try {
+                FileChannel outputChannel = output.getChannel();
+                outputChannel.truncate(0);
+                write(outputChannel, header());
+                for (Map.Entry<Long, Integer> record: kept.entrySet()) {
+                    write(outputChannel, slice(source, record.getKey(), record.getValue()));
+                }
+
+                synchronized (this) {
+                    FileLock lock = channel.lock(LOCK_POSITION, 1, false);
+                    try {
+                        if (isRetired()) {
+                            // another process compacted the store first
+                            compacted.delete();
+                            return;
+                        }
+                        // copy the records appended while the others were copied
+                        refresh();
+                        for (Entry entry: index.values()) {
+                            if (entry.offset >= end) {
+                                write(outputChannel, slice(map, entry.offset, entry.length));
+                            }
+                        }
+                        outputChannel.force(true);
+                        if (!compacted.renameTo(file)) {
+                            throw new IOException("Cannot replace " + file);
+                        }
+                        ByteBuffer retired = ByteBuffer.allocate(4);
+                        retired.putInt(1);
+                        retired.flip();
+                        channel.write(retired, RETIRED_OFFSET);
+                    } finally {
+                        if (lock.isValid()) {
+                            lock.release();
+                        }
+                    }
+                    open();
+                }
+            } finally {
+                output.close();
+            }
+            PowerLogger.getInstance().info("Result store compacted to " + kept.size()
+                    + " of " + entries.size() + " results.");
+        } catch (IOException e) {
+            PowerLogger.getInstance().warn("Result store compaction failed: " + e.getMessage(), e);
+            compacted.delete();
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * @param map mapped file
+     * @param offset offset of a record
+     * @param length length of the record's key and value
+     * @return the whole record
+     */
+    private static ByteBuffer slice(MappedByteBuffer map, long offset, int length) {
+        ByteBuffer record = map.duplicate();
+        record.position((int) offset);
+        record.limit((int) offset + 8 + length + 4);
+        return record;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static byte[] sha256(String text) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(text.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] key) {
+        StringBuilder sb = new StringBuilder(2 * key.length);
+        for (byte b: key) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Location of a record, and its use count in this process.
+     */
+    private static final class Entry {
+        private final long offset;
+        private final int length;
+        private int hits = 0;
+
+        /**
+         * @param offset offset of the record
+         * @param length length of the record's key and value
+         */
+        private Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+import org.codehaus.jackson.node.ObjectNode;
+
+import edu.cudenver.bios.power.GLMMPower;
+import edu.cudenver.bios.power.GLMMPowerCalculator;
+import edu.cudenver.bios.power.Power;
+import edu.cudenver.bios.power.PowerException;
+import edu.ucdenver.bios.powersvc.application.ComputeScheduler;
+import edu.ucdenver.bios.webservice.common.domain.NominalPower;
+import edu.ucdenver.bios.webservice.common.domain.PowerResult;
+import edu.ucdenver.bios.webservice.common.domain.PowerResultList;
+import edu.ucdenver.bios.webservice.common.domain.StudyDesign;
+
+/**
+ * Sample size search which shares the power evaluated at each per
+ * group sample size across all nominal power targets, and, through a
+ * memo keyed by the rest of the design, across requests.
+ * <p>
+ * Power is evaluated for every case of the design (test, alpha,
+ * scale factors, power method, quantile) at once for a given sample
+ * size.  For each case and target, the search finds the smallest
+ * sample size whose power reaches the target, by doubling until the
+ * target is reached and then bisecting, always starting from the
+ * tightest bracket among the sample sizes already evaluated.  The
+ * probes of all unresolved searches are evaluated together in each
+ * round, in parallel on the shared compute scheduler.
+ * <p>
+ * Sample sizes without error degrees of freedom are never evaluated.
+ * A case whose power cannot be calculated at a sample size, i.e. which
+ * has an error code or undefined power, ends its search there, and its
+ * result reports the calculator's error code and message.
+ * <p>
+ * Power is assumed to be non-decreasing in sample size, as it is for
+ * the tests supported.  Results are listed case by case, in the order
+ * of the power calculation, with the targets innermost.
+ *
+ * @author Sarah Kreidler
+ */
+final class SampleSizeSearch {
+    /** Largest per group sample size searched. */
+    static final int MAX_SAMPLE_SIZE = 100000;
+
+    /** First per group sample size evaluated when nothing is known. */
+    private static final int INITIAL_SAMPLE_SIZE = 2;
+
+    /** Number of design structures whose evaluated power is remembered. */
+    private static final int MEMO_CAPACITY = 64;
+
+    /** Fields which do not change the power at a given sample size. */
+    private static final String[] TARGET_FIELDS = {
+        "nominalPowerList", "sampleSizeList", "solutionTypeEnum"
+    };
+
+    /** Evaluated power by design structure, least recently used first. */
+    private static final Map<String, Memo> MEMOS =
+            new LinkedHashMap<String, Memo>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Memo> eldest) {
+                    return size() > MEMO_CAPACITY;
+                }
+            };
+
+    private final DesignContext context;
+    private final Memo memo;
+
+    /**
+     * Create a search for a design.
+     *
+     * @param context design context
+     * @param json study design JSON, used to share evaluated power
+     *        with other requests for the same structure, or null
+     */
+    SampleSizeSearch(DesignContext context, ObjectNode json) {
+        this.context = context;
+        this.memo = (json != null ? getMemo(structureKey(json)) : new Memo());
+    }
+
+    /**
+     * Find the sample size for each case and nominal power target.
+     *
+     * @param deadline time by which the search must be complete,
+     *        in milliseconds since the epoch
+     * @return results
+     * @throws IllegalArgumentException if the design is invalid
+     * @throws PowerException if the calculation fails
+     * @throws TimeoutException if the deadline passes
+     * @throws InterruptedException if interrupted while waiting
+     */
+    PowerResultList search(long deadline) throws IllegalArgumentException,
+            PowerException, TimeoutException, InterruptedException {
+        StudyDesign studyDesign = context.getStudyDesign();
+        List<Double> targets = new ArrayList<Double>();
+        if (studyDesign.getNominalPowerList() != null) {
+            for (NominalPower power: studyDesign.getNominalPowerList()) {
+                targets.add(power.getValue());
+            }
+        }
+        // validate once, and build the shared matrices before the rounds copy them
+        PowerResourceHelper.validate(studyDesign);
+        PowerResourceHelper.buildPowerParameters(context, Collections.singletonList(INITIAL_SAMPLE_SIZE));
+        // the largest sample size without error degrees of freedom
+        int floor = minimumSampleSize(context) - 1;
+
+        int nCases = -1;
+        int[][] sampleSizes = null;
+        while (true) {
+            SortedSet<Integer> probes = new TreeSet<Integer>();
+            TreeMap<Integer, List<Power>> known = memo.snapshot();
+            if (nCases < 0 && !known.isEmpty()) {
+                nCases = known.firstEntry().getValue().size();
+                sampleSizes = new int[nCases][targets.size()];
+            }
+            boolean resolved = nCases >= 0;
+            for (int c = 0; c < Math.max(nCases, 0); c++) {
+                for (int t = 0; t < targets.size(); t++) {
+                    if (sampleSizes[c][t] > 0) {
+                        continue;
+                    }
+                    int probe = nextProbe(known, c, targets.get(t), floor);
+                    if (probe > 0) {
+                        probes.add(probe);
+                        resolved = false;
+                    } else {
+                        sampleSizes[c][t] = -probe;
+                    }
+                }
+            }
+            if (nCases < 0) {
+                probes.add(Math.max(INITIAL_SAMPLE_SIZE, floor + 1));
+            }
+            if (resolved) {
+                break;
+            }
+            evaluate(new ArrayList<Integer>(probes), deadline);
+        }
+
+        TreeMap<Integer, List<Power>> known = memo.snapshot();
+        PowerResultList results = new PowerResultList();
+        for (int c = 0; c < nCases; c++) {
+            for (int t = 0; t < targets.size(); t++) {
+                int sampleSize = sampleSizes[c][t];
+                GLMMPower power = (GLMMPower) known.get(sampleSize).get(c);
+                PowerResult result = PowerResourceHelper.toPowerResult(power);
+                result.setNominalPower(new NominalPower(targets.get(t)));
+                if (!failed(power) && !reaches(power.getActualPower(), targets.get(t))) {
+                    result.setErrorMessage("The nominal power could not be reached with a per group "
+                            + "sample size of " + MAX_SAMPLE_SIZE + " or less.");
+                }
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Choose the next sample size to evaluate for one case and target,
+     * from the tightest bracket among the sample sizes already evaluated.
+     * A sample size at which the power of the case cannot be calculated
+     * ends the search.
+     *
+     * @param known power for each case, by sample size
+     * @param c case index
+     * @param target nominal power
+     * @param floor largest sample size without error degrees of freedom
+     * @return sample size to evaluate, or, negated, the sample size found
+     */
+    private static int nextProbe(TreeMap<Integer, List<Power>> known, int c, double target,
+            int floor) {
+        int below = floor;
+        Integer above = null;
+        for (Map.Entry<Integer, List<Power>> entry: known.tailMap(floor, false).entrySet()) {
+            GLMMPower power = (GLMMPower) entry.getValue().get(c);
+            if (failed(power)) {
+                return -entry.getKey();
+            }
+            if (reaches(power.getActualPower(), target)) {
+                above = entry.getKey();
+                break;
+            }
+            below = entry.getKey();
+        }
+        if (above == null) {
+            if (below >= MAX_SAMPLE_SIZE) {
+                return -MAX_SAMPLE_SIZE;
+            }
+            return (below == floor ? Math.max(INITIAL_SAMPLE_SIZE, floor + 1)
+                    : Math.min(2 * below, MAX_SAMPLE_SIZE));
+        }
+        if (above - below <= 1) {
+            return -above;
+        }
+        return below + (above - below) / 2;
+    }
+
+    /**
+     * @param power power for a case
+     * @return true if the calculator reported an error, or the power is undefined
+     */
+    private static boolean failed(GLMMPower power) {
+        return power.getErrorCode() != null || Double.isNaN(power.getActualPower());
+    }
+
+    /**
+     * Smallest per group sample size with error degrees of freedom.
+     * The total sample size is the per group sample size times the
+     * rows of the design essence, and the error degrees of freedom are
+     * the total less the rank of the design, plus one for a Gaussian
+     * covariate.
+     *
+     * @param context design context
+     * @return smallest per group sample size
+     */
+    private static int minimumSampleSize(DesignContext context) {
+        RealMatrix essence = context.getDesignMatrix();
+        int rank = new SingularValueDecomposition(essence).getRank();
+        if (context.getStudyDesign().isGaussianCovariate()) {
+            rank++;
+        }
+        return rank / essence.getRowDimension() + 1;
+    }
+
+    /**
+     * @param power actual power, possibly undefined
+     * @param target nominal power
+     * @return true if the power is defined and reaches the target
+     */
+    private static boolean reaches(double power, double target) {
+        return power >= target;
+    }
+
+    /**
+     * Evaluate power for every case at a set of sample sizes, in parallel,
+     * and add the results to the memo.
+     *
+     * @param sampleSizes per group sample sizes
+     * @param deadline time by which the evaluation must be complete
+     */
+    private void evaluate(List<Integer> sampleSizes, long deadline)
+            throws IllegalArgumentException, PowerException, TimeoutException,
+            InterruptedException {
+        // probes which ignore cancellation keep reading the context's
+        // matrices after the search gives up, so each holds the scope
+        MatrixScope scope = context.getScope();
+        List<Callable<List<Power>>> tasks = new ArrayList<Callable<List<Power>>>();
+        for (final Integer sampleSize: sampleSizes) {
+            Callable<List<Power>> task = new Callable<List<Power>>() {
+                @Override
+                public List<Power> call() throws Exception {
+                    GLMMPowerCalculator calculator = new GLMMPowerCalculator();
+                    return calculator.getPower(PowerResourceHelper.buildPowerParameters(context,
+                            Collections.singletonList(sampleSize)));
+                }
+            };
+            tasks.add(scope != null ? scope.hold(task) : task);
+        }
+        List<Future<List<Power>>> futures = ComputeScheduler.getInstance().invokeAll(tasks, deadline);
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                memo.put(sampleSizes.get(i), futures.get(i).get());
+            } catch (CancellationException ce) {
+                throw new TimeoutException("Sample size search did not complete in time.");
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof PowerException) {
+                    throw (PowerException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+    /**
+     * Key identifying the structure of a design: its JSON without the
+     * fields which only select the targets of the search.
+     *
+     * @param json study design JSON
+     * @return key
+     */
+    private static String structureKey(ObjectNode json) {
+        ObjectNode structure = DesignJson.copy(json);
+        for (String field: TARGET_FIELDS) {
+            structure.remove(field);
+        }
+        return structure.toString();
+    }
+
+    private static Memo getMemo(String key) {
+        synchronized (MEMOS) {
+            Memo memo = MEMOS.get(key);
+            if (memo == null) {
+                memo = new Memo();
+                MEMOS.put(key, memo);
+            }
+            return memo;
+        }
+    }
+
+    /**
+     * Power for every case of a design, by per group sample size.
+     */
+    private static final class Memo {
+        private final TreeMap<Integer, List<Power>> powerBySampleSize =
+                new TreeMap<Integer, List<Power>>();
+
+        /**
+         * @return copy of the evaluated power
+         */
+        private synchronized TreeMap<Integer, List<Power>> snapshot() {
+            return new TreeMap<Integer, List<Power>>(powerBySampleSize);
+        }
+
+        /**
+         * @param sampleSize per group sample size
+         * @param power power for every case
+         */
+        private synchronized void put(Integer sampleSize, List<Power> power) {
+            powerBySampleSize.put(sampleSize, Collections.unmodifiableList(power));
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import org.apache.commons.math3.linear.AbstractRealMatrix;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * Real matrix which shares its entries with the array it was created
+ * from, and with its copies, until it is modified.  The first change
+ * to a shared matrix copies the entries, so neither the array nor the
+ * other copies see it.
+ * <p>
+ * Matrices from study design blobs are wrapped rather than copied, and
+ * the copies of the design context's matrices in the power parameters
+ * cost nothing unless the calculator changes them.  Arithmetic is done
+ * by Array2DRowRealMatrix on the same entries, and returns ordinary
+ * Array2DRowRealMatrix results.
+ *
+ * @author Sarah Kreidler
+ */
+final class SharedRealMatrix extends AbstractRealMatrix {
+    private double[][] data;
+    private boolean shared;
+
+    /**
+     * Wrap an array, without copying it.  The array must not be
+     * modified afterward.
+     *
+     * @param data entries, row by row
+     * @throws IllegalArgumentException if the array is empty or not rectangular
+     */
+    SharedRealMatrix(double[][] data) {
+        this(checkRectangular(data), true);
+    }
+
+    /**
+     * @param data entries, row by row
+     * @param shared true if the array is referenced elsewhere
+     */
+    private SharedRealMatrix(double[][] data, boolean shared) {
+        this.data = data;
+        this.shared = shared;
+    }
+
+    /**
+     * Copy a matrix which is not modified afterward, sharing its
+     * entries if possible.  An off-heap matrix is shared, not copied
+     * onto the heap, and is valid only while its scope is open.
+     *
+     * @param matrix matrix, or null
+     * @return copy of the matrix, or null
+     */
+    static RealMatrix copyOf(RealMatrix matrix) {
+        if (matrix instanceof Array2DRowRealMatrix) {
+            return new SharedRealMatrix(((Array2DRowRealMatrix) matrix).getDataRef(), true);
+        } else if (matrix instanceof OffHeapRealMatrix) {
+            // the copy shares the buffer until the calculator changes it
+            return matrix.copy();
+        }
+        return (matrix != null ? matrix.copy() : null);
+    }
+
+    /**
+     * Get the entries of a matrix which is not modified afterward,
+     * sharing them if possible.  The array must not be modified.
+     *
+     * @param matrix matrix
+     * @return entries, row by row
+     */
+    static double[][] dataOf(RealMatrix matrix) {
+        if (matrix instanceof SharedRealMatrix) {
+            return ((SharedRealMatrix) matrix).getDataRef();
+        } else if (matrix instanceof Array2DRowRealMatrix) {
+            return ((Array2DRowRealMatrix) matrix).getDataRef();
+        }
+        return matrix.getData();
+    }
+
+    /**
+     * Get the entries without copying them.  The array must not be
+     * modified; later changes to the matrix do not affect it.
+     *
+     * @return entries, row by row
+     */
+    double[][] getDataRef() {
+        shared = true;
+        return data;
+    }
+
+    @Override
+    public int getRowDimension() {
+        return data.length;
+    }
+
+    @Override
+    public int getColumnDimension() {
+        return data[0].length;
+    }
+
+    @Override
+    public RealMatrix createMatrix(int rowDimension, int columnDimension) {
+        return new Array2DRowRealMatrix(rowDimension, columnDimension);
+    }
+
+    @Override
+    public RealMatrix copy() {
+        shared = true;
+        return new SharedRealMatrix(data, true);
+    }
+
+    @Override
+    public double getEntry(int row, int column) {
+        MatrixUtils.checkMatrixIndex(this, row, column);
+        return data[row][column];
+    }
+
+    @Override
+    public void setEntry(int row, int column, double value) {
+        MatrixUtils.checkMatrixIndex(this, row, column);
+        own()[row][column] = value;
+    }
+
+    @Override
+    public void addToEntry(int row, int column, double increment) {
+        MatrixUtils.checkMatrixIndex(this, row, column);
+        own()[row][column] += increment;
+    }
+
+    @Override
+    public void multiplyEntry(int row, int column, double factor) {
+        MatrixUtils.checkMatrixIndex(this, row, column);
+        own()[row][column] *= factor;
+    }
+
+    @Override
+    public double[][] getData() {
+        return view().getData();
+    }
+
+    @Override
+    public double[] getRow(int row) {
+        MatrixUtils.checkRowIndex(this, row);
+        return data[row].clone();
+    }
+
+    @Override
+    public double[] getColumn(int column) {
+        return view().getColumn(column);
+    }
+
+    @Override
+    public RealMatrix getSubMatrix(int startRow, int endRow, int startColumn, int endColumn) {
+        return view().getSubMatrix(startRow, endRow, startColumn, endColumn);
+    }
+
+    @Override
+    public RealMatrix transpose() {
+        return view().transpose();
+    }
+
+    @Override
+    public RealMatrix add(RealMatrix m) {
+        return view().add(unwrap(m));
+    }
+
+    @Override
+    public RealMatrix subtract(RealMatrix m) {
+        return view().subtract(unwrap(m));
+    }
+
+    @Override
+    public RealMatrix multiply(RealMatrix m) {
+        return view().multiply(unwrap(m));
+    }
+
+    @Override
+    public RealMatrix preMultiply(RealMatrix m) {
+        return unwrap(m).multiply(view());
+    }
+
+    @Override
+    public RealMatrix scalarAdd(double d) {
+        return view().scalarAdd(d);
+    }
+
+    @Override
+    public RealMatrix scalarMultiply(double d) {
+        return view().scalarMultiply(d);
+    }
+
+    @Override
+    public double[] operate(double[] v) {
+        return view().operate(v);
+    }
+
+    @Override
+    public double[] preMultiply(double[] v) {
+        return view().preMultiply(v);
+    }
+
+    /**
+     * @return the entries, copied first if they are shared
+     */
+    private double[][] own() {
+        if (shared) {
+            double[][] copy = new double[data.length][];
+            for (int row = 0; row < data.length; row++) {
+                copy[row] = data[row].clone();
+            }
+            data = copy;
+            shared = false;
+        }
+        return data;
+    }
+
+    /**
+     * @return an Array2DRowRealMatrix over the same entries, for read only use
+     */
+    private Array2DRowRealMatrix view() {
+        return new Array2DRowRealMatrix(data, false);
+    }
+
+    /**
+     * @param m matrix
+     * @return the matrix, as an Array2DRowRealMatrix over the same entries
+     * if it is shared, so that the fast paths of Array2DRowRealMatrix apply
+     */
+    private static RealMatrix unwrap(RealMatrix m) {
+        return (m instanceof SharedRealMatrix ? ((SharedRealMatrix) m).view() : m);
+    }
+
+    /**
+     * @param data entries, row by row
+     * @return the entries
+     * @throws IllegalArgumentException if the array is empty or not rectangular
+     */
+    private static double[][] checkRectangular(double[][] data) {
+        if (data == null || data.length == 0 || data[0] == null || data[0].length == 0) {
+            throw new IllegalArgumentException("Matrix has no entries.");
+        }
+        int columns = data[0].length;
+        for (int row = 1; row < data.length; row++) {
+            if (data[row] == null || data[row].length != columns) {
+                throw new IllegalArgumentException("Matrix row " + row + " has " +
+                        (data[row] != null ? data[row].length : 0) + " entries, expected " + columns);
+            }
+        }
+        return data;
+    }
+}
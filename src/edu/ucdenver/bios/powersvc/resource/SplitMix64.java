@@ -0,0 +1,130 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+/**
+ * Splittable pseudo-random number generator (the SplitMix64 algorithm
+ * of Steele, Lea and Flood, as used by java.util.SplittableRandom).
+ * Splitting gives a new generator whose stream is statistically
+ * independent of the parent's, so a simulation can give each block
+ * of replicates its own stream, split from a single seed in a fixed
+ * order, and get the same results however the blocks are spread over
+ * threads.
+ * <p>
+ * A generator is not thread safe; give each thread its own split.
+ *
+ * @author Sarah Kreidler
+ */
+final class SplitMix64 {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final double DOUBLE_UNIT = 1.0 / (1L << 53);
+
+    private long seed;
+    private final long gamma;
+    private double nextGaussian;
+    private boolean haveNextGaussian = false;
+
+    /**
+     * Create a generator.
+     *
+     * @param seed seed
+     */
+    SplitMix64(long seed) {
+        this(seed, GOLDEN_GAMMA);
+    }
+
+    /**
+     * Create a generator with a given increment.
+     *
+     * @param seed seed
+     * @param gamma odd increment
+     */
+    private SplitMix64(long seed, long gamma) {
+        this.seed = seed;
+        this.gamma = gamma;
+    }
+
+    /**
+     * Split off a new generator.
+     *
+     * @return generator with an independent stream
+     */
+    SplitMix64 split() {
+        return new SplitMix64(mix64(nextSeed()), mixGamma(nextSeed()));
+    }
+
+    /**
+     * @return next pseudo-random long
+     */
+    long nextLong() {
+        return mix64(nextSeed());
+    }
+
+    /**
+     * @return next pseudo-random double, uniform in [0, 1)
+     */
+    double nextDouble() {
+        return (nextLong() >>> 11) * DOUBLE_UNIT;
+    }
+
+    /**
+     * Get the next standard normal deviate, by the polar method.
+     *
+     * @return next pseudo-random standard normal value
+     */
+    double nextGaussian() {
+        if (haveNextGaussian) {
+            haveNextGaussian = false;
+            return nextGaussian;
+        }
+        double v1, v2, s;
+        do {
+            v1 = 2 * nextDouble() - 1;
+            v2 = 2 * nextDouble() - 1;
+            s = v1 * v1 + v2 * v2;
+        } while (s >= 1 || s == 0);
+        double multiplier = Math.sqrt(-2 * Math.log(s) / s);
+        nextGaussian = v2 * multiplier;
+        haveNextGaussian = true;
+        return v1 * multiplier;
+    }
+
+    private long nextSeed() {
+        return (seed += gamma);
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long mixGamma(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        z = (z ^ (z >>> 33)) | 1L;
+        // avoid increments with too few bit transitions
+        int transitions = Long.bitCount(z ^ (z >>> 1));
+        return (transitions < 24 ? z ^ 0xaaaaaaaaaaaaaaaaL : z);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.util.List;
+
+import org.apache.commons.math3.linear.RealMatrix;
+
+import edu.cudenver.bios.matrix.FixedRandomMatrix;
+import edu.ucdenver.bios.webservice.common.enums.StudyDesignViewTypeEnum;
+
+/**
+ * Evaluates the observed Theta = C B U of a design context, using
+ * the structure of guided designs where it is known.
+ * <p>
+ * For a clustered design with m observations per cluster, B and U
+ * are expanded as 1' (x) B0 and 1 (x) U0 with vectors of m ones, so by
+ * the mixed product identity
+ * <pre>
+ *     B U = (1' 1) (x) (B0 U0) = m B0 U0
+ * </pre>
+ * and neither expanded matrix is needed.  C and U0 are themselves
+ * Kronecker products of small factors, which are applied one at a
+ * time rather than multiplied out, so neither product is built.  The
+ * random part of a guided mode C is a column of zeros, and adds
+ * nothing.  Matrix mode designs have no such structure and are
+ * multiplied directly.
+ *
+ * @author Sarah Kreidler
+ */
+final class ThetaEvaluator {
+
+    /**
+     * Constructor.
+     */
+    private ThetaEvaluator() {
+    }
+
+    /**
+     * Compute C B U for a design context.
+     *
+     * @param context design context
+     * @return observed theta, or null if C, B or U is missing
+     * @throws IllegalArgumentException if the matrices do not conform
+     */
+    static RealMatrix evaluate(DesignContext context) {
+        List<RealMatrix> betweenFactors = null;
+        List<RealMatrix> withinFactors = null;
+        if (context.getStudyDesign().getViewTypeEnum() == StudyDesignViewTypeEnum.GUIDED_MODE) {
+            betweenFactors = context.getBetweenContrastFactors();
+            withinFactors = context.getWithinContrastFactors();
+        }
+
+        if (betweenFactors == null || withinFactors == null) {
+            FixedRandomMatrix C = context.getBetweenContrast();
+            FixedRandomMatrix B = context.getBeta();
+            RealMatrix U = context.getWithinContrast();
+            if (C == null || B == null || U == null) {
+                return null;
+            }
+            return C.getCombinedMatrix().multiply(B.getCombinedMatrix().multiply(U));
+        }
+
+        // C B U = C_fixed B_fixed U on the unclustered B and U, since C_random is zero
+        FixedRandomMatrix B = context.getUnclusteredBeta();
+        if (B == null) {
+            return null;
+        }
+        RealMatrix theta = KroneckerProduct.leftMultiply(betweenFactors,
+                KroneckerProduct.rightMultiply(B.getFixedMatrix(), withinFactors));
+
+        // the clustering expansion scales B U by the cluster size
+        int clusterSize = context.getClusterSize();
+        return (clusterSize > 1 ? theta.scalarMultiply(clusterSize) : theta);
+    }
+}
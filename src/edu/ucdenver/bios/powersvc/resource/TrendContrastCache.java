@@ -0,0 +1,149 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.math3.linear.RealMatrix;
+
+import edu.ucdenver.bios.powersvc.application.PowerMetrics;
+import edu.ucdenver.bios.webservice.common.enums.HypothesisTrendTypeEnum;
+
+/**
+ * Process-wide cache of trend contrasts, by (spacing, trend type,
+ * transpose); the polynomial degree follows from the number of levels
+ * in the spacing.  Nearly all designs use a handful of spacings, such
+ * as 0..k-1 for between participant factors and a few common time
+ * grids for repeated measures, so the orthogonal polynomials are
+ * rarely worth recomputing.
+ * <p>
+ * The cached contrasts are shared: each caller receives a copy which
+ * shares the cached entries until it is modified, so changes never
+ * reach the cache.  The cache is bounded: once full, arbitrary entries
+ * are discarded to make room.  Hits, misses, and size are reported in
+ * the metrics as "trend_contrast_cache_*".
+ *
+ * @author Sarah Kreidler
+ */
+final class TrendContrastCache {
+    /** Maximum number of cached contrasts. */
+    static final int CAPACITY = 1024;
+
+    private static final TrendContrastCache INSTANCE = new TrendContrastCache(CAPACITY);
+
+    private final int capacity;
+    private final ConcurrentMap<Key, RealMatrix> contrasts = new ConcurrentHashMap<Key, RealMatrix>();
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    /**
+     * @return the process-wide cache
+     */
+    static TrendContrastCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Create a cache, and register its metrics.
+     *
+     * @param capacity maximum number of entries
+     */
+    private TrendContrastCache(int capacity) {
+        this.capacity = capacity;
+        PowerMetrics metrics = PowerMetrics.getInstance();
+        hits = metrics.counter("trend_contrast_cache_hits");
+        misses = metrics.counter("trend_contrast_cache_misses");
+        metrics.gauge("trend_contrast_cache_size", new PowerMetrics.Gauge() {
+            @Override
+            public double getValue() {
+                return contrasts.size();
+            }
+        });
+    }
+
+    /**
+     * Get a trend contrast.
+     *
+     * @param spacing positions of the measurements
+     * @param trendType type of trend contrast
+     * @param transpose if true, get the transpose of the contrast
+     * @return trend contrast, which the caller may modify
+     */
+    RealMatrix get(double[] spacing, HypothesisTrendTypeEnum trendType, boolean transpose) {
+        Key key = new Key(spacing, trendType, transpose);
+        RealMatrix contrast = contrasts.get(key);
+        if (contrast != null) {
+            hits.incrementAndGet();
+            return contrast.copy();
+        }
+        misses.incrementAndGet();
+        contrast = SharedRealMatrix.copyOf(
+                ContrastHelper.trendContrast(spacing, trendType, transpose));
+        if (contrasts.size() >= capacity) {
+            Iterator<Key> keys = contrasts.keySet().iterator();
+            for (int i = 0; i < capacity / 16 && keys.hasNext(); i++) {
+                keys.next();
+                keys.remove();
+            }
+        }
+        contrasts.put(key, contrast);
+        return contrast.copy();
+    }
+
+    /**
+     * Cache key.
+     */
+    private static final class Key {
+        private final double[] spacing;
+        private final HypothesisTrendTypeEnum trendType;
+        private final boolean transpose;
+
+        private Key(double[] spacing, HypothesisTrendTypeEnum trendType, boolean transpose) {
+            this.spacing = spacing.clone();
+            this.trendType = trendType;
+            this.transpose = transpose;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return Arrays.equals(spacing, other.spacing)
+                    && trendType == other.trendType
+                    && transpose == other.transpose;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = Arrays.hashCode(spacing);
+            hash = 31 * hash + (trendType != null ? trendType.hashCode() : 0);
+            return 31 * hash + (transpose ? 1 : 0);
+        }
+    }
+}
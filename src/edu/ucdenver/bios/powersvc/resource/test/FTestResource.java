@@ -21,22 +21,45 @@
  */
 package edu.ucdenver.bios.powersvc.resource.test;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.restlet.data.MediaType;
 import org.restlet.data.Status;
 import org.restlet.ext.xml.DomRepresentation;
+import org.restlet.representation.OutputRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
 import org.restlet.resource.ResourceException;
 import org.restlet.resource.ServerResource;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 import edu.cudenver.bios.distribution.NonCentralFDistribution;
+import edu.ucdenver.bios.powersvc.application.ComputeScheduler;
 import edu.ucdenver.bios.powersvc.application.PowerLogger;
+import edu.ucdenver.bios.powersvc.resource.FCriticalValueCache;
 
 /**
  * Resource exposing some unit test functionality.
  * See the PowerApplication class for URI mappings
+ * <p>
+ * GET evaluates a single noncentral F cdf or inverse cdf, and returns
+ * XML.  POST evaluates a batch, given as a JSON object of equal length
+ * arrays "ndf", "ddf", optionally "nc", and one of "crit" or "q".
+ * The values are returned as {"values": [...]}, or, with the query
+ * parameter format=binary, as big-endian IEEE doubles.
  * 
  * @author Sarah Kreidler
  */
@@ -62,6 +85,36 @@ public class FTestResource extends ServerResource
     
     // xml tag for result
     private static final String TAG_RESULT = "testResult";
+
+    // query param selecting the batch output format
+    private static final String REQUEST_FORMAT = "format";
+    private static final String FORMAT_BINARY = "binary";
+    // json field for batch results
+    private static final String FIELD_VALUES = "values";
+
+    // maximum number of evaluations per batch
+    private static final int MAX_BATCH_SIZE = 100000;
+    // evaluations per parallel task
+    private static final int BATCH_CHUNK_SIZE = 256;
+    // maximum time for a batch
+    private static final long BATCH_TIMEOUT_MILLISECONDS = 60 * 1000L;
+    // number of distinct distributions cached
+    private static final int DISTRIBUTION_CACHE_SIZE = 1024;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // distributions by (ndf, ddf, nc), least recently used first
+    private static final Map<List<Double>, NonCentralFDistribution> DISTRIBUTIONS =
+        new LinkedHashMap<List<Double>, NonCentralFDistribution>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Double>, NonCentralFDistribution> eldest)
+            {
+                return size() > DISTRIBUTION_CACHE_SIZE;
+            }
+        };
     
     /**
      * Create a new resource to handle unit test requests.  
@@ -102,14 +155,14 @@ public class FTestResource extends ServerResource
             if (noncentralStr != null) noncentral = Double.parseDouble(noncentralStr);
 
             double value = Double.NaN;
-            NonCentralFDistribution fdist = new NonCentralFDistribution(ndf, ddf, noncentral);
             if (!Double.isNaN(critical))
             {
+                NonCentralFDistribution fdist = new NonCentralFDistribution(ndf, ddf, noncentral);
                 value = fdist.cdf(critical);
             }
             else if (!Double.isNaN(quantile))
             {
-                value = fdist.inverseCDF(quantile);
+                value = inverseCDF(ndf, ddf, noncentral, quantile);
             }
             
             result = new DomRepresentation(MediaType.TEXT_XML);
@@ -140,4 +193,196 @@ public class FTestResource extends ServerResource
 
         return result;
     }
+    /**
+     * Process a batch of distribution requests.
+     */
+    @Override
+    public Representation post(Representation entity) throws ResourceException
+    {
+        try
+        {
+            if (entity == null)
+                throw new IllegalArgumentException("must specify a JSON object of ndf, ddf, and one of q or crit");
+            JsonNode request = MAPPER.readTree(entity.getText());
+            if (request == null || !request.isObject())
+                throw new IllegalArgumentException("must specify a JSON object of ndf, ddf, and one of q or crit");
+
+            final double[] ndf = toArray(request, REQUEST_NDF, true);
+            final double[] ddf = toArray(request, REQUEST_DDF, true);
+            final double[] noncentral = toArray(request, REQUEST_NONCENTRALITY, false);
+            final double[] critical = toArray(request, REQUEST_CRITICAL_VALUE, false);
+            final double[] quantile = toArray(request, REQUEST_QUANTILE, false);
+            if ((critical == null) == (quantile == null))
+                throw new IllegalArgumentException("must specify exactly one of q or crit");
+            final int n = ndf.length;
+            if (n > MAX_BATCH_SIZE)
+                throw new IllegalArgumentException("batch size must not exceed " + MAX_BATCH_SIZE);
+            checkLength(ddf, n, REQUEST_DDF);
+            checkLength(noncentral, n, REQUEST_NONCENTRALITY);
+            checkLength(critical, n, REQUEST_CRITICAL_VALUE);
+            checkLength(quantile, n, REQUEST_QUANTILE);
+
+            // evaluate in parallel, in chunks
+            final double[] values = new double[n];
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int start = 0; start < n; start += BATCH_CHUNK_SIZE)
+            {
+                final int from = start;
+                final int to = Math.min(n, start + BATCH_CHUNK_SIZE);
+                tasks.add(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        for (int i = from; i < to; i++)
+                        {
+                            double nc = (noncentral != null ? noncentral[i] : 0);
+                            if (critical != null)
+                                values[i] = getDistribution(ndf[i], ddf[i], nc).cdf(critical[i]);
+                            else if (nc == 0)
+                                values[i] = FCriticalValueCache.getInstance().inverseCDF(quantile[i], ndf[i], ddf[i]);
+                            else
+                                values[i] = getDistribution(ndf[i], ddf[i], nc).inverseCDF(quantile[i]);
+                        }
+                        return null;
+                    }
+                });
+            }
+            List<Future<Void>> futures = ComputeScheduler.getInstance().invokeAll(tasks,
+                    System.currentTimeMillis() + BATCH_TIMEOUT_MILLISECONDS);
+            for (Future<Void> future: futures)
+            {
+                future.get();
+            }
+
+            if (FORMAT_BINARY.equals(getQuery().getFirstValue(REQUEST_FORMAT)))
+            {
+                Representation result = new OutputRepresentation(MediaType.APPLICATION_OCTET_STREAM)
+                {
+                    @Override
+                    public void write(OutputStream outputStream) throws IOException
+                    {
+                        DataOutputStream out = new DataOutputStream(outputStream);
+                        for (double value: values)
+                        {
+                            out.writeDouble(value);
+                        }
+                        out.flush();
+                    }
+                };
+                result.setSize(8L * n);
+                return result;
+            }
+            Map<String, double[]> result = new LinkedHashMap<String, double[]>();
+            result.put(FIELD_VALUES, values);
+            return new StringRepresentation(MAPPER.writeValueAsString(result), MediaType.APPLICATION_JSON);
+        }
+        catch (IOException ioe)
+        {
+            PowerLogger.getInstance().error(ioe.getMessage());
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, ioe.getMessage());
+        }
+        catch (IllegalArgumentException iae)
+        {
+            PowerLogger.getInstance().error(iae.getMessage());
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, iae.getMessage());
+        }
+        catch (CancellationException ce)
+        {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Request timed out during computation.");
+        }
+        catch (InterruptedException ie)
+        {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Computation interrupted.");
+        }
+        catch (ExecutionException ee)
+        {
+            PowerLogger.getInstance().error(ee.getCause().getMessage());
+            if (ee.getCause() instanceof IllegalArgumentException)
+                throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, ee.getCause().getMessage());
+            throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "Exception during computation");
+        }
+    }
+
+    /**
+     * Evaluate the inverse cdf, using the process-wide cache of
+     * critical values for the central F distribution.
+     * 
+     * @param ndf numerator degrees of freedom
+     * @param ddf denominator degrees of freedom
+     * @param noncentral noncentrality
+     * @param quantile cumulative probability
+     * @return quantile of the distribution
+     */
+    private static double inverseCDF(double ndf, double ddf, double noncentral, double quantile)
+    {
+        if (noncentral == 0)
+            return FCriticalValueCache.getInstance().inverseCDF(quantile, ndf, ddf);
+        return new NonCentralFDistribution(ndf, ddf, noncentral).inverseCDF(quantile);
+    }
+
+    /**
+     * Get a cached distribution, creating it if necessary.
+     * 
+     * @param ndf numerator degrees of freedom
+     * @param ddf denominator degrees of freedom
+     * @param noncentral noncentrality
+     * @return distribution
+     */
+    private static NonCentralFDistribution getDistribution(double ndf, double ddf, double noncentral)
+    {
+        List<Double> key = new ArrayList<Double>(3);
+        key.add(ndf);
+        key.add(ddf);
+        key.add(noncentral);
+        synchronized (DISTRIBUTIONS)
+        {
+            NonCentralFDistribution fdist = DISTRIBUTIONS.get(key);
+            if (fdist != null)
+                return fdist;
+        }
+        // create outside the lock; a concurrent duplicate is harmless
+        NonCentralFDistribution fdist = new NonCentralFDistribution(ndf, ddf, noncentral);
+        synchronized (DISTRIBUTIONS)
+        {
+            DISTRIBUTIONS.put(key, fdist);
+        }
+        return fdist;
+    }
+
+    /**
+     * Read a numeric array from the batch request.
+     * 
+     * @param request batch request
+     * @param name field name
+     * @param required true if the field must be present
+     * @return values, or null if the field is absent
+     */
+    private static double[] toArray(JsonNode request, String name, boolean required)
+    {
+        JsonNode node = request.get(name);
+        if (node == null || node.isNull())
+        {
+            if (required)
+                throw new IllegalArgumentException("must specify " + name);
+            return null;
+        }
+        if (!node.isArray())
+            throw new IllegalArgumentException(name + " must be an array");
+        double[] values = new double[node.size()];
+        for (int i = 0; i < values.length; i++)
+        {
+            JsonNode element = node.get(i);
+            if (!element.isNumber())
+                throw new IllegalArgumentException(name + " must contain only numbers");
+            values[i] = element.getDoubleValue();
+        }
+        return values;
+    }
+
+    private static void checkLength(double[] values, int n, String name)
+    {
+        if (values != null && values.length != n)
+            throw new IllegalArgumentException(name + " must have the same length as " + REQUEST_NDF);
+    }
 }
@@ -0,0 +1,164 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.restlet.Client;
+import org.restlet.Component;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.Restlet;
+import org.restlet.data.MediaType;
+import org.restlet.data.Method;
+import org.restlet.data.Protocol;
+import org.restlet.representation.StringRepresentation;
+
+import edu.ucdenver.bios.powersvc.resource.DesignHash;
+import edu.ucdenver.bios.powersvc.resource.DesignRegistry;
+import edu.ucdenver.bios.powersvc.router.DesignRouter;
+import edu.ucdenver.bios.powersvc.router.HashRing;
+import edu.ucdenver.bios.powersvc.router.RouterServer;
+
+/**
+ * Tests for the consistent hash ring and for the router, run against
+ * several local stub instances which answer with their own URI.
+ *
+ * @author Sarah Kreidler
+ */
+public class TestDesignRouter extends TestCase {
+    private static final int ROUTER_PORT = 18290;
+    private static final int FIRST_BACKEND_PORT = 18291;
+    private static final int BACKENDS = 3;
+    private static final int KEYS = 30000;
+
+    private static final String DESIGN =
+            "{\"alphaList\":[0.05],\"nominalPowerList\":[0.9],\"sigmaScaleList\":[1]}";
+    private static final String REORDERED_DESIGN =
+            "{ \"sigmaScaleList\": [1], \"nominalPowerList\": [0.9], \"alphaList\": [0.05] }";
+
+    /**
+     * Keys are spread evenly, and removing a node only moves its own
+     * keys, to the node next in its failover order.
+     */
+    public void testRing() {
+        List<String> nodes = Arrays.asList("a", "b", "c", "d");
+        HashRing ring = new HashRing(nodes);
+        HashRing smaller = new HashRing(Arrays.asList("a", "b", "d"));
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < KEYS; i++) {
+            long key = HashRing.position("key" + i);
+            List<String> order = ring.lookup(key);
+            assertEquals(nodes.size(), order.size());
+            String owner = order.get(0);
+            Integer count = counts.get(owner);
+            counts.put(owner, count == null ? 1 : count + 1);
+
+            String newOwner = smaller.lookup(key).get(0);
+            if (owner.equals("c")) {
+                assertEquals(order.get(1), newOwner);
+            } else {
+                assertEquals(owner, newOwner);
+            }
+        }
+        for (String node: nodes) {
+            int count = counts.get(node);
+            assertTrue(node + " owns " + count, count > KEYS / nodes.size() * 0.7
+                    && count < KEYS / nodes.size() * 1.3);
+        }
+    }
+
+    /**
+     * The same design is always sent to the same instance, however its
+     * JSON is written, and moves to another instance when that one stops.
+     */
+    public void testRoutingAndFailover() throws Exception {
+        List<Component> stubs = new ArrayList<Component>();
+        StringBuilder backends = new StringBuilder();
+        for (int i = 0; i < BACKENDS; i++) {
+            int port = FIRST_BACKEND_PORT + i;
+            final String uri = "http://localhost:" + port + "/power";
+            Component stub = new Component();
+            stub.getServers().add(Protocol.HTTP, port);
+            stub.getDefaultHost().attach("/power", new Restlet() {
+                @Override
+                public void handle(Request request, Response response) {
+                    response.setEntity(uri, MediaType.TEXT_PLAIN);
+                }
+            });
+            stub.start();
+            stubs.add(stub);
+            backends.append(i > 0 ? "," : "").append(uri);
+        }
+        RouterServer routerServer = new RouterServer(ROUTER_PORT, "/power", backends.toString(), 0, 2, 16);
+        Client client = new Client(Protocol.HTTP);
+        try {
+            routerServer.start();
+            client.start();
+            DesignRouter router = routerServer.getApplication().getRouter();
+
+            String owner = post(client, "/power", DESIGN);
+            assertEquals(owner, post(client, "/power", REORDERED_DESIGN));
+            assertEquals(owner, post(client, "/samplesize", DESIGN));
+            assertEquals(owner, post(client, "/design", DESIGN));
+            String id = DesignRegistry.newId(DesignHash.of("", new ObjectMapper().readTree(DESIGN)));
+            assertEquals(owner, post(client, "/design/" + id, "{}"));
+
+            int stopped = Integer.parseInt(owner.replaceAll(".*:(\\d+)/power", "$1")) - FIRST_BACKEND_PORT;
+            stubs.get(stopped).stop();
+            String failover = post(client, "/power", DESIGN);
+            assertFalse(owner.equals(failover));
+            assertFalse(router.isHealthy(owner));
+            List<String> order = router.getRing().lookup(
+                    HashRing.position(DesignHash.of("", new ObjectMapper().readTree(DESIGN))));
+            assertEquals(owner, order.get(0));
+            assertEquals(order.get(1), failover);
+            assertEquals(failover, post(client, "/power", REORDERED_DESIGN));
+
+            stubs.get(stopped).start();
+            router.checkHealth();
+            assertTrue(router.isHealthy(owner));
+            assertEquals(owner, post(client, "/power", DESIGN));
+        } finally {
+            client.stop();
+            routerServer.stop();
+            for (Component stub: stubs) {
+                stub.stop();
+            }
+        }
+    }
+
+    private static String post(Client client, String path, String json) throws Exception {
+        Response response = client.handle(new Request(Method.POST,
+                "http://localhost:" + ROUTER_PORT + "/power" + path,
+                new StringRepresentation(json, MediaType.APPLICATION_JSON)));
+        assertTrue(response.getStatus().toString(), response.getStatus().isSuccess());
+        return response.getEntity().getText();
+    }
+}
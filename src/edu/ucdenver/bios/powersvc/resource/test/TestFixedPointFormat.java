@@ -0,0 +1,112 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource.test;
+
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import edu.ucdenver.bios.powersvc.resource.FixedPointFormat;
+
+/**
+ * Tests for the fixed-point formatter used for matrix display.
+ *
+ * @author Sarah Kreidler
+ */
+public class TestFixedPointFormat extends TestCase {
+
+    private static final int DECIMALS = 4;
+
+    /**
+     * Check typical matrix entries against DecimalFormat.
+     */
+    public void testMatchesDecimalFormat() {
+        DecimalFormat decimalFormat = new DecimalFormat("0.0000");
+        double[] values = {0, 1, -1, 0.5, 0.25, -0.3333333, 2.0 / 3.0, 0.05,
+                1.23456789, -98765.4321, 100, 0.00015, 1.00005, 12345.67895};
+        for(double value: values) {
+            assertEquals(decimalFormat.format(value), format(value));
+        }
+    }
+
+    /**
+     * Negative values which round to zero are written without a sign.
+     */
+    public void testNegativeZero() {
+        assertEquals("0.0000", format(-0.0));
+        assertEquals("0.0000", format(-0.00001));
+        assertEquals("0.0000", format(-0.00004));
+    }
+
+    /**
+     * Values are rounded half-even on their exact binary value,
+     * including large values and values close to a tie.
+     */
+    public void testRoundingMatchesExactValue() {
+        Random random = new Random(1234);
+        for(int i = 0; i < 100000; i++) {
+            double value;
+            switch (i % 4) {
+            case 0:
+                value = random.nextGaussian();
+                break;
+            case 1:
+                // multiples of 0.00005, i.e. near a rounding tie
+                value = (random.nextInt(2000000) - 1000000) / 20000.0;
+                break;
+            case 2:
+                value = (random.nextDouble() - 0.5) * 1e7;
+                break;
+            default:
+                value = (random.nextDouble() - 0.5) * 1e15;
+                break;
+            }
+            BigDecimal expected = new BigDecimal(value).setScale(DECIMALS, RoundingMode.HALF_EVEN);
+            if (expected.signum() == 0) {
+                expected = expected.abs();
+            }
+            assertEquals("value " + value, expected.toPlainString(), format(value));
+        }
+    }
+
+    /**
+     * The writer form produces the same text, reusing its buffers.
+     */
+    public void testWriter() throws Exception {
+        FixedPointFormat formatter = new FixedPointFormat(DECIMALS);
+        StringWriter writer = new StringWriter();
+        formatter.write(writer, 1.5);
+        writer.write(' ');
+        formatter.write(writer, -2.25);
+        writer.write(' ');
+        formatter.write(writer, 1e30);
+        assertEquals("1.5000 -2.2500 1000000000000000019884624838656.0000", writer.toString());
+    }
+
+    private static String format(double value) {
+        return FixedPointFormat.append(new StringBuilder(), value, DECIMALS).toString();
+    }
+}
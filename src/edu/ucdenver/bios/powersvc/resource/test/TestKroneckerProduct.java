@@ -0,0 +1,114 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import edu.cudenver.bios.matrix.MatrixUtils;
+import edu.ucdenver.bios.powersvc.resource.ContrastHelper;
+
+/**
+ * Tests for the Kronecker product of a chain of factors, against
+ * pairwise products.
+ *
+ * @author Sarah Kreidler
+ */
+public class TestKroneckerProduct extends TestCase {
+
+    private static final double TOLERANCE = 1e-12;
+
+    /**
+     * The empty chain is the 1x1 identity.
+     */
+    public void testEmpty() {
+        RealMatrix product = ContrastHelper.kroneckerProduct(new ArrayList<RealMatrix>());
+        assertEquals(1, product.getRowDimension());
+        assertEquals(1, product.getColumnDimension());
+        assertEquals(1.0, product.getEntry(0, 0));
+    }
+
+    /**
+     * Short chains, including single row and single column factors,
+     * and factors with zero entries.
+     */
+    public void testSmallChains() {
+        Random random = new Random(1234);
+        int[][][] shapes = {
+                {{3, 2}},
+                {{2, 3}, {1, 2}, {3, 1}, {2, 2}},
+                {{1, 4}, {4, 1}},
+                {{2, 2}, {3, 3}, {2, 2}, {3, 3}, {2, 2}}
+        };
+        for (int[][] shape: shapes) {
+            List<RealMatrix> factors = new ArrayList<RealMatrix>();
+            for (int[] dimensions: shape) {
+                factors.add(randomMatrix(random, dimensions[0], dimensions[1]));
+            }
+            assertProduct(factors);
+        }
+    }
+
+    /**
+     * A product large enough to be filled in parallel.
+     */
+    public void testLargeProduct() {
+        Random random = new Random(5678);
+        List<RealMatrix> factors = new ArrayList<RealMatrix>();
+        factors.add(randomMatrix(random, 16, 16));
+        factors.add(randomMatrix(random, 8, 8));
+        factors.add(randomMatrix(random, 9, 9));
+        assertProduct(factors);
+    }
+
+    private static void assertProduct(List<RealMatrix> factors) {
+        RealMatrix expected = factors.get(0);
+        for (int i = 1; i < factors.size(); i++) {
+            expected = MatrixUtils.getKroneckerProduct(expected, factors.get(i));
+        }
+        RealMatrix product = ContrastHelper.kroneckerProduct(factors);
+        assertEquals(expected.getRowDimension(), product.getRowDimension());
+        assertEquals(expected.getColumnDimension(), product.getColumnDimension());
+        for (int row = 0; row < expected.getRowDimension(); row++) {
+            for (int column = 0; column < expected.getColumnDimension(); column++) {
+                assertEquals(expected.getEntry(row, column), product.getEntry(row, column), TOLERANCE);
+            }
+        }
+    }
+
+    private static RealMatrix randomMatrix(Random random, int rows, int columns) {
+        double[][] data = new double[rows][columns];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                // about a third of the entries are zero, as in contrasts
+                data[row][column] = (random.nextInt(3) == 0 ? 0 : random.nextGaussian());
+            }
+        }
+        return new Array2DRowRealMatrix(data);
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+
+import edu.cudenver.bios.power.GLMMPower;
+import edu.cudenver.bios.power.GLMMPowerCalculator;
+import edu.cudenver.bios.power.Power;
+import edu.ucdenver.bios.powersvc.application.PowerWarmUp;
+import edu.ucdenver.bios.powersvc.resource.DesignContext;
+import edu.ucdenver.bios.powersvc.resource.PowerResourceHelper;
+import edu.ucdenver.bios.webservice.common.domain.BetaScale;
+import edu.ucdenver.bios.webservice.common.domain.NominalPower;
+import edu.ucdenver.bios.webservice.common.domain.PowerResult;
+import edu.ucdenver.bios.webservice.common.domain.PowerResultList;
+import edu.ucdenver.bios.webservice.common.domain.StudyDesign;
+import edu.ucdenver.bios.webservice.common.enums.SolutionTypeEnum;
+
+/**
+ * Tests the sample size search used by the resources against the
+ * sample size search of the calculator, for each design of the warm-up
+ * corpus solved for sample size.  A beta scale of zero is added to
+ * every design, so that no sample size reaches the targets.
+ *
+ * @author Sarah Kreidler
+ */
+public class TestSampleSizeSearch extends TestCase {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final double TOLERANCE = 1e-6;
+
+    private static final long TIMEOUT_MILLISECONDS = 300 * 1000L;
+
+    /** Fields which identify a case and target, rather than its result. */
+    private static final String[] RESULT_FIELDS = {
+        "actualPower", "totalSampleSize", "errorCode", "errorMessage", "confidenceInterval"
+    };
+
+    /**
+     * Each case and target has the same sample size and power, or,
+     * if the target cannot be reached, an error message.
+     */
+    public void testWarmUpCorpus() throws Exception {
+        for (String jsonStudyDesign: loadCorpus()) {
+            StudyDesign studyDesign = sampleSizeDesign(jsonStudyDesign);
+            String name = studyDesign.getName();
+
+            PowerResultList searched = PowerResourceHelper.calculate(new DesignContext(studyDesign),
+                    System.currentTimeMillis() + TIMEOUT_MILLISECONDS);
+            List<Power> expected = new GLMMPowerCalculator().getSampleSize(
+                    PowerResourceHelper.studyDesignToPowerParameters(studyDesign));
+
+            Map<String, PowerResult> expectedByCase = new HashMap<String, PowerResult>();
+            for (Power power: expected) {
+                PowerResult result = PowerResourceHelper.toPowerResult((GLMMPower) power);
+                expectedByCase.put(caseKey(result), result);
+            }
+            assertEquals(name, expected.size(), searched.size());
+            for (PowerResult result: searched) {
+                String key = caseKey(result);
+                PowerResult expectedResult = expectedByCase.get(key);
+                assertNotNull(name + ": " + key, expectedResult);
+                if (expectedResult.getErrorMessage() != null) {
+                    assertNotNull(name + ": " + key, result.getErrorMessage());
+                } else {
+                    assertNull(name + ": " + key, result.getErrorMessage());
+                    assertEquals(name + ": " + key, expectedResult.getTotalSampleSize(),
+                            result.getTotalSampleSize());
+                    assertEquals(name + ": " + key, expectedResult.getActualPower(),
+                            result.getActualPower(), TOLERANCE);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param jsonStudyDesign study design JSON
+     * @return the design, solved for sample size, with a beta scale of zero added
+     * @throws IOException if the JSON is invalid
+     */
+    private static StudyDesign sampleSizeDesign(String jsonStudyDesign) throws IOException {
+        StudyDesign studyDesign = MAPPER.readValue(jsonStudyDesign, StudyDesign.class);
+        studyDesign.setSolutionTypeEnum(SolutionTypeEnum.SAMPLE_SIZE);
+        studyDesign.setSampleSizeList(null);
+
+        ArrayList<BetaScale> betaScaleList = new ArrayList<BetaScale>();
+        if (studyDesign.getBetaScaleList() != null) {
+            betaScaleList.addAll(studyDesign.getBetaScaleList());
+        } else {
+            betaScaleList.add(new BetaScale(1));
+        }
+        betaScaleList.add(new BetaScale(0));
+        studyDesign.setBetaScaleList(betaScaleList);
+
+        if (studyDesign.getNominalPowerList() == null) {
+            ArrayList<NominalPower> nominalPowerList = new ArrayList<NominalPower>();
+            nominalPowerList.add(new NominalPower(0.8));
+            nominalPowerList.add(new NominalPower(0.9));
+            studyDesign.setNominalPowerList(nominalPowerList);
+        }
+        return studyDesign;
+    }
+
+    /**
+     * @param result power result
+     * @return the test, alpha, scales, power method, quantile and
+     *         nominal power of the result, as JSON
+     */
+    private static String caseKey(PowerResult result) {
+        ObjectNode node = MAPPER.valueToTree(result);
+        for (String field: RESULT_FIELDS) {
+            node.remove(field);
+        }
+        return node.toString();
+    }
+
+    /**
+     * Load the study designs of the warm-up corpus, from the class
+     * path, as deployed, or from the config directory.
+     *
+     * @return list of study design JSON strings
+     * @throws IOException if the corpus cannot be read
+     */
+    private static List<String> loadCorpus() throws IOException {
+        List<String> corpus = new ArrayList<String>();
+        for (String line: readLines(PowerWarmUp.CORPUS_INDEX)) {
+            String name = line.trim();
+            if (name.length() > 0 && !name.startsWith("#")) {
+                StringBuilder json = new StringBuilder();
+                for (String jsonLine: readLines(name)) {
+                    json.append(jsonLine).append('\n');
+                }
+                corpus.add(json.toString());
+            }
+        }
+        return corpus;
+    }
+
+    /**
+     * @param name resource name
+     * @return lines of the resource
+     * @throws IOException if the resource is missing or cannot be read
+     */
+    private static List<String> readLines(String name) throws IOException {
+        InputStream in = TestSampleSizeSearch.class.getClassLoader().getResourceAsStream(name);
+        if (in == null) {
+            in = new FileInputStream(new File("config", name));
+        }
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, ENCODING));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
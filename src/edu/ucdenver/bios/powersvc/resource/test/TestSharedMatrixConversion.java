@@ -0,0 +1,113 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.resource.test;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import edu.ucdenver.bios.powersvc.application.PowerConstants;
+import edu.ucdenver.bios.powersvc.resource.PowerResourceHelper;
+import edu.ucdenver.bios.webservice.common.domain.NamedMatrix;
+
+/**
+ * Tests that matrices converted from named matrices share their
+ * entries only until one of them is modified.
+ *
+ * @author Sarah Kreidler
+ */
+public class TestSharedMatrixConversion extends TestCase {
+
+    private static final double[][] DATA = {{1, 2, 3}, {4, 5, 6}};
+
+    /**
+     * Changing the converted matrix leaves the named matrix unchanged.
+     */
+    public void testModifyConverted() {
+        NamedMatrix namedMatrix = namedMatrix();
+        RealMatrix matrix = PowerResourceHelper.toRealMatrix(namedMatrix);
+        assertEquals(2, matrix.getRowDimension());
+        assertEquals(3, matrix.getColumnDimension());
+        assertEquals(6.0, matrix.getEntry(1, 2));
+
+        matrix.setEntry(1, 2, -6);
+        matrix.addToEntry(0, 0, 10);
+        assertEquals(-6.0, matrix.getEntry(1, 2));
+        assertEquals(11.0, matrix.getEntry(0, 0));
+        assertEquals(6.0, namedMatrix.getData().getData()[1][2]);
+        assertEquals(1.0, namedMatrix.getData().getData()[0][0]);
+    }
+
+    /**
+     * A copy and its original are independent once either changes.
+     */
+    public void testModifyCopy() {
+        RealMatrix matrix = PowerResourceHelper.toRealMatrix(namedMatrix());
+        RealMatrix copy = matrix.copy();
+        copy.setEntry(0, 1, 20);
+        assertEquals(2.0, matrix.getEntry(0, 1));
+        assertEquals(20.0, copy.getEntry(0, 1));
+
+        matrix.multiplyEntry(0, 1, 3);
+        assertEquals(6.0, matrix.getEntry(0, 1));
+        assertEquals(20.0, copy.getEntry(0, 1));
+    }
+
+    /**
+     * Arithmetic gives the same results as Array2DRowRealMatrix.
+     */
+    public void testArithmetic() {
+        RealMatrix matrix = PowerResourceHelper.toRealMatrix(namedMatrix());
+        RealMatrix expected = new Array2DRowRealMatrix(DATA);
+        assertEquals(expected.multiply(expected.transpose()), matrix.multiply(matrix.transpose()));
+        assertEquals(expected.add(expected), matrix.add(matrix));
+        assertEquals(expected.scalarMultiply(2), matrix.scalarMultiply(2));
+        assertEquals(expected.getSubMatrix(0, 1, 1, 2), matrix.getSubMatrix(0, 1, 1, 2));
+    }
+
+    /**
+     * Converting back to a named matrix keeps the entries.
+     */
+    public void testRoundTrip() {
+        RealMatrix matrix = PowerResourceHelper.toRealMatrix(namedMatrix());
+        NamedMatrix namedMatrix = PowerResourceHelper.toNamedMatrix(matrix,
+                PowerConstants.MATRIX_SIGMA_ERROR);
+        matrix.setEntry(0, 0, 100);
+        assertEquals(2, namedMatrix.getRows());
+        assertEquals(3, namedMatrix.getColumns());
+        assertEquals(1.0, namedMatrix.getData().getData()[0][0]);
+        assertEquals(5.0, namedMatrix.getData().getData()[1][1]);
+    }
+
+    private static NamedMatrix namedMatrix() {
+        double[][] data = new double[DATA.length][];
+        for (int row = 0; row < DATA.length; row++) {
+            data[row] = DATA[row].clone();
+        }
+        NamedMatrix namedMatrix = new NamedMatrix(PowerConstants.MATRIX_SIGMA_ERROR);
+        namedMatrix.setDataFromArray(data);
+        namedMatrix.setRows(data.length);
+        namedMatrix.setColumns(data[0].length);
+        return namedMatrix;
+    }
+}
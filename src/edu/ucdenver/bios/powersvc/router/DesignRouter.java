@@ -0,0 +1,369 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.router;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.restlet.Client;
+import org.restlet.Context;
+import org.restlet.Request;
+import org.restlet.Response;
+import org.restlet.Restlet;
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Method;
+import org.restlet.data.Protocol;
+import org.restlet.data.Status;
+import org.restlet.representation.StringRepresentation;
+
+import edu.ucdenver.bios.powersvc.application.FairQueueFilter;
+import edu.ucdenver.bios.powersvc.application.PowerLogger;
+import edu.ucdenver.bios.powersvc.resource.DesignHash;
+import edu.ucdenver.bios.powersvc.resource.DesignRegistry;
+
+/**
+ * Restlet which forwards each request to one of several Power Service
+ * instances (backends), chosen by consistent hashing.
+ * <p>
+ * A POST with a JSON study design is routed by the design hash of its
+ * body, so /power, /samplesize and the other calculations for a design
+ * all go to the backend whose result store and caches already hold it.
+ * Registrations (POST /design) are routed the same way, and the id of
+ * a registered design begins with its hash, so requests under
+ * /design/{id} go to the backend which holds the design in memory.
+ * Other requests are routed by their path.
+ * <p>
+ * Each backend's /ready resource is polled, and requests are sent to the
+ * healthy backends first, in the failover order of the hash ring.  If a
+ * backend cannot be reached it is marked down and the request is retried
+ * on the next backend; calculations have no side effects, so a retry is
+ * safe.  A backend which answers 503 (draining, warming up or overloaded)
+ * is skipped in the same way, unless it is the last one.  Backends marked
+ * down are still tried, last, in case the health check is out of date.
+ * <p>
+ * The API key header is passed on, and the X-Forwarded-For header is
+ * set to the client address seen by the router alone: a header sent by
+ * the client is dropped, since a client could otherwise take a new
+ * identity, and rate limit, on every request.  Backends should set the
+ * useForwardedForHeader server parameter (power.useForwardedFor for the
+ * standalone server) so that clients without a key are still scheduled
+ * by their own address rather than the router's.
+ *
+ * @author Sarah Kreidler
+ */
+public class DesignRouter extends Restlet {
+    /** Header listing the addresses a request was forwarded for. */
+    public static final String FORWARDED_FOR_HEADER = "X-Forwarded-For";
+
+    /** Request attribute holding the HTTP headers. */
+    private static final String HEADERS_ATTRIBUTE = "org.restlet.http.headers";
+
+    private static final String DESIGN_PATH = "/design";
+    private static final String READY_PATH = "/ready";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final HashRing ring;
+    private final Map<String, Boolean> healthy = new ConcurrentHashMap<String, Boolean>();
+    private final long healthCheckMillis;
+    private volatile Client client;
+    private ScheduledExecutorService healthChecker;
+
+    /**
+     * Create a router.
+     *
+     * @param context Restlet context
+     * @param backends base URIs of the backends, e.g. "http://host:8080/power"
+     * @param healthCheckMillis interval between health checks, or 0 for none
+     */
+    public DesignRouter(final Context context, final List<String> backends,
+            final long healthCheckMillis) {
+        super(context);
+        List<String> baseUris = new ArrayList<String>();
+        for (String backend: backends) {
+            String baseUri = backend.endsWith("/") ? backend.substring(0, backend.length() - 1) : backend;
+            baseUris.add(baseUri);
+            healthy.put(baseUri, Boolean.TRUE);
+        }
+        this.ring = new HashRing(baseUris);
+        this.healthCheckMillis = healthCheckMillis;
+    }
+
+    /**
+     * Start the HTTP client and the health checks.
+     *
+     * @throws Exception if the client cannot be started
+     */
+    @Override
+    public synchronized void start() throws Exception {
+        if (isStarted()) {
+            return;
+        }
+        client = new Client(new Context(), Protocol.HTTP);
+        client.start();
+        if (healthCheckMillis > 0) {
+            healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(runnable, "router-health-check");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            healthChecker.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    checkHealth();
+                }
+            }, 0, healthCheckMillis, TimeUnit.MILLISECONDS);
+        }
+        super.start();
+    }
+
+    /**
+     * Stop the health checks and the HTTP client.
+     *
+     * @throws Exception if the client cannot be stopped
+     */
+    @Override
+    public synchronized void stop() throws Exception {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+            healthChecker = null;
+        }
+        if (client != null) {
+            client.stop();
+            client = null;
+        }
+        super.stop();
+    }
+
+    /**
+     * Get the hash ring of the backends.
+     *
+     * @return hash ring
+     */
+    public HashRing getRing() {
+        return ring;
+    }
+
+    /**
+     * Check whether a backend passed its last health check.
+     *
+     * @param backend base URI of the backend
+     * @return true if the backend is healthy
+     */
+    public boolean isHealthy(final String backend) {
+        return Boolean.TRUE.equals(healthy.get(backend));
+    }
+
+    /**
+     * Poll the /ready resource of each backend.
+     */
+    public void checkHealth() {
+        Client client = this.client;
+        if (client == null) {
+            return;
+        }
+        for (String backend: ring.getNodes()) {
+            try {
+                Response response = client.handle(new Request(Method.GET, backend + READY_PATH));
+                setHealthy(backend, response.getStatus().isSuccess());
+                if (response.isEntityAvailable()) {
+                    response.getEntity().release();
+                }
+            } catch (RuntimeException e) {
+                setHealthy(backend, false);
+            }
+        }
+    }
+
+    /**
+     * Forward a request to a backend.
+     *
+     * @param request incoming request
+     * @param response response to the client
+     */
+    @Override
+    public void handle(final Request request, final Response response) {
+        super.handle(request, response);
+        String remaining = request.getResourceRef().getRemainingPart();
+        if (remaining == null) {
+            remaining = request.getResourceRef().getPath();
+        }
+        String body = null;
+        MediaType mediaType = null;
+        if (request.isEntityAvailable()) {
+            mediaType = request.getEntity().getMediaType();
+            try {
+                body = request.getEntity().getText();
+            } catch (IOException e) {
+                response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST, "Unable to read the request");
+                return;
+            }
+        }
+
+        Client client = this.client;
+        if (client == null) {
+            response.setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, "The router is not started");
+            return;
+        }
+        List<String> order = failoverOrder(routingKey(request.getMethod(), path(remaining), body));
+        for (int i = 0; i < order.size(); i++) {
+            String backend = order.get(i);
+            Response backendResponse = forward(client, request, backend + remaining, body, mediaType);
+            Status status = backendResponse.getStatus();
+            if (status.isConnectorError()) {
+                PowerLogger.getInstance().warn("Backend " + backend + " unreachable: "
+                        + status.getDescription());
+                setHealthy(backend, false);
+                continue;
+            }
+            if (Status.SERVER_ERROR_SERVICE_UNAVAILABLE.equals(status) && i < order.size() - 1) {
+                if (backendResponse.isEntityAvailable()) {
+                    backendResponse.getEntity().release();
+                }
+                continue;
+            }
+            response.setStatus(status);
+            response.setEntity(backendResponse.getEntity());
+            return;
+        }
+        response.setStatus(Status.SERVER_ERROR_SERVICE_UNAVAILABLE, "No power service instance is available");
+    }
+
+    /**
+     * Get the ring position for a request.
+     *
+     * @param method request method
+     * @param path request path, without the query
+     * @param body request body, or null
+     * @return ring position
+     */
+    long routingKey(final Method method, final String path, final String body) {
+        if (path.startsWith(DESIGN_PATH + "/")) {
+            String id = path.substring(DESIGN_PATH.length() + 1);
+            int end = id.indexOf('/');
+            byte[] hash = DesignRegistry.routingHash(end < 0 ? id : id.substring(0, end));
+            if (hash != null) {
+                return HashRing.position(hash);
+            }
+        }
+        if (Method.POST.equals(method) && body != null) {
+            try {
+                return HashRing.position(DesignHash.of("", MAPPER.readTree(body)));
+            } catch (IOException e) {
+                // not JSON, so let the backend report the error
+            }
+        }
+        return HashRing.position(path);
+    }
+
+    /**
+     * Get the backends to try for a key: the healthy backends in ring
+     * order, then the others.
+     *
+     * @param key ring position
+     * @return backends in the order to try
+     */
+    private List<String> failoverOrder(final long key) {
+        List<String> order = new ArrayList<String>();
+        List<String> down = new ArrayList<String>();
+        for (String backend: ring.lookup(key)) {
+            if (isHealthy(backend)) {
+                order.add(backend);
+            } else {
+                down.add(backend);
+            }
+        }
+        order.addAll(down);
+        return order;
+    }
+
+    /**
+     * Send a copy of a request to a backend.
+     *
+     * @param client HTTP client
+     * @param request incoming request
+     * @param uri backend URI
+     * @param body request body, or null
+     * @param mediaType media type of the body
+     * @return backend response
+     */
+    private static Response forward(final Client client, final Request request,
+            final String uri, final String body, final MediaType mediaType) {
+        Request backendRequest = new Request(request.getMethod(), uri);
+        if (body != null) {
+            backendRequest.setEntity(new StringRepresentation(body, mediaType));
+        }
+        backendRequest.getClientInfo().setAcceptedMediaTypes(
+                request.getClientInfo().getAcceptedMediaTypes());
+
+        Form headers = new Form();
+        Object incoming = request.getAttributes().get(HEADERS_ATTRIBUTE);
+        if (incoming instanceof Form) {
+            String apiKey = ((Form) incoming).getFirstValue(FairQueueFilter.API_KEY_HEADER, true);
+            if (apiKey != null) {
+                headers.add(FairQueueFilter.API_KEY_HEADER, apiKey);
+            }
+        }
+        // only the address the router saw, never the client's own header
+        String forwardedFor = request.getClientInfo().getAddress();
+        if (forwardedFor != null) {
+            headers.add(FORWARDED_FOR_HEADER, forwardedFor);
+        }
+        backendRequest.getAttributes().put(HEADERS_ATTRIBUTE, headers);
+        return client.handle(backendRequest);
+    }
+
+    /**
+     * Record the health of a backend, logging changes.
+     *
+     * @param backend base URI of the backend
+     * @param isHealthy true if the backend is healthy
+     */
+    private void setHealthy(final String backend, final boolean isHealthy) {
+        Boolean previous = healthy.put(backend, Boolean.valueOf(isHealthy));
+        if (previous == null || previous.booleanValue() != isHealthy) {
+            PowerLogger.getInstance().info("Backend " + backend + (isHealthy ? " is up." : " is down."));
+        }
+    }
+
+    /**
+     * Strip the query from a relative URI.
+     *
+     * @param remaining relative URI
+     * @return path
+     */
+    private static String path(final String remaining) {
+        int query = remaining.indexOf('?');
+        return (query < 0 ? remaining : remaining.substring(0, query));
+    }
+}
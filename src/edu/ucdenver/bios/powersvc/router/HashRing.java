@@ -0,0 +1,149 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.router;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring.  Each node is placed at a number of pseudo-random
+ * positions (virtual nodes) on a ring of 64 bit values, and a key belongs
+ * to the first node clockwise from its position.  Adding or removing a
+ * node only moves the keys of that node, and the virtual nodes spread
+ * the keys of a node evenly over the others when it is removed.
+ * <p>
+ * The ring is immutable, and so thread safe.
+ *
+ * @author Sarah Kreidler
+ */
+public final class HashRing {
+    /** Default number of positions for each node. */
+    public static final int DEFAULT_REPLICAS = 128;
+
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+    private final List<String> nodes;
+
+    /**
+     * Create a ring with the default number of positions for each node.
+     *
+     * @param nodes node names
+     */
+    public HashRing(final Collection<String> nodes) {
+        this(nodes, DEFAULT_REPLICAS);
+    }
+
+    /**
+     * Create a ring.
+     *
+     * @param nodes node names
+     * @param replicas number of positions for each node
+     */
+    public HashRing(final Collection<String> nodes, final int replicas) {
+        if (nodes.isEmpty() || replicas < 1) {
+            throw new IllegalArgumentException("A hash ring needs at least one node and one replica");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<String>(new LinkedHashSet<String>(nodes)));
+        for (String node: this.nodes) {
+            for (int i = 0; i < replicas; i++) {
+                ring.put(position(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * Get the nodes on the ring.
+     *
+     * @return node names, in the order given
+     */
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Get the nodes for a key in failover order: the owner of the key
+     * first, then each other node in the order met going clockwise.
+     *
+     * @param key position of the key, e.g. from position()
+     * @return all nodes, owner first
+     */
+    public List<String> lookup(final long key) {
+        Set<String> order = new LinkedHashSet<String>();
+        collect(order, ring.tailMap(key, true));
+        collect(order, ring.headMap(key, false));
+        return new ArrayList<String>(order);
+    }
+
+    /**
+     * Add nodes to the failover order until every node is in it.
+     *
+     * @param order nodes found so far
+     * @param positions part of the ring, in clockwise order
+     */
+    private void collect(final Set<String> order, final Map<Long, String> positions) {
+        for (String node: positions.values()) {
+            if (order.size() == nodes.size()) {
+                return;
+            }
+            order.add(node);
+        }
+    }
+
+    /**
+     * Get the ring position of a hash, from its first eight bytes.
+     *
+     * @param hash hash of at least eight bytes
+     * @return position
+     */
+    public static long position(final byte[] hash) {
+        long position = 0;
+        for (int i = 0; i < 8; i++) {
+            position = (position << 8) | (hash[i] & 0xff);
+        }
+        return position;
+    }
+
+    /**
+     * Get the ring position of a string, from its MD5 hash.
+     *
+     * @param text string
+     * @return position
+     */
+    public static long position(final String text) {
+        try {
+            return position(MessageDigest.getInstance("MD5").digest(text.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.router;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.restlet.Application;
+import org.restlet.Context;
+import org.restlet.Restlet;
+
+import edu.ucdenver.bios.powersvc.application.PowerLogger;
+
+/**
+ * Front application which routes requests to several Power Service
+ * instances.  It accepts the same URIs as the PowerApplication, so
+ * clients only need to change the host they call.
+ * <p>
+ * The application is configured with the following context parameters:
+ * <ul>
+ * <li>edu.ucdenver.bios.powersvc.router.backends - comma separated base
+ * URIs of the instances, e.g. "http://host1:8080/power,http://host2:8080/power"</li>
+ * <li>edu.ucdenver.bios.powersvc.router.healthCheckSeconds - interval
+ * between health checks (default 5)</li>
+ * </ul>
+ *
+ * @author Sarah Kreidler
+ */
+public class RouterApplication extends Application {
+    /** Name of the context parameter listing the backend base URIs. */
+    public static final String BACKENDS_PARAMETER = "edu.ucdenver.bios.powersvc.router.backends";
+
+    /** Name of the context parameter holding the health check interval, in seconds. */
+    public static final String HEALTH_CHECK_SECONDS_PARAMETER =
+            "edu.ucdenver.bios.powersvc.router.healthCheckSeconds";
+
+    private static final String DEFAULT_HEALTH_CHECK_SECONDS = "5";
+
+    private final DesignRouter router;
+
+    /**
+     * Class which dispatches http requests to a backend instance.
+     *
+     * @param parentContext parent context, holding the configuration parameters
+     */
+    public RouterApplication(final Context parentContext) {
+        super(parentContext);
+        List<String> backends = new ArrayList<String>();
+        for (String item: getContext().getParameters().getFirstValue(BACKENDS_PARAMETER, "").split(",")) {
+            if (item.trim().length() > 0) {
+                backends.add(item.trim());
+            }
+        }
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException("No backends given in " + BACKENDS_PARAMETER);
+        }
+        router = new DesignRouter(getContext(), backends,
+                1000L * Integer.parseInt(getContext().getParameters().getFirstValue(
+                        HEALTH_CHECK_SECONDS_PARAMETER, DEFAULT_HEALTH_CHECK_SECONDS)));
+        PowerLogger.getInstance().info("Power service router starting for " + backends + ".");
+    }
+
+    /**
+     * Get the router, for tests and monitoring.
+     *
+     * @return router
+     */
+    public DesignRouter getRouter() {
+        return router;
+    }
+
+    /**
+     * Route all requests to the backends.
+     *
+     * @return Restlet object
+     */
+    @Override
+    public final Restlet createInboundRoot() {
+        return router;
+    }
+
+    /**
+     * Start the application and the router's client and health checks.
+     *
+     * @throws Exception if the router cannot be started
+     */
+    @Override
+    public synchronized void start() throws Exception {
+        router.start();
+        super.start();
+    }
+
+    /**
+     * Stop the application and the router.
+     *
+     * @throws Exception if the router cannot be stopped
+     */
+    @Override
+    public synchronized void stop() throws Exception {
+        try {
+            super.stop();
+        } finally {
+            router.stop();
+        }
+    }
+}
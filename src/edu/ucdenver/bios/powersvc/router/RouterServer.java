@@ -0,0 +1,159 @@
+/*
+ * Power Service for the GLIMMPSE Software System.  Processes
+ * incoming HTTP requests for power, sample size, and detectable
+ * difference
+ *
+ * Copyright (C) 2017 Regents of the University of Colorado.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+package edu.ucdenver.bios.powersvc.router;
+
+import org.restlet.Component;
+import org.restlet.Context;
+import org.restlet.Server;
+import org.restlet.data.Protocol;
+
+import edu.ucdenver.bios.powersvc.application.PowerLogger;
+
+/**
+ * Standalone entry point for the Power Service router.  Runs the
+ * RouterApplication in an embedded Restlet component, in front of
+ * several Power Service instances.
+ * <p>
+ * The server is configured with the following system properties:
+ * <ul>
+ * <li>router.port - HTTP port (default 8090)</li>
+ * <li>router.contextPath - URI prefix for the application (default /power,
+ * matching the instances)</li>
+ * <li>router.backends - comma separated base URIs of the instances
+ * (required)</li>
+ * <li>router.healthCheckSeconds - interval between health checks
+ * (default 5)</li>
+ * <li>router.minThreads, router.maxThreads - connector worker threads</li>
+ * </ul>
+ *
+ * @author Sarah Kreidler
+ */
+public final class RouterServer {
+    private static final String PROPERTY_PORT = "router.port";
+    private static final String PROPERTY_CONTEXT_PATH = "router.contextPath";
+    private static final String PROPERTY_BACKENDS = "router.backends";
+    private static final String PROPERTY_HEALTH_CHECK_SECONDS = "router.healthCheckSeconds";
+    private static final String PROPERTY_MIN_THREADS = "router.minThreads";
+    private static final String PROPERTY_MAX_THREADS = "router.maxThreads";
+
+    private static final int DEFAULT_PORT = 8090;
+    private static final String DEFAULT_CONTEXT_PATH = "/power";
+    private static final int DEFAULT_HEALTH_CHECK_SECONDS = 5;
+    private static final int DEFAULT_MIN_THREADS = 4;
+    // requests wait on the backends, so allow many more than the instances do
+    private static final int DEFAULT_MAX_THREADS = 256;
+
+    private final Component component;
+    private final RouterApplication application;
+
+    /**
+     * Create an embedded router.
+     *
+     * @param port HTTP port
+     * @param contextPath URI prefix for the application
+     * @param backends comma separated base URIs of the instances
+     * @param healthCheckSeconds interval between health checks
+     * @param minThreads minimum number of connector worker threads
+     * @param maxThreads maximum number of connector worker threads
+     * @throws Exception if the application cannot be created
+     */
+    public RouterServer(final int port, final String contextPath,
+            final String backends, final int healthCheckSeconds,
+            final int minThreads, final int maxThreads)
+    throws Exception {
+        component = new Component();
+        Server server = component.getServers().add(Protocol.HTTP, port);
+        server.getContext().getParameters().add("minThreads", Integer.toString(minThreads));
+        server.getContext().getParameters().add("maxThreads", Integer.toString(maxThreads));
+
+        Context applicationContext = component.getContext().createChildContext();
+        applicationContext.getParameters().add(RouterApplication.BACKENDS_PARAMETER, backends);
+        applicationContext.getParameters().add(RouterApplication.HEALTH_CHECK_SECONDS_PARAMETER,
+                Integer.toString(healthCheckSeconds));
+        application = new RouterApplication(applicationContext);
+        component.getDefaultHost().attach(contextPath, application);
+    }
+
+    /**
+     * Get the router application.
+     *
+     * @return application
+     */
+    public RouterApplication getApplication() {
+        return application;
+    }
+
+    /**
+     * Start the component.
+     *
+     * @throws Exception if the connector cannot be started
+     */
+    public void start() throws Exception {
+        component.start();
+    }
+
+    /**
+     * Stop the component.
+     *
+     * @throws Exception if the component fails to stop
+     */
+    public void stop() throws Exception {
+        component.stop();
+        PowerLogger.getInstance().info("Power service router stopped.");
+    }
+
+    /**
+     * Run the router as a standalone process.
+     *
+     * @param args unused; configuration is via system properties
+     * @throws Exception if the server fails to start
+     */
+    public static void main(final String[] args) throws Exception {
+        String backends = System.getProperty(PROPERTY_BACKENDS);
+        if (backends == null) {
+            throw new IllegalArgumentException("Set " + PROPERTY_BACKENDS
+                    + " to the comma separated base URIs of the power service instances");
+        }
+
+        final RouterServer routerServer = new RouterServer(
+                Integer.getInteger(PROPERTY_PORT, DEFAULT_PORT),
+                System.getProperty(PROPERTY_CONTEXT_PATH, DEFAULT_CONTEXT_PATH),
+                backends,
+                Integer.getInteger(PROPERTY_HEALTH_CHECK_SECONDS, DEFAULT_HEALTH_CHECK_SECONDS),
+                Integer.getInteger(PROPERTY_MIN_THREADS, DEFAULT_MIN_THREADS),
+                Integer.getInteger(PROPERTY_MAX_THREADS, DEFAULT_MAX_THREADS));
+
+        Runtime.getRuntime().addShutdownHook(new Thread("router-shutdown") {
+            @Override
+            public void run() {
+                try {
+                    routerServer.stop();
+                } catch (Exception e) {
+                    PowerLogger.getInstance().error("Failed to stop power service router: " + e.getMessage(), e);
+                }
+            }
+        });
+
+        routerServer.start();
+    }
+}